@@ -0,0 +1,175 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.bc.vector;
+import static jdk.incubator.vector.VectorOperators.ROL;
+import static jdk.incubator.vector.VectorOperators.UNSIGNED_LT;
+import static jdk.incubator.vector.VectorOperators.XOR;
+import goryachev.memsafecrypto.CIntArray;
+import goryachev.memsafecrypto.bc.SalsaCore;
+import java.util.Arrays;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+
+/**
+ * Salsa20 core implemented with the Vector API (jdk.incubator.vector).
+ * 
+ * Multiple key stream blocks are computed one block per vector lane, so a preferred-size vector
+ * (8 lanes with AVX2, 16 with AVX-512) produces that many blocks per pass without any shuffling.
+ * 
+ * The vectors are loaded from and stored into small per-thread heap arrays, which are zeroed
+ * right after use.  This class must be compiled and run with "--add-modules jdk.incubator.vector",
+ * see Salsa20Engine.
+ */
+public final class VectorSalsaCore
+	implements SalsaCore
+{
+	private static final VectorSpecies<Integer> LANES = IntVector.SPECIES_PREFERRED;
+	private static final int[] BLOCK_MAP = initBlockMap();
+	private static final int[] IOTA = initIota();
+	private static final ThreadLocal<int[]> scratch = ThreadLocal.withInitial(() -> new int[16 * LANES.length()]);
+
+
+	public VectorSalsaCore()
+	{
+	}
+
+
+	private static int[] initBlockMap()
+	{
+		int[] m = new int[LANES.length()];
+		for(int i=0; i<m.length; i++)
+		{
+			m[i] = i * 16;
+		}
+		return m;
+	}
+
+
+	private static int[] initIota()
+	{
+		int[] m = new int[LANES.length()];
+		for(int i=0; i<m.length; i++)
+		{
+			m[i] = i;
+		}
+		return m;
+	}
+
+
+	public void generateBlocks(int rounds, CIntArray state, long counter, int count, CIntArray x)
+	{
+		int[] s = scratch.get();
+		try
+		{
+			state.copyTo(0, s, 0, 16);
+			
+			IntVector j00 = IntVector.broadcast(LANES, s[0]);
+			IntVector j01 = IntVector.broadcast(LANES, s[1]);
+			IntVector j02 = IntVector.broadcast(LANES, s[2]);
+			IntVector j03 = IntVector.broadcast(LANES, s[3]);
+			IntVector j04 = IntVector.broadcast(LANES, s[4]);
+			IntVector j05 = IntVector.broadcast(LANES, s[5]);
+			IntVector j06 = IntVector.broadcast(LANES, s[6]);
+			IntVector j07 = IntVector.broadcast(LANES, s[7]);
+			IntVector j10 = IntVector.broadcast(LANES, s[10]);
+			IntVector j11 = IntVector.broadcast(LANES, s[11]);
+			IntVector j12 = IntVector.broadcast(LANES, s[12]);
+			IntVector j13 = IntVector.broadcast(LANES, s[13]);
+			IntVector j14 = IntVector.broadcast(LANES, s[14]);
+			IntVector j15 = IntVector.broadcast(LANES, s[15]);
+			IntVector iota = IntVector.fromArray(LANES, IOTA, 0);
+			Arrays.fill(s, 0, 16, 0);
+
+			int lanes = LANES.length();
+			for(int block=0; block<count; block+=lanes)
+			{
+				// per-lane counters, with the carry into the high word
+				int lo = (int)counter;
+				int hi = (int)(counter >>> 32);
+				IntVector j08 = IntVector.broadcast(LANES, lo).add(iota);
+				VectorMask<Integer> carry = j08.compare(UNSIGNED_LT, lo);
+				IntVector j09 = IntVector.broadcast(LANES, hi).add(1, carry);
+
+				IntVector x00 = j00;
+				IntVector x01 = j01;
+				IntVector x02 = j02;
+				IntVector x03 = j03;
+				IntVector x04 = j04;
+				IntVector x05 = j05;
+				IntVector x06 = j06;
+				IntVector x07 = j07;
+				IntVector x08 = j08;
+				IntVector x09 = j09;
+				IntVector x10 = j10;
+				IntVector x11 = j11;
+				IntVector x12 = j12;
+				IntVector x13 = j13;
+				IntVector x14 = j14;
+				IntVector x15 = j15;
+
+				for(int i=rounds; i>0; i-=2)
+				{
+					x04 = x04.lanewise(XOR, x00.add(x12).lanewise(ROL, 7));
+					x08 = x08.lanewise(XOR, x04.add(x00).lanewise(ROL, 9));
+					x12 = x12.lanewise(XOR, x08.add(x04).lanewise(ROL, 13));
+					x00 = x00.lanewise(XOR, x12.add(x08).lanewise(ROL, 18));
+					x09 = x09.lanewise(XOR, x05.add(x01).lanewise(ROL, 7));
+					x13 = x13.lanewise(XOR, x09.add(x05).lanewise(ROL, 9));
+					x01 = x01.lanewise(XOR, x13.add(x09).lanewise(ROL, 13));
+					x05 = x05.lanewise(XOR, x01.add(x13).lanewise(ROL, 18));
+					x14 = x14.lanewise(XOR, x10.add(x06).lanewise(ROL, 7));
+					x02 = x02.lanewise(XOR, x14.add(x10).lanewise(ROL, 9));
+					x06 = x06.lanewise(XOR, x02.add(x14).lanewise(ROL, 13));
+					x10 = x10.lanewise(XOR, x06.add(x02).lanewise(ROL, 18));
+					x03 = x03.lanewise(XOR, x15.add(x11).lanewise(ROL, 7));
+					x07 = x07.lanewise(XOR, x03.add(x15).lanewise(ROL, 9));
+					x11 = x11.lanewise(XOR, x07.add(x03).lanewise(ROL, 13));
+					x15 = x15.lanewise(XOR, x11.add(x07).lanewise(ROL, 18));
+
+					x01 = x01.lanewise(XOR, x00.add(x03).lanewise(ROL, 7));
+					x02 = x02.lanewise(XOR, x01.add(x00).lanewise(ROL, 9));
+					x03 = x03.lanewise(XOR, x02.add(x01).lanewise(ROL, 13));
+					x00 = x00.lanewise(XOR, x03.add(x02).lanewise(ROL, 18));
+					x06 = x06.lanewise(XOR, x05.add(x04).lanewise(ROL, 7));
+					x07 = x07.lanewise(XOR, x06.add(x05).lanewise(ROL, 9));
+					x04 = x04.lanewise(XOR, x07.add(x06).lanewise(ROL, 13));
+					x05 = x05.lanewise(XOR, x04.add(x07).lanewise(ROL, 18));
+					x11 = x11.lanewise(XOR, x10.add(x09).lanewise(ROL, 7));
+					x08 = x08.lanewise(XOR, x11.add(x10).lanewise(ROL, 9));
+					x09 = x09.lanewise(XOR, x08.add(x11).lanewise(ROL, 13));
+					x10 = x10.lanewise(XOR, x09.add(x08).lanewise(ROL, 18));
+					x12 = x12.lanewise(XOR, x15.add(x14).lanewise(ROL, 7));
+					x13 = x13.lanewise(XOR, x12.add(x15).lanewise(ROL, 9));
+					x14 = x14.lanewise(XOR, x13.add(x12).lanewise(ROL, 13));
+					x15 = x15.lanewise(XOR, x14.add(x13).lanewise(ROL, 18));
+				}
+
+				x00.add(j00).intoArray(s, 0, BLOCK_MAP, 0);
+				x01.add(j01).intoArray(s, 1, BLOCK_MAP, 0);
+				x02.add(j02).intoArray(s, 2, BLOCK_MAP, 0);
+				x03.add(j03).intoArray(s, 3, BLOCK_MAP, 0);
+				x04.add(j04).intoArray(s, 4, BLOCK_MAP, 0);
+				x05.add(j05).intoArray(s, 5, BLOCK_MAP, 0);
+				x06.add(j06).intoArray(s, 6, BLOCK_MAP, 0);
+				x07.add(j07).intoArray(s, 7, BLOCK_MAP, 0);
+				x08.add(j08).intoArray(s, 8, BLOCK_MAP, 0);
+				x09.add(j09).intoArray(s, 9, BLOCK_MAP, 0);
+				x10.add(j10).intoArray(s, 10, BLOCK_MAP, 0);
+				x11.add(j11).intoArray(s, 11, BLOCK_MAP, 0);
+				x12.add(j12).intoArray(s, 12, BLOCK_MAP, 0);
+				x13.add(j13).intoArray(s, 13, BLOCK_MAP, 0);
+				x14.add(j14).intoArray(s, 14, BLOCK_MAP, 0);
+				x15.add(j15).intoArray(s, 15, BLOCK_MAP, 0);
+
+				int n = Math.min(lanes, count - block);
+				x.copy(block * 16, s, 0, n * 16);
+				counter += lanes;
+			}
+		}
+		finally
+		{
+			Arrays.fill(s, 0);
+		}
+	}
+}
@@ -1,10 +1,13 @@
 // Copyright © 2021-2022 Andy Goryachev <andy@goryachev.com>
 package goryachev.memsafecrypto;
 import goryachev.memsafecrypto.util.DirectArrayBase;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 
 /**
  * Zeroable byte[] equivalent based on DirectByteBuffer.
+ * The multi-byte accessors (getInt, setInt, getLong, setLong) are big-endian.
  */
 public final class CByteArray
 	extends DirectArrayBase
@@ -27,12 +30,32 @@ public final class CByteArray
 	}
 	
 	
+	/** creates an array backed by the shared buffer */
+	CByteArray(ByteBuffer shared)
+	{
+		super(shared);
+	}
+	
+	
+	private CByteArray(ByteBuffer shared, boolean slice)
+	{
+		super(shared, slice);
+	}
+	
+	
 	public int length()
 	{
 		return sizeInBytes();
 	}
 	
 	
+	/** returns a big-endian buffer which shares the specified range of memory with this array */
+	ByteBuffer sharedBuffer(int offset, int length)
+	{
+		return sharedBuffer(offset, length, ByteOrder.BIG_ENDIAN);
+	}
+	
+	
 	public byte get(int index)
 	{
 		return buffer.get(index);
@@ -57,8 +80,7 @@ public final class CByteArray
 	{
 		checkWriteable();
 		
-		buffer.position(index);
-		buffer.put(src, offset, len);
+		copyBytes(index, src, offset, len);
 	}
 	
 	
@@ -79,6 +101,36 @@ public final class CByteArray
 	}
 	
 	
+	/**
+	 * Returns a slice of the specified range, which shares memory with this array (i.e. no copying is done).
+	 * The slice is read-only if this array is read-only.
+	 * The slice does not own the memory: zero() on the slice does nothing, and destroy() only
+	 * invalidates the slice.  Destroying this array destroys the slice.
+	 */
+	public CByteArray slice(int offset, int length)
+	{
+		CByteArray b = new CByteArray(sharedBuffer(offset, length), true);
+		if(isReadOnly())
+		{
+			b.setReadOnly();
+		}
+		addView(b);
+		return b;
+	}
+	
+	
+	/** 
+	 * Returns a read-only slice of the specified range, which shares memory with this array.
+	 * @see #slice(int, int)
+	 */
+	public CByteArray readOnlySlice(int offset, int length)
+	{
+		CByteArray b = slice(offset, length);
+		b.setReadOnly();
+		return b;
+	}
+	
+	
 	public static CByteArray readOnly(byte[] src)
 	{
 		if(src == null)
@@ -148,11 +200,7 @@ public final class CByteArray
 	{
 		checkWriteable();
 		
-		for(int i=off; i<len; i++)
-		{
-			byte v = b.get(i);
-			buffer.put(v);
-		}
+		buffer.put(b.view(off, len));
 	}
 	
 	
@@ -163,14 +211,17 @@ public final class CByteArray
 	
 	
 	public void fill(byte value)
+	{
+		fill(0, length(), value);
+	}
+	
+	
+	public void fill(int index, int length, byte value)
 	{
 		checkWriteable();
 		
-		int len = length();
-		for(int i=0; i<len; i++)
-		{
-			buffer.put(i, value);
-		}
+		long v = (value & 0xffL) * 0x0101010101010101L;
+		fillBytes(index, length, v);
 	}
 	
 	
@@ -178,11 +229,7 @@ public final class CByteArray
 	{
 		checkWriteable();
 		
-		for(int i=0; i<length; i++)
-		{
-			byte v = src[i + srcPos];
-			buffer.put(i + destPos, v);
-		}
+		copyBytes(destPos, src, srcPos, length);
 	}
 	
 
@@ -190,11 +237,30 @@ public final class CByteArray
 	{
 		checkWriteable();
 		
-		for(int i=0; i<length; i++)
-		{
-			byte v = src.get(i + srcPos);
-			buffer.put(i + destPos, v);
-		}
+		copyBytes(destPos, src, srcPos, length);
+	}
+	
+	
+	/** copies length bytes from the current position of the source buffer, advancing its position */
+	public void copyFrom(ByteBuffer src, int length, int destPos)
+	{
+		checkWriteable();
+		
+		copyBytes(destPos, src, length);
+	}
+	
+	
+	/** copies length bytes starting at srcPos to the current position of the destination buffer, advancing its position */
+	public void copyTo(int srcPos, ByteBuffer dst, int length)
+	{
+		getBytes(srcPos, dst, length);
+	}
+	
+	
+	/** copies length bytes starting at srcPos into the byte array */
+	public void copyTo(int srcPos, byte[] dst, int dstPos, int length)
+	{
+		getBytes(srcPos, dst, dstPos, length);
 	}
 	
 	
@@ -202,11 +268,7 @@ public final class CByteArray
 	{
 		int len = length();
 		byte[] rv = new byte[len];
-		for(int i=0; i<len; i++)
-		{
-			byte b = buffer.get(i);
-			rv[i] = b;
-		}
+		getBytes(0, rv, 0, len);
 		return rv;
 	}
 	
@@ -224,15 +286,19 @@ public final class CByteArray
 			return false;
 		}
 		
-		for(int i=0; i<sz; i++)
+		return sameBytes(0, b, 0, sz);
+	}
+	
+	
+	/** compares the specified ranges in non-constant time */
+	public boolean sameContentAs(int index, CByteArray b, int bIndex, int length)
+	{
+		if(b == null)
 		{
-			byte c = get(i);
-			if(c != b.get(i))
-			{
-				return false;
-			}
+			return false;
 		}
-		return true;
+		
+		return sameBytes(index, b, bIndex, length);
 	}
 	
 	
@@ -269,4 +335,60 @@ public final class CByteArray
 	{
 		return buffer.getInt(index);
 	}
+	
+	
+	public void setLong(int index, long value)
+	{
+		checkWriteable();
+		
+		buffer.putLong(index, value);
+	}
+	
+	
+	public long getLong(int index)
+	{
+		return buffer.getLong(index);
+	}
+	
+	
+	/**
+	 * Returns a little-endian int array view of the specified range, which shares memory with this array
+	 * (i.e. no copying is done).  The view is read-only if this array is read-only.
+	 * Zeroing the view zeroes the corresponding range of this array and vice versa.
+	 * Destroying this array destroys the view.
+	 * 
+	 * @param offset the offset in bytes
+	 * @param length the number of ints
+	 */
+	public CIntArray asIntArrayLE(int offset, int length)
+	{
+		CIntArray a = new CIntArray(sharedBuffer(offset, length * 4, ByteOrder.LITTLE_ENDIAN));
+		if(isReadOnly())
+		{
+			a.setReadOnly();
+		}
+		addView(a);
+		return a;
+	}
+	
+	
+	/**
+	 * Returns a little-endian long array view of the specified range, which shares memory with this array
+	 * (i.e. no copying is done).  The view is read-only if this array is read-only.
+	 * Zeroing the view zeroes the corresponding range of this array and vice versa.
+	 * Destroying this array destroys the view.
+	 * 
+	 * @param offset the offset in bytes
+	 * @param length the number of longs
+	 */
+	public CLongArray asLongArrayLE(int offset, int length)
+	{
+		CLongArray a = new CLongArray(sharedBuffer(offset, length * 8, ByteOrder.LITTLE_ENDIAN));
+		if(isReadOnly())
+		{
+			a.setReadOnly();
+		}
+		addView(a);
+		return a;
+	}
 }
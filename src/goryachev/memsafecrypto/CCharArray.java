@@ -1,6 +1,7 @@
 // Copyright © 2021-2022 Andy Goryachev <andy@goryachev.com>
 package goryachev.memsafecrypto;
 import goryachev.memsafecrypto.util.DirectArrayBase;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -24,15 +25,25 @@ public class CCharArray
 	}
 	
 	
+	/** creates a copy of the first length chars of the source */
+	protected CCharArray(CCharArray x, int length)
+	{
+		super(x, 0, length * BYTES_PER_CHAR);
+	}
+	
+	
+	/** creates an array backed by the shared buffer */
+	CCharArray(ByteBuffer shared)
+	{
+		super(shared);
+	}
+	
+	
 	public CCharArray(char[] cs)
 	{
 		this(cs.length);
 		
-		for(int i=0; i<cs.length; i++)
-		{
-			char c = cs[i];
-			buffer.putChar(i * BYTES_PER_CHAR, c);
-		}
+		copy(0, cs, 0, cs.length);
 	}
 	
 	
@@ -59,15 +70,17 @@ public class CCharArray
 	
 	
 	public void fill(char value)
+	{
+		fill(0, length(), value);
+	}
+	
+	
+	public void fill(int index, int length, char value)
 	{
 		checkWriteable();
 		
-		int len = length();
-		for(int i=0; i<len; i++)
-		{
-			int ix = i * BYTES_PER_CHAR;
-			buffer.putChar(ix, value);
-		}
+		long v = (value & 0xffffL) * 0x0001000100010001L;
+		fillBytes(index * BYTES_PER_CHAR, length * BYTES_PER_CHAR, v);
 	}
 
 
@@ -75,11 +88,27 @@ public class CCharArray
 	{
 		checkWriteable();
 		
-		for(int i=0; i<length; i++)
+		if(length > 0)
+		{
+			view(toOffset * BYTES_PER_CHAR, length * BYTES_PER_CHAR).asCharBuffer().put(src, srcOffset, length);
+		}
+	}
+	
+	
+	public void copy(int toOffset, CCharArray src, int srcOffset, int length)
+	{
+		checkWriteable();
+		
+		copyBytes(toOffset * BYTES_PER_CHAR, src, srcOffset * BYTES_PER_CHAR, length * BYTES_PER_CHAR);
+	}
+	
+	
+	/** copies length chars starting at srcOffset into the char array */
+	public void copyTo(int srcOffset, char[] dst, int dstOffset, int length)
+	{
+		if(length > 0)
 		{
-			char v = src[i + srcOffset];
-			int ix = (i + toOffset) * BYTES_PER_CHAR;
-			buffer.putChar(ix, v);
+			view(srcOffset * BYTES_PER_CHAR, length * BYTES_PER_CHAR).asCharBuffer().get(dst, dstOffset, length);
 		}
 	}
 	
@@ -88,10 +117,7 @@ public class CCharArray
 	{
 		int len = length();
 		char[] rv = new char[len];
-		for(int i=0; i<len; i++)
-		{
-			rv[i] = get(i);
-		}
+		copyTo(0, rv, 0, len);
 		return rv;
 	}
 
@@ -100,19 +126,8 @@ public class CCharArray
 	{
 		int len = length();
 		CCharArray rv = new CCharArray(len + cs.length);
-		
-		for(int i=0; i<len; i++)
-		{
-			char c = get(i);
-			rv.set(i, c);
-		}
-		
-		for(int i=0; i<cs.length; i++)
-		{
-			char c = cs[i];
-			rv.set(i + len, c);
-		}
-		
+		rv.copy(0, this, 0, len);
+		rv.copy(len, cs, 0, cs.length);
 		return rv;
 	}
 
@@ -127,14 +142,7 @@ public class CCharArray
 		
 		len--;
 		
-		CCharArray rv = new CCharArray(len);
-		for(int i=0; i<len; i++)
-		{
-			char c = get(i);
-			rv.set(i, c);
-		}
-		
-		return rv;
+		return new CCharArray(this, len);
 	}
 	
 	
@@ -151,14 +159,6 @@ public class CCharArray
 			return false;
 		}
 		
-		for(int i=0; i<sz; i++)
-		{
-			char c = get(i);
-			if(c != a.get(i))
-			{
-				return false;
-			}
-		}
-		return true;
+		return sameBytes(0, a, 0, sz * BYTES_PER_CHAR);
 	}
 }
@@ -1,6 +1,7 @@
 // Copyright © 2021-2022 Andy Goryachev <andy@goryachev.com>
 package goryachev.memsafecrypto;
 import goryachev.memsafecrypto.util.DirectArrayBase;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -24,6 +25,13 @@ public class CIntArray
 	}
 	
 	
+	/** creates a view backed by the shared buffer */
+	CIntArray(ByteBuffer shared)
+	{
+		super(shared);
+	}
+	
+	
 	public int length()
 	{
 		return sizeInBytes() / BYTES_PER_INT;
@@ -115,15 +123,17 @@ public class CIntArray
 	
 	
 	public void fill(int value)
+	{
+		fill(0, length(), value);
+	}
+	
+	
+	public void fill(int index, int length, int value)
 	{
 		checkWriteable();
 		
-		int len = length();
-		for(int i=0; i<len; i++)
-		{
-			int ix = i * BYTES_PER_INT;
-			buffer.putInt(ix, value);
-		}
+		long v = (value & 0xffffffffL) * 0x0000000100000001L;
+		fillBytes(index * BYTES_PER_INT, length * BYTES_PER_INT, v);
 	}
 
 
@@ -131,11 +141,31 @@ public class CIntArray
 	{
 		checkWriteable();
 		
-		for(int i=0; i<length; i++)
+		if(length > 0)
 		{
-			int v = src[i + srcOffset];
-			int ix = (i + toOffset) * BYTES_PER_INT;
-			buffer.putInt(ix, v);
+			view(toOffset * BYTES_PER_INT, length * BYTES_PER_INT).asIntBuffer().put(src, srcOffset, length);
+		}
+	}
+	
+	
+	/** copies values (not bytes), the source and this array may have different byte order */
+	public void copy(int toOffset, CIntArray src, int srcOffset, int length)
+	{
+		checkWriteable();
+		
+		if(length > 0)
+		{
+			view(toOffset * BYTES_PER_INT, length * BYTES_PER_INT).asIntBuffer().put(src.view(srcOffset * BYTES_PER_INT, length * BYTES_PER_INT).asIntBuffer());
+		}
+	}
+	
+	
+	/** copies length ints starting at srcOffset into the int array */
+	public void copyTo(int srcOffset, int[] dst, int dstOffset, int length)
+	{
+		if(length > 0)
+		{
+			view(srcOffset * BYTES_PER_INT, length * BYTES_PER_INT).asIntBuffer().get(dst, dstOffset, length);
 		}
 	}
 	
@@ -144,10 +174,24 @@ public class CIntArray
 	{
 		int len = length();
 		int[] rv = new int[len];
-		for(int i=0; i<len; i++)
+		copyTo(0, rv, 0, len);
+		return rv;
+	}
+	
+	
+	public boolean sameContentAs(CIntArray a)
+	{
+		if(a == null)
 		{
-			rv[i] = get(i);
+			return false;
 		}
-		return rv;
+		
+		int sz = sizeInBytes();
+		if(sz != a.sizeInBytes())
+		{
+			return false;
+		}
+		
+		return view(0, sz).asIntBuffer().mismatch(a.view(0, sz).asIntBuffer()) < 0;
 	}
 }
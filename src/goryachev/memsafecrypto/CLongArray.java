@@ -1,6 +1,7 @@
 // Copyright © 2021-2022 Andy Goryachev <andy@goryachev.com>
 package goryachev.memsafecrypto;
 import goryachev.memsafecrypto.util.DirectArrayBase;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -24,6 +25,13 @@ public class CLongArray
 	}
 	
 	
+	/** creates a view backed by the shared buffer */
+	CLongArray(ByteBuffer shared)
+	{
+		super(shared);
+	}
+	
+	
 	public int length()
 	{
 		return sizeInBytes() / BYTES_PER_LONG;
@@ -126,15 +134,16 @@ public class CLongArray
 	
 	
 	public void fill(long value)
+	{
+		fill(0, length(), value);
+	}
+	
+	
+	public void fill(int index, int length, long value)
 	{
 		checkWriteable();
 		
-		int sz = length();
-		for(int i=0; i<sz; i++)
-		{
-			int ix = i * BYTES_PER_LONG;
-			buffer.putLong(ix, value);
-		}
+		fillBytes(index * BYTES_PER_LONG, length * BYTES_PER_LONG, value);
 	}
 
 
@@ -142,24 +151,31 @@ public class CLongArray
 	{
 		checkWriteable();
 		
-		for(int i=0; i<length; i++)
+		if(length > 0)
 		{
-			long v = src[i + srcOffset];
-			int ix = (i + toOffset) * BYTES_PER_LONG;
-			buffer.putLong(ix, v);
+			view(toOffset * BYTES_PER_LONG, length * BYTES_PER_LONG).asLongBuffer().put(src, srcOffset, length);
 		}
 	}
 	
 	
+	/** copies values (not bytes), the source and this array may have different byte order */
 	public void copy(int toOffset, CLongArray src, int srcOffset, int length)
 	{
 		checkWriteable();
 		
-		for(int i=0; i<length; i++)
+		if(length > 0)
+		{
+			view(toOffset * BYTES_PER_LONG, length * BYTES_PER_LONG).asLongBuffer().put(src.view(srcOffset * BYTES_PER_LONG, length * BYTES_PER_LONG).asLongBuffer());
+		}
+	}
+	
+	
+	/** copies length longs starting at srcOffset into the long array */
+	public void copyTo(int srcOffset, long[] dst, int dstOffset, int length)
+	{
+		if(length > 0)
 		{
-			long v = src.get(i + srcOffset);
-			int ix = (i + toOffset) * BYTES_PER_LONG;
-			buffer.putLong(ix, v);
+			view(srcOffset * BYTES_PER_LONG, length * BYTES_PER_LONG).asLongBuffer().get(dst, dstOffset, length);
 		}
 	}
 	
@@ -168,10 +184,24 @@ public class CLongArray
 	{
 		int len = length();
 		long[] rv = new long[len];
-		for(int i=0; i<len; i++)
+		copyTo(0, rv, 0, len);
+		return rv;
+	}
+	
+	
+	public boolean sameContentAs(CLongArray a)
+	{
+		if(a == null)
 		{
-			rv[i] = get(i);
+			return false;
 		}
-		return rv;
+		
+		int sz = sizeInBytes();
+		if(sz != a.sizeInBytes())
+		{
+			return false;
+		}
+		
+		return view(0, sz).asLongBuffer().mismatch(a.view(0, sz).asLongBuffer()) < 0;
 	}
 }
@@ -1,6 +1,7 @@
 // Copyright © 2021-2022 Andy Goryachev <andy@goryachev.com>
 package goryachev.memsafecrypto;
 import goryachev.common.log.Log;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 
@@ -28,6 +29,22 @@ public final class Crypto
 	}
 	
 	
+	public static void destroy(ICryptoZeroable z)
+	{
+		if(z != null)
+		{
+			try
+			{
+				z.destroy();
+			}
+			catch(Throwable e)
+			{
+				log.error(e);
+			}
+		}
+	}
+	
+	
 	public static final void zero(byte[] b)
 	{
 		try
@@ -58,4 +75,30 @@ public final class Crypto
 			log.error(e);
 		}
 	}
+	
+	
+	/** zeroes the whole buffer, regardless of its position and limit, which are reset */
+	public static final void zero(ByteBuffer b)
+	{
+		try
+		{
+			if(b != null)
+			{
+				b.clear();
+				while(b.remaining() >= 8)
+				{
+					b.putLong(0L);
+				}
+				while(b.hasRemaining())
+				{
+					b.put((byte)0);
+				}
+				b.clear();
+			}
+		}
+		catch(Throwable e)
+		{
+			log.error(e);
+		}
+	}
 }
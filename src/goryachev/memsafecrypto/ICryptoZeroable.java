@@ -9,4 +9,14 @@ public interface ICryptoZeroable
 {
 	/** destroys cryptographic material */
 	public void zero();
+	
+	
+	/** 
+	 * destroys cryptographic material and releases the associated native memory, if any,
+	 * after which the object must not be used.  The default implementation simply calls zero().
+	 */
+	public default void destroy()
+	{
+		zero();
+	}
 }
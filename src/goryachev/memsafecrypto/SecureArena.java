@@ -0,0 +1,252 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto;
+import goryachev.memsafecrypto.util.DirectArrayBase;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Allocation scope which hands out CByteArray, CIntArray, CLongArray and CCharArray instances
+ * carved from large pre-allocated direct memory slabs, avoiding a native memory allocation
+ * per array.  All the memory handed out is zeroed when the arena is closed, after which the slabs
+ * are returned to the pool for reuse.
+ * <p>
+ * The slabs are pooled in per-thread free lists, with the overflow going into a small shared pool,
+ * so that slabs released by one thread can be picked up by another.
+ * <p>
+ * Usage:
+ * <pre>
+ * try(SecureArena arena = new SecureArena())
+ * {
+ *     CByteArray subkey = arena.newByteArray(32);
+ *     ...
+ * }
+ * </pre>
+ * The arrays obtained from an arena are destroyed when the arena is closed, any subsequent use
+ * results in an exception.
+ * This class is not synchronized and is expected to be confined to a single thread.
+ */
+public final class SecureArena
+	implements Closeable, ICryptoZeroable
+{
+	/** slab size in bytes, requests larger than that get a dedicated buffer */
+	public static final int SLAB_SIZE = 16 * 1024;
+	private static final int ALIGNMENT = 8;
+	private static final int MAX_THREAD_SLABS = 4;
+	private static final int MAX_SHARED_SLABS = 64;
+	private static final ThreadLocal<ArrayDeque<Slab>> threadSlabs = ThreadLocal.withInitial(() -> new ArrayDeque<>());
+	private static final ConcurrentLinkedQueue<Slab> sharedSlabs = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger sharedCount = new AtomicInteger();
+	private final ArrayList<Slab> slabs = new ArrayList<>(2);
+	private final ArrayList<DirectArrayBase> issued = new ArrayList<>();
+	private ArrayList<CByteArray> large;
+	private Slab slab;
+	private boolean closed;
+
+
+	public SecureArena()
+	{
+	}
+
+
+	public CByteArray newByteArray(int size)
+	{
+		return issue(new CByteArray(allocate(size)));
+	}
+
+
+	public CIntArray newIntArray(int size)
+	{
+		return issue(new CIntArray(allocate(size * 4)));
+	}
+
+
+	public CLongArray newLongArray(int size)
+	{
+		return issue(new CLongArray(allocate(size * 8)));
+	}
+
+
+	public CCharArray newCharArray(int size)
+	{
+		return issue(new CCharArray(allocate(size * CCharArray.BYTES_PER_CHAR)));
+	}
+
+
+	/** returns a read-only copy of the specified range, allocated in this arena */
+	public CByteArray readOnly(CByteArray src, int offset, int length)
+	{
+		CByteArray b = newByteArray(length);
+		b.copyFrom(src, offset, length, 0);
+		b.setReadOnly();
+		return b;
+	}
+
+
+	/** returns a read-only copy of the specified range, allocated in this arena */
+	public CByteArray readOnly(byte[] src, int offset, int length)
+	{
+		CByteArray b = newByteArray(length);
+		b.copyFrom(src, offset, length, 0);
+		b.setReadOnly();
+		return b;
+	}
+
+
+	/** allocates from the arena, or a standalone array if the arena is null */
+	public static CByteArray newByteArray(SecureArena arena, int size)
+	{
+		return (arena == null) ? new CByteArray(size) : arena.newByteArray(size);
+	}
+
+
+	/** allocates from the arena, or a standalone array if the arena is null */
+	public static CIntArray newIntArray(SecureArena arena, int size)
+	{
+		return (arena == null) ? new CIntArray(size) : arena.newIntArray(size);
+	}
+
+
+	/** allocates from the arena, or a standalone array if the arena is null */
+	public static CLongArray newLongArray(SecureArena arena, int size)
+	{
+		return (arena == null) ? new CLongArray(size) : arena.newLongArray(size);
+	}
+
+
+	private <T extends DirectArrayBase> T issue(T a)
+	{
+		issued.add(a);
+		return a;
+	}
+	
+	
+	private ByteBuffer allocate(int size)
+	{
+		if(closed)
+		{
+			throw new IllegalStateException("arena is closed");
+		}
+		else if(size < 0)
+		{
+			throw new IllegalArgumentException("negative size: " + size);
+		}
+
+		if(size > SLAB_SIZE)
+		{
+			CByteArray b = new CByteArray(size);
+			if(large == null)
+			{
+				large = new ArrayList<>(2);
+			}
+			large.add(b);
+			return b.sharedBuffer(0, size);
+		}
+
+		int aligned = (size + ALIGNMENT - 1) & -ALIGNMENT;
+		if((slab == null) || (slab.used + aligned > SLAB_SIZE))
+		{
+			slab = takeSlab();
+			slabs.add(slab);
+		}
+
+		int off = slab.used;
+		slab.used += aligned;
+		return slab.memory.sharedBuffer(off, size);
+	}
+
+
+	/** destroys the arrays handed out by this arena, zeroes the memory and returns the slabs to the pool */
+	public void close()
+	{
+		if(closed)
+		{
+			return;
+		}
+
+		closed = true;
+		
+		for(DirectArrayBase a: issued)
+		{
+			a.destroy();
+		}
+		issued.clear();
+
+		for(Slab s: slabs)
+		{
+			releaseSlab(s);
+		}
+		slabs.clear();
+		slab = null;
+
+		if(large != null)
+		{
+			for(CByteArray b: large)
+			{
+				b.destroy();
+			}
+			large = null;
+		}
+	}
+
+
+	public void zero()
+	{
+		close();
+	}
+
+
+	private static Slab takeSlab()
+	{
+		Slab s = threadSlabs.get().poll();
+		if(s == null)
+		{
+			s = sharedSlabs.poll();
+			if(s == null)
+			{
+				s = new Slab();
+			}
+			else
+			{
+				sharedCount.decrementAndGet();
+			}
+		}
+		return s;
+	}
+
+
+	private static void releaseSlab(Slab s)
+	{
+		s.memory.fill(0, s.used, (byte)0);
+		s.used = 0;
+
+		ArrayDeque<Slab> local = threadSlabs.get();
+		if(local.size() < MAX_THREAD_SLABS)
+		{
+			local.push(s);
+		}
+		else if(sharedCount.incrementAndGet() <= MAX_SHARED_SLABS)
+		{
+			sharedSlabs.offer(s);
+		}
+		else
+		{
+			// let the GC free it
+			sharedCount.decrementAndGet();
+		}
+	}
+
+
+	//
+
+
+	private static class Slab
+	{
+		public final CByteArray memory = new CByteArray(SLAB_SIZE);
+		public int used;
+	}
+}
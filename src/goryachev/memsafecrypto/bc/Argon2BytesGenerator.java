@@ -119,6 +119,12 @@ public class Argon2BytesGenerator
 			throw new IllegalStateException("output length less than " + Argon2BytesGenerator.MIN_OUTLEN);
 		}
 
+		if(memory == null)
+		{
+			// released by the previous call
+			initMemory(laneLength * parameters.getLanes());
+		}
+
 		CByteArray tmpBlockBytes = new CByteArray(ARGON2_BLOCK_SIZE);
 		try
 		{
@@ -126,21 +132,19 @@ public class Argon2BytesGenerator
 			fillMemoryBlocks();
 			digest(tmpBlockBytes, out, outOff, outLen);
 	
-			reset();
-	
 			return outLen;
 		}
 		finally
 		{
-			tmpBlockBytes.zero();
+			tmpBlockBytes.destroy();
+			reset();
 		}
 	}
 
 
-	// Clear memory.
+	// Clear memory: zero and release the blocks right away rather than waiting for the GC
 	private void reset()
 	{
-		// Reset memory.
 		if(null != memory)
 		{
 			for(int i=0; i<memory.length; i++)
@@ -148,9 +152,10 @@ public class Argon2BytesGenerator
 				Block b = memory[i];
 				if(null != b)
 				{
-					b.clear();
+					b.destroy();
 				}
 			}
+			memory = null;
 		}
 	}
 
@@ -178,6 +183,8 @@ public class Argon2BytesGenerator
 
 	private void initMemory(int memoryBlocks)
 	{
+		reset();
+		
 		this.memory = new Block[memoryBlocks];
 
 		for(int i=0; i<memory.length; i++)
@@ -190,23 +197,30 @@ public class Argon2BytesGenerator
 	private void fillMemoryBlocks()
 	{
 		FillBlock filler = new FillBlock();
-		Position position = new Position();
-		for(int pass=0; pass<parameters.getIterations(); ++pass)
+		try
 		{
-			position.pass = pass;
-
-			for(int slice=0; slice<ARGON2_SYNC_POINTS; ++slice)
+			Position position = new Position();
+			for(int pass=0; pass<parameters.getIterations(); ++pass)
 			{
-				position.slice = slice;
-
-				for(int lane=0; lane<parameters.getLanes(); ++lane)
+				position.pass = pass;
+	
+				for(int slice=0; slice<ARGON2_SYNC_POINTS; ++slice)
 				{
-					position.lane = lane;
-
-					fillSegment(filler, position);
+					position.slice = slice;
+	
+					for(int lane=0; lane<parameters.getLanes(); ++lane)
+					{
+						position.lane = lane;
+	
+						fillSegment(filler, position);
+					}
 				}
 			}
 		}
+		finally
+		{
+			filler.destroy();
+		}
 	}
 
 
@@ -575,9 +589,16 @@ public class Argon2BytesGenerator
 		}
 		
 		CByteArray initialHashWithZeros = new CByteArray(ARGON2_PREHASH_SEED_LENGTH);
-		blake.doFinal(initialHashWithZeros, 0);
-
-		fillFirstBlocks(tmpBlockBytes, initialHashWithZeros);
+		try
+		{
+			blake.doFinal(initialHashWithZeros, 0);
+	
+			fillFirstBlocks(tmpBlockBytes, initialHashWithZeros);
+		}
+		finally
+		{
+			initialHashWithZeros.destroy();
+		}
 	}
 
 
@@ -602,19 +623,26 @@ public class Argon2BytesGenerator
 	private void fillFirstBlocks(CByteArray tmpBlockBytes, CByteArray initialHashWithZeros)
 	{
 		CByteArray initialHashWithOnes = new CByteArray(ARGON2_PREHASH_SEED_LENGTH);
-		CUtils.arraycopy(initialHashWithZeros, 0, initialHashWithOnes, 0, ARGON2_PREHASH_DIGEST_LENGTH);
-		initialHashWithOnes.set(ARGON2_PREHASH_DIGEST_LENGTH, (byte)1);
-
-		for(int i=0; i<parameters.getLanes(); i++)
+		try
 		{
-			CUtils.intToLittleEndian(i, initialHashWithZeros, ARGON2_PREHASH_DIGEST_LENGTH + 4);
-			CUtils.intToLittleEndian(i, initialHashWithOnes, ARGON2_PREHASH_DIGEST_LENGTH + 4);
-
-			hash(initialHashWithZeros, tmpBlockBytes, 0, ARGON2_BLOCK_SIZE);
-			memory[i * laneLength + 0].fromBytes(tmpBlockBytes);
-
-			hash(initialHashWithOnes, tmpBlockBytes, 0, ARGON2_BLOCK_SIZE);
-			memory[i * laneLength + 1].fromBytes(tmpBlockBytes);
+			CUtils.arraycopy(initialHashWithZeros, 0, initialHashWithOnes, 0, ARGON2_PREHASH_DIGEST_LENGTH);
+			initialHashWithOnes.set(ARGON2_PREHASH_DIGEST_LENGTH, (byte)1);
+	
+			for(int i=0; i<parameters.getLanes(); i++)
+			{
+				CUtils.intToLittleEndian(i, initialHashWithZeros, ARGON2_PREHASH_DIGEST_LENGTH + 4);
+				CUtils.intToLittleEndian(i, initialHashWithOnes, ARGON2_PREHASH_DIGEST_LENGTH + 4);
+	
+				hash(initialHashWithZeros, tmpBlockBytes, 0, ARGON2_BLOCK_SIZE);
+				memory[i * laneLength + 0].fromBytes(tmpBlockBytes);
+	
+				hash(initialHashWithOnes, tmpBlockBytes, 0, ARGON2_BLOCK_SIZE);
+				memory[i * laneLength + 1].fromBytes(tmpBlockBytes);
+			}
+		}
+		finally
+		{
+			initialHashWithOnes.destroy();
 		}
 	}
 
@@ -682,6 +710,15 @@ public class Argon2BytesGenerator
 			applyBlake();
 			currentBlock.xorWith(R, Z);
 		}
+		
+		
+		protected void destroy()
+		{
+			R.destroy();
+			Z.destroy();
+			addressBlock.destroy();
+			inputBlock.destroy();
+		}
 	}
 
 
@@ -772,6 +809,12 @@ public class Argon2BytesGenerator
 			v.fill(0);
 			return this;
 		}
+		
+		
+		public void destroy()
+		{
+			v.destroy();
+		}
 	}
 	
 	
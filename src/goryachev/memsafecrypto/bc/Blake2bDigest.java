@@ -1,7 +1,9 @@
 package goryachev.memsafecrypto.bc;
 import goryachev.memsafecrypto.CByteArray;
 import goryachev.memsafecrypto.CLongArray;
+import goryachev.memsafecrypto.SecureArena;
 import goryachev.memsafecrypto.util.CUtils;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 
@@ -104,7 +106,7 @@ public class Blake2bDigest
 	// Position of last inserted byte:
 	private int bufferPos = 0;// a value from 0 up to 128
 
-	private final CLongArray internalState = new CLongArray(16); // In the Blake2b paper it is called: v
+	private final CLongArray internalState; // In the Blake2b paper it is called: v
 	private CLongArray chainValue = null; // state vector, in the Blake2b paper it is called: h
 
 	private long t0 = 0L; // holds last significant bits, counter (counts bytes)
@@ -125,6 +127,7 @@ public class Blake2bDigest
 	{
 		this.bufferPos = digest.bufferPos;
 		this.buffer = CUtils.clone(digest.buffer);
+		this.internalState = new CLongArray(16);
 		this.keyLength = digest.keyLength;
 		this.key = CUtils.clone(digest.key);
 		this.digestLength = digest.digestLength;
@@ -143,13 +146,27 @@ public class Blake2bDigest
 	 * @param digestSize size of the digest in bits
 	 */
 	public Blake2bDigest(int digestSize)
+	{
+		this(digestSize, null);
+	}
+
+
+	/**
+	 * Sized constructor - size in bits, with the state allocated in the specified arena.
+	 *
+	 * @param digestSize size of the digest in bits
+	 * @param arena the arena, or null to allocate standalone arrays
+	 */
+	public Blake2bDigest(int digestSize, SecureArena arena)
 	{
 		if(digestSize < 8 || digestSize > 512 || digestSize % 8 != 0)
 		{
 			throw new IllegalArgumentException("BLAKE2b digest bit length must be a multiple of 8 and not greater than 512");
 		}
 
-		buffer = new CByteArray(BLOCK_LENGTH_BYTES);
+		buffer = SecureArena.newByteArray(arena, BLOCK_LENGTH_BYTES);
+		internalState = SecureArena.newLongArray(arena, 16);
+		chainValue = SecureArena.newLongArray(arena, 8);
 		keyLength = 0;
 		this.digestLength = digestSize / 8;
 		init();
@@ -168,6 +185,7 @@ public class Blake2bDigest
 	public Blake2bDigest(byte[] key)
 	{
 		buffer = new CByteArray(BLOCK_LENGTH_BYTES);
+		internalState = new CLongArray(16);
 		if(key != null)
 		{
 			this.key = new byte[key.length];
@@ -201,6 +219,7 @@ public class Blake2bDigest
 	public Blake2bDigest(byte[] key, int digestLength, byte[] salt, byte[] personalization)
 	{
 		buffer = new CByteArray(BLOCK_LENGTH_BYTES);
+		internalState = new CLongArray(16);
 		
 		if(digestLength < 1 || digestLength > 64)
 		{
@@ -252,34 +271,34 @@ public class Blake2bDigest
 		if(chainValue == null)
 		{
 			chainValue = new CLongArray(8);
+		}
 
-			chainValue.set(0, blake2b_IV[0] ^ (digestLength | (keyLength << 8) | 0x1010000));
-			// 0x1010000 = ((fanout << 16) | (depth << 24) | (leafLength <<
-			// 32));
-			// with fanout = 1; depth = 0; leafLength = 0;
-			chainValue.set(1, blake2b_IV[1]); // ^ nodeOffset; with nodeOffset = 0;
-			chainValue.set(2, blake2b_IV[2]); // ^ ( nodeDepth | (innerHashLength <<
-			// 8) );
-			// with nodeDepth = 0; innerHashLength = 0;
+		chainValue.set(0, blake2b_IV[0] ^ (digestLength | (keyLength << 8) | 0x1010000));
+		// 0x1010000 = ((fanout << 16) | (depth << 24) | (leafLength <<
+		// 32));
+		// with fanout = 1; depth = 0; leafLength = 0;
+		chainValue.set(1, blake2b_IV[1]); // ^ nodeOffset; with nodeOffset = 0;
+		chainValue.set(2, blake2b_IV[2]); // ^ ( nodeDepth | (innerHashLength <<
+		// 8) );
+		// with nodeDepth = 0; innerHashLength = 0;
 
-			chainValue.set(3, blake2b_IV[3]);
+		chainValue.set(3, blake2b_IV[3]);
 
-			chainValue.set(4, blake2b_IV[4]);
-			chainValue.set(5, blake2b_IV[5]);
-			if(salt != null)
-			{
-				chainValue.xor(4, CUtils.littleEndianToLong(salt, 0));
-				chainValue.xor(5, CUtils.littleEndianToLong(salt, 8));
-			}
+		chainValue.set(4, blake2b_IV[4]);
+		chainValue.set(5, blake2b_IV[5]);
+		if(salt != null)
+		{
+			chainValue.xor(4, CUtils.littleEndianToLong(salt, 0));
+			chainValue.xor(5, CUtils.littleEndianToLong(salt, 8));
+		}
 
-			chainValue.set(6, blake2b_IV[6]);
-			chainValue.set(7, blake2b_IV[7]);
-			
-			if(personalization != null)
-			{
-				chainValue.xor(6, CUtils.littleEndianToLong(personalization, 0));
-				chainValue.xor(7, CUtils.littleEndianToLong(personalization, 8));
-			}
+		chainValue.set(6, blake2b_IV[6]);
+		chainValue.set(7, blake2b_IV[7]);
+		
+		if(personalization != null)
+		{
+			chainValue.xor(6, CUtils.littleEndianToLong(personalization, 0));
+			chainValue.xor(7, CUtils.littleEndianToLong(personalization, 8));
 		}
 	}
 
@@ -459,6 +478,37 @@ public class Blake2bDigest
 	}
 
 
+	/**
+	 * update the message digest with the remaining bytes of the buffer, advancing its position.
+	 * the data is copied into the internal buffer one block at a time.
+	 *
+	 * @param in the input buffer, direct or heap.
+	 */
+	public void update(ByteBuffer in)
+	{
+		while(in.hasRemaining())
+		{
+			// the last block is kept in the buffer, to be compressed by doFinal()
+			if(bufferPos == BLOCK_LENGTH_BYTES)
+			{
+				t0 += BLOCK_LENGTH_BYTES;
+				if(t0 == 0)
+				{
+					// if message > 2^64
+					t1++;
+				}
+				compress(buffer, 0);
+				buffer.fill((byte)0); // clear buffer
+				bufferPos = 0;
+			}
+
+			int n = Math.min(in.remaining(), BLOCK_LENGTH_BYTES - bufferPos);
+			buffer.copyFrom(in, n, bufferPos);
+			bufferPos += n;
+		}
+	}
+
+
 	/**
 	 * close the digest, producing the final digest value. The doFinal
 	 * call leaves the digest reset.
@@ -554,7 +604,6 @@ public class Blake2bDigest
 		f0 = 0L;
 		t0 = 0L;
 		t1 = 0L;
-		chainValue = null;
 		buffer.fill((byte)0);
 		if(key != null)
 		{
@@ -576,10 +625,7 @@ public class Blake2bDigest
 		initializeInternalState();
 
 		long[] m = new long[16];
-		for(int j = 0; j < 16; j++)
-		{
-			m[j] = CUtils.littleEndianToLong(message, messagePos + j * 8);
-		}
+		CUtils.littleEndianToLong(message, messagePos, m, 0, 16);
 
 		for(int round = 0; round < ROUNDS; round++)
 		{
@@ -609,10 +655,7 @@ public class Blake2bDigest
 		initializeInternalState();
 
 		long[] m = new long[16];
-		for(int j = 0; j < 16; j++)
-		{
-			m[j] = CUtils.littleEndianToLong(message, messagePos + j * 8);
-		}
+		CUtils.littleEndianToLong(message, messagePos, m, 0, 16);
 
 		for(int round = 0; round < ROUNDS; round++)
 		{
@@ -1,6 +1,7 @@
 package goryachev.memsafecrypto.bc;
 import goryachev.memsafecrypto.CByteArray;
 import goryachev.memsafecrypto.ICryptoZeroable;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -52,6 +53,14 @@ public interface Digest
 	 */
 	public void update(CByteArray in, int inOff, int len);
 
+
+	/**
+	 * update the message digest with the remaining bytes of the buffer, advancing its position.
+	 *
+	 * @param in the input buffer, direct or heap.
+	 */
+	public void update(ByteBuffer in);
+
 	
 	/**
 	 * close the digest, producing the final digest value. The doFinal
@@ -1,6 +1,8 @@
 package goryachev.memsafecrypto.bc;
 import goryachev.memsafecrypto.CByteArray;
 import goryachev.memsafecrypto.util.CUtils;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 
 /**
@@ -152,6 +154,32 @@ public abstract class GeneralDigest
 	}
 
 
+	public void update(ByteBuffer in)
+	{
+		// fill the current word
+		while((xBufOff != 0) && in.hasRemaining())
+		{
+			update(in.get());
+		}
+
+		// process whole words, the words are big-endian
+		boolean swap = (in.order() != ByteOrder.BIG_ENDIAN);
+		while(in.remaining() >= 4)
+		{
+			int w = in.getInt();
+			xBuf.setInt(0, swap ? Integer.reverseBytes(w) : w);
+			processWord(xBuf, 0);
+			byteCount += 4;
+		}
+
+		// load in the remainder.
+		while(in.hasRemaining())
+		{
+			update(in.get());
+		}
+	}
+
+
 	public void finish()
 	{
 		long bitLength = (byteCount << 3);
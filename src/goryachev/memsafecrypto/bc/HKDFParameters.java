@@ -133,4 +133,12 @@ public class HKDFParameters
 		Crypto.zero(salt);
 		Crypto.zero(info);
 	}
+
+
+	public void destroy()
+	{
+		Crypto.destroy(ikm);
+		Crypto.destroy(salt);
+		Crypto.destroy(info);
+	}
 }
@@ -1,6 +1,7 @@
 package goryachev.memsafecrypto.bc;
 import goryachev.memsafecrypto.CByteArray;
 import goryachev.memsafecrypto.util.CUtils;
+import java.nio.ByteBuffer;
 import java.util.Hashtable;
 
 
@@ -164,6 +165,12 @@ public class HMac
 	}
 
 
+	public void update(ByteBuffer in)
+	{
+		digest.update(in);
+	}
+
+
 	public int doFinal(CByteArray out, int outOff)
 	{
 		digest.doFinal(outputBuf, blockLength);
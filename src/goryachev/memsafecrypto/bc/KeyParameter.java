@@ -1,6 +1,7 @@
 package goryachev.memsafecrypto.bc;
 import goryachev.memsafecrypto.CByteArray;
 import goryachev.memsafecrypto.ICryptoZeroable;
+import goryachev.memsafecrypto.SecureArena;
 
 
 public class KeyParameter
@@ -29,7 +30,40 @@ public class KeyParameter
 	
 	public KeyParameter(CByteArray key, int keyOff, int keyLen)
 	{
-		this.key = key.toReadOnly(keyOff, keyLen);
+		this(key, keyOff, keyLen, false);
+	}
+	
+	
+	private KeyParameter(CByteArray key, int keyOff, int keyLen, boolean share)
+	{
+		this.key = share ? key.readOnlySlice(keyOff, keyLen) : key.toReadOnly(keyOff, keyLen);
+	}
+	
+	
+	/** copies the key into the arena memory */
+	public KeyParameter(CByteArray key, SecureArena arena)
+	{
+		this.key = arena.readOnly(key, 0, key.length());
+	}
+
+
+	/** 
+	 * creates a parameter which shares the key memory (no copying is done).
+	 * the key must stay intact while the parameter is in use, zeroing it remains the caller's responsibility.
+	 */
+	public static KeyParameter wrap(CByteArray key)
+	{
+		return wrap(key, 0, key.length());
+	}
+	
+	
+	/** 
+	 * creates a parameter which shares the key memory (no copying is done).
+	 * the key must stay intact while the parameter is in use, zeroing it remains the caller's responsibility.
+	 */
+	public static KeyParameter wrap(CByteArray key, int keyOff, int keyLen)
+	{
+		return new KeyParameter(key, keyOff, keyLen, true);
 	}
 
 
@@ -43,4 +77,10 @@ public class KeyParameter
 	{
 		key.zero();
 	}
+	
+	
+	public void destroy()
+	{
+		key.destroy();
+	}
 }
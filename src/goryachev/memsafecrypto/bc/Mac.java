@@ -1,6 +1,7 @@
 package goryachev.memsafecrypto.bc;
 import goryachev.memsafecrypto.CByteArray;
 import goryachev.memsafecrypto.ICryptoZeroable;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -54,6 +55,15 @@ public interface Mac
 	public void update(CByteArray in, int inOff, int len) throws DataLengthException, IllegalStateException;
 
 
+	/**
+	 * add the remaining bytes of the buffer to the mac, advancing its position.
+	 * 
+	 * @param in the input buffer, direct or heap.
+	 * @exception IllegalStateException if the MAC is not initialised.
+	 */
+	public void update(ByteBuffer in) throws IllegalStateException;
+
+
 	/**
 	 * Compute the final stage of the MAC writing the output to the out
 	 * parameter.
@@ -2,6 +2,7 @@ package goryachev.memsafecrypto.bc;
 import goryachev.memsafecrypto.CByteArray;
 import goryachev.memsafecrypto.Crypto;
 import goryachev.memsafecrypto.ICryptoZeroable;
+import goryachev.memsafecrypto.SecureArena;
 
 
 public class ParametersWithIV
@@ -32,7 +33,39 @@ public class ParametersWithIV
 
 	public ParametersWithIV(CipherParameters parameters, CByteArray iv, int ivOff, int ivLen)
 	{
-		this.iv = CByteArray.readOnly(iv, ivOff, ivLen);
+		this(parameters, iv, ivOff, ivLen, false);
+	}
+	
+	
+	private ParametersWithIV(CipherParameters parameters, CByteArray iv, int ivOff, int ivLen, boolean share)
+	{
+		this.iv = share ? iv.readOnlySlice(ivOff, ivLen) : CByteArray.readOnly(iv, ivOff, ivLen);
+		this.parameters = parameters;
+	}
+	
+	
+	/** 
+	 * creates parameters which share the IV memory (no copying is done).
+	 * the IV must stay intact while the parameters are in use, zeroing it remains the caller's responsibility.
+	 */
+	public static ParametersWithIV wrap(CipherParameters parameters, CByteArray iv, int ivOff, int ivLen)
+	{
+		return new ParametersWithIV(parameters, iv, ivOff, ivLen, true);
+	}
+
+
+	/** copies the IV into the arena memory */
+	public ParametersWithIV(CipherParameters parameters, CByteArray iv, int ivOff, int ivLen, SecureArena arena)
+	{
+		this.iv = arena.readOnly(iv, ivOff, ivLen);
+		this.parameters = parameters;
+	}
+
+
+	/** copies the IV into the arena memory */
+	public ParametersWithIV(CipherParameters parameters, byte[] iv, int ivOff, int ivLen, SecureArena arena)
+	{
+		this.iv = arena.readOnly(iv, ivOff, ivLen);
 		this.parameters = parameters;
 	}
 
@@ -54,4 +87,11 @@ public class ParametersWithIV
 		Crypto.zero(parameters);
 		Crypto.zero(iv);
 	}
+
+
+	public void destroy()
+	{
+		Crypto.destroy(parameters);
+		Crypto.destroy(iv);
+	}
 }
@@ -2,6 +2,10 @@ package goryachev.memsafecrypto.bc;
 import goryachev.memsafecrypto.CByteArray;
 import goryachev.memsafecrypto.ICryptoZeroable;
 import goryachev.memsafecrypto.util.CUtils;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 
 /**
@@ -11,49 +15,61 @@ import goryachev.memsafecrypto.util.CUtils;
  * consisting of a 128 bit key applied to an underlying cipher, and a 128 bit key (with 106
  * effective key bits) used in the authenticator.
  * <p>
- * The polynomial calculation in this implementation is adapted from the public domain <a
+ * The polynomial calculation is done either with five 26 bit limbs, adapted from the public domain <a
  * href="https://github.com/floodyberry/poly1305-donna">poly1305-donna-unrolled</a> C implementation
- * by Andrew M (@floodyberry).
+ * by Andrew M (@floodyberry), or with two 64 bit limbs using Math.multiplyHigh(), which needs
+ * far fewer multiplications on a 64 bit JVM.  The 64 bit implementation is selected with the constructor
+ * argument, or by default when the "memsafecrypto.poly1305.64bit" system property is set to true.
  * @see Poly1305KeyGenerator
  */
 public class Poly1305
 	implements Mac, ICryptoZeroable
 {
+	/** system property which selects the 64 bit limb implementation by default */
+	public final static String PROPERTY_64BIT = "memsafecrypto.poly1305.64bit";
+	private final static boolean DEFAULT_64BIT = Boolean.getBoolean(PROPERTY_64BIT);
+
 	private static final int BLOCK_SIZE = 16;
 
 	private final BlockCipher cipher;
 
-	private final byte[] singleByte = new byte[1];
-
 	// Initialised state
 
-	/** Polynomial key */
-	private int r0, r1, r2, r3, r4;
-
-	/** Precomputed 5 * r[1..4] */
-	private int s1, s2, s3, s4;
+	/** Polynomial key and accumulator */
+	private final Poly1305Accumulator acc;
 
 	/** Encrypted nonce */
 	private int k0, k1, k2, k3;
 
 	// Accumulating state
 
-	/** Current block of buffered input */
-	private final byte[] currentBlock = new byte[BLOCK_SIZE];
+	/** Partial block of buffered input, only the head and the tail of an update are copied here */
+	private final CByteArray currentBlock = new CByteArray(BLOCK_SIZE);
 
-	/** Current offset in input buffer */
+	/** Current offset in input buffer, always less than BLOCK_SIZE between the calls */
 	private int currentBlockOffset = 0;
 
-	/** Polynomial accumulator */
-	private int h0, h1, h2, h3, h4;
+	/** Output words */
+	private final int[] tag = new int[4];
 	
 
 	/**
 	 * Constructs a Poly1305 MAC, where the key passed to init() will be used directly.
 	 */
 	public Poly1305()
+	{
+		this(DEFAULT_64BIT);
+	}
+
+
+	/**
+	 * Constructs a Poly1305 MAC, where the key passed to init() will be used directly.
+	 * @param use64bit whether to use the 64 bit limb implementation.
+	 */
+	public Poly1305(boolean use64bit)
 	{
 		this.cipher = null;
+		this.acc = createAccumulator(use64bit);
 	}
 
 
@@ -67,6 +83,20 @@ public class Poly1305
 			throw new IllegalArgumentException("Poly1305 requires a 128 bit block cipher.");
 		}
 		this.cipher = cipher;
+		this.acc = createAccumulator(DEFAULT_64BIT);
+	}
+
+
+	private static Poly1305Accumulator createAccumulator(boolean use64bit)
+	{
+		return use64bit ? new Poly1305Accumulator64() : new Poly1305Accumulator26();
+	}
+
+
+	/** returns true if this instance uses the 64 bit limb implementation */
+	public boolean is64bit()
+	{
+		return (acc instanceof Poly1305Accumulator64);
 	}
 
 
@@ -105,6 +135,28 @@ public class Poly1305
 
 		reset();
 	}
+	
+	
+	/**
+	 * Initialises the Poly1305 MAC (without the underlying cipher) with the 256 bit key
+	 * at the specified offset, without creating the parameter objects or allocating memory.
+	 */
+	public void init(CByteArray key, int keyOffset) throws IllegalArgumentException
+	{
+		if(cipher != null)
+		{
+			throw new IllegalArgumentException("Poly1305 requires an IV when used with a block cipher.");
+		}
+		if((keyOffset < 0) || (keyOffset + 32 > key.length()))
+		{
+			throw new IllegalArgumentException("Poly1305 key must be 256 bits.");
+		}
+		
+		setR(key, keyOffset);
+		setK(key, keyOffset + BLOCK_SIZE);
+		
+		reset();
+	}
 
 
 	private void setKey(CByteArray key, CByteArray nonce)
@@ -118,24 +170,7 @@ public class Poly1305
 			throw new IllegalArgumentException("Poly1305 requires a 128 bit IV.");
 		}
 
-		// Extract r portion of key (and "clamp" the values)
-		int t0 = CUtils.littleEndianToInt(key, 0);
-		int t1 = CUtils.littleEndianToInt(key, 4);
-		int t2 = CUtils.littleEndianToInt(key, 8);
-		int t3 = CUtils.littleEndianToInt(key, 12);
-
-		// NOTE: The masks perform the key "clamping" implicitly
-		r0 = t0 & 0x03FFFFFF;
-		r1 = ((t0 >>> 26) | (t1 << 6)) & 0x03FFFF03;
-		r2 = ((t1 >>> 20) | (t2 << 12)) & 0x03FFC0FF;
-		r3 = ((t2 >>> 14) | (t3 << 18)) & 0x03F03FFF;
-		r4 = (t3 >>> 8) & 0x000FFFFF;
-
-		// Precompute multipliers
-		s1 = r1 * 5;
-		s2 = r2 * 5;
-		s3 = r3 * 5;
-		s4 = r4 * 5;
+		setR(key, 0);
 
 		final CByteArray kBytes;
 		final int kOff;
@@ -155,6 +190,25 @@ public class Poly1305
 			cipher.processBlock(nonce, 0, kBytes, 0);
 		}
 
+		setK(kBytes, kOff);
+	}
+	
+	
+	private void setR(CByteArray key, int off)
+	{
+		// Extract r portion of key (the accumulator "clamps" the values)
+		acc.setR
+		(
+			CUtils.littleEndianToInt(key, off),
+			CUtils.littleEndianToInt(key, off + 4),
+			CUtils.littleEndianToInt(key, off + 8),
+			CUtils.littleEndianToInt(key, off + 12)
+		);
+	}
+	
+	
+	private void setK(CByteArray kBytes, int kOff)
+	{
 		k0 = CUtils.littleEndianToInt(kBytes, kOff + 0);
 		k1 = CUtils.littleEndianToInt(kBytes, kOff + 4);
 		k2 = CUtils.littleEndianToInt(kBytes, kOff + 8);
@@ -176,94 +230,231 @@ public class Poly1305
 
 	public void update(final byte in) throws IllegalStateException
 	{
-		singleByte[0] = in;
-		update(singleByte, 0, 1);
+		currentBlock.set(currentBlockOffset++, in);
+		flushBlock();
 	}
 
 
 	public void update(final byte[] in, final int inOff, final int len) throws DataLengthException, IllegalStateException
 	{
-		int copied = 0;
-		while(len > copied)
+		int off = inOff;
+		int end = inOff + len;
+
+		// head
+		while((currentBlockOffset > 0) && (off < end))
 		{
-			if(currentBlockOffset == BLOCK_SIZE)
-			{
-				processBlock();
-				currentBlockOffset = 0;
-			}
+			currentBlock.set(currentBlockOffset++, in[off++]);
+			flushBlock();
+		}
+
+		// full blocks, straight from the input
+		for( ; end - off >= BLOCK_SIZE; off += BLOCK_SIZE)
+		{
+			processBlock
+			(
+				CUtils.littleEndianToInt(in, off),
+				CUtils.littleEndianToInt(in, off + 4),
+				CUtils.littleEndianToInt(in, off + 8),
+				CUtils.littleEndianToInt(in, off + 12),
+				true
+			);
+		}
 
-			int toCopy = Math.min((len - copied), BLOCK_SIZE - currentBlockOffset);
-			System.arraycopy(in, copied + inOff, currentBlock, currentBlockOffset, toCopy);
-			copied += toCopy;
-			currentBlockOffset += toCopy;
+		// tail
+		while(off < end)
+		{
+			currentBlock.set(currentBlockOffset++, in[off++]);
 		}
 	}
 	
 	
 	public void update(CByteArray in, final int inOff, final int len) throws DataLengthException, IllegalStateException
 	{
-		int copied = 0;
-		while(len > copied)
+		int off = inOff;
+		int end = inOff + len;
+
+		// head
+		while((currentBlockOffset > 0) && (off < end))
 		{
-			if(currentBlockOffset == BLOCK_SIZE)
+			currentBlock.set(currentBlockOffset++, in.get(off++));
+			flushBlock();
+		}
+
+		// full blocks, straight from the input
+		for( ; end - off >= BLOCK_SIZE; off += BLOCK_SIZE)
+		{
+			processBlock
+			(
+				CUtils.littleEndianToInt(in, off),
+				CUtils.littleEndianToInt(in, off + 4),
+				CUtils.littleEndianToInt(in, off + 8),
+				CUtils.littleEndianToInt(in, off + 12),
+				true
+			);
+		}
+
+		// tail
+		while(off < end)
+		{
+			currentBlock.set(currentBlockOffset++, in.get(off++));
+		}
+	}
+
+
+	public void update(ByteBuffer in) throws IllegalStateException
+	{
+		// head
+		while((currentBlockOffset > 0) && in.hasRemaining())
+		{
+			currentBlock.set(currentBlockOffset++, in.get());
+			flushBlock();
+		}
+
+		// full blocks, straight from the input with absolute reads
+		int off = in.position();
+		int end = in.limit();
+		boolean swap = (in.order() != ByteOrder.LITTLE_ENDIAN);
+		for( ; end - off >= BLOCK_SIZE; off += BLOCK_SIZE)
+		{
+			int w0 = in.getInt(off);
+			int w1 = in.getInt(off + 4);
+			int w2 = in.getInt(off + 8);
+			int w3 = in.getInt(off + 12);
+			if(swap)
 			{
-				processBlock();
-				currentBlockOffset = 0;
+				w0 = Integer.reverseBytes(w0);
+				w1 = Integer.reverseBytes(w1);
+				w2 = Integer.reverseBytes(w2);
+				w3 = Integer.reverseBytes(w3);
 			}
+			processBlock(w0, w1, w2, w3, true);
+		}
+		in.position(off);
 
-			int toCopy = Math.min((len - copied), BLOCK_SIZE - currentBlockOffset);
-			CUtils.arraycopy(in, copied + inOff, currentBlock, currentBlockOffset, toCopy);
-			copied += toCopy;
-			currentBlockOffset += toCopy;
+		// tail
+		while(in.hasRemaining())
+		{
+			currentBlock.set(currentBlockOffset++, in.get());
 		}
 	}
 
 
+	/**
+	 * Updates the MAC with the bulk input, computing the full blocks in parallel with the specified pool
+	 * (or the common pool when null).  The result is identical to that of the sequential update(),
+	 * inputs shorter than two parts of 64 KB are processed in the calling thread.
+	 */
+	public void update(CByteArray in, int inOff, int len, ForkJoinPool pool) throws DataLengthException
+	{
+		if((inOff < 0) || (len < 0) || (inOff + len > in.length()))
+		{
+			throw new DataLengthException("input buffer too short");
+		}
+
+		int head = Math.min(len, bytesToBlockBoundary());
+		update(in, inOff, head);
+
+		int blocks = (len - head) / BLOCK_SIZE;
+		if(blocks > 0)
+		{
+			Poly1305Parallel.process(acc, in, null, inOff + head, blocks, pool(pool));
+		}
+
+		int done = head + blocks * BLOCK_SIZE;
+		update(in, inOff + done, len - done);
+	}
+
+
+	/**
+	 * Updates the MAC with the remaining bytes of the bulk input, computing the full blocks in parallel with
+	 * the specified pool (or the common pool when null).  The result is identical to that of the sequential update(),
+	 * inputs shorter than two parts of 64 KB are processed in the calling thread.
+	 */
+	public void update(ByteBuffer in, ForkJoinPool pool)
+	{
+		int head = Math.min(in.remaining(), bytesToBlockBoundary());
+		for(int i=0; i<head; i++)
+		{
+			update(in.get());
+		}
+
+		int blocks = in.remaining() / BLOCK_SIZE;
+		if(blocks > 0)
+		{
+			int pos = in.position();
+			ByteBuffer b = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			Poly1305Parallel.process(acc, null, b, pos, blocks, pool(pool));
+			in.position(pos + blocks * BLOCK_SIZE);
+		}
+
+		update(in);
+	}
+
+
+	private static ForkJoinPool pool(ForkJoinPool p)
+	{
+		return (p == null) ? ForkJoinPool.commonPool() : p;
+	}
+
+
+	/** processes the buffered block once it is full */
+	private void flushBlock()
+	{
+		if(currentBlockOffset == BLOCK_SIZE)
+		{
+			processBlock();
+			currentBlockOffset = 0;
+		}
+	}
+
+
+	/** returns the number of bytes the next update needs to reach a block boundary */
+	int bytesToBlockBoundary()
+	{
+		return (BLOCK_SIZE - currentBlockOffset) & (BLOCK_SIZE - 1);
+	}
+
+
+	/**
+	 * processes a full block given as four little endian words, without copying it to the input buffer.
+	 * must be called on a block boundary, see bytesToBlockBoundary().
+	 */
+	void updateBlock(int w0, int w1, int w2, int w3)
+	{
+		if(currentBlockOffset != 0)
+		{
+			throw new IllegalStateException("not on a block boundary");
+		}
+
+		processBlock(w0, w1, w2, w3, true);
+	}
+
+
 	private void processBlock()
 	{
 		if(currentBlockOffset < BLOCK_SIZE)
 		{
-			currentBlock[currentBlockOffset] = 1;
+			currentBlock.set(currentBlockOffset, (byte)1);
 			for(int i = currentBlockOffset + 1; i < BLOCK_SIZE; i++)
 			{
-				currentBlock[i] = 0;
+				currentBlock.set(i, (byte)0);
 			}
 		}
 
-		final long t0 = 0xffffffffL & CUtils.littleEndianToInt(currentBlock, 0);
-		final long t1 = 0xffffffffL & CUtils.littleEndianToInt(currentBlock, 4);
-		final long t2 = 0xffffffffL & CUtils.littleEndianToInt(currentBlock, 8);
-		final long t3 = 0xffffffffL & CUtils.littleEndianToInt(currentBlock, 12);
-
-		h0 += t0 & 0x3ffffff;
-		h1 += (((t1 << 32) | t0) >>> 26) & 0x3ffffff;
-		h2 += (((t2 << 32) | t1) >>> 20) & 0x3ffffff;
-		h3 += (((t3 << 32) | t2) >>> 14) & 0x3ffffff;
-		h4 += (t3 >>> 8);
+		processBlock
+		(
+			CUtils.littleEndianToInt(currentBlock, 0),
+			CUtils.littleEndianToInt(currentBlock, 4),
+			CUtils.littleEndianToInt(currentBlock, 8),
+			CUtils.littleEndianToInt(currentBlock, 12),
+			currentBlockOffset == BLOCK_SIZE
+		);
+	}
 
-		if(currentBlockOffset == BLOCK_SIZE)
-		{
-			h4 += (1 << 24);
-		}
 
-		long tp0 = mul32x32_64(h0, r0) + mul32x32_64(h1, s4) + mul32x32_64(h2, s3) + mul32x32_64(h3, s2) + mul32x32_64(h4, s1);
-		long tp1 = mul32x32_64(h0, r1) + mul32x32_64(h1, r0) + mul32x32_64(h2, s4) + mul32x32_64(h3, s3) + mul32x32_64(h4, s2);
-		long tp2 = mul32x32_64(h0, r2) + mul32x32_64(h1, r1) + mul32x32_64(h2, r0) + mul32x32_64(h3, s4) + mul32x32_64(h4, s3);
-		long tp3 = mul32x32_64(h0, r3) + mul32x32_64(h1, r2) + mul32x32_64(h2, r1) + mul32x32_64(h3, r0) + mul32x32_64(h4, s4);
-		long tp4 = mul32x32_64(h0, r4) + mul32x32_64(h1, r3) + mul32x32_64(h2, r2) + mul32x32_64(h3, r1) + mul32x32_64(h4, r0);
-
-		h0 = (int)tp0 & 0x3ffffff;
-		tp1 += (tp0 >>> 26);
-		h1 = (int)tp1 & 0x3ffffff;
-		tp2 += (tp1 >>> 26);
-		h2 = (int)tp2 & 0x3ffffff;
-		tp3 += (tp2 >>> 26);
-		h3 = (int)tp3 & 0x3ffffff;
-		tp4 += (tp3 >>> 26);
-		h4 = (int)tp4 & 0x3ffffff;
-		h0 += (int)(tp4 >>> 26) * 5;
-		h1 += (h0 >>> 26);
-		h0 &= 0x3ffffff;
+	private void processBlock(int w0, int w1, int w2, int w3, boolean full)
+	{
+		acc.processBlock(w0, w1, w2, w3, full);
 	}
 
 
@@ -280,55 +471,13 @@ public class Poly1305
 			processBlock();
 		}
 
-		h1 += (h0 >>> 26);
-		h0 &= 0x3ffffff;
-		h2 += (h1 >>> 26);
-		h1 &= 0x3ffffff;
-		h3 += (h2 >>> 26);
-		h2 &= 0x3ffffff;
-		h4 += (h3 >>> 26);
-		h3 &= 0x3ffffff;
-		h0 += (h4 >>> 26) * 5;
-		h4 &= 0x3ffffff;
-		h1 += (h0 >>> 26);
-		h0 &= 0x3ffffff;
-
-		int g0, g1, g2, g3, g4, b;
-		g0 = h0 + 5;
-		b = g0 >>> 26;
-		g0 &= 0x3ffffff;
-		g1 = h1 + b;
-		b = g1 >>> 26;
-		g1 &= 0x3ffffff;
-		g2 = h2 + b;
-		b = g2 >>> 26;
-		g2 &= 0x3ffffff;
-		g3 = h3 + b;
-		b = g3 >>> 26;
-		g3 &= 0x3ffffff;
-		g4 = h4 + b - (1 << 26);
-
-		b = (g4 >>> 31) - 1;
-		int nb = ~b;
-		h0 = (h0 & nb) | (g0 & b);
-		h1 = (h1 & nb) | (g1 & b);
-		h2 = (h2 & nb) | (g2 & b);
-		h3 = (h3 & nb) | (g3 & b);
-		h4 = (h4 & nb) | (g4 & b);
-
-		long f0, f1, f2, f3;
-		f0 = (((h0) | (h1 << 26)) & 0xffffffffl) + (0xffffffffL & k0);
-		f1 = (((h1 >>> 6) | (h2 << 20)) & 0xffffffffl) + (0xffffffffL & k1);
-		f2 = (((h2 >>> 12) | (h3 << 14)) & 0xffffffffl) + (0xffffffffL & k2);
-		f3 = (((h3 >>> 18) | (h4 << 8)) & 0xffffffffl) + (0xffffffffL & k3);
-
-		CUtils.intToLittleEndian((int)f0, out, outOff);
-		f1 += (f0 >>> 32);
-		CUtils.intToLittleEndian((int)f1, out, outOff + 4);
-		f2 += (f1 >>> 32);
-		CUtils.intToLittleEndian((int)f2, out, outOff + 8);
-		f3 += (f2 >>> 32);
-		CUtils.intToLittleEndian((int)f3, out, outOff + 12);
+		acc.finish(k0, k1, k2, k3, tag);
+
+		for(int i=0; i<4; i++)
+		{
+			CUtils.intToLittleEndian(tag[i], out, outOff + i * 4);
+		}
+		Arrays.fill(tag, 0);
 
 		reset();
 		return BLOCK_SIZE;
@@ -348,55 +497,13 @@ public class Poly1305
 			processBlock();
 		}
 
-		h1 += (h0 >>> 26);
-		h0 &= 0x3ffffff;
-		h2 += (h1 >>> 26);
-		h1 &= 0x3ffffff;
-		h3 += (h2 >>> 26);
-		h2 &= 0x3ffffff;
-		h4 += (h3 >>> 26);
-		h3 &= 0x3ffffff;
-		h0 += (h4 >>> 26) * 5;
-		h4 &= 0x3ffffff;
-		h1 += (h0 >>> 26);
-		h0 &= 0x3ffffff;
-
-		int g0, g1, g2, g3, g4, b;
-		g0 = h0 + 5;
-		b = g0 >>> 26;
-		g0 &= 0x3ffffff;
-		g1 = h1 + b;
-		b = g1 >>> 26;
-		g1 &= 0x3ffffff;
-		g2 = h2 + b;
-		b = g2 >>> 26;
-		g2 &= 0x3ffffff;
-		g3 = h3 + b;
-		b = g3 >>> 26;
-		g3 &= 0x3ffffff;
-		g4 = h4 + b - (1 << 26);
-
-		b = (g4 >>> 31) - 1;
-		int nb = ~b;
-		h0 = (h0 & nb) | (g0 & b);
-		h1 = (h1 & nb) | (g1 & b);
-		h2 = (h2 & nb) | (g2 & b);
-		h3 = (h3 & nb) | (g3 & b);
-		h4 = (h4 & nb) | (g4 & b);
-
-		long f0, f1, f2, f3;
-		f0 = (((h0) | (h1 << 26)) & 0xffffffffl) + (0xffffffffL & k0);
-		f1 = (((h1 >>> 6) | (h2 << 20)) & 0xffffffffl) + (0xffffffffL & k1);
-		f2 = (((h2 >>> 12) | (h3 << 14)) & 0xffffffffl) + (0xffffffffL & k2);
-		f3 = (((h3 >>> 18) | (h4 << 8)) & 0xffffffffl) + (0xffffffffL & k3);
-
-		CUtils.intToLittleEndian((int)f0, out, outOff);
-		f1 += (f0 >>> 32);
-		CUtils.intToLittleEndian((int)f1, out, outOff + 4);
-		f2 += (f1 >>> 32);
-		CUtils.intToLittleEndian((int)f2, out, outOff + 8);
-		f3 += (f2 >>> 32);
-		CUtils.intToLittleEndian((int)f3, out, outOff + 12);
+		acc.finish(k0, k1, k2, k3, tag);
+
+		for(int i=0; i<4; i++)
+		{
+			CUtils.intToLittleEndian(tag[i], out, outOff + i * 4);
+		}
+		Arrays.fill(tag, 0);
 
 		reset();
 		return BLOCK_SIZE;
@@ -407,18 +514,17 @@ public class Poly1305
 	{
 		currentBlockOffset = 0;
 
-		h0 = h1 = h2 = h3 = h4 = 0;
+		acc.reset();
 	}
 	
 	
+	/** resets the state and clears the key, after which the MAC must be initialized again */
 	public void zero()
 	{
 		reset();
-	}
-
-
-	private static final long mul32x32_64(int i1, int i2)
-	{
-		return (i1 & 0xFFFFFFFFL) * i2;
+		
+		acc.zero();
+		k0 = k1 = k2 = k3 = 0;
+		currentBlock.zero();
 	}
 }
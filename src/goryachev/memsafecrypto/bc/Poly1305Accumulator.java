@@ -0,0 +1,45 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.bc;
+
+
+/**
+ * Poly1305 polynomial arithmetic: the accumulator h and the key r, in a particular limb representation.
+ * Poly1305 handles the input buffering, the key parsing and the output encoding.
+ */
+abstract class Poly1305Accumulator
+{
+	/** sets r from the four little endian words of the first half of the key, clamping the value */
+	abstract void setR(int t0, int t1, int t2, int t3);
+
+
+	/** h = (h + block) * r mod 2^130 - 5, the block given as four little endian words, with 2^128 added for full blocks */
+	abstract void processBlock(int w0, int w1, int w2, int w3, boolean full);
+
+
+	/** computes the tag (h + k) mod 2^128 as four little endian words, and clears h */
+	abstract void finish(int k0, int k1, int k2, int k3, int[] tag);
+
+
+	/** clears h */
+	abstract void reset();
+
+
+	/** clears h and r */
+	abstract void zero();
+
+
+	/** returns a new accumulator of the same kind, with the same key r and h = 0 */
+	abstract Poly1305Accumulator copyKey();
+
+
+	/** stores h as five 26 bit limbs */
+	abstract void getH(long[] h);
+
+
+	/** sets h from five 26 bit limbs, each less than 2^26 */
+	abstract void setH(long[] h);
+
+
+	/** stores r as five 26 bit limbs */
+	abstract void getR(long[] r);
+}
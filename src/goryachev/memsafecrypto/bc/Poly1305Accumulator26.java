@@ -0,0 +1,199 @@
+package goryachev.memsafecrypto.bc;
+
+
+/**
+ * Poly1305 arithmetic with five 26 bit limbs in 32 bit integers, adapted from the public domain
+ * <a href="https://github.com/floodyberry/poly1305-donna">poly1305-donna-unrolled</a> C implementation
+ * by Andrew M (@floodyberry).
+ */
+final class Poly1305Accumulator26
+	extends Poly1305Accumulator
+{
+	/** Polynomial key */
+	private int r0, r1, r2, r3, r4;
+
+	/** Precomputed 5 * r[1..4] */
+	private int s1, s2, s3, s4;
+
+	/** Polynomial accumulator */
+	private int h0, h1, h2, h3, h4;
+
+
+	void setR(int t0, int t1, int t2, int t3)
+	{
+		// NOTE: The masks perform the key "clamping" implicitly
+		r0 = t0 & 0x03FFFFFF;
+		r1 = ((t0 >>> 26) | (t1 << 6)) & 0x03FFFF03;
+		r2 = ((t1 >>> 20) | (t2 << 12)) & 0x03FFC0FF;
+		r3 = ((t2 >>> 14) | (t3 << 18)) & 0x03F03FFF;
+		r4 = (t3 >>> 8) & 0x000FFFFF;
+
+		// Precompute multipliers
+		s1 = r1 * 5;
+		s2 = r2 * 5;
+		s3 = r3 * 5;
+		s4 = r4 * 5;
+	}
+
+
+	void processBlock(int w0, int w1, int w2, int w3, boolean full)
+	{
+		final long t0 = 0xffffffffL & w0;
+		final long t1 = 0xffffffffL & w1;
+		final long t2 = 0xffffffffL & w2;
+		final long t3 = 0xffffffffL & w3;
+
+		h0 += t0 & 0x3ffffff;
+		h1 += (((t1 << 32) | t0) >>> 26) & 0x3ffffff;
+		h2 += (((t2 << 32) | t1) >>> 20) & 0x3ffffff;
+		h3 += (((t3 << 32) | t2) >>> 14) & 0x3ffffff;
+		h4 += (t3 >>> 8);
+
+		if(full)
+		{
+			h4 += (1 << 24);
+		}
+
+		long tp0 = mul32x32_64(h0, r0) + mul32x32_64(h1, s4) + mul32x32_64(h2, s3) + mul32x32_64(h3, s2) + mul32x32_64(h4, s1);
+		long tp1 = mul32x32_64(h0, r1) + mul32x32_64(h1, r0) + mul32x32_64(h2, s4) + mul32x32_64(h3, s3) + mul32x32_64(h4, s2);
+		long tp2 = mul32x32_64(h0, r2) + mul32x32_64(h1, r1) + mul32x32_64(h2, r0) + mul32x32_64(h3, s4) + mul32x32_64(h4, s3);
+		long tp3 = mul32x32_64(h0, r3) + mul32x32_64(h1, r2) + mul32x32_64(h2, r1) + mul32x32_64(h3, r0) + mul32x32_64(h4, s4);
+		long tp4 = mul32x32_64(h0, r4) + mul32x32_64(h1, r3) + mul32x32_64(h2, r2) + mul32x32_64(h3, r1) + mul32x32_64(h4, r0);
+
+		h0 = (int)tp0 & 0x3ffffff;
+		tp1 += (tp0 >>> 26);
+		h1 = (int)tp1 & 0x3ffffff;
+		tp2 += (tp1 >>> 26);
+		h2 = (int)tp2 & 0x3ffffff;
+		tp3 += (tp2 >>> 26);
+		h3 = (int)tp3 & 0x3ffffff;
+		tp4 += (tp3 >>> 26);
+		h4 = (int)tp4 & 0x3ffffff;
+		h0 += (int)(tp4 >>> 26) * 5;
+		h1 += (h0 >>> 26);
+		h0 &= 0x3ffffff;
+	}
+
+
+	void finish(int k0, int k1, int k2, int k3, int[] tag)
+	{
+		h1 += (h0 >>> 26);
+		h0 &= 0x3ffffff;
+		h2 += (h1 >>> 26);
+		h1 &= 0x3ffffff;
+		h3 += (h2 >>> 26);
+		h2 &= 0x3ffffff;
+		h4 += (h3 >>> 26);
+		h3 &= 0x3ffffff;
+		h0 += (h4 >>> 26) * 5;
+		h4 &= 0x3ffffff;
+		h1 += (h0 >>> 26);
+		h0 &= 0x3ffffff;
+
+		int g0, g1, g2, g3, g4, b;
+		g0 = h0 + 5;
+		b = g0 >>> 26;
+		g0 &= 0x3ffffff;
+		g1 = h1 + b;
+		b = g1 >>> 26;
+		g1 &= 0x3ffffff;
+		g2 = h2 + b;
+		b = g2 >>> 26;
+		g2 &= 0x3ffffff;
+		g3 = h3 + b;
+		b = g3 >>> 26;
+		g3 &= 0x3ffffff;
+		g4 = h4 + b - (1 << 26);
+
+		b = (g4 >>> 31) - 1;
+		int nb = ~b;
+		h0 = (h0 & nb) | (g0 & b);
+		h1 = (h1 & nb) | (g1 & b);
+		h2 = (h2 & nb) | (g2 & b);
+		h3 = (h3 & nb) | (g3 & b);
+		h4 = (h4 & nb) | (g4 & b);
+
+		long f0, f1, f2, f3;
+		f0 = (((h0) | (h1 << 26)) & 0xffffffffl) + (0xffffffffL & k0);
+		f1 = (((h1 >>> 6) | (h2 << 20)) & 0xffffffffl) + (0xffffffffL & k1);
+		f2 = (((h2 >>> 12) | (h3 << 14)) & 0xffffffffl) + (0xffffffffL & k2);
+		f3 = (((h3 >>> 18) | (h4 << 8)) & 0xffffffffl) + (0xffffffffL & k3);
+
+		tag[0] = (int)f0;
+		f1 += (f0 >>> 32);
+		tag[1] = (int)f1;
+		f2 += (f1 >>> 32);
+		tag[2] = (int)f2;
+		f3 += (f2 >>> 32);
+		tag[3] = (int)f3;
+
+		reset();
+	}
+
+
+	void reset()
+	{
+		h0 = h1 = h2 = h3 = h4 = 0;
+	}
+
+
+	void zero()
+	{
+		reset();
+
+		r0 = r1 = r2 = r3 = r4 = 0;
+		s1 = s2 = s3 = s4 = 0;
+	}
+
+
+	Poly1305Accumulator copyKey()
+	{
+		Poly1305Accumulator26 a = new Poly1305Accumulator26();
+		a.r0 = r0;
+		a.r1 = r1;
+		a.r2 = r2;
+		a.r3 = r3;
+		a.r4 = r4;
+		a.s1 = s1;
+		a.s2 = s2;
+		a.s3 = s3;
+		a.s4 = s4;
+		return a;
+	}
+
+
+	void getH(long[] h)
+	{
+		h[0] = h0;
+		h[1] = h1;
+		h[2] = h2;
+		h[3] = h3;
+		h[4] = h4;
+	}
+
+
+	void setH(long[] h)
+	{
+		h0 = (int)h[0];
+		h1 = (int)h[1];
+		h2 = (int)h[2];
+		h3 = (int)h[3];
+		h4 = (int)h[4];
+	}
+
+
+	void getR(long[] r)
+	{
+		r[0] = r0;
+		r[1] = r1;
+		r[2] = r2;
+		r[3] = r3;
+		r[4] = r4;
+	}
+
+
+	private static final long mul32x32_64(int i1, int i2)
+	{
+		return (i1 & 0xFFFFFFFFL) * i2;
+	}
+}
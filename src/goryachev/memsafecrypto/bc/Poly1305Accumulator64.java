@@ -0,0 +1,184 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.bc;
+
+
+/**
+ * Poly1305 arithmetic with two 64 bit limbs plus the top bits (130 bits), using Math.multiplyHigh()
+ * for the 64x64 to 128 bit products: 4 full multiplications per block instead of 25.
+ * The reduction follows the OpenSSL 64 bit implementation (poly1305_blocks with 128 bit integers).
+ * <p>
+ * Clamping guarantees that r0, r1 and s1 are less than 2^63, and h2 stays small, so the unsigned
+ * high product is obtained from the signed one with a single correction term, and the products
+ * of h2 fit in 64 bits.
+ */
+final class Poly1305Accumulator64
+	extends Poly1305Accumulator
+{
+	/** Polynomial key */
+	private long r0, r1;
+
+	/** Precomputed 5/4 * r1 (r1 is a multiple of 4) */
+	private long s1;
+
+	/** Polynomial accumulator */
+	private long h0, h1, h2;
+
+
+	void setR(int t0, int t1, int t2, int t3)
+	{
+		r0 = ((t0 & 0xffffffffL) | ((long)t1 << 32)) & 0x0ffffffc0fffffffL;
+		r1 = ((t2 & 0xffffffffL) | ((long)t3 << 32)) & 0x0ffffffc0ffffffcL;
+		s1 = r1 + (r1 >>> 2);
+	}
+
+
+	void processBlock(int w0, int w1, int w2, int w3, boolean full)
+	{
+		long m0 = (w0 & 0xffffffffL) | ((long)w1 << 32);
+		long m1 = (w2 & 0xffffffffL) | ((long)w3 << 32);
+
+		// h += m
+		long a0 = h0 + m0;
+		long c = carry(h0, m0, a0);
+		long a1 = h1 + m1 + c;
+		c = carry(h1, m1, a1);
+		long a2 = h2 + c + (full ? 1 : 0);
+
+		// d0 = a0 * r0 + a1 * s1
+		long lo = a0 * r0;
+		long hi = umulh(a0, r0);
+		long lo2 = a1 * s1;
+		long d0 = lo + lo2;
+		long d0h = hi + umulh(a1, s1) + carry(lo, lo2, d0);
+
+		// d1 = a0 * r1 + a1 * r0 + a2 * s1 + (d0 >> 64)
+		lo = a0 * r1;
+		hi = umulh(a0, r1);
+		lo2 = a1 * r0;
+		long d1 = lo + lo2;
+		long d1h = hi + umulh(a1, r0) + carry(lo, lo2, d1);
+		lo = d1;
+		lo2 = a2 * s1;
+		d1 = lo + lo2;
+		d1h += carrySmall(lo, d1);
+		lo = d1;
+		d1 = lo + d0h;
+		d1h += carrySmall(lo, d1);
+
+		// h2 = a2 * r0 + (d1 >> 64)
+		long g = a2 * r0 + d1h;
+
+		// partial reduction: (h += (h >> 130) * 5) mod 2^130
+		c = (g >>> 2) + (g & ~3L);
+		h2 = g & 3;
+		h0 = d0 + c;
+		c = carry(d0, c, h0);
+		h1 = d1 + c;
+		c = carrySmall(d1, h1);
+		h2 += c;
+	}
+
+
+	void finish(int k0, int k1, int k2, int k3, int[] tag)
+	{
+		// compare to the modulus by computing h + 5 - 2^130
+		long g0 = h0 + 5;
+		long c = carrySmall(h0, g0);
+		long g1 = h1 + c;
+		c = carrySmall(h1, g1);
+		long g2 = h2 + c;
+
+		// if there was a carry into the 131st bit, h = g
+		long mask = -(g2 >>> 2);
+		h0 = (h0 & ~mask) | (g0 & mask);
+		h1 = (h1 & ~mask) | (g1 & mask);
+
+		// (h + k) mod 2^128
+		long n0 = (k0 & 0xffffffffL) | ((long)k1 << 32);
+		long n1 = (k2 & 0xffffffffL) | ((long)k3 << 32);
+		long f0 = h0 + n0;
+		long f1 = h1 + n1 + carry(h0, n0, f0);
+
+		tag[0] = (int)f0;
+		tag[1] = (int)(f0 >>> 32);
+		tag[2] = (int)f1;
+		tag[3] = (int)(f1 >>> 32);
+
+		reset();
+	}
+
+
+	void reset()
+	{
+		h0 = h1 = h2 = 0;
+	}
+
+
+	void zero()
+	{
+		reset();
+
+		r0 = r1 = s1 = 0;
+	}
+
+
+	Poly1305Accumulator copyKey()
+	{
+		Poly1305Accumulator64 a = new Poly1305Accumulator64();
+		a.r0 = r0;
+		a.r1 = r1;
+		a.s1 = s1;
+		return a;
+	}
+
+
+	void getH(long[] h)
+	{
+		toLimbs(h0, h1, h2, h);
+	}
+
+
+	void setH(long[] h)
+	{
+		h0 = h[0] | (h[1] << 26) | (h[2] << 52);
+		h1 = (h[2] >>> 12) | (h[3] << 14) | (h[4] << 40);
+		h2 = h[4] >>> 24;
+	}
+
+
+	void getR(long[] r)
+	{
+		toLimbs(r0, r1, 0, r);
+	}
+
+
+	private static void toLimbs(long v0, long v1, long v2, long[] out)
+	{
+		out[0] = v0 & 0x3ffffff;
+		out[1] = (v0 >>> 26) & 0x3ffffff;
+		out[2] = ((v0 >>> 52) | (v1 << 12)) & 0x3ffffff;
+		out[3] = (v1 >>> 14) & 0x3ffffff;
+		out[4] = (v1 >>> 40) | (v2 << 24);
+	}
+
+
+	/** returns the carry out of sum = a + b (+ a carry in), without branching */
+	private static long carry(long a, long b, long sum)
+	{
+		return ((a & b) | ((a | b) & ~sum)) >>> 63;
+	}
+
+
+	/** returns the carry out of sum = a + b, where 0 <= b < 2^63 */
+	private static long carrySmall(long a, long sum)
+	{
+		return (a & ~sum) >>> 63;
+	}
+
+
+	/** unsigned high 64 bits of the 128 bit product, where 0 <= b < 2^63 */
+	private static long umulh(long a, long b)
+	{
+		return Math.multiplyHigh(a, b) + ((a >> 63) & b);
+	}
+}
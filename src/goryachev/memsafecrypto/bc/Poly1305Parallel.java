@@ -0,0 +1,226 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.bc;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.util.CUtils;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+
+/**
+ * Computes the Poly1305 polynomial over a run of full blocks in parallel.
+ * <p>
+ * The input is split into contiguous parts, each part is evaluated by a separate accumulator
+ * starting with h = 0, and the results are combined in order:
+ * h = h * r^n + h(part), where n is the number of blocks in the part.
+ * This gives exactly the same value as the sequential evaluation.
+ * <p>
+ * The combination uses five 26 bit limbs (stored in longs), regardless of the accumulator implementation.
+ */
+final class Poly1305Parallel
+{
+	/** smallest part worth a separate task: 64 KB */
+	static final int MIN_PART_BLOCKS = 4096;
+	private static final long MASK = 0x3ffffff;
+
+
+	/** processes the specified number of full blocks of the input (little endian ByteBuffer or CByteArray) */
+	static void process(Poly1305Accumulator acc, CByteArray ca, ByteBuffer bb, int off, int blocks, ForkJoinPool pool)
+	{
+		int parts = Math.min(pool.getParallelism(), blocks / MIN_PART_BLOCKS);
+		if(parts < 2)
+		{
+			new Part(acc, ca, bb, off, blocks).run();
+			return;
+		}
+
+		int size = blocks / parts;
+		Part[] ps = new Part[parts];
+		ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[parts - 1];
+		long[] h = new long[5];
+		long[] r = new long[5];
+		long[] rn = new long[5];
+		long[] t = new long[5];
+
+		try
+		{
+			for(int i=0; i<parts; i++)
+			{
+				// the last part takes the remainder
+				int n = (i == parts - 1) ? blocks - size * i : size;
+				ps[i] = new Part(acc.copyKey(), ca, bb, off + size * i * 16, n);
+			}
+
+			for(int i=0; i<tasks.length; i++)
+			{
+				tasks[i] = pool.submit(ps[i]);
+			}
+
+			// the calling thread computes the last part
+			ps[parts - 1].run();
+
+			acc.getH(h);
+			acc.getR(r);
+			pow(r, size, rn, t);
+
+			for(int i=0; i<parts; i++)
+			{
+				Part p = ps[i];
+				if(i < tasks.length)
+				{
+					tasks[i].join();
+				}
+				else if(p.blocks != size)
+				{
+					pow(r, p.blocks, rn, t);
+				}
+
+				// h = h * r^n + h(part)
+				mul(h, rn, h);
+				p.acc.getH(t);
+				for(int j=0; j<5; j++)
+				{
+					h[j] += t[j];
+				}
+				normalize(h);
+			}
+
+			acc.setH(h);
+		}
+		finally
+		{
+			for(ForkJoinTask<?> task: tasks)
+			{
+				if(task != null)
+				{
+					// wait for the part to stop using its accumulator
+					task.quietlyJoin();
+				}
+			}
+
+			for(Part p: ps)
+			{
+				if(p != null)
+				{
+					p.acc.zero();
+				}
+			}
+
+			Arrays.fill(h, 0);
+			Arrays.fill(r, 0);
+			Arrays.fill(rn, 0);
+			Arrays.fill(t, 0);
+		}
+	}
+
+
+	/** out = r^n mod 2^130 - 5, tmp is a scratch array */
+	private static void pow(long[] r, long n, long[] out, long[] tmp)
+	{
+		System.arraycopy(r, 0, tmp, 0, 5);
+		Arrays.fill(out, 0);
+		out[0] = 1;
+
+		while(n > 0)
+		{
+			if((n & 1) != 0)
+			{
+				mul(out, tmp, out);
+			}
+			n >>>= 1;
+			if(n > 0)
+			{
+				mul(tmp, tmp, tmp);
+			}
+		}
+	}
+
+
+	/**
+	 * out = a * b mod 2^130 - 5, partially reduced.
+	 * the limbs of a and b must be less than 2^26, out may be the same array as a or b.
+	 */
+	private static void mul(long[] a, long[] b, long[] out)
+	{
+		long a0 = a[0], a1 = a[1], a2 = a[2], a3 = a[3], a4 = a[4];
+		long b0 = b[0], b1 = b[1], b2 = b[2], b3 = b[3], b4 = b[4];
+		long s1 = b1 * 5, s2 = b2 * 5, s3 = b3 * 5, s4 = b4 * 5;
+
+		out[0] = a0 * b0 + a1 * s4 + a2 * s3 + a3 * s2 + a4 * s1;
+		out[1] = a0 * b1 + a1 * b0 + a2 * s4 + a3 * s3 + a4 * s2;
+		out[2] = a0 * b2 + a1 * b1 + a2 * b0 + a3 * s4 + a4 * s3;
+		out[3] = a0 * b3 + a1 * b2 + a2 * b1 + a3 * b0 + a4 * s4;
+		out[4] = a0 * b4 + a1 * b3 + a2 * b2 + a3 * b1 + a4 * b0;
+
+		normalize(out);
+	}
+
+
+	/**
+	 * carries the limbs (each less than 2^62) so that every limb is less than 2^26:
+	 * the second pass carries at most 5 into h[0], the third pass at most 5 into a value less than 5.
+	 */
+	private static void normalize(long[] h)
+	{
+		for(int pass=0; pass<3; pass++)
+		{
+			for(int i=0; i<4; i++)
+			{
+				h[i + 1] += (h[i] >>> 26);
+				h[i] &= MASK;
+			}
+			h[0] += (h[4] >>> 26) * 5;
+			h[4] &= MASK;
+		}
+	}
+
+
+	/** evaluates a part of the input with its own accumulator */
+	private static final class Part
+		implements Runnable
+	{
+		final Poly1305Accumulator acc;
+		private final CByteArray ca;
+		private final ByteBuffer bb;
+		private final int off;
+		final int blocks;
+
+
+		public Part(Poly1305Accumulator acc, CByteArray ca, ByteBuffer bb, int off, int blocks)
+		{
+			this.acc = acc;
+			this.ca = ca;
+			this.bb = bb;
+			this.off = off;
+			this.blocks = blocks;
+		}
+
+
+		public void run()
+		{
+			int end = off + blocks * 16;
+			if(ca != null)
+			{
+				for(int i=off; i<end; i+=16)
+				{
+					acc.processBlock
+					(
+						CUtils.littleEndianToInt(ca, i),
+						CUtils.littleEndianToInt(ca, i + 4),
+						CUtils.littleEndianToInt(ca, i + 8),
+						CUtils.littleEndianToInt(ca, i + 12),
+						true
+					);
+				}
+			}
+			else
+			{
+				for(int i=off; i<end; i+=16)
+				{
+					acc.processBlock(bb.getInt(i), bb.getInt(i + 4), bb.getInt(i + 8), bb.getInt(i + 12), true);
+				}
+			}
+		}
+	}
+}
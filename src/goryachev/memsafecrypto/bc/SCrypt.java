@@ -113,8 +113,8 @@ public class SCrypt
 		}
 		finally
 		{
-			bytes.zero();
-			Crypto.zero(B);
+			bytes.destroy();
+			Crypto.destroy(B);
 		}
 	}
 
@@ -180,10 +180,10 @@ public class SCrypt
 		{
 			ClearAll(VV);
 			
-			X.zero();
-			blockX1.zero();
-			blockX2.zero();
-			blockY.zero();
+			X.destroy();
+			blockX1.destroy();
+			blockX2.destroy();
+			blockY.destroy();
 		}
 	}
 
@@ -216,11 +216,12 @@ public class SCrypt
 	}
 	
 	
+	/** zeroes and releases the arrays */
 	private static void ClearAll(CIntArray[] arrays)
 	{
 		for(int i=0; i<arrays.length; ++i)
 		{
-			Crypto.zero(arrays[i]);
+			Crypto.destroy(arrays[i]);
 		}
 	}
 
@@ -1,34 +1,67 @@
 package goryachev.memsafecrypto.bc;
+import goryachev.common.log.Log;
 import goryachev.memsafecrypto.CByteArray;
 import goryachev.memsafecrypto.ICryptoZeroable;
+import goryachev.memsafecrypto.SecureArena;
 import goryachev.memsafecrypto.util.CUtils;
 import goryachev.memsafecrypto.CIntArray;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 
 /**
  * Implementation of Daniel J. Bernstein's Salsa20 stream cipher, Snuffle 2005
+ * <p>
+ * The engine can be created in a wide key stream mode, where each refill of the key stream buffer
+ * produces several consecutive counter blocks in one pass.  This amortizes the per-refill overhead in bulk processing, at the cost of computing up to
+ * (blocks - 1) unused blocks on each seek.
+ * <p>
+ * Seeking (skip(), seekTo(), reset()) only sets the counter and the offset, the key stream buffer is
+ * generated when the next byte is processed, so repeated seeks without reading cost nothing.
+ * <p>
+ * An optional Vector API implementation of the core (see SalsaCore) is used when the "memsafecrypto.vector"
+ * system property is set to true and the goryachev.memsafecrypto.bc.vector.VectorSalsaCore class is available
+ * (compiled from src-vector, and run with "--add-modules jdk.incubator.vector").
+ * It computes the key stream blocks of the wide mode in parallel, one block per vector lane.
+ * The single block salsaCore() (used by SCrypt and HSalsa20) remains scalar, as a 4-lane vector
+ * version was measured to be no faster.  The vector core is not enabled by default since it keeps
+ * its intermediate values in (zeroed after use) heap arrays rather than in direct memory.
  */
 public class Salsa20Engine
 	implements SkippingStreamCipher, ICryptoZeroable
 {
 	public final static int DEFAULT_ROUNDS = 20;
+	/** number of key stream blocks per refill recommended for bulk processing */
+	public final static int WIDE_BLOCKS = 8;
+	public final static int MAX_BLOCKS = 16;
+	/** system property which enables the Vector API core */
+	public final static String PROPERTY_VECTOR = "memsafecrypto.vector";
+	private final static String VECTOR_CORE_CLASS = "goryachev.memsafecrypto.bc.vector.VectorSalsaCore";
+	/** the vector core computes a full vector of blocks per pass, so it is used in the wide mode only */
+	private final static int VECTOR_MIN_BLOCKS = 4;
+	protected static final Log log = Log.get("Salsa20Engine");
+	private final static SalsaCore vectorCore = Boolean.getBoolean(PROPERTY_VECTOR) ? loadVectorCore() : null;
 
 	/** Constants */
 	private final static int STATE_SIZE = 16; // 16, 32 bit ints = 64 bytes
+	private final static int BLOCK_SIZE = STATE_SIZE * 4;
 
-	private final static int[] TAU_SIGMA = CUtils.littleEndianToInt(CUtils.toByteArray("expand 16-byte k" + "expand 32-byte k"), 0, 8);
+	final static int[] TAU_SIGMA = CUtils.littleEndianToInt(CUtils.toByteArray("expand 16-byte k" + "expand 32-byte k"), 0, 8);
 
 	protected int rounds;
+	private final int blocks;
+	final int keyStreamLength;
 
 	/*
 	 * variables to hold the state of the engine
 	 * during encryption and decryption
 	 */
-	private int index = 0;
-	protected CIntArray engineState = new CIntArray(STATE_SIZE); // state
-	protected CIntArray x = new CIntArray(STATE_SIZE); // internal buffer
-	private CByteArray keyStream = new CByteArray(STATE_SIZE * 4); // expanded state, 64 bytes
-	private boolean initialised = false;
+	int index = 0; // position in the key stream buffer
+	protected final CIntArray engineState; // state, with the counter of the first block in the key stream buffer
+	final CByteArray keyStream; // expanded state, 64 bytes per block
+	protected final CIntArray x; // internal buffer, little-endian view of keyStream
+	boolean initialised = false;
+	private boolean stale = true; // the key stream buffer is generated on first use after a seek
 
 	/*
 	 * internal counter
@@ -50,13 +83,48 @@ public class Salsa20Engine
 	 * @param rounds the number of rounds (must be an even number).
 	 */
 	public Salsa20Engine(int rounds)
+	{
+		this(rounds, null);
+	}
+
+
+	/**
+	 * Creates a Salsa20 engine with a specific number of rounds, allocating its state in the specified arena.
+	 * @param rounds the number of rounds (must be an even number).
+	 * @param arena the arena, or null to allocate standalone arrays.
+	 */
+	public Salsa20Engine(int rounds, SecureArena arena)
+	{
+		this(rounds, 1, arena);
+	}
+
+
+	/**
+	 * Creates a Salsa20 engine with a specific number of rounds and the number of key stream blocks
+	 * generated per refill, allocating its state in the specified arena.
+	 * @param rounds the number of rounds (must be an even number).
+	 * @param blocks the number of key stream blocks per refill, from 1 to MAX_BLOCKS.
+	 * @param arena the arena, or null to allocate standalone arrays.
+	 */
+	public Salsa20Engine(int rounds, int blocks, SecureArena arena)
 	{
 		if(rounds <= 0 || (rounds & 1) != 0)
 		{
 			throw new IllegalArgumentException("'rounds' must be a positive, even number");
 		}
+		
+		if((blocks <= 0) || (blocks > MAX_BLOCKS))
+		{
+			throw new IllegalArgumentException("'blocks' must be between 1 and " + MAX_BLOCKS);
+		}
 
 		this.rounds = rounds;
+		this.blocks = blocks;
+		this.keyStreamLength = BLOCK_SIZE * blocks;
+		
+		engineState = SecureArena.newIntArray(arena, STATE_SIZE);
+		keyStream = SecureArena.newByteArray(arena, keyStreamLength);
+		x = keyStream.asIntArrayLE(0, STATE_SIZE * blocks);
 	}
 
 
@@ -114,6 +182,39 @@ public class Salsa20Engine
 	}
 
 
+	/**
+	 * Initializes this engine with the key and nonce of the specified initialized engine of the same type,
+	 * without repeating the key setup (for XSalsa20, the HSalsa20 subkey derivation).
+	 * The source engine is not modified, so several engines can be initialized from it concurrently.
+	 */
+	public void initFrom(Salsa20Engine src)
+	{
+		if(!src.initialised)
+		{
+			throw new IllegalStateException(getAlgorithmName() + " source engine not initialised");
+		}
+		
+		if((src.getClass() != getClass()) || (src.rounds != rounds))
+		{
+			throw new IllegalArgumentException("incompatible engine: " + src.getAlgorithmName());
+		}
+		
+		engineState.copy(0, src.engineState, 0, STATE_SIZE);
+		reset();
+		
+		initialised = true;
+	}
+
+
+	/** completes the initialization after the engine state has been set up by a subclass */
+	protected final void completeInit()
+	{
+		reset();
+
+		initialised = true;
+	}
+
+
 	protected int getNonceSize()
 	{
 		return 8;
@@ -138,95 +239,33 @@ public class Salsa20Engine
 			throw new MaxBytesExceededException("2^70 byte limit per IV; Change IV");
 		}
 
+		checkKeyStream();
 		byte out = (byte)(keyStream.get(index) ^ in);
-		index = (index + 1) & 63;
-
-		if(index == 0)
+		if(++index == keyStreamLength)
 		{
-			advanceCounter();
-			generateKeyStream(keyStream);
+			nextKeyStream();
 		}
 
 		return out;
 	}
 
 
-	protected void advanceCounter(long diff)
-	{
-		int hi = (int)(diff >>> 32);
-		int lo = (int)diff;
-
-		if(hi > 0)
-		{
-			engineState.add(9, hi);
-		}
-
-		int oldState = engineState.get(8);
-
-		engineState.add(8, lo);
-
-		if(oldState != 0 && engineState.get(8) < oldState)
-		{
-			engineState.increment(9);
-		}
-	}
-
-
-	protected void advanceCounter()
-	{
-		if(engineState.incrementAndGet(8) == 0)
-		{
-			engineState.increment(9);
-		}
-	}
-
-
-	protected void retreatCounter(long diff)
+	/** advances the counter past the blocks in the key stream buffer, which is refilled on the next use */
+	void nextKeyStream()
 	{
-		int hi = (int)(diff >>> 32);
-		int lo = (int)diff;
-
-		if(hi != 0)
-		{
-			if((engineState.get(9) & 0xffffffffL) >= (hi & 0xffffffffL))
-			{
-				engineState.subtract(9, hi);
-			}
-			else
-			{
-				throw new IllegalStateException("attempt to reduce counter past zero.");
-			}
-		}
-
-		if((engineState.get(8) & 0xffffffffL) >= (lo & 0xffffffffL))
-		{
-			engineState.subtract(8, lo);
-		}
-		else
-		{
-			if(engineState.get(9) != 0)
-			{
-				engineState.decrement(9);
-				engineState.subtract(8, lo);
-			}
-			else
-			{
-				throw new IllegalStateException("attempt to reduce counter past zero.");
-			}
-		}
+		setCounter(getCounter() + blocks);
+		index = 0;
+		stale = true;
 	}
 
 
-	protected void retreatCounter()
+	/** generates the key stream buffer if the counter has changed since it was last generated */
+	void checkKeyStream()
 	{
-		if(engineState.get(8) == 0 && engineState.get(9) == 0)
+		if(stale)
 		{
-			throw new IllegalStateException("attempt to reduce counter past zero.");
-		}
-
-		if(engineState.decrementAndGet(8) == -1)
-		{
-			engineState.decrement(9);
+			generateKeyStream(keyStream);
+			stale = false;
 		}
 	}
 	
@@ -253,22 +292,38 @@ public class Salsa20Engine
 			throw new MaxBytesExceededException("2^70 byte limit per IV would be exceeded; Change IV");
 		}
 
-		for(int i=0; i<len; i++)
+		int rv = len;
+		while(len > 0)
 		{
-			out[i + outOff] = (byte)(keyStream.get(index) ^ in[i + inOff]);
-			index = (index + 1) & 63;
-
-			if(index == 0)
+			checkKeyStream();
+			
+			// xor the rest of the key stream buffer, 8 bytes at a time
+			int n = Math.min(len, keyStreamLength - index);
+			int j = 0;
+			for(; j<=n-8; j+=8)
 			{
-				advanceCounter();
-				generateKeyStream(keyStream);
+				CUtils.longToBigEndian(keyStream.getLong(index + j) ^ CUtils.bigEndianToLong(in, inOff + j), out, outOff + j);
+			}
+			for(; j<n; j++)
+			{
+				out[outOff + j] = (byte)(keyStream.get(index + j) ^ in[inOff + j]);
+			}
+			
+			inOff += n;
+			outOff += n;
+			len -= n;
+			index += n;
+			
+			if(index == keyStreamLength)
+			{
+				nextKeyStream();
 			}
 		}
 
-		return len;
+		return rv;
 	}
-	
-	
+
+
 	public int processBytes(byte[] in, int inOff, int len, CByteArray out, int outOff)
 	{
 		if(!initialised)
@@ -291,19 +346,35 @@ public class Salsa20Engine
 			throw new MaxBytesExceededException("2^70 byte limit per IV would be exceeded; Change IV");
 		}
 
-		for(int i=0; i<len; i++)
+		int rv = len;
+		while(len > 0)
 		{
-			out.set(i + outOff, (byte)(keyStream.get(index) ^ in[i + inOff]));
-			index = (index + 1) & 63;
-
-			if(index == 0)
+			checkKeyStream();
+			
+			// xor the rest of the key stream buffer, 8 bytes at a time
+			int n = Math.min(len, keyStreamLength - index);
+			int j = 0;
+			for(; j<=n-8; j+=8)
+			{
+				out.setLong(outOff + j, keyStream.getLong(index + j) ^ CUtils.bigEndianToLong(in, inOff + j));
+			}
+			for(; j<n; j++)
+			{
+				out.set(outOff + j, (byte)(keyStream.get(index + j) ^ in[inOff + j]));
+			}
+			
+			inOff += n;
+			outOff += n;
+			len -= n;
+			index += n;
+			
+			if(index == keyStreamLength)
 			{
-				advanceCounter();
-				generateKeyStream(keyStream);
+				nextKeyStream();
 			}
 		}
 
-		return len;
+		return rv;
 	}
 
 
@@ -329,22 +400,38 @@ public class Salsa20Engine
 			throw new MaxBytesExceededException("2^70 byte limit per IV would be exceeded; Change IV");
 		}
 
-		for(int i = 0; i < len; i++)
+		int rv = len;
+		while(len > 0)
 		{
-			out.set(i + outOff, (byte)(keyStream.get(index) ^ in.get(i + inOff)));
-			index = (index + 1) & 63;
-
-			if(index == 0)
+			checkKeyStream();
+			
+			// xor the rest of the key stream buffer, 8 bytes at a time
+			int n = Math.min(len, keyStreamLength - index);
+			int j = 0;
+			for(; j<=n-8; j+=8)
+			{
+				out.setLong(outOff + j, keyStream.getLong(index + j) ^ in.getLong(inOff + j));
+			}
+			for(; j<n; j++)
+			{
+				out.set(outOff + j, (byte)(keyStream.get(index + j) ^ in.get(inOff + j)));
+			}
+			
+			inOff += n;
+			outOff += n;
+			len -= n;
+			index += n;
+			
+			if(index == keyStreamLength)
 			{
-				advanceCounter();
-				generateKeyStream(keyStream);
+				nextKeyStream();
 			}
 		}
 
-		return len;
+		return rv;
 	}
-	
-	
+
+
 	public int processBytes(CByteArray in, int inOff, int len, byte[] out, int outOff)
 	{
 		if(!initialised)
@@ -367,71 +454,150 @@ public class Salsa20Engine
 			throw new MaxBytesExceededException("2^70 byte limit per IV would be exceeded; Change IV");
 		}
 
-		for(int i = 0; i < len; i++)
+		int rv = len;
+		while(len > 0)
 		{
-			out[i + outOff] = (byte)(keyStream.get(index) ^ in.get(i + inOff));
-			index = (index + 1) & 63;
-
-			if(index == 0)
+			checkKeyStream();
+			
+			// xor the rest of the key stream buffer, 8 bytes at a time
+			int n = Math.min(len, keyStreamLength - index);
+			int j = 0;
+			for(; j<=n-8; j+=8)
 			{
-				advanceCounter();
-				generateKeyStream(keyStream);
+				CUtils.longToBigEndian(keyStream.getLong(index + j) ^ in.getLong(inOff + j), out, outOff + j);
+			}
+			for(; j<n; j++)
+			{
+				out[outOff + j] = (byte)(keyStream.get(index + j) ^ in.get(inOff + j));
+			}
+			
+			inOff += n;
+			outOff += n;
+			len -= n;
+			index += n;
+			
+			if(index == keyStreamLength)
+			{
+				nextKeyStream();
 			}
 		}
 
-		return len;
+		return rv;
 	}
 
 
-	public long skip(long numberOfBytes)
+	/**
+	 * processes the remaining bytes of the input buffer into the output buffer, advancing the positions
+	 * of both.  The buffers can be direct or heap, of any byte order, and may be the same buffer
+	 * for in-place processing.
+	 */
+	public int processBytes(ByteBuffer in, ByteBuffer out)
 	{
-		if(numberOfBytes >= 0)
+		if(!initialised)
 		{
-			long remaining = numberOfBytes;
+			throw new IllegalStateException(getAlgorithmName() + " not initialised");
+		}
 
-			if(remaining >= 64)
-			{
-				long count = remaining / 64;
+		int len = in.remaining();
+		if(len > out.remaining())
+		{
+			throw new OutputLengthException("output buffer too short");
+		}
 
-				advanceCounter(count);
+		if(limitExceeded(len))
+		{
+			throw new MaxBytesExceededException("2^70 byte limit per IV would be exceeded; Change IV");
+		}
 
-				remaining -= count * 64;
+		// the key stream is big-endian
+		boolean swapIn = (in.order() != ByteOrder.BIG_ENDIAN);
+		boolean swapOut = (out.order() != ByteOrder.BIG_ENDIAN);
+		int inOff = in.position();
+		int outOff = out.position();
+		int rv = len;
+		
+		while(len > 0)
+		{
+			checkKeyStream();
+			
+			// xor the rest of the key stream buffer, 8 bytes at a time
+			int n = Math.min(len, keyStreamLength - index);
+			int j = 0;
+			for(; j<=n-8; j+=8)
+			{
+				long v = in.getLong(inOff + j);
+				if(swapIn)
+				{
+					v = Long.reverseBytes(v);
+				}
+				
+				v ^= keyStream.getLong(index + j);
+				if(swapOut)
+				{
+					v = Long.reverseBytes(v);
+				}
+				out.putLong(outOff + j, v);
 			}
+			for(; j<n; j++)
+			{
+				out.put(outOff + j, (byte)(keyStream.get(index + j) ^ in.get(inOff + j)));
+			}
+			
+			inOff += n;
+			outOff += n;
+			len -= n;
+			index += n;
+			
+			if(index == keyStreamLength)
+			{
+				nextKeyStream();
+			}
+		}
+		
+		in.position(inOff);
+		out.position(outOff);
+		return rv;
+	}
 
-			int oldIndex = index;
-
-			index = (index + (int)remaining) & 63;
 
-			if(index < oldIndex)
+	public long skip(long numberOfBytes)
+	{
+		// absolute block number and offset of the current position
+		long block = getCounter() + (index / BLOCK_SIZE);
+		int offset = index % BLOCK_SIZE;
+		
+		if(numberOfBytes >= 0)
+		{
+			block += (numberOfBytes / BLOCK_SIZE);
+			offset += (int)(numberOfBytes % BLOCK_SIZE);
+			if(offset >= BLOCK_SIZE)
 			{
-				advanceCounter();
+				block++;
+				offset -= BLOCK_SIZE;
 			}
 		}
 		else
 		{
 			long remaining = -numberOfBytes;
-
-			if(remaining >= 64)
+			long diff = (remaining / BLOCK_SIZE);
+			offset -= (int)(remaining % BLOCK_SIZE);
+			if(offset < 0)
 			{
-				long count = remaining / 64;
-
-				retreatCounter(count);
-
-				remaining -= count * 64;
+				diff++;
+				offset += BLOCK_SIZE;
 			}
-
-			for(long i = 0; i < remaining; i++)
+			
+			if(Long.compareUnsigned(block, diff) < 0)
 			{
-				if(index == 0)
-				{
-					retreatCounter();
-				}
-
-				index = (index - 1) & 63;
+				throw new IllegalStateException("attempt to reduce counter past zero.");
 			}
+			block -= diff;
 		}
-
-		generateKeyStream(keyStream);
+		
+		// arithmetic only, the key stream is generated when the next byte is processed
+		setCounter(block);
+		index = offset;
+		stale = true;
 
 		return numberOfBytes;
 	}
@@ -456,8 +622,7 @@ public class Salsa20Engine
 		index = 0;
 		resetLimitCounter();
 		resetCounter();
-
-		generateKeyStream(keyStream);
+		stale = true;
 	}
 
 
@@ -467,10 +632,16 @@ public class Salsa20Engine
 	}
 
 
+	protected void setCounter(long counter)
+	{
+		engineState.set(8, (int)counter);
+		engineState.set(9, (int)(counter >>> 32));
+	}
+
+
 	protected void resetCounter()
 	{
-		engineState.set(8, 0);
-		engineState.set(9, 0);
+		setCounter(0);
 	}
 
 
@@ -499,10 +670,146 @@ public class Salsa20Engine
 	}
 
 
+	/** returns the Vector API core, or null if it is not available */
+	static SalsaCore loadVectorCore()
+	{
+		try
+		{
+			return (SalsaCore)Class.forName(VECTOR_CORE_CLASS).getDeclaredConstructor().newInstance();
+		}
+		catch(Throwable e)
+		{
+			log.warn("vector Salsa20 core is not available, using scalar", e);
+			return null;
+		}
+	}
+
+
+	/** returns true if the Vector API core is enabled */
+	public static boolean isVectorEnabled()
+	{
+		return (vectorCore != null);
+	}
+
+
 	protected void generateKeyStream(CByteArray output)
 	{
-		salsaCore(rounds, engineState, x);
-		CUtils.intToLittleEndian(x, output, 0);
+		// x shares memory with the keyStream, no conversion is needed
+		if((vectorCore != null) && (blocks >= VECTOR_MIN_BLOCKS))
+		{
+			vectorCore.generateBlocks(rounds, engineState, getCounter(), blocks, x);
+		}
+		else
+		{
+			generateBlocks();
+		}
+		
+		if(output != keyStream)
+		{
+			output.copyFrom(keyStream, 0, keyStream.length(), 0);
+		}
+	}
+	
+	
+	/** 
+	 * generates the consecutive counter blocks into the key stream buffer, keeping the state in locals
+	 * and skipping the argument checks of salsaCore().
+	 */
+	private void generateBlocks()
+	{
+		int j00 = engineState.get(0);
+		int j01 = engineState.get(1);
+		int j02 = engineState.get(2);
+		int j03 = engineState.get(3);
+		int j04 = engineState.get(4);
+		int j05 = engineState.get(5);
+		int j06 = engineState.get(6);
+		int j07 = engineState.get(7);
+		int j10 = engineState.get(10);
+		int j11 = engineState.get(11);
+		int j12 = engineState.get(12);
+		int j13 = engineState.get(13);
+		int j14 = engineState.get(14);
+		int j15 = engineState.get(15);
+		long counter = getCounter();
+		
+		for(int off=0; off<(STATE_SIZE * blocks); off+=STATE_SIZE)
+		{
+			int c0 = (int)counter;
+			int c1 = (int)(counter >>> 32);
+			int x00 = j00;
+			int x01 = j01;
+			int x02 = j02;
+			int x03 = j03;
+			int x04 = j04;
+			int x05 = j05;
+			int x06 = j06;
+			int x07 = j07;
+			int x08 = c0;
+			int x09 = c1;
+			int x10 = j10;
+			int x11 = j11;
+			int x12 = j12;
+			int x13 = j13;
+			int x14 = j14;
+			int x15 = j15;
+
+			for(int i=rounds; i>0; i-=2)
+			{
+				x04 ^= Integer.rotateLeft(x00 + x12, 7);
+				x08 ^= Integer.rotateLeft(x04 + x00, 9);
+				x12 ^= Integer.rotateLeft(x08 + x04, 13);
+				x00 ^= Integer.rotateLeft(x12 + x08, 18);
+				x09 ^= Integer.rotateLeft(x05 + x01, 7);
+				x13 ^= Integer.rotateLeft(x09 + x05, 9);
+				x01 ^= Integer.rotateLeft(x13 + x09, 13);
+				x05 ^= Integer.rotateLeft(x01 + x13, 18);
+				x14 ^= Integer.rotateLeft(x10 + x06, 7);
+				x02 ^= Integer.rotateLeft(x14 + x10, 9);
+				x06 ^= Integer.rotateLeft(x02 + x14, 13);
+				x10 ^= Integer.rotateLeft(x06 + x02, 18);
+				x03 ^= Integer.rotateLeft(x15 + x11, 7);
+				x07 ^= Integer.rotateLeft(x03 + x15, 9);
+				x11 ^= Integer.rotateLeft(x07 + x03, 13);
+				x15 ^= Integer.rotateLeft(x11 + x07, 18);
+
+				x01 ^= Integer.rotateLeft(x00 + x03, 7);
+				x02 ^= Integer.rotateLeft(x01 + x00, 9);
+				x03 ^= Integer.rotateLeft(x02 + x01, 13);
+				x00 ^= Integer.rotateLeft(x03 + x02, 18);
+				x06 ^= Integer.rotateLeft(x05 + x04, 7);
+				x07 ^= Integer.rotateLeft(x06 + x05, 9);
+				x04 ^= Integer.rotateLeft(x07 + x06, 13);
+				x05 ^= Integer.rotateLeft(x04 + x07, 18);
+				x11 ^= Integer.rotateLeft(x10 + x09, 7);
+				x08 ^= Integer.rotateLeft(x11 + x10, 9);
+				x09 ^= Integer.rotateLeft(x08 + x11, 13);
+				x10 ^= Integer.rotateLeft(x09 + x08, 18);
+				x12 ^= Integer.rotateLeft(x15 + x14, 7);
+				x13 ^= Integer.rotateLeft(x12 + x15, 9);
+				x14 ^= Integer.rotateLeft(x13 + x12, 13);
+				x15 ^= Integer.rotateLeft(x14 + x13, 18);
+			}
+
+			x.set(off + 0, x00 + j00);
+			x.set(off + 1, x01 + j01);
+			x.set(off + 2, x02 + j02);
+			x.set(off + 3, x03 + j03);
+			x.set(off + 4, x04 + j04);
+			x.set(off + 5, x05 + j05);
+			x.set(off + 6, x06 + j06);
+			x.set(off + 7, x07 + j07);
+			x.set(off + 8, x08 + c0);
+			x.set(off + 9, x09 + c1);
+			x.set(off + 10, x10 + j10);
+			x.set(off + 11, x11 + j11);
+			x.set(off + 12, x12 + j12);
+			x.set(off + 13, x13 + j13);
+			x.set(off + 14, x14 + j14);
+			x.set(off + 15, x15 + j15);
+			
+			counter++;
+		}
 	}
 
 
@@ -526,22 +833,39 @@ public class Salsa20Engine
 			throw new IllegalArgumentException("Number of rounds must be even");
 		}
 
-		int x00 = input.get(0);
-		int x01 = input.get(1);
-		int x02 = input.get(2);
-		int x03 = input.get(3);
-		int x04 = input.get(4);
-		int x05 = input.get(5);
-		int x06 = input.get(6);
-		int x07 = input.get(7);
-		int x08 = input.get(8);
-		int x09 = input.get(9);
-		int x10 = input.get(10);
-		int x11 = input.get(11);
-		int x12 = input.get(12);
-		int x13 = input.get(13);
-		int x14 = input.get(14);
-		int x15 = input.get(15);
+		int j00 = input.get(0);
+		int j01 = input.get(1);
+		int j02 = input.get(2);
+		int j03 = input.get(3);
+		int j04 = input.get(4);
+		int j05 = input.get(5);
+		int j06 = input.get(6);
+		int j07 = input.get(7);
+		int j08 = input.get(8);
+		int j09 = input.get(9);
+		int j10 = input.get(10);
+		int j11 = input.get(11);
+		int j12 = input.get(12);
+		int j13 = input.get(13);
+		int j14 = input.get(14);
+		int j15 = input.get(15);
+
+		int x00 = j00;
+		int x01 = j01;
+		int x02 = j02;
+		int x03 = j03;
+		int x04 = j04;
+		int x05 = j05;
+		int x06 = j06;
+		int x07 = j07;
+		int x08 = j08;
+		int x09 = j09;
+		int x10 = j10;
+		int x11 = j11;
+		int x12 = j12;
+		int x13 = j13;
+		int x14 = j14;
+		int x15 = j15;
 
 		for(int i = rounds; i > 0; i -= 2)
 		{
@@ -580,22 +904,22 @@ public class Salsa20Engine
 			x15 ^= Integer.rotateLeft(x14 + x13, 18);
 		}
 
-		x.set(0, x00 + input.get(0));
-		x.set(1, x01 + input.get(1));
-		x.set(2, x02 + input.get(2));
-		x.set(3, x03 + input.get(3));
-		x.set(4, x04 + input.get(4));
-		x.set(5, x05 + input.get(5));
-		x.set(6, x06 + input.get(6));
-		x.set(7, x07 + input.get(7));
-		x.set(8, x08 + input.get(8));
-		x.set(9, x09 + input.get(9));
-		x.set(10, x10 + input.get(10));
-		x.set(11, x11 + input.get(11));
-		x.set(12, x12 + input.get(12));
-		x.set(13, x13 + input.get(13));
-		x.set(14, x14 + input.get(14));
-		x.set(15, x15 + input.get(15));
+		x.set(0, x00 + j00);
+		x.set(1, x01 + j01);
+		x.set(2, x02 + j02);
+		x.set(3, x03 + j03);
+		x.set(4, x04 + j04);
+		x.set(5, x05 + j05);
+		x.set(6, x06 + j06);
+		x.set(7, x07 + j07);
+		x.set(8, x08 + j08);
+		x.set(9, x09 + j09);
+		x.set(10, x10 + j10);
+		x.set(11, x11 + j11);
+		x.set(12, x12 + j12);
+		x.set(13, x13 + j13);
+		x.set(14, x14 + j14);
+		x.set(15, x15 + j15);
 	}
 
 
@@ -624,7 +948,7 @@ public class Salsa20Engine
 	/*
 	 * this relies on the fact len will always be positive.
 	 */
-	private boolean limitExceeded(int len)
+	boolean limitExceeded(int len)
 	{
 		cW0 += len;
 		if(cW0 < len && cW0 >= 0)
@@ -644,5 +968,15 @@ public class Salsa20Engine
 		keyStream.zero();
 		x.zero();
 		engineState.zero();
+		stale = true;
+	}
+	
+	
+	/** zeroes and releases the engine state, after which the engine must not be used */
+	public void destroy()
+	{
+		// also destroys the x view
+		keyStream.destroy();
+		engineState.destroy();
 	}
 }
@@ -0,0 +1,17 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.bc;
+import goryachev.memsafecrypto.CIntArray;
+
+
+/**
+ * Alternative implementation of the Salsa20 key stream generation, see Salsa20Engine.
+ */
+public interface SalsaCore
+{
+	/**
+	 * Generates count consecutive counter blocks of the key stream from the engine state,
+	 * starting with the specified counter (which replaces state words 8 and 9).
+	 * The output block i is written to x at offset (16 * i).
+	 */
+	public void generateBlocks(int rounds, CIntArray state, long counter, int count, CIntArray x);
+}
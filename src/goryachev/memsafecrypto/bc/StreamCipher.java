@@ -1,5 +1,6 @@
 package goryachev.memsafecrypto.bc;
 import goryachev.memsafecrypto.CByteArray;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -50,6 +51,18 @@ public interface StreamCipher
 	public int processBytes(CByteArray in, int inOff, int len, CByteArray out, int outOff) throws DataLengthException;
 
 
+	/**
+	 * process the remaining bytes of the input buffer, putting the result into the output buffer.
+	 * the positions of both buffers are advanced by the number of bytes processed.
+	 *
+	 * @param in the input buffer, direct or heap.
+	 * @param out the output buffer, may be the same as the input buffer.
+	 * @return the number of bytes produced - should always be in.remaining().
+	 * @exception DataLengthException if the output buffer is too small.
+	 */
+	public int processBytes(ByteBuffer in, ByteBuffer out) throws DataLengthException;
+
+
 	/**
 	 * reset the cipher. This leaves it in the same state
 	 * it was at after the last init (if there was one).
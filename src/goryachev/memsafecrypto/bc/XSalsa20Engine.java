@@ -1,6 +1,7 @@
 package goryachev.memsafecrypto.bc;
 import goryachev.memsafecrypto.CByteArray;
 import goryachev.memsafecrypto.CIntArray;
+import goryachev.memsafecrypto.SecureArena;
 import goryachev.memsafecrypto.util.CUtils;
 
 
@@ -12,6 +13,39 @@ import goryachev.memsafecrypto.util.CUtils;
 public class XSalsa20Engine
 	extends Salsa20Engine
 {
+	private final CIntArray hsalsa20Out;
+	
+	
+	public XSalsa20Engine()
+	{
+		this(null);
+	}
+	
+	
+	/**
+	 * Creates an XSalsa20 engine which allocates its state in the specified arena.
+	 * @param arena the arena, or null to allocate standalone arrays.
+	 */
+	public XSalsa20Engine(SecureArena arena)
+	{
+		this(1, arena);
+	}
+	
+	
+	/**
+	 * Creates an XSalsa20 engine which generates the specified number of key stream blocks per refill
+	 * (see Salsa20Engine.WIDE_BLOCKS), and allocates its state in the specified arena.
+	 * @param blocks the number of key stream blocks per refill, from 1 to MAX_BLOCKS.
+	 * @param arena the arena, or null to allocate standalone arrays.
+	 */
+	public XSalsa20Engine(int blocks, SecureArena arena)
+	{
+		super(DEFAULT_ROUNDS, blocks, arena);
+		
+		hsalsa20Out = SecureArena.newIntArray(arena, engineState.length());
+	}
+	
+	
 	public String getAlgorithmName()
 	{
 		return "XSalsa20";
@@ -48,8 +82,89 @@ public class XSalsa20Engine
 		// Pack next 64 bits of IV into engine state instead of counter
 		CUtils.littleEndianToInt(ivBytes, 8, engineState, 8, 2);
 
+		deriveSubkey();
+
+		// Last 64 bits of input IV
+		CUtils.littleEndianToInt(ivBytes, 16, engineState, 6, 2);
+	}
+
+
+	/**
+	 * Initializes the engine with a prepared key and a 24-byte nonce, without allocating memory.
+	 * @param key the prepared key.
+	 * @param nonce the array containing the nonce.
+	 * @param nonceOffset the offset of the nonce.
+	 */
+	public void init(XSalsa20Key key, CByteArray nonce, int nonceOffset)
+	{
+		checkNonce(nonce.length(), nonceOffset);
+		setKey(key);
+
+		for(int i=0; i<4; i++)
+		{
+			engineState.set(6 + i, CUtils.littleEndianToInt(nonce, nonceOffset + i * 4));
+		}
+
+		deriveSubkey();
+
+		engineState.set(6, CUtils.littleEndianToInt(nonce, nonceOffset + 16));
+		engineState.set(7, CUtils.littleEndianToInt(nonce, nonceOffset + 20));
+
+		completeInit();
+	}
+
+
+	/**
+	 * Initializes the engine with a prepared key and a 24-byte nonce, without allocating memory.
+	 * @param key the prepared key.
+	 * @param nonce the array containing the nonce.
+	 * @param nonceOffset the offset of the nonce.
+	 */
+	public void init(XSalsa20Key key, byte[] nonce, int nonceOffset)
+	{
+		checkNonce(nonce.length, nonceOffset);
+		setKey(key);
+
+		for(int i=0; i<4; i++)
+		{
+			engineState.set(6 + i, CUtils.littleEndianToInt(nonce, nonceOffset + i * 4));
+		}
+
+		deriveSubkey();
+
+		engineState.set(6, CUtils.littleEndianToInt(nonce, nonceOffset + 16));
+		engineState.set(7, CUtils.littleEndianToInt(nonce, nonceOffset + 20));
+
+		completeInit();
+	}
+
+
+	private void checkNonce(int length, int offset)
+	{
+		if((offset < 0) || (offset + getNonceSize() > length))
+		{
+			throw new IllegalArgumentException(getAlgorithmName() + " requires exactly " + getNonceSize() + " bytes of IV");
+		}
+	}
+
+
+	/** copies the constants and the key of the HSalsa20 input */
+	private void setKey(XSalsa20Key key)
+	{
+		for(int i=0; i<16; i++)
+		{
+			engineState.set(i, key.get(i));
+		}
+	}
+
+
+	/**
+	 * HSalsa20: replaces the key in the engine state with the subkey derived from the key and 
+	 * the first 128 bits of the nonce (in words 6 to 9).
+	 */
+	private void deriveSubkey()
+	{
 		// Process engine state to generate Salsa20 key
-		CIntArray hsalsa20Out = new CIntArray(engineState.length());
 		salsaCore(20, engineState, hsalsa20Out);
 
 		// Set new key, removing addition in last round of salsaCore
@@ -62,8 +177,21 @@ public class XSalsa20Engine
 		engineState.set(12, hsalsa20Out.get(7) - engineState.get(7));
 		engineState.set(13, hsalsa20Out.get(8) - engineState.get(8));
 		engineState.set(14, hsalsa20Out.get(9) - engineState.get(9));
-
-		// Last 64 bits of input IV
-		CUtils.littleEndianToInt(ivBytes, 16, engineState, 6, 2);
+		
+		hsalsa20Out.zero();
+	}
+	
+	
+	public void zero()
+	{
+		super.zero();
+		hsalsa20Out.zero();
+	}
+	
+	
+	public void destroy()
+	{
+		super.destroy();
+		hsalsa20Out.destroy();
 	}
 }
@@ -0,0 +1,101 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.bc;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.CIntArray;
+import goryachev.memsafecrypto.ICryptoZeroable;
+import goryachev.memsafecrypto.SecureArena;
+import goryachev.memsafecrypto.util.CUtils;
+
+
+/**
+ * Prepared XSalsa20 key: the HSalsa20 input state with the constants and the 256 bit key already
+ * in place, kept in direct memory.
+ * <p>
+ * An XSalsa20Engine can be initialized with this key and a new nonce, see XSalsa20Engine.init(XSalsa20Key, ...),
+ * without parsing the key, creating parameter objects or allocating memory.  The HSalsa20 subkey depends
+ * on the first 16 bytes of the nonce, and is still computed on each init.
+ * <p>
+ * The key is not modified after construction and can be shared between threads.
+ */
+public final class XSalsa20Key
+	implements ICryptoZeroable
+{
+	public static final int KEY_LENGTH_BYTES = 32;
+	private final CIntArray state;
+
+
+	public XSalsa20Key(CByteArray key)
+	{
+		this(key, null);
+	}
+
+
+	/**
+	 * Creates the prepared key, allocating its state in the specified arena.
+	 * @param arena the arena, or null to allocate a standalone array.
+	 */
+	public XSalsa20Key(CByteArray key, SecureArena arena)
+	{
+		checkLength(key.length());
+
+		state = SecureArena.newIntArray(arena, 16);
+		for(int i=0; i<4; i++)
+		{
+			state.set(1 + i, CUtils.littleEndianToInt(key, i * 4));
+			state.set(11 + i, CUtils.littleEndianToInt(key, 16 + i * 4));
+		}
+		setConstants();
+	}
+
+
+	public XSalsa20Key(byte[] key)
+	{
+		checkLength(key.length);
+
+		state = new CIntArray(16);
+		for(int i=0; i<4; i++)
+		{
+			state.set(1 + i, CUtils.littleEndianToInt(key, i * 4));
+			state.set(11 + i, CUtils.littleEndianToInt(key, 16 + i * 4));
+		}
+		setConstants();
+	}
+
+
+	private static void checkLength(int len)
+	{
+		if(len != KEY_LENGTH_BYTES)
+		{
+			throw new IllegalArgumentException("XSalsa20 requires a 256 bit key");
+		}
+	}
+
+
+	private void setConstants()
+	{
+		// "expand 32-byte k"
+		state.set(0, Salsa20Engine.TAU_SIGMA[4]);
+		state.set(5, Salsa20Engine.TAU_SIGMA[5]);
+		state.set(10, Salsa20Engine.TAU_SIGMA[6]);
+		state.set(15, Salsa20Engine.TAU_SIGMA[7]);
+	}
+
+
+	/** returns the word of the HSalsa20 input state at the specified index */
+	int get(int index)
+	{
+		return state.get(index);
+	}
+
+
+	public void zero()
+	{
+		state.zero();
+	}
+
+
+	public void destroy()
+	{
+		state.destroy();
+	}
+}
@@ -0,0 +1,596 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.bc;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.SecureArena;
+import goryachev.memsafecrypto.util.CUtils;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * XSalsa20 engine with a fused Poly1305 MAC (the NaCl secretbox construction): the first 32 bytes
+ * of the key stream are used as the Poly1305 key, and the ciphertext passing through processBytes()
+ * is authenticated in the same pass, 16 bytes at a time, while it is still in registers.
+ * When encrypting, the MAC covers the output, when decrypting, the input.
+ * <p>
+ * The MAC is obtained with doFinal() after the last byte.  Use getMac() to add other data to the MAC,
+ * such as the associated data.
+ * <p>
+ * The MAC covers the bytes processed since init(); seeking with skip() or seekTo() is allowed,
+ * but the resulting MAC is not that of the NaCl construction.
+ * <p>
+ * The direction is specified in the constructor (encryption by default) and may be changed by
+ * init(boolean, ...).  The init() methods inherited from XSalsa20Engine keep the current direction.
+ */
+public class XSalsa20Poly1305Engine
+	extends XSalsa20Engine
+{
+	private final Poly1305 poly1305 = new Poly1305();
+	private final CByteArray subkey;
+	private boolean forEncryption;
+
+
+	public XSalsa20Poly1305Engine()
+	{
+		this(null);
+	}
+
+
+	/**
+	 * Creates an engine which allocates its state in the specified arena.
+	 * @param arena the arena, or null to allocate standalone arrays.
+	 */
+	public XSalsa20Poly1305Engine(SecureArena arena)
+	{
+		this(1, arena);
+	}
+
+
+	/**
+	 * Creates an engine which generates the specified number of key stream blocks per refill
+	 * (see Salsa20Engine.WIDE_BLOCKS), and allocates its state in the specified arena.
+	 * @param blocks the number of key stream blocks per refill, from 1 to MAX_BLOCKS.
+	 * @param arena the arena, or null to allocate standalone arrays.
+	 */
+	public XSalsa20Poly1305Engine(int blocks, SecureArena arena)
+	{
+		this(true, blocks, arena);
+	}
+
+
+	/**
+	 * Creates an engine which generates the specified number of key stream blocks per refill
+	 * (see Salsa20Engine.WIDE_BLOCKS), and allocates its state in the specified arena.
+	 * @param forEncryption whether the MAC covers the output (encryption) or the input (decryption).
+	 * @param blocks the number of key stream blocks per refill, from 1 to MAX_BLOCKS.
+	 * @param arena the arena, or null to allocate standalone arrays.
+	 */
+	public XSalsa20Poly1305Engine(boolean forEncryption, int blocks, SecureArena arena)
+	{
+		super(blocks, arena);
+
+		this.forEncryption = forEncryption;
+		subkey = SecureArena.newByteArray(arena, 32);
+	}
+
+
+	public String getAlgorithmName()
+	{
+		return "XSalsa20Poly1305";
+	}
+
+
+	public void init(boolean forEncryption, CipherParameters params)
+	{
+		super.init(forEncryption, params);
+		initMac(forEncryption);
+	}
+
+
+	/**
+	 * Initializes the engine with a prepared key and a 24-byte nonce, without allocating memory.
+	 * @param forEncryption whether the MAC covers the output (encryption) or the input (decryption).
+	 * @param key the prepared key.
+	 * @param nonce the array containing the nonce.
+	 * @param nonceOffset the offset of the nonce.
+	 */
+	public void init(boolean forEncryption, XSalsa20Key key, CByteArray nonce, int nonceOffset)
+	{
+		super.init(key, nonce, nonceOffset);
+		initMac(forEncryption);
+	}
+
+
+	/**
+	 * Initializes the engine with a prepared key and a 24-byte nonce, without allocating memory.
+	 * @param forEncryption whether the MAC covers the output (encryption) or the input (decryption).
+	 * @param key the prepared key.
+	 * @param nonce the array containing the nonce.
+	 * @param nonceOffset the offset of the nonce.
+	 */
+	public void init(boolean forEncryption, XSalsa20Key key, byte[] nonce, int nonceOffset)
+	{
+		super.init(key, nonce, nonceOffset);
+		initMac(forEncryption);
+	}
+
+
+	/** initializes the engine and the MAC, keeping the current direction */
+	public void init(XSalsa20Key key, CByteArray nonce, int nonceOffset)
+	{
+		init(forEncryption, key, nonce, nonceOffset);
+	}
+
+
+	/** initializes the engine and the MAC, keeping the current direction */
+	public void init(XSalsa20Key key, byte[] nonce, int nonceOffset)
+	{
+		init(forEncryption, key, nonce, nonceOffset);
+	}
+
+
+	/** 
+	 * re-initializes Poly1305 with the subkey generated from the next 32 bytes of the key stream,
+	 * discarding the data added to the MAC so far.  Used to derive a MAC key distinct from that of the NaCl construction.
+	 */
+	public void rekeyMac()
+	{
+		initMac(forEncryption);
+	}
+
+
+	/** initializes Poly1305 with the subkey generated from the next 32 bytes of the key stream */
+	private void initMac(boolean forEncryption)
+	{
+		this.forEncryption = forEncryption;
+
+		try
+		{
+			subkey.zero();
+			super.processBytes(subkey, 0, 32, subkey, 0);
+			poly1305.init(subkey, 0);
+		}
+		finally
+		{
+			subkey.zero();
+		}
+	}
+
+
+	/** returns the MAC, in order to authenticate additional data */
+	public Poly1305 getMac()
+	{
+		return poly1305;
+	}
+
+
+	/** writes the 16-byte MAC of the processed ciphertext and resets the MAC */
+	public int doFinal(CByteArray out, int outOff)
+	{
+		return poly1305.doFinal(out, outOff);
+	}
+
+
+	/** writes the 16-byte MAC of the processed ciphertext and resets the MAC */
+	public int doFinal(byte[] out, int outOff)
+	{
+		return poly1305.doFinal(out, outOff);
+	}
+
+
+	private void check(boolean inputTooShort, boolean outputTooShort)
+	{
+		if(!initialised)
+		{
+			throw new IllegalStateException(getAlgorithmName() + " not initialised");
+		}
+
+		if(inputTooShort)
+		{
+			throw new DataLengthException("input buffer too short");
+		}
+
+		if(outputTooShort)
+		{
+			throw new OutputLengthException("output buffer too short");
+		}
+	}
+
+
+	/**
+	 * returns the number of bytes, a multiple of 16, which can be processed by the fused loop:
+	 * the MAC must be on a block boundary, and the key stream aligned to 16 bytes (always, unless seeking)
+	 */
+	private int fusedLength(int len)
+	{
+		if((poly1305.bytesToBlockBoundary() != 0) || ((index & 15) != 0))
+		{
+			return 0;
+		}
+
+		int n = len & ~15;
+		if((n > 0) && limitExceeded(n))
+		{
+			throw new MaxBytesExceededException("2^70 byte limit per IV would be exceeded; Change IV");
+		}
+		return n;
+	}
+
+
+	/** 
+	 * returns the number of bytes to process one at a time when the fused loop cannot be used:
+	 * up to the MAC block boundary, or the tail shorter than a block, or everything if the key stream is not aligned
+	 */
+	private int headLength(int len)
+	{
+		int n = poly1305.bytesToBlockBoundary();
+		if(n == 0)
+		{
+			return len;
+		}
+		return Math.min(len, n);
+	}
+
+
+	/** adds a block given as two big endian longs to the MAC */
+	private void updateMac(long a, long b)
+	{
+		poly1305.updateBlock
+		(
+			Integer.reverseBytes((int)(a >>> 32)),
+			Integer.reverseBytes((int)a),
+			Integer.reverseBytes((int)(b >>> 32)),
+			Integer.reverseBytes((int)b)
+		);
+	}
+
+
+	public byte returnByte(byte in)
+	{
+		if(forEncryption)
+		{
+			byte out = super.returnByte(in);
+			poly1305.update(out);
+			return out;
+		}
+		else
+		{
+			poly1305.update(in);
+			return super.returnByte(in);
+		}
+	}
+
+
+	public int processBytes(byte[] in, int inOff, int len, byte[] out, int outOff)
+	{
+		check((inOff + len) > in.length, (outOff + len) > out.length);
+		return process(in, inOff, len, out, outOff);
+	}
+
+
+	public int processBytes(byte[] in, int inOff, int len, CByteArray out, int outOff)
+	{
+		check((inOff + len) > in.length, (outOff + len) > out.length());
+		return process(in, inOff, len, out, outOff);
+	}
+
+
+	public int processBytes(CByteArray in, int inOff, int len, CByteArray out, int outOff)
+	{
+		check((inOff + len) > in.length(), (outOff + len) > out.length());
+		return process(in, inOff, len, out, outOff);
+	}
+
+
+	public int processBytes(CByteArray in, int inOff, int len, byte[] out, int outOff)
+	{
+		check((inOff + len) > in.length(), (outOff + len) > out.length);
+		return process(in, inOff, len, out, outOff);
+	}
+
+
+	/**
+	 * processes the remaining bytes of the input buffer into the output buffer, advancing the positions
+	 * of both.  The buffers can be direct or heap, of any byte order, and may be the same buffer
+	 * for in-place processing.
+	 */
+	public int processBytes(ByteBuffer in, ByteBuffer out)
+	{
+		int len = in.remaining();
+		check(false, len > out.remaining());
+
+		int inOff = in.position();
+		int outOff = out.position();
+		process(in, inOff, len, out, outOff);
+
+		in.position(inOff + len);
+		out.position(outOff + len);
+		return len;
+	}
+
+
+	/** adds the cipher text block to the MAC: the output when encrypting, or the input when decrypting */
+	private void updateMac(long i0, long i1, long c0, long c1)
+	{
+		if(forEncryption)
+		{
+			updateMac(c0, c1);
+		}
+		else
+		{
+			updateMac(i0, i1);
+		}
+	}
+
+
+	/** returns the number of bytes available in the key stream for the fused loop, up to len */
+	private int keyStreamChunk(int len)
+	{
+		checkKeyStream();
+		return Math.min(len, keyStreamLength - index);
+	}
+
+
+	/** advances the key stream after the fused loop consumed m bytes */
+	private void advanceKeyStream(int m)
+	{
+		index += m;
+		if(index == keyStreamLength)
+		{
+			nextKeyStream();
+		}
+	}
+
+
+	private int process(byte[] in, int inOff, int len, byte[] out, int outOff)
+	{
+		int rv = len;
+		while(len > 0)
+		{
+			int n = fusedLength(len);
+			if(n == 0)
+			{
+				n = headLength(len);
+				for(int j=0; j<n; j++)
+				{
+					out[outOff + j] = returnByte(in[inOff + j]);
+				}
+			}
+			else
+			{
+				for(int done=0; done<n; )
+				{
+					int m = keyStreamChunk(n - done);
+					int ip = inOff + done;
+					int op = outOff + done;
+					for(int j=0; j<m; j+=16)
+					{
+						long i0 = CUtils.bigEndianToLong(in, ip + j);
+						long i1 = CUtils.bigEndianToLong(in, ip + j + 8);
+						long c0 = i0 ^ keyStream.getLong(index + j);
+						long c1 = i1 ^ keyStream.getLong(index + j + 8);
+						CUtils.longToBigEndian(c0, out, op + j);
+						CUtils.longToBigEndian(c1, out, op + j + 8);
+						updateMac(i0, i1, c0, c1);
+					}
+					done += m;
+					advanceKeyStream(m);
+				}
+			}
+
+			inOff += n;
+			outOff += n;
+			len -= n;
+		}
+		return rv;
+	}
+
+
+	private int process(byte[] in, int inOff, int len, CByteArray out, int outOff)
+	{
+		int rv = len;
+		while(len > 0)
+		{
+			int n = fusedLength(len);
+			if(n == 0)
+			{
+				n = headLength(len);
+				for(int j=0; j<n; j++)
+				{
+					out.set(outOff + j, returnByte(in[inOff + j]));
+				}
+			}
+			else
+			{
+				for(int done=0; done<n; )
+				{
+					int m = keyStreamChunk(n - done);
+					int ip = inOff + done;
+					int op = outOff + done;
+					for(int j=0; j<m; j+=16)
+					{
+						long i0 = CUtils.bigEndianToLong(in, ip + j);
+						long i1 = CUtils.bigEndianToLong(in, ip + j + 8);
+						long c0 = i0 ^ keyStream.getLong(index + j);
+						long c1 = i1 ^ keyStream.getLong(index + j + 8);
+						out.setLong(op + j, c0);
+						out.setLong(op + j + 8, c1);
+						updateMac(i0, i1, c0, c1);
+					}
+					done += m;
+					advanceKeyStream(m);
+				}
+			}
+
+			inOff += n;
+			outOff += n;
+			len -= n;
+		}
+		return rv;
+	}
+
+
+	private int process(CByteArray in, int inOff, int len, CByteArray out, int outOff)
+	{
+		int rv = len;
+		while(len > 0)
+		{
+			int n = fusedLength(len);
+			if(n == 0)
+			{
+				n = headLength(len);
+				for(int j=0; j<n; j++)
+				{
+					out.set(outOff + j, returnByte(in.get(inOff + j)));
+				}
+			}
+			else
+			{
+				for(int done=0; done<n; )
+				{
+					int m = keyStreamChunk(n - done);
+					int ip = inOff + done;
+					int op = outOff + done;
+					for(int j=0; j<m; j+=16)
+					{
+						long i0 = in.getLong(ip + j);
+						long i1 = in.getLong(ip + j + 8);
+						long c0 = i0 ^ keyStream.getLong(index + j);
+						long c1 = i1 ^ keyStream.getLong(index + j + 8);
+						out.setLong(op + j, c0);
+						out.setLong(op + j + 8, c1);
+						updateMac(i0, i1, c0, c1);
+					}
+					done += m;
+					advanceKeyStream(m);
+				}
+			}
+
+			inOff += n;
+			outOff += n;
+			len -= n;
+		}
+		return rv;
+	}
+
+
+	private int process(CByteArray in, int inOff, int len, byte[] out, int outOff)
+	{
+		int rv = len;
+		while(len > 0)
+		{
+			int n = fusedLength(len);
+			if(n == 0)
+			{
+				n = headLength(len);
+				for(int j=0; j<n; j++)
+				{
+					out[outOff + j] = returnByte(in.get(inOff + j));
+				}
+			}
+			else
+			{
+				for(int done=0; done<n; )
+				{
+					int m = keyStreamChunk(n - done);
+					int ip = inOff + done;
+					int op = outOff + done;
+					for(int j=0; j<m; j+=16)
+					{
+						long i0 = in.getLong(ip + j);
+						long i1 = in.getLong(ip + j + 8);
+						long c0 = i0 ^ keyStream.getLong(index + j);
+						long c1 = i1 ^ keyStream.getLong(index + j + 8);
+						CUtils.longToBigEndian(c0, out, op + j);
+						CUtils.longToBigEndian(c1, out, op + j + 8);
+						updateMac(i0, i1, c0, c1);
+					}
+					done += m;
+					advanceKeyStream(m);
+				}
+			}
+
+			inOff += n;
+			outOff += n;
+			len -= n;
+		}
+		return rv;
+	}
+
+
+	private int process(ByteBuffer in, int inOff, int len, ByteBuffer out, int outOff)
+	{
+		// the key stream is big-endian
+		boolean swapIn = (in.order() != ByteOrder.BIG_ENDIAN);
+		boolean swapOut = (out.order() != ByteOrder.BIG_ENDIAN);
+		int rv = len;
+		while(len > 0)
+		{
+			int n = fusedLength(len);
+			if(n == 0)
+			{
+				n = headLength(len);
+				for(int j=0; j<n; j++)
+				{
+					out.put(outOff + j, returnByte(in.get(inOff + j)));
+				}
+			}
+			else
+			{
+				for(int done=0; done<n; )
+				{
+					int m = keyStreamChunk(n - done);
+					int ip = inOff + done;
+					int op = outOff + done;
+					for(int j=0; j<m; j+=16)
+					{
+						long i0 = in.getLong(ip + j);
+						long i1 = in.getLong(ip + j + 8);
+						if(swapIn)
+						{
+							i0 = Long.reverseBytes(i0);
+							i1 = Long.reverseBytes(i1);
+						}
+						
+						long c0 = i0 ^ keyStream.getLong(index + j);
+						long c1 = i1 ^ keyStream.getLong(index + j + 8);
+						if(swapOut)
+						{
+							out.putLong(op + j, Long.reverseBytes(c0));
+							out.putLong(op + j + 8, Long.reverseBytes(c1));
+						}
+						else
+						{
+							out.putLong(op + j, c0);
+							out.putLong(op + j + 8, c1);
+						}
+						updateMac(i0, i1, c0, c1);
+					}
+					done += m;
+					advanceKeyStream(m);
+				}
+			}
+
+			inOff += n;
+			outOff += n;
+			len -= n;
+		}
+		return rv;
+	}
+
+
+	public void zero()
+	{
+		super.zero();
+		poly1305.zero();
+		subkey.zero();
+	}
+
+
+	public void destroy()
+	{
+		super.destroy();
+		poly1305.zero();
+		subkey.destroy();
+	}
+}
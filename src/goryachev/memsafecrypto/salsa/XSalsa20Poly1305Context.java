@@ -0,0 +1,263 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.ICryptoZeroable;
+import goryachev.memsafecrypto.SecureArena;
+import goryachev.memsafecrypto.bc.OutputLengthException;
+import goryachev.memsafecrypto.bc.Poly1305;
+import goryachev.memsafecrypto.bc.XSalsa20Engine;
+import goryachev.memsafecrypto.bc.XSalsa20Key;
+import goryachev.memsafecrypto.bc.XSalsa20Poly1305Engine;
+import goryachev.memsafecrypto.util.CUtils;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Base class for the reusable XSalsa20Poly1305 seal and open contexts.
+ * <p>
+ * A context is bound to one key, and keeps the engine state, the Poly1305 subkey and the MAC
+ * preallocated in a SecureArena, so that processing a message does not allocate memory.
+ * The per-message state is zeroed after each message, the arena is zeroed when the context is closed.
+ * <p>
+ * Without the associated data, the MAC covers the ciphertext only and is compatible with
+ * XSalsaTools.encryptXSalsa20Poly1305().  With the associated data, the MAC input follows RFC 8439:
+ * the associated data, zero padding to a multiple of 16 bytes, the ciphertext, zero padding, and
+ * the lengths of the associated data and of the ciphertext as 64-bit little endian integers.
+ * In this case the Poly1305 key is generated from the second 32 bytes of the key stream, and the data
+ * is encrypted starting at byte 64, so that a MAC over the associated data is never a valid MAC
+ * of the same bytes presented as a ciphertext without the associated data.
+ * <p>
+ * The encryption context uses the fused XSalsa20Poly1305Engine, which encrypts and authenticates in one pass.
+ * The decryption context verifies the MAC before decrypting, which takes two passes over the data.
+ * <p>
+ * This class is not synchronized and is expected to be confined to a single thread.
+ */
+abstract class XSalsa20Poly1305Context
+	implements Closeable, ICryptoZeroable
+{
+	private static final byte[] PADDING = new byte[16];
+	private final byte[] lengths = new byte[16];
+	protected final SecureArena arena;
+	/** the engine, which also computes the MAC when encrypting */
+	protected final XSalsa20Engine engine;
+	protected final Poly1305 poly1305;
+	protected final CByteArray mac;
+	private final boolean ownsKey;
+	private XSalsa20Key key;
+	private boolean closed;
+
+
+	/** creates a context bound to the specified key, which is not destroyed when the context is closed */
+	protected XSalsa20Poly1305Context(boolean forEncryption, XSalsa20Key key)
+	{
+		this(forEncryption, key, null);
+	}
+
+
+	/** creates a context with a prepared copy of the specified key, which is zeroed when the context is closed */
+	protected XSalsa20Poly1305Context(boolean forEncryption, CByteArray key)
+	{
+		this(forEncryption, null, key);
+	}
+
+
+	private XSalsa20Poly1305Context(boolean forEncryption, XSalsa20Key key, CByteArray keyBytes)
+	{
+		if((key == null) && (keyBytes == null))
+		{
+			throw new NullPointerException("key");
+		}
+
+		this.arena = new SecureArena();
+		if(forEncryption)
+		{
+			XSalsa20Poly1305Engine e = new XSalsa20Poly1305Engine(true, 1, arena);
+			this.engine = e;
+			this.poly1305 = e.getMac();
+		}
+		else
+		{
+			this.engine = new XSalsa20Engine(arena);
+			this.poly1305 = new Poly1305();
+		}
+		this.mac = arena.newByteArray(XSalsaTools.MAC_LENGTH_BYTES);
+
+		if(key == null)
+		{
+			this.key = new XSalsa20Key(keyBytes, arena);
+			this.ownsKey = true;
+		}
+		else
+		{
+			this.key = key;
+			this.ownsKey = false;
+		}
+	}
+
+
+	/** binds a context obtained from the thread local cache to the specified key */
+	void setKey(XSalsa20Key k)
+	{
+		if(k == null)
+		{
+			throw new NullPointerException("key");
+		}
+		else if(ownsKey)
+		{
+			throw new IllegalStateException("the context owns its key");
+		}
+
+		key = k;
+	}
+
+
+	public boolean isClosed()
+	{
+		return closed;
+	}
+
+
+	private void checkOpen()
+	{
+		if(closed)
+		{
+			throw new IllegalStateException("context is closed");
+		}
+	}
+
+
+	protected static void checkOutput(CByteArray out, int offset, int length)
+	{
+		if((offset < 0) || (offset + length > out.length()))
+		{
+			throw new OutputLengthException("output buffer too short");
+		}
+	}
+
+
+	/** initializes the engine and the MAC for the next message */
+	protected void start(CByteArray nonce, int nonceOffset)
+	{
+		checkOpen();
+		engine.init(key, nonce, nonceOffset);
+		initMac();
+	}
+
+
+	/** initializes the engine and the MAC for the next message */
+	protected void start(byte[] nonce, int nonceOffset)
+	{
+		checkOpen();
+		engine.init(key, nonce, nonceOffset);
+		initMac();
+	}
+
+
+	/** 
+	 * initializes the MAC after the engine has been initialized for the next message.
+	 * does nothing by default, since the fused engine initializes its own MAC.
+	 */
+	protected void initMac()
+	{
+	}
+
+
+	/**
+	 * switches the MAC to the key generated from the next 32 bytes of the key stream, before the associated data
+	 * is added, see the class description.
+	 */
+	protected abstract void initAadMac();
+
+
+	/** adds the associated data, if any, to the MAC, which must be done before processing the data */
+	protected void updateAad(CByteArray aad, int offset, int length)
+	{
+		if(length > 0)
+		{
+			initAadMac();
+			poly1305.update(aad, offset, length);
+			pad(length);
+		}
+	}
+
+
+	/** adds the remaining bytes of the associated data, if any, to the MAC, returns the number of bytes */
+	protected int updateAad(ByteBuffer aad)
+	{
+		if(aad == null)
+		{
+			return 0;
+		}
+
+		int len = aad.remaining();
+		if(len > 0)
+		{
+			initAadMac();
+			poly1305.update(aad);
+			pad(len);
+		}
+		return len;
+	}
+
+
+	private void pad(long length)
+	{
+		int n = (int)(-length & 15);
+		if(n > 0)
+		{
+			poly1305.update(PADDING, 0, n);
+		}
+	}
+
+
+	/** completes the MAC over the associated data and the ciphertext, and writes it to the output */
+	protected void finishMac(long aadLength, long dataLength, CByteArray out, int outOffset)
+	{
+		if(aadLength > 0)
+		{
+			pad(dataLength);
+			CUtils.longToLittleEndian(aadLength, lengths, 0);
+			CUtils.longToLittleEndian(dataLength, lengths, 8);
+			poly1305.update(lengths, 0, lengths.length);
+		}
+		poly1305.doFinal(out, outOffset);
+	}
+
+
+	/** zeroes the per-message state */
+	protected void finish()
+	{
+		engine.zero();
+		poly1305.zero();
+		mac.zero();
+	}
+
+
+	public void zero()
+	{
+		if(!closed)
+		{
+			finish();
+		}
+	}
+
+
+	/** zeroes the scratch state and releases the memory, after which the context cannot be used */
+	public void close()
+	{
+		if(!closed)
+		{
+			closed = true;
+			poly1305.zero();
+			key = null;
+			arena.close();
+		}
+	}
+
+
+	public void destroy()
+	{
+		close();
+	}
+}
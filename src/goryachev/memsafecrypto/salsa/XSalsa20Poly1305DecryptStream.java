@@ -5,9 +5,10 @@ import goryachev.memsafecrypto.CByteArray;
 import goryachev.memsafecrypto.Crypto;
 import goryachev.memsafecrypto.bc.KeyParameter;
 import goryachev.memsafecrypto.bc.ParametersWithIV;
-import goryachev.memsafecrypto.bc.Poly1305;
-import goryachev.memsafecrypto.bc.XSalsa20Engine;
+import goryachev.memsafecrypto.bc.Salsa20Engine;
+import goryachev.memsafecrypto.bc.XSalsa20Poly1305Engine;
 import goryachev.memsafecrypto.util.CUtils;
+import goryachev.memsafecrypto.util.ReadAheadInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
@@ -15,6 +16,9 @@ import java.security.MessageDigest;
 
 /**
  * Decrypting Stream Based on XSalsa20/Poly1305 Scheme.
+ * The data is decrypted and authenticated in a single pass by the fused XSalsa20Poly1305Engine.
+ * In the read-ahead mode, the ciphertext is read by a background thread (see ReadAheadInputStream)
+ * while the previously read data is being decrypted.
  */
 public class XSalsa20Poly1305DecryptStream
 	extends InputStream
@@ -26,58 +30,44 @@ public class XSalsa20Poly1305DecryptStream
 	private CByteArray out;
 	private int index;
 	private int available;
-	private XSalsa20Engine xsalsa20 = new XSalsa20Engine();
-	private Poly1305 poly1305 = new Poly1305();
+	private XSalsa20Poly1305Engine xsalsa20 = new XSalsa20Poly1305Engine(Salsa20Engine.WIDE_BLOCKS, null);
 
 
 	public XSalsa20Poly1305DecryptStream(CByteArray key, CByteArray nonce, long cipherTextLength, InputStream in)
+	{
+		this(key, nonce, cipherTextLength, in, false);
+	}
+
+
+	/** creates the stream, optionally reading the input ahead in a background thread */
+	public XSalsa20Poly1305DecryptStream(CByteArray key, CByteArray nonce, long cipherTextLength, InputStream in, boolean readAhead)
 	{
 		if(key.length() != XSalsaTools.KEY_LENGTH_BYTES)
 		{
 			throw new IllegalArgumentException("key must be " + XSalsaTools.KEY_LENGTH_BYTES * 8 + " bits");
 		}
 
-		this.in = in;
-		this.toRead = cipherTextLength - poly1305.getMacSize();
+		this.in = readAhead ? new ReadAheadInputStream(in) : in;
+		this.toRead = cipherTextLength - XSalsaTools.MAC_LENGTH_BYTES;
 		this.out = new CByteArray(BUFFER_SIZE);
 		this.buf = new byte[BUFFER_SIZE];
 		
-		KeyParameter kp = new KeyParameter(key);
+		KeyParameter kp = KeyParameter.wrap(key);
 		try
 		{
-			ParametersWithIV param = new ParametersWithIV(kp, nonce);
+			ParametersWithIV param = ParametersWithIV.wrap(kp, nonce, 0, nonce.length());
 			try
 			{
 				xsalsa20.init(false, param);
 			}
 			finally
 			{
-				param.zero();
-			}
-		}
-		finally
-		{
-			kp.zero();
-		}
-		
-		CByteArray subkey = new CByteArray(XSalsaTools.KEY_LENGTH_BYTES);
-		try
-		{
-			xsalsa20.processBytes(subkey, 0, subkey.length(), subkey, 0);
-			
-			KeyParameter skp = new KeyParameter(subkey);
-			try
-			{
-				poly1305.init(skp);
-			}
-			finally
-			{
-				skp.zero();
+				param.destroy();
 			}
 		}
 		finally
 		{
-			subkey.zero();
+			kp.destroy();
 		}
 	}
 	
@@ -150,7 +140,6 @@ public class XSalsa20Poly1305DecryptStream
 					}
 					else if(rd > 0)
 					{
-						poly1305.update(buf, 0, rd);
 						xsalsa20.processBytes(buf, 0, rd, out, 0);
 						available += rd;
 						toRead -= rd;
@@ -169,11 +158,11 @@ public class XSalsa20Poly1305DecryptStream
 					}
 					
 					// compute mac
-					byte[] mac = new byte[poly1305.getMacSize()];
-					poly1305.doFinal(mac, 0);
+					byte[] mac = new byte[XSalsaTools.MAC_LENGTH_BYTES];
+					xsalsa20.doFinal(mac, 0);
 					
 					// read mac from input
-					byte[] mac2 = new byte[poly1305.getMacSize()];
+					byte[] mac2 = new byte[XSalsaTools.MAC_LENGTH_BYTES];
 					CKit.readFully(in, mac2);
 					
 					if(!MessageDigest.isEqual(mac, mac2))
@@ -198,12 +187,11 @@ public class XSalsa20Poly1305DecryptStream
 
 	public void close() throws IOException
 	{
-		Crypto.zero(xsalsa20);
-		Crypto.zero(poly1305);
+		Crypto.destroy(xsalsa20);
 		
 		CKit.close(in);
 		Crypto.zero(buf);
-		Crypto.zero(out);
+		Crypto.destroy(out);
 
 		buf = null;
 		out = null;
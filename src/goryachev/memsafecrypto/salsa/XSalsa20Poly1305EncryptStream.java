@@ -5,71 +5,61 @@ import goryachev.memsafecrypto.CByteArray;
 import goryachev.memsafecrypto.Crypto;
 import goryachev.memsafecrypto.bc.KeyParameter;
 import goryachev.memsafecrypto.bc.ParametersWithIV;
-import goryachev.memsafecrypto.bc.Poly1305;
-import goryachev.memsafecrypto.bc.XSalsa20Engine;
+import goryachev.memsafecrypto.bc.Salsa20Engine;
+import goryachev.memsafecrypto.bc.XSalsa20Poly1305Engine;
+import goryachev.memsafecrypto.util.WriteBehindOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
 
 /**
  * Encrypting Stream Based on XSalsa20/Poly1305 Scheme.
+ * The data is encrypted and authenticated in a single pass by the fused XSalsa20Poly1305Engine.
+ * In the write-behind mode, the ciphertext is written out by a background thread (see WriteBehindOutputStream)
+ * while the next data is being encrypted.
  */
 public class XSalsa20Poly1305EncryptStream
 	extends OutputStream
 {
 	private static final int BUFFER_SIZE = 4096;
-	private XSalsa20Engine engine = new XSalsa20Engine();
-	private Poly1305 poly1305 = new Poly1305();
+	private XSalsa20Poly1305Engine engine = new XSalsa20Poly1305Engine(Salsa20Engine.WIDE_BLOCKS, null);
 	private OutputStream os;
 	private byte[] out;
 
 
 	public XSalsa20Poly1305EncryptStream(CByteArray key, CByteArray nonce, OutputStream os)
+	{
+		this(key, nonce, os, false);
+	}
+
+
+	/** creates the stream, optionally writing the output in a background thread */
+	public XSalsa20Poly1305EncryptStream(CByteArray key, CByteArray nonce, OutputStream os, boolean writeBehind)
 	{
 		if(key.length() != XSalsaTools.KEY_LENGTH_BYTES)
 		{
 			throw new IllegalArgumentException("key must be " + XSalsaTools.KEY_LENGTH_BYTES * 8 + " bits");
 		}
 		
-		this.os = os;
+		this.os = writeBehind ? new WriteBehindOutputStream(os) : os;
 		this.out = new byte[BUFFER_SIZE];
 
-		KeyParameter kp = new KeyParameter(key);
+		KeyParameter kp = KeyParameter.wrap(key);
 		try
 		{
-			ParametersWithIV param = new ParametersWithIV(kp, nonce);
+			ParametersWithIV param = ParametersWithIV.wrap(kp, nonce, 0, nonce.length());
 			try
 			{
 				engine.init(true, param);
 			}
 			finally
 			{
-				param.zero();
-			}
-		}
-		finally
-		{
-			kp.zero();
-		}
-		
-		CByteArray subkey = new CByteArray(XSalsaTools.KEY_LENGTH_BYTES);
-		try
-		{
-			engine.processBytes(subkey, 0, XSalsaTools.KEY_LENGTH_BYTES, subkey, 0);
-			
-			KeyParameter skp = new KeyParameter(subkey);
-			try
-			{
-				poly1305.init(skp);
-			}
-			finally
-			{
-				skp.zero();
+				param.destroy();
 			}
 		}
 		finally
 		{
-			subkey.zero();
+			kp.destroy();
 		}
 	}
 	
@@ -78,7 +68,6 @@ public class XSalsa20Poly1305EncryptStream
 	{
 		out[0] = (byte)b;
 		engine.processBytes(out, 0, 1, out, 1);
-		poly1305.update(out, 1, 1);
 		os.write(out, 1, 1);
 	}
 
@@ -90,7 +79,6 @@ public class XSalsa20Poly1305EncryptStream
 		{
 			int sz = Math.min(len, out.length);
 			engine.processBytes(b, off + pos, sz, out, 0);
-			poly1305.update(out, 0, sz);
 			os.write(out, 0, sz);
 			
 			len -= sz;
@@ -103,8 +91,10 @@ public class XSalsa20Poly1305EncryptStream
 	{
 		try
 		{
-			poly1305.doFinal(out, 0);
-			os.write(out, 0, poly1305.getMacSize());
+			engine.doFinal(out, 0);
+			os.write(out, 0, XSalsaTools.MAC_LENGTH_BYTES);
+			// reports a failure to write, which close() would not
+			os.flush();
 		}
 		catch(IOException e)
 		{
@@ -122,14 +112,12 @@ public class XSalsa20Poly1305EncryptStream
 			}
 			finally
 			{
-				engine.zero();
-				poly1305.zero();
+				Crypto.destroy(engine);
 				Crypto.zero(out);
 				
 				engine = null;
-				poly1305 = null;
 				os = null;
 			}			
 		}
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,248 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.bc.DataLengthException;
+import goryachev.memsafecrypto.bc.XSalsa20Key;
+import goryachev.memsafecrypto.util.CUtils;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Reusable XSalsa20Poly1305 decryption context, bound to one key.
+ * Accepts the output of XSalsaTools.encryptXSalsa20Poly1305() or XSalsa20Poly1305Sealer: the ciphertext
+ * followed by the MAC.  The MAC is verified before decrypting, without allocating memory per message.
+ * <p>
+ * The detached mode decrypts the data in place and reads the MAC from a separate location,
+ * optionally authenticating the associated data, see XSalsa20Poly1305Context.
+ * <p>
+ * This class is not synchronized and is expected to be confined to a single thread,
+ * see forThread().
+ */
+public final class XSalsa20Poly1305Opener
+	extends XSalsa20Poly1305Context
+{
+	private static final ThreadLocal<XSalsa20Poly1305Opener> cache = new ThreadLocal<>();
+	/** the Poly1305 key */
+	private final CByteArray subkey;
+
+
+	/** creates a context bound to the specified key, which is not destroyed when the context is closed */
+	public XSalsa20Poly1305Opener(XSalsa20Key key)
+	{
+		super(false, key);
+		subkey = arena.newByteArray(XSalsaTools.KEY_LENGTH_BYTES);
+	}
+
+
+	/** creates a context with a prepared copy of the specified 256 bit key */
+	public XSalsa20Poly1305Opener(CByteArray key)
+	{
+		super(false, key);
+		subkey = arena.newByteArray(XSalsaTools.KEY_LENGTH_BYTES);
+	}
+
+
+	/**
+	 * Returns the context cached for the current thread, bound to the specified key.
+	 * The context must not be passed to other threads.  Closing it zeroes the scratch memory,
+	 * and the next call creates a new context.
+	 */
+	public static XSalsa20Poly1305Opener forThread(XSalsa20Key key)
+	{
+		XSalsa20Poly1305Opener s = cache.get();
+		if((s == null) || s.isClosed())
+		{
+			s = new XSalsa20Poly1305Opener(key);
+			cache.set(s);
+		}
+		else
+		{
+			s.setKey(key);
+		}
+		return s;
+	}
+
+
+	/** initializes Poly1305 with the subkey generated from the first 32 bytes of the key stream */
+	protected void initMac()
+	{
+		try
+		{
+			engine.processBytes(subkey, 0, XSalsaTools.KEY_LENGTH_BYTES, subkey, 0);
+			poly1305.init(subkey, 0);
+		}
+		finally
+		{
+			subkey.zero();
+		}
+	}
+
+
+	protected void initAadMac()
+	{
+		initMac();
+	}
+
+
+	/**
+	 * Verifies the MAC which follows the ciphertext in the input, and decrypts inputLength - MAC_LENGTH_BYTES bytes
+	 * to the output.  Nothing is written to the output when the MAC does not match.
+	 * The input and the output may be the same array at the same offset.
+	 * @return the number of bytes written
+	 * @throws Exception if the MAC does not match
+	 */
+	public int open(CByteArray nonce, int nonceOffset, CByteArray input, int inputOffset, int inputLength, CByteArray out, int outOffset) throws Exception
+	{
+		int len = checkInput(inputLength);
+		checkOutput(out, outOffset, len);
+		start(nonce, nonceOffset);
+		try
+		{
+			return open(input, inputOffset, len, out, outOffset);
+		}
+		finally
+		{
+			finish();
+		}
+	}
+
+
+	/**
+	 * Verifies the MAC which follows the ciphertext in the input, and decrypts inputLength - MAC_LENGTH_BYTES bytes
+	 * to the output.  Nothing is written to the output when the MAC does not match.
+	 * The input and the output may be the same array at the same offset.
+	 * @return the number of bytes written
+	 * @throws Exception if the MAC does not match
+	 */
+	public int open(byte[] nonce, int nonceOffset, CByteArray input, int inputOffset, int inputLength, CByteArray out, int outOffset) throws Exception
+	{
+		int len = checkInput(inputLength);
+		checkOutput(out, outOffset, len);
+		start(nonce, nonceOffset);
+		try
+		{
+			return open(input, inputOffset, len, out, outOffset);
+		}
+		finally
+		{
+			finish();
+		}
+	}
+
+
+	private static int checkInput(int inputLength)
+	{
+		if(inputLength < XSalsaTools.MAC_LENGTH_BYTES)
+		{
+			throw new DataLengthException("input is shorter than the MAC");
+		}
+		return inputLength - XSalsaTools.MAC_LENGTH_BYTES;
+	}
+
+
+	private int open(CByteArray input, int inputOffset, int len, CByteArray out, int outOffset) throws Exception
+	{
+		poly1305.update(input, inputOffset, len);
+		finishMac(0, len, mac, 0);
+
+		if(!CUtils.compareConstantTime(mac, 0, XSalsaTools.MAC_LENGTH_BYTES, input, inputOffset + len))
+		{
+			throw new Exception("MAC mismatch");
+		}
+
+		engine.processBytes(input, inputOffset, len, out, outOffset);
+		return len;
+	}
+
+
+	/**
+	 * Verifies the MAC over the associated data and the ciphertext, read from the tag array,
+	 * and decrypts the data in place (detached mode).  The data is not modified when the MAC does not match.
+	 * @param aad the associated data, or null
+	 * @throws Exception if the MAC does not match
+	 */
+	public void openDetached(CByteArray nonce, int nonceOffset, CByteArray aad, int aadOffset, int aadLength, CByteArray data, int offset, int length, CByteArray tag, int tagOffset) throws Exception
+	{
+		if(aad == null)
+		{
+			aadLength = 0;
+		}
+		if((tagOffset < 0) || (tagOffset + XSalsaTools.MAC_LENGTH_BYTES > tag.length()))
+		{
+			throw new DataLengthException("tag buffer too short");
+		}
+
+		start(nonce, nonceOffset);
+		try
+		{
+			updateAad(aad, aadOffset, aadLength);
+			poly1305.update(data, offset, length);
+			finishMac(aadLength, length, mac, 0);
+
+			if(!CUtils.compareConstantTime(mac, 0, XSalsaTools.MAC_LENGTH_BYTES, tag, tagOffset))
+			{
+				throw new Exception("MAC mismatch");
+			}
+
+			engine.processBytes(data, offset, length, data, offset);
+		}
+		finally
+		{
+			finish();
+		}
+	}
+
+
+	/**
+	 * Verifies the MAC over the associated data and the remaining bytes of the data buffer, read from
+	 * the tag buffer, and decrypts the data in place (detached mode).
+	 * The positions of all the buffers are advanced past the processed bytes; when the MAC does not match,
+	 * the data is not modified and the positions are left unchanged.
+	 * The buffers can be direct or heap, of any byte order.
+	 * @param aad the associated data, or null
+	 * @throws Exception if the MAC does not match
+	 */
+	public void openDetached(CByteArray nonce, int nonceOffset, ByteBuffer aad, ByteBuffer data, ByteBuffer tag) throws Exception
+	{
+		if(tag.remaining() < XSalsaTools.MAC_LENGTH_BYTES)
+		{
+			throw new DataLengthException("tag buffer too short");
+		}
+
+		start(nonce, nonceOffset);
+		try
+		{
+			int aadPos = (aad == null) ? 0 : aad.position();
+			int aadLength = updateAad(aad);
+			int pos = data.position();
+			poly1305.update(data);
+			int length = data.position() - pos;
+			data.position(pos);
+			finishMac(aadLength, length, mac, 0);
+
+			// constant time
+			int tagPos = tag.position();
+			int x = 0;
+			for(int i=0; i<XSalsaTools.MAC_LENGTH_BYTES; i++)
+			{
+				x |= (mac.get(i) ^ tag.get(tagPos + i));
+			}
+
+			if(x != 0)
+			{
+				if(aad != null)
+				{
+					aad.position(aadPos);
+				}
+				throw new Exception("MAC mismatch");
+			}
+
+			engine.processBytes(data, data);
+			tag.position(tagPos + XSalsaTools.MAC_LENGTH_BYTES);
+		}
+		finally
+		{
+			finish();
+		}
+	}
+}
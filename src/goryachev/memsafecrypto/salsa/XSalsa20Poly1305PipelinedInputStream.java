@@ -0,0 +1,300 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.common.util.CKit;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.Crypto;
+import goryachev.memsafecrypto.bc.XSalsa20Key;
+import goryachev.memsafecrypto.util.CUtils;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * Decrypting Stream reading the segmented XSalsa20Poly1305 format (see XSalsa20Poly1305Segments),
+ * which verifies and decrypts up to 'depth' segments concurrently in the worker pool.
+ * <p>
+ * The calling thread reads the segments from the underlying stream and submits them to the workers,
+ * keeping up to 'depth' segments in flight, and returns the data in order.  No data is returned from
+ * a segment before its MAC is verified.
+ * <p>
+ * This class is not synchronized.
+ */
+public class XSalsa20Poly1305PipelinedInputStream
+	extends InputStream
+{
+	private final int depth;
+	private final ExecutorService executor;
+	private XSalsa20Key key;
+	private final boolean ownsKey;
+	private InputStream in;
+	private CByteArray header;
+	private int segmentSize;
+	private byte[] buf;
+	private final ArrayList<XSalsa20Poly1305SegmentBuffer> buffers = new ArrayList<>();
+	private final ArrayDeque<XSalsa20Poly1305SegmentBuffer> free = new ArrayDeque<>();
+	private final ArrayDeque<Future<XSalsa20Poly1305SegmentBuffer>> pending = new ArrayDeque<>();
+	/** the decrypted segment being read */
+	private XSalsa20Poly1305SegmentBuffer current;
+	private int position;
+	private int available;
+	private long index;
+	/** the byte read ahead, or -1 */
+	private int next = -1;
+	/** the last segment has been read from the input */
+	private boolean eof;
+	private IOException error;
+
+
+	/**
+	 * Creates the stream with the prepared key, which is not destroyed when the stream is closed.
+	 * @param executor the worker pool
+	 * @param depth the maximum number of segments in flight
+	 */
+	public XSalsa20Poly1305PipelinedInputStream(XSalsa20Key key, InputStream in, ExecutorService executor, int depth)
+	{
+		this(key, false, in, executor, depth);
+	}
+
+
+	/** Creates the stream with a 256 bit key, using the shared pool of XSalsaParallel. */
+	public XSalsa20Poly1305PipelinedInputStream(CByteArray key, InputStream in)
+	{
+		this(new XSalsa20Key(key), true, in, XSalsaParallel.pool(), 2 * XSalsaParallel.getParallelism());
+	}
+
+
+	private XSalsa20Poly1305PipelinedInputStream(XSalsa20Key key, boolean ownsKey, InputStream in, ExecutorService executor, int depth)
+	{
+		if(depth < 1)
+		{
+			throw new IllegalArgumentException("depth must be positive: " + depth);
+		}
+
+		this.key = key;
+		this.ownsKey = ownsKey;
+		this.in = in;
+		this.executor = executor;
+		this.depth = depth;
+	}
+
+
+	public int read() throws IOException
+	{
+		if(available == 0)
+		{
+			load();
+
+			if(available == 0)
+			{
+				return -1;
+			}
+		}
+
+		available--;
+		return current.data.get(position++) & 0xff;
+	}
+
+
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if(len == 0)
+		{
+			return 0;
+		}
+
+		if(available == 0)
+		{
+			load();
+
+			if(available == 0)
+			{
+				return -1;
+			}
+		}
+
+		int sz = Math.min(available, len);
+		CUtils.arraycopy(current.data, position, b, off, sz);
+
+		position += sz;
+		available -= sz;
+		return sz;
+	}
+
+
+	public int available() throws IOException
+	{
+		return available;
+	}
+
+
+	/** takes the next decrypted segment, keeping the pipeline full */
+	protected void load() throws IOException
+	{
+		if(in == null)
+		{
+			throw new IOException("stream closed");
+		}
+		else if(error != null)
+		{
+			// do not continue past a segment which failed to verify
+			throw error;
+		}
+
+		try
+		{
+			if(header == null)
+			{
+				readHeader();
+			}
+
+			while(available == 0)
+			{
+				if(current != null)
+				{
+					free.add(current);
+					current = null;
+				}
+
+				fill();
+
+				if(pending.size() == 0)
+				{
+					return;
+				}
+
+				// the segment remains pending until done, so close() waits for it if interrupted
+				current = XSalsa20Poly1305SegmentBuffer.take(pending.peek());
+				pending.poll();
+				position = 0;
+				available = current.length;
+
+				// submit the next segment while this one is being read
+				fill();
+			}
+		}
+		catch(IOException e)
+		{
+			error = e;
+			throw e;
+		}
+	}
+
+
+	/** reads the segments from the input and submits them to the workers, up to 'depth' segments in flight */
+	private void fill() throws IOException
+	{
+		while(!eof && (pending.size() < depth))
+		{
+			XSalsa20Poly1305SegmentBuffer s = freeBuffer();
+			int full = segmentSize + XSalsaTools.MAC_LENGTH_BYTES;
+			int len = 0;
+			if(next >= 0)
+			{
+				buf[len++] = (byte)next;
+				next = -1;
+			}
+			len += readAll(buf, len, full - len);
+
+			if(len == full)
+			{
+				next = in.read();
+				eof = (next < 0);
+			}
+			else
+			{
+				eof = true;
+			}
+
+			if(len < XSalsaTools.MAC_LENGTH_BYTES)
+			{
+				free.add(s);
+				throw new EOFException("truncated segment " + index);
+			}
+
+			s.data.copyFrom(buf, 0, len, 0);
+			s.length = len - XSalsaTools.MAC_LENGTH_BYTES;
+			s.index = index++;
+			s.last = eof;
+
+			XSalsa20Key k = key;
+			CByteArray h = header;
+			pending.add(executor.submit(() -> s.open(k, h)));
+		}
+	}
+
+
+	private XSalsa20Poly1305SegmentBuffer freeBuffer()
+	{
+		XSalsa20Poly1305SegmentBuffer s = free.poll();
+		if(s == null)
+		{
+			s = new XSalsa20Poly1305SegmentBuffer(segmentSize);
+			buffers.add(s);
+		}
+		return s;
+	}
+
+
+	private void readHeader() throws IOException
+	{
+		byte[] b = new byte[XSalsa20Poly1305Segments.HEADER_LENGTH];
+		if(readAll(b, 0, b.length) < b.length)
+		{
+			throw new EOFException("truncated header");
+		}
+
+		header = XSalsa20Poly1305Segments.parseHeader(b);
+		segmentSize = XSalsa20Poly1305Segments.getSegmentSize(header);
+		buf = new byte[segmentSize + XSalsaTools.MAC_LENGTH_BYTES];
+	}
+
+
+	/** reads until the buffer is filled or the end of the input is reached, returns the number of bytes read */
+	private int readAll(byte[] b, int off, int len) throws IOException
+	{
+		int total = 0;
+		while(total < len)
+		{
+			int rd = in.read(b, off + total, len - total);
+			if(rd < 0)
+			{
+				break;
+			}
+			total += rd;
+		}
+		return total;
+	}
+
+
+	public void close() throws IOException
+	{
+		// the workers must be done with the buffers before they are destroyed
+		XSalsa20Poly1305SegmentBuffer.awaitAll(pending);
+		pending.clear();
+
+		for(XSalsa20Poly1305SegmentBuffer s: buffers)
+		{
+			s.destroy();
+		}
+		buffers.clear();
+		free.clear();
+		current = null;
+		available = 0;
+
+		Crypto.destroy(header);
+		Crypto.zero(buf);
+		if(ownsKey)
+		{
+			Crypto.destroy(key);
+		}
+		CKit.close(in);
+
+		key = null;
+		in = null;
+	}
+}
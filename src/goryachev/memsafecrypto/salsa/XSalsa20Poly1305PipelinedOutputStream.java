@@ -0,0 +1,267 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.common.util.CKit;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.Crypto;
+import goryachev.memsafecrypto.bc.XSalsa20Key;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * Encrypting Stream producing the segmented XSalsa20Poly1305 format (see XSalsa20Poly1305Segments),
+ * which seals up to 'depth' segments concurrently in the worker pool.
+ * <p>
+ * The sealed segments are written to the underlying stream in order by the calling thread:
+ * once 'depth' segments are in flight, the next write waits for the oldest one and writes it out,
+ * which limits the memory used and slows down the writer when the workers or the output fall behind.
+ * The output is identical to that of XSalsa20Poly1305SegmentedOutputStream.
+ * <p>
+ * This class is not synchronized.
+ */
+public class XSalsa20Poly1305PipelinedOutputStream
+	extends OutputStream
+{
+	private final int segmentSize;
+	private final int depth;
+	private final ExecutorService executor;
+	private XSalsa20Key key;
+	private final boolean ownsKey;
+	private OutputStream os;
+	private CByteArray header;
+	private final ArrayList<XSalsa20Poly1305SegmentBuffer> buffers = new ArrayList<>();
+	private final ArrayDeque<XSalsa20Poly1305SegmentBuffer> free = new ArrayDeque<>();
+	private final ArrayDeque<Future<XSalsa20Poly1305SegmentBuffer>> pending = new ArrayDeque<>();
+	private XSalsa20Poly1305SegmentBuffer current;
+	private byte[] out;
+	private long index;
+
+
+	/**
+	 * Creates the stream with the prepared key, which is not destroyed when the stream is closed.
+	 * The nonce must never be reused with the same key.
+	 * @param executor the worker pool
+	 * @param depth the maximum number of segments in flight
+	 */
+	public XSalsa20Poly1305PipelinedOutputStream(XSalsa20Key key, CByteArray nonce, int segmentSize, OutputStream os, ExecutorService executor, int depth) throws IOException
+	{
+		this(key, false, nonce, segmentSize, os, executor, depth);
+	}
+
+
+	/**
+	 * Creates the stream with a 256 bit key, using the default segment size and the shared pool of XSalsaParallel.
+	 * The nonce must never be reused with the same key.
+	 */
+	public XSalsa20Poly1305PipelinedOutputStream(CByteArray key, CByteArray nonce, OutputStream os) throws IOException
+	{
+		this(new XSalsa20Key(key), true, nonce, XSalsa20Poly1305Segments.DEFAULT_SEGMENT_SIZE, os, XSalsaParallel.pool(), 2 * XSalsaParallel.getParallelism());
+	}
+
+
+	private XSalsa20Poly1305PipelinedOutputStream(XSalsa20Key key, boolean ownsKey, CByteArray nonce, int segmentSize, OutputStream os, ExecutorService executor, int depth) throws IOException
+	{
+		if(depth < 1)
+		{
+			throw new IllegalArgumentException("depth must be positive: " + depth);
+		}
+
+		this.key = key;
+		this.ownsKey = ownsKey;
+		this.segmentSize = segmentSize;
+		this.os = os;
+		this.executor = executor;
+		this.depth = depth;
+
+		try
+		{
+			header = XSalsa20Poly1305Segments.createHeader(segmentSize, nonce);
+			out = new byte[segmentSize + XSalsaTools.MAC_LENGTH_BYTES];
+
+			// the header is not secret
+			os.write(header.toByteArray());
+		}
+		catch(Throwable e)
+		{
+			destroy();
+			throw e;
+		}
+	}
+
+
+	public void write(int b) throws IOException
+	{
+		prepare();
+		current.data.set(current.length++, (byte)b);
+	}
+
+
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		while(len > 0)
+		{
+			prepare();
+
+			int sz = Math.min(len, segmentSize - current.length);
+			current.data.copyFrom(b, off, sz, current.length);
+
+			current.length += sz;
+			off += sz;
+			len -= sz;
+		}
+	}
+
+
+	/** makes sure the current segment has space, submitting it when it is full */
+	private void prepare() throws IOException
+	{
+		if(os == null)
+		{
+			throw new IOException("stream closed");
+		}
+
+		if(current == null)
+		{
+			current = nextBuffer();
+		}
+		else if(current.length == segmentSize)
+		{
+			submit(false);
+			current = nextBuffer();
+		}
+	}
+
+
+	private void submit(boolean last)
+	{
+		XSalsa20Poly1305SegmentBuffer s = current;
+		current = null;
+
+		s.index = index++;
+		s.last = last;
+		XSalsa20Key k = key;
+		CByteArray h = header;
+		pending.add(executor.submit(() -> s.seal(k, h)));
+	}
+
+
+	/** returns a free buffer, waiting for the oldest segment to be written out when 'depth' segments are in flight */
+	private XSalsa20Poly1305SegmentBuffer nextBuffer() throws IOException
+	{
+		XSalsa20Poly1305SegmentBuffer s = free.poll();
+		if(s == null)
+		{
+			if(pending.size() < depth)
+			{
+				s = new XSalsa20Poly1305SegmentBuffer(segmentSize);
+				buffers.add(s);
+			}
+			else
+			{
+				writeOldest();
+				s = free.poll();
+			}
+		}
+
+		s.length = 0;
+		return s;
+	}
+
+
+	/** waits for the oldest segment in flight to be sealed, and writes it out */
+	private void writeOldest() throws IOException
+	{
+		// the segment remains pending until done, so destroy() waits for it if interrupted
+		XSalsa20Poly1305SegmentBuffer s = XSalsa20Poly1305SegmentBuffer.take(pending.peek());
+		pending.poll();
+		try
+		{
+			int len = s.length + XSalsaTools.MAC_LENGTH_BYTES;
+			s.data.copyTo(0, out, 0, len);
+			os.write(out, 0, len);
+		}
+		finally
+		{
+			free.add(s);
+		}
+	}
+
+
+	/**
+	 * writes out the segments in flight, except for the current one, and flushes the underlying stream:
+	 * the current segment is written out only when it is complete.
+	 */
+	public void flush() throws IOException
+	{
+		while(pending.size() > 0)
+		{
+			writeOldest();
+		}
+		os.flush();
+	}
+
+
+	/** writes out the remaining segments, the last of which may be empty, and closes the underlying stream */
+	public void close() throws IOException
+	{
+		if(os == null)
+		{
+			return;
+		}
+
+		try
+		{
+			if(current == null)
+			{
+				current = nextBuffer();
+			}
+			submit(true);
+
+			while(pending.size() > 0)
+			{
+				writeOldest();
+			}
+		}
+		finally
+		{
+			try
+			{
+				CKit.close(os);
+			}
+			finally
+			{
+				destroy();
+			}
+		}
+	}
+
+
+	private void destroy()
+	{
+		// the workers must be done with the buffers before they are destroyed
+		XSalsa20Poly1305SegmentBuffer.awaitAll(pending);
+		pending.clear();
+
+		for(XSalsa20Poly1305SegmentBuffer s: buffers)
+		{
+			s.destroy();
+		}
+		buffers.clear();
+		free.clear();
+		current = null;
+
+		Crypto.destroy(header);
+		Crypto.zero(out);
+		if(ownsKey)
+		{
+			Crypto.destroy(key);
+		}
+
+		key = null;
+		os = null;
+	}
+}
@@ -0,0 +1,213 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.common.util.CKit;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.Crypto;
+import goryachev.memsafecrypto.bc.Salsa20Engine;
+import goryachev.memsafecrypto.bc.XSalsa20Key;
+import goryachev.memsafecrypto.bc.XSalsa20Poly1305Engine;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.security.MessageDigest;
+
+
+/**
+ * Decrypting ReadableByteChannel Based on XSalsa20/Poly1305 Scheme, the counterpart of XSalsa20Poly1305DecryptStream.
+ * <p>
+ * The ciphertext is read directly into the caller's buffers, which may be direct, and decrypted in place,
+ * so no heap copies of the plaintext or the ciphertext are made.  The scattering read passes the buffers
+ * to the underlying channel when it is a ScatteringByteChannel, such as a FileChannel.
+ * <p>
+ * Just like XSalsa20Poly1305DecryptStream, the data is returned before the MAC is verified:
+ * the MAC is checked at the end of the ciphertext, and a mismatch results in an IOException
+ * instead of the end of stream.  The caller must not act upon the data before reaching the end of stream.
+ * <p>
+ * This implementation is not synchronized.
+ */
+public class XSalsa20Poly1305ReadableChannel
+	implements ScatteringByteChannel
+{
+	private final ReadableByteChannel channel;
+	private XSalsa20Key key;
+	private XSalsa20Poly1305Engine engine;
+	private long toRead;
+	/** the MAC read from the input */
+	private final ByteBuffer mac = ByteBuffer.allocate(XSalsaTools.MAC_LENGTH_BYTES);
+	private boolean verified;
+
+
+	public XSalsa20Poly1305ReadableChannel(CByteArray key, CByteArray nonce, long cipherTextLength, ReadableByteChannel channel)
+	{
+		if(key.length() != XSalsaTools.KEY_LENGTH_BYTES)
+		{
+			throw new IllegalArgumentException("key must be " + XSalsaTools.KEY_LENGTH_BYTES * 8 + " bits");
+		}
+		else if(cipherTextLength < XSalsaTools.MAC_LENGTH_BYTES)
+		{
+			throw new IllegalArgumentException("cipherTextLength is too short: " + cipherTextLength);
+		}
+
+		this.channel = channel;
+		this.toRead = cipherTextLength - XSalsaTools.MAC_LENGTH_BYTES;
+		this.key = new XSalsa20Key(key);
+		this.engine = new XSalsa20Poly1305Engine(Salsa20Engine.WIDE_BLOCKS, null);
+
+		engine.init(false, this.key, nonce, 0);
+	}
+
+
+	/** decrypts in place the bytes between the specified position and the current position of the buffer */
+	private void decrypt(ByteBuffer b, int start)
+	{
+		int end = b.position();
+		if(end > start)
+		{
+			ByteBuffer d = b.duplicate();
+			d.position(start);
+			d.limit(end);
+			engine.processBytes(d, d.duplicate());
+			toRead -= (end - start);
+		}
+	}
+
+
+	public int read(ByteBuffer dst) throws IOException
+	{
+		return (int)read(new ByteBuffer[] { dst }, 0, 1);
+	}
+
+
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+	{
+		if(engine == null)
+		{
+			throw new ClosedChannelException();
+		}
+
+		if(toRead == 0)
+		{
+			return verify() ? -1 : 0;
+		}
+
+		// limit the destination buffers to the remaining ciphertext, excluding the MAC
+		ByteBuffer[] bs = new ByteBuffer[length];
+		int[] start = new int[length];
+		long avail = toRead;
+		int n = 0;
+		for(; (n < length) && (avail > 0); n++)
+		{
+			ByteBuffer b = dsts[offset + n].duplicate();
+			start[n] = b.position();
+			if(b.remaining() > avail)
+			{
+				b.limit(b.position() + (int)avail);
+			}
+			avail -= b.remaining();
+			bs[n] = b;
+		}
+
+		long rd;
+		if(channel instanceof ScatteringByteChannel)
+		{
+			rd = ((ScatteringByteChannel)channel).read(bs, 0, n);
+		}
+		else
+		{
+			rd = 0;
+			for(int i=0; i<n; i++)
+			{
+				int ct = channel.read(bs[i]);
+				if(ct < 0)
+				{
+					rd = (rd == 0) ? -1 : rd;
+					break;
+				}
+				rd += ct;
+				if(bs[i].hasRemaining())
+				{
+					break;
+				}
+			}
+		}
+
+		if(rd < 0)
+		{
+			throw new EOFException("premature EOF");
+		}
+
+		for(int i=0; i<n; i++)
+		{
+			ByteBuffer b = bs[i];
+			decrypt(b, start[i]);
+			dsts[offset + i].position(b.position());
+		}
+		return rd;
+	}
+
+
+	public long read(ByteBuffer[] dsts) throws IOException
+	{
+		return read(dsts, 0, dsts.length);
+	}
+
+
+	/** reads and verifies the MAC, returns false if the MAC is not yet fully read from a non-blocking channel */
+	private boolean verify() throws IOException
+	{
+		if(verified)
+		{
+			return true;
+		}
+
+		while(mac.hasRemaining())
+		{
+			int rd = channel.read(mac);
+			if(rd < 0)
+			{
+				throw new EOFException("premature EOF");
+			}
+			else if(rd == 0)
+			{
+				return false;
+			}
+		}
+
+		byte[] computed = new byte[XSalsaTools.MAC_LENGTH_BYTES];
+		engine.doFinal(computed, 0);
+
+		if(!MessageDigest.isEqual(computed, mac.array()))
+		{
+			throw new IOException("MAC mismatch");
+		}
+
+		verified = true;
+		return true;
+	}
+
+
+	public boolean isOpen()
+	{
+		return (engine != null) && channel.isOpen();
+	}
+
+
+	public void close() throws IOException
+	{
+		if(engine == null)
+		{
+			return;
+		}
+
+		Crypto.destroy(engine);
+		Crypto.destroy(key);
+
+		engine = null;
+		key = null;
+
+		CKit.close(channel);
+	}
+}
@@ -0,0 +1,184 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.bc.OutputLengthException;
+import goryachev.memsafecrypto.bc.XSalsa20Key;
+import goryachev.memsafecrypto.bc.XSalsa20Poly1305Engine;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Reusable XSalsa20Poly1305 encryption context, bound to one key.
+ * Produces the same output as XSalsaTools.encryptXSalsa20Poly1305(): the ciphertext followed by the MAC,
+ * without allocating memory per message.
+ * <p>
+ * The detached mode encrypts the data in place and writes the MAC to a separate location,
+ * optionally authenticating the associated data, see XSalsa20Poly1305Context.
+ * <p>
+ * Usage:
+ * <pre>
+ * try(XSalsa20Poly1305Sealer s = new XSalsa20Poly1305Sealer(key))
+ * {
+ *     for(...)
+ *     {
+ *         s.seal(nonce, 0, data, 0, len, out, 0);
+ *     }
+ * }
+ * </pre>
+ * This class is not synchronized and is expected to be confined to a single thread,
+ * see forThread().
+ */
+public final class XSalsa20Poly1305Sealer
+	extends XSalsa20Poly1305Context
+{
+	private static final ThreadLocal<XSalsa20Poly1305Sealer> cache = new ThreadLocal<>();
+
+
+	/** creates a context bound to the specified key, which is not destroyed when the context is closed */
+	public XSalsa20Poly1305Sealer(XSalsa20Key key)
+	{
+		super(true, key);
+	}
+
+
+	/** creates a context with a prepared copy of the specified 256 bit key */
+	public XSalsa20Poly1305Sealer(CByteArray key)
+	{
+		super(true, key);
+	}
+
+
+	/**
+	 * Returns the context cached for the current thread, bound to the specified key.
+	 * The context must not be passed to other threads.  Closing it zeroes the scratch memory,
+	 * and the next call creates a new context.
+	 */
+	public static XSalsa20Poly1305Sealer forThread(XSalsa20Key key)
+	{
+		XSalsa20Poly1305Sealer s = cache.get();
+		if((s == null) || s.isClosed())
+		{
+			s = new XSalsa20Poly1305Sealer(key);
+			cache.set(s);
+		}
+		else
+		{
+			s.setKey(key);
+		}
+		return s;
+	}
+
+
+	/**
+	 * Encrypts the input and writes the ciphertext followed by the MAC, length + MAC_LENGTH_BYTES bytes in total,
+	 * to the output.  The input and the output may be the same array at the same offset.
+	 * @return the number of bytes written
+	 */
+	public int seal(CByteArray nonce, int nonceOffset, CByteArray input, int inputOffset, int inputLength, CByteArray out, int outOffset)
+	{
+		checkOutput(out, outOffset, inputLength + XSalsaTools.MAC_LENGTH_BYTES);
+		start(nonce, nonceOffset);
+		try
+		{
+			return seal(input, inputOffset, inputLength, out, outOffset);
+		}
+		finally
+		{
+			finish();
+		}
+	}
+
+
+	/**
+	 * Encrypts the input and writes the ciphertext followed by the MAC, length + MAC_LENGTH_BYTES bytes in total,
+	 * to the output.  The input and the output may be the same array at the same offset.
+	 * @return the number of bytes written
+	 */
+	public int seal(byte[] nonce, int nonceOffset, CByteArray input, int inputOffset, int inputLength, CByteArray out, int outOffset)
+	{
+		checkOutput(out, outOffset, inputLength + XSalsaTools.MAC_LENGTH_BYTES);
+		start(nonce, nonceOffset);
+		try
+		{
+			return seal(input, inputOffset, inputLength, out, outOffset);
+		}
+		finally
+		{
+			finish();
+		}
+	}
+
+
+	protected void initAadMac()
+	{
+		((XSalsa20Poly1305Engine)engine).rekeyMac();
+	}
+
+
+	private int seal(CByteArray input, int inputOffset, int inputLength, CByteArray out, int outOffset)
+	{
+		// the fused engine also computes the MAC
+		engine.processBytes(input, inputOffset, inputLength, out, outOffset);
+		finishMac(0, inputLength, out, outOffset + inputLength);
+		return inputLength + XSalsaTools.MAC_LENGTH_BYTES;
+	}
+
+
+	/**
+	 * Encrypts the data in place, and writes the MAC over the associated data and the ciphertext
+	 * to the tag array (detached mode).
+	 * @param aad the associated data, or null
+	 */
+	public void sealDetached(CByteArray nonce, int nonceOffset, CByteArray aad, int aadOffset, int aadLength, CByteArray data, int offset, int length, CByteArray tag, int tagOffset)
+	{
+		if(aad == null)
+		{
+			aadLength = 0;
+		}
+		checkOutput(tag, tagOffset, XSalsaTools.MAC_LENGTH_BYTES);
+		start(nonce, nonceOffset);
+		try
+		{
+			updateAad(aad, aadOffset, aadLength);
+			engine.processBytes(data, offset, length, data, offset);
+			finishMac(aadLength, length, tag, tagOffset);
+		}
+		finally
+		{
+			finish();
+		}
+	}
+
+
+	/**
+	 * Encrypts the remaining bytes of the data buffer in place, and puts the MAC over the associated data
+	 * and the ciphertext into the tag buffer (detached mode).
+	 * The positions of all the buffers are advanced past the processed bytes.
+	 * The buffers can be direct or heap, of any byte order.
+	 * @param aad the associated data, or null
+	 */
+	public void sealDetached(CByteArray nonce, int nonceOffset, ByteBuffer aad, ByteBuffer data, ByteBuffer tag)
+	{
+		if(tag.remaining() < XSalsaTools.MAC_LENGTH_BYTES)
+		{
+			throw new OutputLengthException("tag buffer too short");
+		}
+
+		start(nonce, nonceOffset);
+		try
+		{
+			int aadLength = updateAad(aad);
+			int length = engine.processBytes(data, data);
+			finishMac(aadLength, length, mac, 0);
+
+			for(int i=0; i<XSalsaTools.MAC_LENGTH_BYTES; i++)
+			{
+				tag.put(mac.get(i));
+			}
+		}
+		finally
+		{
+			finish();
+		}
+	}
+}
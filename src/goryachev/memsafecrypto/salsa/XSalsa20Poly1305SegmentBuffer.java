@@ -0,0 +1,129 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.Crypto;
+import goryachev.memsafecrypto.bc.XSalsa20Key;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+
+/**
+ * A segment of the segmented XSalsa20Poly1305 format (see XSalsa20Poly1305Segments) in flight
+ * in a pipeline: the data followed by the MAC, sealed or opened in place by a worker thread
+ * with the context cached for that thread.
+ */
+final class XSalsa20Poly1305SegmentBuffer
+{
+	final CByteArray data;
+	private final CByteArray nonce;
+	/** the number of data bytes, excluding the MAC */
+	int length;
+	long index;
+	boolean last;
+
+
+	public XSalsa20Poly1305SegmentBuffer(int segmentSize)
+	{
+		data = new CByteArray(segmentSize + XSalsaTools.MAC_LENGTH_BYTES);
+		nonce = new CByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+	}
+
+
+	/** encrypts the data in place and appends the MAC */
+	public XSalsa20Poly1305SegmentBuffer seal(XSalsa20Key key, CByteArray header)
+	{
+		XSalsa20Poly1305Segments.segmentNonce(header, index, last, nonce);
+		XSalsa20Poly1305Sealer s = XSalsa20Poly1305Sealer.forThread(key);
+		s.sealDetached(nonce, 0, header, 0, header.length(), data, 0, length, data, length);
+		return this;
+	}
+
+
+	/** verifies the MAC and decrypts the data in place */
+	public XSalsa20Poly1305SegmentBuffer open(XSalsa20Key key, CByteArray header) throws IOException
+	{
+		XSalsa20Poly1305Segments.segmentNonce(header, index, last, nonce);
+		XSalsa20Poly1305Opener s = XSalsa20Poly1305Opener.forThread(key);
+		try
+		{
+			s.openDetached(nonce, 0, header, 0, header.length(), data, 0, length, data, length);
+		}
+		catch(Exception e)
+		{
+			throw new IOException("MAC mismatch in segment " + index);
+		}
+		return this;
+	}
+
+
+	/** 
+	 * waits for the worker to finish with the segment, rethrowing its failure as an IOException.
+	 * the interrupt status is kept when the wait is interrupted.
+	 */
+	static XSalsa20Poly1305SegmentBuffer take(Future<XSalsa20Poly1305SegmentBuffer> f) throws IOException
+	{
+		try
+		{
+			return f.get();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		catch(ExecutionException e)
+		{
+			Throwable err = e.getCause();
+			if(err instanceof IOException)
+			{
+				throw (IOException)err;
+			}
+			throw new IOException(err);
+		}
+	}
+
+
+	/** 
+	 * waits for the workers to finish with the segments, ignoring their failures, before the buffers are destroyed.
+	 * the wait is not interrupted, the interrupt status of the current thread is restored afterwards.
+	 */
+	static void awaitAll(Collection<Future<XSalsa20Poly1305SegmentBuffer>> fs)
+	{
+		boolean interrupted = false;
+		for(Future<XSalsa20Poly1305SegmentBuffer> f: fs)
+		{
+			for(;;)
+			{
+				try
+				{
+					f.get();
+					break;
+				}
+				catch(InterruptedException e)
+				{
+					interrupted = true;
+				}
+				catch(ExecutionException | CancellationException ignore)
+				{
+					break;
+				}
+			}
+		}
+
+		if(interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	public void destroy()
+	{
+		Crypto.destroy(data);
+		Crypto.destroy(nonce);
+	}
+}
@@ -0,0 +1,228 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.common.util.CKit;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.Crypto;
+import goryachev.memsafecrypto.bc.XSalsa20Key;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+
+/**
+ * Random access reader of a file in the segmented XSalsa20Poly1305 format, see XSalsa20Poly1305Segments.
+ * Only the segments which contain the requested data are read, verified and decrypted.
+ * The most recently decrypted segment is kept, so that sequential small reads do not decrypt it again.
+ * This implementation is not synchronized.
+ */
+public class XSalsa20Poly1305SegmentedFile
+	implements Closeable
+{
+	private final RandomAccessFile raf;
+	private XSalsa20Poly1305Opener opener;
+	private CByteArray header;
+	private CByteArray nonce;
+	private CByteArray segment;
+	private byte[] buf;
+	private final int segmentSize;
+	private final long segmentCount;
+	private final long length;
+	/** index of the decrypted segment in the buffer, or -1 */
+	private long current = -1;
+
+
+	/** Opens the file with the prepared key, which is not destroyed when the file is closed. */
+	public XSalsa20Poly1305SegmentedFile(File file, XSalsa20Key key) throws IOException
+	{
+		this(file, new XSalsa20Poly1305Opener(key));
+	}
+
+
+	/** Opens the file with a 256 bit key. */
+	public XSalsa20Poly1305SegmentedFile(File file, CByteArray key) throws IOException
+	{
+		this(file, new XSalsa20Poly1305Opener(key));
+	}
+
+
+	private XSalsa20Poly1305SegmentedFile(File file, XSalsa20Poly1305Opener opener) throws IOException
+	{
+		this.opener = opener;
+		this.raf = openFile(file, opener);
+
+		try
+		{
+			byte[] b = new byte[XSalsa20Poly1305Segments.HEADER_LENGTH];
+			raf.readFully(b);
+
+			header = XSalsa20Poly1305Segments.parseHeader(b);
+			segmentSize = XSalsa20Poly1305Segments.getSegmentSize(header);
+			long len = raf.length();
+			segmentCount = XSalsa20Poly1305Segments.getSegmentCount(len, segmentSize);
+			length = XSalsa20Poly1305Segments.getPlaintextLength(len, segmentSize);
+
+			nonce = new CByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+			segment = new CByteArray(segmentSize + XSalsaTools.MAC_LENGTH_BYTES);
+			buf = new byte[segmentSize + XSalsaTools.MAC_LENGTH_BYTES];
+		}
+		catch(Throwable e)
+		{
+			close();
+			throw e;
+		}
+	}
+
+
+	private static RandomAccessFile openFile(File file, XSalsa20Poly1305Opener opener) throws IOException
+	{
+		try
+		{
+			return new RandomAccessFile(file, "r");
+		}
+		catch(IOException e)
+		{
+			opener.close();
+			throw e;
+		}
+	}
+
+
+	/** returns the length of the plaintext */
+	public long length()
+	{
+		return length;
+	}
+
+
+	/**
+	 * Reads up to len bytes of the plaintext at the specified position, within one segment.
+	 * @return the number of bytes read, or -1 at the end of the file
+	 */
+	public int read(long position, byte[] b, int off, int len) throws IOException
+	{
+		int sz = prepare(position, len);
+		if(sz > 0)
+		{
+			segment.copyTo((int)(position % segmentSize), b, off, sz);
+		}
+		return sz;
+	}
+
+
+	/**
+	 * Reads up to len bytes of the plaintext at the specified position into the output array, within one segment.
+	 * @return the number of bytes read, or -1 at the end of the file
+	 */
+	public int read(long position, CByteArray out, int off, int len) throws IOException
+	{
+		int sz = prepare(position, len);
+		if(sz > 0)
+		{
+			out.copyFrom(segment, (int)(position % segmentSize), sz, off);
+		}
+		return sz;
+	}
+
+
+	/** reads exactly len bytes of the plaintext at the specified position */
+	public void readFully(long position, byte[] b, int off, int len) throws IOException
+	{
+		while(len > 0)
+		{
+			int rd = read(position, b, off, len);
+			if(rd < 0)
+			{
+				throw new EOFException("premature EOF");
+			}
+			position += rd;
+			off += rd;
+			len -= rd;
+		}
+	}
+
+
+	/** reads exactly len bytes of the plaintext at the specified position into the output array */
+	public void readFully(long position, CByteArray out, int off, int len) throws IOException
+	{
+		while(len > 0)
+		{
+			int rd = read(position, out, off, len);
+			if(rd < 0)
+			{
+				throw new EOFException("premature EOF");
+			}
+			position += rd;
+			off += rd;
+			len -= rd;
+		}
+	}
+
+
+	/** decrypts the segment containing the specified position, returns the number of bytes available there, or -1 */
+	private int prepare(long position, int len) throws IOException
+	{
+		if(opener == null)
+		{
+			throw new IOException("file closed");
+		}
+		else if(position < 0)
+		{
+			throw new IllegalArgumentException("negative position: " + position);
+		}
+		else if(position >= length)
+		{
+			return (len == 0) ? 0 : -1;
+		}
+
+		long ix = position / segmentSize;
+		if(ix != current)
+		{
+			loadSegment(ix);
+		}
+
+		long end = Math.min(length, (ix + 1) * segmentSize);
+		return (int)Math.min(len, end - position);
+	}
+
+
+	private void loadSegment(long ix) throws IOException
+	{
+		current = -1;
+
+		boolean last = (ix == segmentCount - 1);
+		int dataLength = last ? (int)(length - ix * segmentSize) : segmentSize;
+		int len = dataLength + XSalsaTools.MAC_LENGTH_BYTES;
+
+		raf.seek(XSalsa20Poly1305Segments.HEADER_LENGTH + ix * (segmentSize + XSalsaTools.MAC_LENGTH_BYTES));
+		raf.readFully(buf, 0, len);
+		segment.copyFrom(buf, 0, len, 0);
+
+		XSalsa20Poly1305Segments.segmentNonce(header, ix, last, nonce);
+		try
+		{
+			opener.openDetached(nonce, 0, header, 0, header.length(), segment, 0, dataLength, segment, dataLength);
+		}
+		catch(Exception e)
+		{
+			throw new IOException("MAC mismatch in segment " + ix);
+		}
+
+		current = ix;
+	}
+
+
+	public void close() throws IOException
+	{
+		Crypto.destroy(opener);
+		Crypto.destroy(header);
+		Crypto.destroy(nonce);
+		Crypto.destroy(segment);
+		Crypto.zero(buf);
+		CKit.close(raf);
+
+		opener = null;
+		current = -1;
+	}
+}
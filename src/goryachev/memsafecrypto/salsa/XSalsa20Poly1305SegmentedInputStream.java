@@ -0,0 +1,217 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.common.util.CKit;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.Crypto;
+import goryachev.memsafecrypto.bc.XSalsa20Key;
+import goryachev.memsafecrypto.util.CUtils;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Decrypting Stream reading the segmented XSalsa20Poly1305 format, see XSalsa20Poly1305Segments.
+ * Each segment is verified before any of its data is returned, and the length of the input
+ * need not be known in advance: the stream reads one byte ahead to detect the last segment.
+ * This class is not synchronized.
+ */
+public class XSalsa20Poly1305SegmentedInputStream
+	extends InputStream
+{
+	private XSalsa20Poly1305Opener opener;
+	private InputStream in;
+	private CByteArray header;
+	private CByteArray nonce;
+	private CByteArray segment;
+	private byte[] buf;
+	private int segmentSize;
+	private long index;
+	private int position;
+	private int available;
+	/** the byte read ahead, or -1 */
+	private int next = -1;
+	private boolean done;
+	private IOException error;
+
+
+	/** Creates the stream with the prepared key, which is not destroyed when the stream is closed. */
+	public XSalsa20Poly1305SegmentedInputStream(XSalsa20Key key, InputStream in)
+	{
+		this.opener = new XSalsa20Poly1305Opener(key);
+		this.in = in;
+	}
+
+
+	/** Creates the stream with a 256 bit key. */
+	public XSalsa20Poly1305SegmentedInputStream(CByteArray key, InputStream in)
+	{
+		this.opener = new XSalsa20Poly1305Opener(key);
+		this.in = in;
+	}
+
+
+	public int read() throws IOException
+	{
+		if(available == 0)
+		{
+			load();
+
+			if(available == 0)
+			{
+				return -1;
+			}
+		}
+
+		available--;
+		return segment.get(position++) & 0xff;
+	}
+
+
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if(len == 0)
+		{
+			return 0;
+		}
+
+		if(available == 0)
+		{
+			load();
+
+			if(available == 0)
+			{
+				return -1;
+			}
+		}
+
+		int sz = Math.min(available, len);
+		CUtils.arraycopy(segment, position, b, off, sz);
+
+		position += sz;
+		available -= sz;
+		return sz;
+	}
+
+
+	public int available() throws IOException
+	{
+		return available;
+	}
+
+
+	/** reads, verifies and decrypts the next segment */
+	protected void load() throws IOException
+	{
+		if(in == null)
+		{
+			throw new IOException("stream closed");
+		}
+		else if(error != null)
+		{
+			// do not continue past a segment which failed to verify
+			throw error;
+		}
+
+		if(header == null)
+		{
+			readHeader();
+		}
+
+		// there are no empty segments except possibly the last one
+		while((available == 0) && !done)
+		{
+			int full = segmentSize + XSalsaTools.MAC_LENGTH_BYTES;
+			int len = 0;
+			if(next >= 0)
+			{
+				buf[len++] = (byte)next;
+				next = -1;
+			}
+			len += readAll(buf, len, full - len);
+
+			boolean last;
+			if(len == full)
+			{
+				next = in.read();
+				last = (next < 0);
+			}
+			else
+			{
+				last = true;
+			}
+
+			if(len < XSalsaTools.MAC_LENGTH_BYTES)
+			{
+				throw new EOFException("truncated segment " + index);
+			}
+
+			int dataLength = len - XSalsaTools.MAC_LENGTH_BYTES;
+			segment.copyFrom(buf, 0, len, 0);
+
+			XSalsa20Poly1305Segments.segmentNonce(header, index, last, nonce);
+			try
+			{
+				opener.openDetached(nonce, 0, header, 0, header.length(), segment, 0, dataLength, segment, dataLength);
+			}
+			catch(Exception e)
+			{
+				error = new IOException("MAC mismatch in segment " + index);
+				throw error;
+			}
+
+			index++;
+			position = 0;
+			available = dataLength;
+			done = last;
+		}
+	}
+
+
+	private void readHeader() throws IOException
+	{
+		byte[] b = new byte[XSalsa20Poly1305Segments.HEADER_LENGTH];
+		if(readAll(b, 0, b.length) < b.length)
+		{
+			throw new EOFException("truncated header");
+		}
+
+		header = XSalsa20Poly1305Segments.parseHeader(b);
+		segmentSize = XSalsa20Poly1305Segments.getSegmentSize(header);
+		nonce = new CByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+		segment = new CByteArray(segmentSize + XSalsaTools.MAC_LENGTH_BYTES);
+		buf = new byte[segmentSize + XSalsaTools.MAC_LENGTH_BYTES];
+	}
+
+
+	/** reads until the buffer is filled or the end of the input is reached, returns the number of bytes read */
+	private int readAll(byte[] b, int off, int len) throws IOException
+	{
+		int total = 0;
+		while(total < len)
+		{
+			int rd = in.read(b, off + total, len - total);
+			if(rd < 0)
+			{
+				break;
+			}
+			total += rd;
+		}
+		return total;
+	}
+
+
+	public void close() throws IOException
+	{
+		Crypto.destroy(opener);
+		Crypto.destroy(header);
+		Crypto.destroy(nonce);
+		Crypto.destroy(segment);
+		Crypto.zero(buf);
+		CKit.close(in);
+
+		opener = null;
+		in = null;
+		available = 0;
+	}
+}
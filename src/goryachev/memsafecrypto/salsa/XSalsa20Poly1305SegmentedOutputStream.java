@@ -0,0 +1,164 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.common.util.CKit;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.Crypto;
+import goryachev.memsafecrypto.bc.XSalsa20Key;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Encrypting Stream producing the segmented XSalsa20Poly1305 format, see XSalsa20Poly1305Segments.
+ * A segment is sealed once it is full and more data is written, or when the stream is closed,
+ * so the data is not written to the underlying stream until then.
+ * This class is not synchronized.
+ */
+public class XSalsa20Poly1305SegmentedOutputStream
+	extends OutputStream
+{
+	private final int segmentSize;
+	private XSalsa20Poly1305Sealer sealer;
+	private OutputStream os;
+	private CByteArray header;
+	private CByteArray nonce;
+	private CByteArray segment;
+	private byte[] out;
+	private int count;
+	private long index;
+
+
+	/**
+	 * Creates the stream with the prepared key, which is not destroyed when the stream is closed.
+	 * The nonce must never be reused with the same key.
+	 */
+	public XSalsa20Poly1305SegmentedOutputStream(XSalsa20Key key, CByteArray nonce, int segmentSize, OutputStream os) throws IOException
+	{
+		this(new XSalsa20Poly1305Sealer(key), nonce, segmentSize, os);
+	}
+
+
+	/**
+	 * Creates the stream with a 256 bit key, using the default segment size.
+	 * The nonce must never be reused with the same key.
+	 */
+	public XSalsa20Poly1305SegmentedOutputStream(CByteArray key, CByteArray nonce, OutputStream os) throws IOException
+	{
+		this(new XSalsa20Poly1305Sealer(key), nonce, XSalsa20Poly1305Segments.DEFAULT_SEGMENT_SIZE, os);
+	}
+
+
+	private XSalsa20Poly1305SegmentedOutputStream(XSalsa20Poly1305Sealer sealer, CByteArray nonce, int segmentSize, OutputStream os) throws IOException
+	{
+		this.sealer = sealer;
+		this.os = os;
+		this.segmentSize = segmentSize;
+
+		try
+		{
+			header = XSalsa20Poly1305Segments.createHeader(segmentSize, nonce);
+			this.nonce = new CByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+			segment = new CByteArray(segmentSize + XSalsaTools.MAC_LENGTH_BYTES);
+			out = new byte[segmentSize + XSalsaTools.MAC_LENGTH_BYTES];
+
+			// the header is not secret
+			os.write(header.toByteArray());
+		}
+		catch(Throwable e)
+		{
+			destroy();
+			throw e;
+		}
+	}
+
+
+	public void write(int b) throws IOException
+	{
+		if(count == segmentSize)
+		{
+			writeSegment(false);
+		}
+
+		segment.set(count++, (byte)b);
+	}
+
+
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		while(len > 0)
+		{
+			if(count == segmentSize)
+			{
+				writeSegment(false);
+			}
+
+			int sz = Math.min(len, segmentSize - count);
+			segment.copyFrom(b, off, sz, count);
+
+			count += sz;
+			off += sz;
+			len -= sz;
+		}
+	}
+
+
+	/** seals the buffered segment in place and writes it out */
+	private void writeSegment(boolean last) throws IOException
+	{
+		XSalsa20Poly1305Segments.segmentNonce(header, index, last, nonce);
+		sealer.sealDetached(nonce, 0, header, 0, header.length(), segment, 0, count, segment, count);
+
+		int len = count + XSalsaTools.MAC_LENGTH_BYTES;
+		segment.copyTo(0, out, 0, len);
+		os.write(out, 0, len);
+
+		index++;
+		count = 0;
+	}
+
+
+	/** flushes the underlying stream: the buffered data is written out only when the segment is complete */
+	public void flush() throws IOException
+	{
+		os.flush();
+	}
+
+
+	/** writes out the last segment, which may be empty, and closes the underlying stream */
+	public void close() throws IOException
+	{
+		if(os == null)
+		{
+			return;
+		}
+
+		try
+		{
+			writeSegment(true);
+		}
+		finally
+		{
+			try
+			{
+				CKit.close(os);
+			}
+			finally
+			{
+				destroy();
+			}
+		}
+	}
+
+
+	private void destroy()
+	{
+		Crypto.destroy(sealer);
+		Crypto.destroy(header);
+		Crypto.destroy(nonce);
+		Crypto.destroy(segment);
+		Crypto.zero(out);
+
+		sealer = null;
+		os = null;
+	}
+}
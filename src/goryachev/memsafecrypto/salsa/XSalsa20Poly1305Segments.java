@@ -0,0 +1,149 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.memsafecrypto.CByteArray;
+import java.io.IOException;
+
+
+/**
+ * Segmented XSalsa20Poly1305 format, in the style of the STREAM construction
+ * (Hoang, Reyhanitabar, Rogaway, Vizár: Online Authenticated-Encryption and its Nonce-Reuse Misuse-Resistance).
+ * <p>
+ * The plaintext is split into fixed size segments, each sealed separately, so that any segment can be
+ * decrypted and verified on its own, and no plaintext is released before its MAC is checked.
+ * <pre>
+ * header:  magic "XSS1" (4 bytes), segment size (4 bytes, big endian), base nonce (24 bytes)
+ * segment: ciphertext (segment size bytes, the last segment may be shorter or empty), MAC (16 bytes)
+ * </pre>
+ * Each segment is encrypted with the nonce derived from the base nonce by XOR-ing its last 9 bytes
+ * with the segment index (8 bytes, big endian) and the last segment flag (1 byte).  The header
+ * is authenticated as the associated data of every segment.  The flag makes truncation at a segment
+ * boundary detectable, the index makes reordering detectable.
+ * <p>
+ * The file always contains at least one (possibly empty) segment, and only the last segment may be shorter
+ * than the segment size, so the number of segments and the plaintext length follow from the file length.
+ */
+public final class XSalsa20Poly1305Segments
+{
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+	public static final int MIN_SEGMENT_SIZE = 16;
+	public static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+	public static final int HEADER_LENGTH = 4 + 4 + XSalsaTools.NONCE_LENGTH_BYTES;
+	private static final byte[] MAGIC = { 'X', 'S', 'S', '1' };
+	private static final int NONCE_OFFSET = 8;
+
+
+	private XSalsa20Poly1305Segments()
+	{
+	}
+
+
+	/** returns the total length of the encrypted file including the header, for the given plaintext length */
+	public static long getEncryptedLength(long plaintextLength, int segmentSize)
+	{
+		checkSegmentSize(segmentSize);
+		long segments = Math.max(1, (plaintextLength + segmentSize - 1) / segmentSize);
+		return HEADER_LENGTH + plaintextLength + segments * XSalsaTools.MAC_LENGTH_BYTES;
+	}
+
+
+	/** returns the plaintext length, given the total length of the encrypted file including the header */
+	public static long getPlaintextLength(long encryptedLength, int segmentSize) throws IOException
+	{
+		long segments = getSegmentCount(encryptedLength, segmentSize);
+		return encryptedLength - HEADER_LENGTH - segments * XSalsaTools.MAC_LENGTH_BYTES;
+	}
+
+
+	/** returns the number of segments, given the total length of the encrypted file including the header */
+	public static long getSegmentCount(long encryptedLength, int segmentSize) throws IOException
+	{
+		checkSegmentSize(segmentSize);
+		long len = encryptedLength - HEADER_LENGTH;
+		if(len < XSalsaTools.MAC_LENGTH_BYTES)
+		{
+			throw new IOException("truncated file");
+		}
+
+		long full = segmentSize + XSalsaTools.MAC_LENGTH_BYTES;
+		long segments = (len + full - 1) / full;
+		if(len - (segments - 1) * full < XSalsaTools.MAC_LENGTH_BYTES)
+		{
+			// the last segment is too short to contain a MAC
+			throw new IOException("truncated segment");
+		}
+		return segments;
+	}
+
+
+	static void checkSegmentSize(int segmentSize)
+	{
+		if((segmentSize < MIN_SEGMENT_SIZE) || (segmentSize > MAX_SEGMENT_SIZE))
+		{
+			throw new IllegalArgumentException("segment size must be between " + MIN_SEGMENT_SIZE + " and " + MAX_SEGMENT_SIZE + ": " + segmentSize);
+		}
+	}
+
+
+	/** creates the header */
+	static CByteArray createHeader(int segmentSize, CByteArray nonce)
+	{
+		checkSegmentSize(segmentSize);
+		if(nonce.length() != XSalsaTools.NONCE_LENGTH_BYTES)
+		{
+			throw new IllegalArgumentException("nonce must be " + XSalsaTools.NONCE_LENGTH_BYTES * 8 + " bits");
+		}
+
+		CByteArray h = new CByteArray(HEADER_LENGTH);
+		h.copyFrom(MAGIC, 0, MAGIC.length, 0);
+		h.setInt(4, segmentSize);
+		h.copyFrom(nonce, 0, XSalsaTools.NONCE_LENGTH_BYTES, NONCE_OFFSET);
+		return h;
+	}
+
+
+	/** creates the header from the bytes read from a file, checking the magic and the segment size */
+	static CByteArray parseHeader(byte[] b) throws IOException
+	{
+		for(int i=0; i<MAGIC.length; i++)
+		{
+			if(b[i] != MAGIC[i])
+			{
+				throw new IOException("not a segmented XSalsa20Poly1305 file");
+			}
+		}
+
+		CByteArray h = new CByteArray(HEADER_LENGTH);
+		h.copyFrom(b, 0, HEADER_LENGTH, 0);
+
+		try
+		{
+			checkSegmentSize(getSegmentSize(h));
+		}
+		catch(IllegalArgumentException e)
+		{
+			h.destroy();
+			throw new IOException(e.getMessage());
+		}
+		return h;
+	}
+
+
+	static int getSegmentSize(CByteArray header)
+	{
+		return header.getInt(4);
+	}
+
+
+	/** writes the nonce for the specified segment to out (24 bytes) */
+	static void segmentNonce(CByteArray header, long index, boolean last, CByteArray out)
+	{
+		out.copyFrom(header, NONCE_OFFSET, XSalsaTools.NONCE_LENGTH_BYTES, 0);
+
+		int off = XSalsaTools.NONCE_LENGTH_BYTES - 9;
+		out.setLong(off, out.getLong(off) ^ index);
+		if(last)
+		{
+			out.xor(off + 8, (byte)1);
+		}
+	}
+}
@@ -0,0 +1,222 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.common.util.CKit;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.Crypto;
+import goryachev.memsafecrypto.bc.Salsa20Engine;
+import goryachev.memsafecrypto.bc.XSalsa20Key;
+import goryachev.memsafecrypto.bc.XSalsa20Poly1305Engine;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * Encrypting WritableByteChannel Based on XSalsa20/Poly1305 Scheme, the counterpart of XSalsa20Poly1305EncryptStream:
+ * the output is the ciphertext followed by the 16-byte MAC, which is written when the channel is closed.
+ * <p>
+ * The data is encrypted into a direct buffer of the specified size and written to the underlying channel,
+ * for example a FileChannel or a SocketChannel, so the caller's buffers are not modified and no heap copies
+ * of the plaintext or the ciphertext are made.  The gathering write fills the buffer from multiple sources.
+ * <p>
+ * With a non-blocking channel, a write may consume fewer bytes than available, including none,
+ * while the ciphertext produced earlier is pending.  The close() method blocks until all the pending
+ * ciphertext and the MAC are written, waiting on a temporary Selector for a non-blocking SelectableChannel
+ * to become writable.  Any other channel must be blocking, that is, must never accept zero bytes.
+ * <p>
+ * This implementation is not synchronized.
+ */
+public class XSalsa20Poly1305WritableChannel
+	implements GatheringByteChannel
+{
+	public static final int DEFAULT_BUFFER_SIZE = 65536;
+	private final WritableByteChannel channel;
+	private XSalsa20Key key;
+	private XSalsa20Poly1305Engine engine;
+	/** the pending ciphertext, between position and limit */
+	private ByteBuffer buffer;
+
+
+	public XSalsa20Poly1305WritableChannel(CByteArray key, CByteArray nonce, WritableByteChannel channel, int bufferSize)
+	{
+		if(key.length() != XSalsaTools.KEY_LENGTH_BYTES)
+		{
+			throw new IllegalArgumentException("key must be " + XSalsaTools.KEY_LENGTH_BYTES * 8 + " bits");
+		}
+		else if(bufferSize < XSalsaTools.MAC_LENGTH_BYTES)
+		{
+			throw new IllegalArgumentException("bufferSize is too small: " + bufferSize);
+		}
+
+		this.channel = channel;
+		this.key = new XSalsa20Key(key);
+		this.engine = new XSalsa20Poly1305Engine(Salsa20Engine.WIDE_BLOCKS, null);
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+		buffer.limit(0);
+
+		engine.init(true, this.key, nonce, 0);
+	}
+
+
+	public XSalsa20Poly1305WritableChannel(CByteArray key, CByteArray nonce, WritableByteChannel channel)
+	{
+		this(key, nonce, channel, DEFAULT_BUFFER_SIZE);
+	}
+
+
+	/** writes the pending ciphertext, returns true if nothing remains pending */
+	private boolean flushBuffer() throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			if(channel.write(buffer) == 0)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/** writes all the pending ciphertext, waiting for a non-blocking channel to become writable */
+	private void drainBuffer() throws IOException
+	{
+		if(flushBuffer())
+		{
+			return;
+		}
+
+		if(!(channel instanceof SelectableChannel))
+		{
+			throw new IOException("the channel accepts no data, close() requires a blocking or a selectable channel");
+		}
+
+		try(Selector selector = Selector.open())
+		{
+			((SelectableChannel)channel).register(selector, SelectionKey.OP_WRITE);
+			while(!flushBuffer())
+			{
+				if(Thread.currentThread().isInterrupted())
+				{
+					throw new InterruptedIOException();
+				}
+				selector.select();
+			}
+		}
+	}
+
+
+	public int write(ByteBuffer src) throws IOException
+	{
+		return (int)write(new ByteBuffer[] { src }, 0, 1);
+	}
+
+
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		if(engine == null)
+		{
+			throw new ClosedChannelException();
+		}
+
+		long total = 0;
+		int ix = offset;
+		int end = offset + length;
+		while(flushBuffer())
+		{
+			// encrypt the next portion of the input into the buffer
+			buffer.clear();
+			for(; (ix < end) && buffer.hasRemaining(); ix++)
+			{
+				ByteBuffer src = srcs[ix];
+				int sz = Math.min(src.remaining(), buffer.remaining());
+				if(sz > 0)
+				{
+					int lim = src.limit();
+					src.limit(src.position() + sz);
+					try
+					{
+						engine.processBytes(src, buffer);
+					}
+					finally
+					{
+						src.limit(lim);
+					}
+					total += sz;
+				}
+
+				if(src.hasRemaining())
+				{
+					break;
+				}
+			}
+			buffer.flip();
+
+			if(!buffer.hasRemaining())
+			{
+				break;
+			}
+		}
+		return total;
+	}
+
+
+	public long write(ByteBuffer[] srcs) throws IOException
+	{
+		return write(srcs, 0, srcs.length);
+	}
+
+
+	public boolean isOpen()
+	{
+		return (engine != null) && channel.isOpen();
+	}
+
+
+	/** writes the pending ciphertext and the MAC, and closes the underlying channel */
+	public void close() throws IOException
+	{
+		if(engine == null)
+		{
+			return;
+		}
+
+		try
+		{
+			drainBuffer();
+
+			buffer.clear();
+			CByteArray mac = new CByteArray(XSalsaTools.MAC_LENGTH_BYTES);
+			try
+			{
+				engine.doFinal(mac, 0);
+				mac.copyTo(0, buffer, XSalsaTools.MAC_LENGTH_BYTES);
+			}
+			finally
+			{
+				mac.destroy();
+			}
+			buffer.flip();
+
+			drainBuffer();
+		}
+		finally
+		{
+			Crypto.destroy(engine);
+			Crypto.destroy(key);
+			Crypto.zero(buffer);
+
+			engine = null;
+			key = null;
+			buffer = null;
+
+			CKit.close(channel);
+		}
+	}
+}
@@ -0,0 +1,398 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.common.util.CKit;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.Crypto;
+import goryachev.memsafecrypto.bc.XSalsa20Engine;
+import goryachev.memsafecrypto.util.MemoryBackend;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+
+/**
+ * Asynchronous counterpart of XSalsaRandomAccessFile, built on AsynchronousFileChannel.
+ * <p>
+ * The positional reads and writes return CompletableFutures and do not block the calling thread.
+ * The data read is decrypted in place in the caller's buffer upon completion, in the specified executor.
+ * The data to be written is encrypted in the executor, in chunks, into a direct buffer taken from a small pool
+ * owned by this instance, so the caller's buffer is not modified, and the memory used does not depend on the size
+ * of the data.  The pooled buffers are released when the file is closed.  Each operation uses its own engine, initialized from the key schedule shared by all
+ * the operations (see XSalsaEnginePool), so any number of operations may be in flight concurrently.
+ * <p>
+ * The caller's buffers must not be accessed until the corresponding future completes.
+ * This class is thread-safe.
+ */
+public class XSalsaAsyncFile
+	implements Closeable
+{
+	protected static final int BUFFER_LENGTH = 65536;
+	protected static final int MAX_POOLED_BUFFERS = 8;
+	private final AsynchronousFileChannel channel;
+	private final Executor executor;
+	private final XSalsaEnginePool engines;
+	private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+	private boolean closed;
+
+
+	/**
+	 * Opens the file.
+	 * @param executor the executor which decrypts and encrypts the data
+	 */
+	public XSalsaAsyncFile(Path file, boolean forWriting, CByteArray key, CByteArray iv, Executor executor) throws IOException
+	{
+		this.channel = forWriting ?
+			AsynchronousFileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE) :
+			AsynchronousFileChannel.open(file, StandardOpenOption.READ);
+		this.executor = executor;
+		this.engines = new XSalsaEnginePool(key, iv);
+	}
+
+
+	/** Opens the file, using the shared pool of XSalsaParallel to decrypt and encrypt the data. */
+	public XSalsaAsyncFile(Path file, boolean forWriting, CByteArray key, CByteArray iv) throws IOException
+	{
+		this(file, forWriting, key, iv, XSalsaParallel.pool());
+	}
+
+
+	/**
+	 * Reads a sequence of bytes starting at the specified file position into the buffer, and decrypts it.
+	 * The future returns the number of bytes read, possibly less than requested, or -1 if the position
+	 * is at or past the end of file.
+	 */
+	public CompletableFuture<Integer> read(long position, ByteBuffer dst)
+	{
+		CompletableFuture<Integer> f = new CompletableFuture<>();
+		int start = dst.position();
+
+		channel.read(dst, position, null, new CompletionHandler<Integer,Object>()
+		{
+			public void completed(Integer rd, Object attachment)
+			{
+				if(rd <= 0)
+				{
+					f.complete(rd);
+					return;
+				}
+
+				run(f, () ->
+				{
+					decrypt(position, dst, start, rd);
+					f.complete(rd);
+				});
+			}
+
+
+			public void failed(Throwable err, Object attachment)
+			{
+				f.completeExceptionally(err);
+			}
+		});
+		return f;
+	}
+
+
+	/**
+	 * Reads the bytes starting at the specified file position until the buffer is full, and decrypts them.
+	 * The future returns the number of bytes read, or fails with an EOFException if the end of file
+	 * is reached first.
+	 */
+	public CompletableFuture<Integer> readFully(long position, ByteBuffer dst)
+	{
+		CompletableFuture<Integer> f = new CompletableFuture<>();
+		int start = dst.position();
+
+		channel.read(dst, position, null, new CompletionHandler<Integer,Object>()
+		{
+			private int total;
+
+
+			public void completed(Integer rd, Object attachment)
+			{
+				if(rd < 0)
+				{
+					f.completeExceptionally(new EOFException("premature EOF"));
+					return;
+				}
+
+				total += rd;
+				if(dst.hasRemaining())
+				{
+					channel.read(dst, position + total, null, this);
+					return;
+				}
+
+				run(f, () ->
+				{
+					decrypt(position, dst, start, total);
+					f.complete(total);
+				});
+			}
+
+
+			public void failed(Throwable err, Object attachment)
+			{
+				f.completeExceptionally(err);
+			}
+		});
+		return f;
+	}
+
+
+	/**
+	 * Encrypts the remaining bytes of the buffer and writes them starting at the specified file position.
+	 * The future returns the number of bytes written, which is always the number of bytes remaining in the buffer.
+	 * The data is encrypted and written in chunks of up to BUFFER_LENGTH bytes, using a pooled direct buffer.
+	 */
+	public CompletableFuture<Integer> write(long position, ByteBuffer src)
+	{
+		CompletableFuture<Integer> f = new CompletableFuture<>();
+		int len = src.remaining();
+		if(len == 0)
+		{
+			f.complete(0);
+			return f;
+		}
+
+		new Writer(f, position, src).next();
+		return f;
+	}
+
+
+	/** decrypts in place the specified number of bytes read into the buffer starting at the specified index */
+	private void decrypt(long position, ByteBuffer dst, int start, int length) throws IOException
+	{
+		ByteBuffer b = dst.duplicate();
+		b.position(start);
+		b.limit(start + length);
+
+		XSalsa20Engine e = engines.acquire(position);
+		try
+		{
+			e.processBytes(b, b.duplicate());
+		}
+		finally
+		{
+			engines.release(e);
+		}
+	}
+
+
+	/** runs the task in the executor, completing the future exceptionally if the task fails */
+	private void run(CompletableFuture<Integer> f, Task task)
+	{
+		try
+		{
+			executor.execute(() ->
+			{
+				try
+				{
+					task.run();
+				}
+				catch(Throwable e)
+				{
+					f.completeExceptionally(e);
+				}
+			});
+		}
+		catch(Throwable e)
+		{
+			f.completeExceptionally(e);
+		}
+	}
+
+
+	/** returns a zero-filled direct buffer of BUFFER_LENGTH bytes, from the pool if available */
+	private ByteBuffer acquireBuffer()
+	{
+		synchronized(buffers)
+		{
+			ByteBuffer b = buffers.poll();
+			if(b != null)
+			{
+				return b;
+			}
+		}
+		return MemoryBackend.get().allocate(BUFFER_LENGTH);
+	}
+
+
+	/** zeroes the buffer and returns it to the pool, or releases the memory if the pool is full or closed */
+	private void releaseBuffer(ByteBuffer b)
+	{
+		Crypto.zero(b);
+		synchronized(buffers)
+		{
+			if(!closed && (buffers.size() < MAX_POOLED_BUFFERS))
+			{
+				buffers.add(b);
+				return;
+			}
+		}
+		MemoryBackend.get().free(b);
+	}
+
+
+	public long size() throws IOException
+	{
+		return channel.size();
+	}
+
+
+	/** forces any updates to be written to the storage device */
+	public void force() throws IOException
+	{
+		channel.force(false);
+	}
+
+
+	/** closes the file, the operations in flight fail with an AsynchronousCloseException */
+	public void close() throws IOException
+	{
+		ArrayList<ByteBuffer> bs;
+		synchronized(buffers)
+		{
+			closed = true;
+			bs = new ArrayList<>(buffers);
+			buffers.clear();
+		}
+
+		for(ByteBuffer b: bs)
+		{
+			MemoryBackend.get().free(b);
+		}
+
+		engines.destroy();
+		CKit.close(channel);
+	}
+
+
+	//
+
+
+	@FunctionalInterface
+	private static interface Task
+	{
+		public void run() throws Exception;
+	}
+
+
+	//
+
+
+	/**
+	 * Encrypts and writes the data one chunk at a time: each chunk is encrypted in the executor,
+	 * then written by the channel, which upon completion schedules the next chunk.
+	 */
+	private class Writer
+		implements CompletionHandler<Integer,Object>
+	{
+		private final CompletableFuture<Integer> result;
+		private final long position;
+		private final ByteBuffer src;
+		private final ByteBuffer in;
+		private final int length;
+		private ByteBuffer buf;
+		private int written;
+
+
+		public Writer(CompletableFuture<Integer> result, long position, ByteBuffer src)
+		{
+			this.result = result;
+			this.position = position;
+			this.src = src;
+			this.in = src.duplicate();
+			this.length = src.remaining();
+		}
+
+
+		/** schedules the encryption of the next chunk */
+		public void next()
+		{
+			try
+			{
+				executor.execute(this::encrypt);
+			}
+			catch(Throwable e)
+			{
+				failed(e, null);
+			}
+		}
+
+
+		private void encrypt()
+		{
+			try
+			{
+				if(buf == null)
+				{
+					buf = acquireBuffer();
+				}
+
+				int n = Math.min(in.remaining(), buf.capacity());
+				ByteBuffer chunk = in.duplicate();
+				chunk.limit(chunk.position() + n);
+				buf.clear();
+
+				XSalsa20Engine e = engines.acquire(position + written);
+				try
+				{
+					e.processBytes(chunk, buf);
+				}
+				finally
+				{
+					engines.release(e);
+				}
+				in.position(in.position() + n);
+				buf.flip();
+
+				channel.write(buf, position + written, null, this);
+			}
+			catch(Throwable e)
+			{
+				failed(e, null);
+			}
+		}
+
+
+		public void completed(Integer wr, Object attachment)
+		{
+			written += wr;
+			if(buf.hasRemaining())
+			{
+				channel.write(buf, position + written, null, this);
+			}
+			else if(in.hasRemaining())
+			{
+				next();
+			}
+			else
+			{
+				releaseBuffer(buf);
+				src.position(src.position() + length);
+				result.complete(length);
+			}
+		}
+
+
+		public void failed(Throwable err, Object attachment)
+		{
+			if(buf != null)
+			{
+				releaseBuffer(buf);
+				buf = null;
+			}
+			result.completeExceptionally(err);
+		}
+	}
+}
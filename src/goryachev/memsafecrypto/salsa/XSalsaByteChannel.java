@@ -0,0 +1,279 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.common.util.CKit;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.Crypto;
+import goryachev.memsafecrypto.bc.Salsa20Engine;
+import goryachev.memsafecrypto.bc.XSalsa20Engine;
+import goryachev.memsafecrypto.bc.XSalsa20Key;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.SeekableByteChannel;
+
+
+/**
+ * SeekableByteChannel encrypted with XSalsa20Engine cipher, the counterpart of XSalsaRandomAccessFile.
+ * The position in the key stream follows the position of the underlying channel, typically a FileChannel.
+ * <p>
+ * The data is decrypted in place in the caller's buffers, which may be direct: the scattering read
+ * passes the buffers to the underlying channel when it is a ScatteringByteChannel.  The data written
+ * is encrypted into a direct buffer of the specified size, so the caller's buffers are not modified.
+ * No heap copies of the plaintext or the ciphertext are made.
+ * <p>
+ * When the underlying channel accepts fewer bytes than offered, the write returns the number of bytes
+ * actually written, and the source buffers are advanced by that much.  The remaining ciphertext is
+ * discarded rather than kept pending: the next write encrypts the remaining data again,
+ * at the then current position of the underlying channel.
+ * <p>
+ * This implementation is not synchronized.
+ */
+public class XSalsaByteChannel
+	implements SeekableByteChannel, ScatteringByteChannel, GatheringByteChannel
+{
+	public static final int DEFAULT_BUFFER_SIZE = 65536;
+	private final SeekableByteChannel channel;
+	private XSalsa20Key key;
+	private XSalsa20Engine engine;
+	private ByteBuffer buffer;
+
+
+	public XSalsaByteChannel(SeekableByteChannel channel, CByteArray key, CByteArray iv, int bufferSize)
+	{
+		if(bufferSize < 1)
+		{
+			throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+		}
+
+		this.channel = channel;
+		this.key = new XSalsa20Key(key);
+		this.engine = new XSalsa20Engine(Salsa20Engine.WIDE_BLOCKS, null);
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+
+		engine.init(this.key, iv, 0);
+	}
+
+
+	public XSalsaByteChannel(SeekableByteChannel channel, CByteArray key, CByteArray iv)
+	{
+		this(channel, key, iv, DEFAULT_BUFFER_SIZE);
+	}
+
+
+	/** positions the key stream at the current position of the underlying channel */
+	private void sync() throws IOException
+	{
+		if(engine == null)
+		{
+			throw new ClosedChannelException();
+		}
+
+		long pos = channel.position();
+		if(engine.getPosition() != pos)
+		{
+			engine.seekTo(pos);
+		}
+	}
+
+
+	/** decrypts in place the bytes between the specified position and the current position of the buffer */
+	private void decrypt(ByteBuffer b, int start)
+	{
+		int end = b.position();
+		if(end > start)
+		{
+			ByteBuffer d = b.duplicate();
+			d.position(start);
+			d.limit(end);
+			engine.processBytes(d, d.duplicate());
+		}
+	}
+
+
+	public int read(ByteBuffer dst) throws IOException
+	{
+		sync();
+
+		int start = dst.position();
+		int rd = channel.read(dst);
+		decrypt(dst, start);
+		return rd;
+	}
+
+
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+	{
+		if(!(channel instanceof ScatteringByteChannel))
+		{
+			long total = 0;
+			for(int i=0; i<length; i++)
+			{
+				ByteBuffer b = dsts[offset + i];
+				int rd = read(b);
+				if(rd < 0)
+				{
+					return (total == 0) ? -1 : total;
+				}
+
+				total += rd;
+				if(b.hasRemaining())
+				{
+					break;
+				}
+			}
+			return total;
+		}
+
+		sync();
+
+		int[] start = new int[length];
+		for(int i=0; i<length; i++)
+		{
+			start[i] = dsts[offset + i].position();
+		}
+
+		long rd = ((ScatteringByteChannel)channel).read(dsts, offset, length);
+		for(int i=0; i<length; i++)
+		{
+			decrypt(dsts[offset + i], start[i]);
+		}
+		return rd;
+	}
+
+
+	public long read(ByteBuffer[] dsts) throws IOException
+	{
+		return read(dsts, 0, dsts.length);
+	}
+
+
+	public int write(ByteBuffer src) throws IOException
+	{
+		return (int)write(new ByteBuffer[] { src }, 0, 1);
+	}
+
+
+	/** gathers the data from the source buffers into the internal buffer, encrypting it on the way */
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		sync();
+
+		long total = 0;
+		int ix = offset;
+		int end = offset + length;
+		for(;;)
+		{
+			// fill the buffer with the encrypted data
+			buffer.clear();
+			for(; (ix < end) && buffer.hasRemaining(); ix++)
+			{
+				ByteBuffer src = srcs[ix];
+				int sz = Math.min(src.remaining(), buffer.remaining());
+				if(sz > 0)
+				{
+					ByteBuffer s = src.duplicate();
+					s.limit(s.position() + sz);
+					engine.processBytes(s, buffer);
+				}
+
+				if(src.remaining() > sz)
+				{
+					break;
+				}
+			}
+			buffer.flip();
+
+			if(!buffer.hasRemaining())
+			{
+				return total;
+			}
+
+			int len = buffer.remaining();
+			int wr = 0;
+			while(buffer.hasRemaining())
+			{
+				int n = channel.write(buffer);
+				if(n == 0)
+				{
+					// the rest of the ciphertext is discarded, the key stream is repositioned by the next call
+					break;
+				}
+				wr += n;
+			}
+
+			// advance the sources by the number of bytes written
+			for(int i=offset, rem=wr; rem > 0; i++)
+			{
+				ByteBuffer src = srcs[i];
+				int n = Math.min(rem, src.remaining());
+				src.position(src.position() + n);
+				rem -= n;
+			}
+			total += wr;
+
+			if(wr < len)
+			{
+				return total;
+			}
+		}
+	}
+
+
+	public long write(ByteBuffer[] srcs) throws IOException
+	{
+		return write(srcs, 0, srcs.length);
+	}
+
+
+	public long position() throws IOException
+	{
+		return channel.position();
+	}
+
+
+	public XSalsaByteChannel position(long newPosition) throws IOException
+	{
+		channel.position(newPosition);
+		return this;
+	}
+
+
+	public long size() throws IOException
+	{
+		return channel.size();
+	}
+
+
+	public XSalsaByteChannel truncate(long size) throws IOException
+	{
+		channel.truncate(size);
+		return this;
+	}
+
+
+	public boolean isOpen()
+	{
+		return (engine != null) && channel.isOpen();
+	}
+
+
+	public void close() throws IOException
+	{
+		if(engine == null)
+		{
+			return;
+		}
+
+		Crypto.destroy(engine);
+		Crypto.destroy(key);
+		Crypto.zero(buffer);
+
+		engine = null;
+		key = null;
+		buffer = null;
+
+		CKit.close(channel);
+	}
+}
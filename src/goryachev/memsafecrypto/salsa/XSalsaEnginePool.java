@@ -0,0 +1,139 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.Crypto;
+import goryachev.memsafecrypto.bc.Salsa20Engine;
+import goryachev.memsafecrypto.bc.XSalsa20Engine;
+import goryachev.memsafecrypto.bc.XSalsa20Key;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * Thread-safe pool of XSalsa20 engines sharing one key schedule, for concurrent positional operations.
+ * <p>
+ * The key and the nonce are set up once (including the HSalsa20 subkey derivation) in a template engine,
+ * which is never modified afterwards.  Each operation acquires an engine, initialized from the template
+ * (see Salsa20Engine.initFrom()) and positioned at the requested offset, and releases it when done,
+ * so the engines are reused rather than allocated per operation.
+ * <p>
+ * The pool may be destroyed while the operations are in flight: the template is destroyed only after
+ * the last acquire() in progress completes, and the engines in use are destroyed when released.
+ */
+final class XSalsaEnginePool
+{
+	private final XSalsa20Engine template;
+	private final ConcurrentLinkedQueue<XSalsa20Engine> free = new ConcurrentLinkedQueue<>();
+	private volatile boolean closed;
+	private int acquiring;
+
+
+	public XSalsaEnginePool(CByteArray key, CByteArray iv)
+	{
+		XSalsa20Key k = new XSalsa20Key(key);
+		try
+		{
+			template = new XSalsa20Engine(Salsa20Engine.WIDE_BLOCKS, null);
+			template.init(k, iv, 0);
+		}
+		finally
+		{
+			k.destroy();
+		}
+	}
+
+
+	/** returns an engine positioned at the specified offset in the key stream */
+	public XSalsa20Engine acquire(long position) throws ClosedChannelException
+	{
+		synchronized(this)
+		{
+			if(closed)
+			{
+				throw new ClosedChannelException();
+			}
+			acquiring++;
+		}
+
+		XSalsa20Engine e = free.poll();
+		try
+		{
+			if(e == null)
+			{
+				e = new XSalsa20Engine(Salsa20Engine.WIDE_BLOCKS, null);
+			}
+
+			e.initFrom(template);
+			e.seekTo(position);
+			return e;
+		}
+		catch(Throwable err)
+		{
+			Crypto.destroy(e);
+			throw err;
+		}
+		finally
+		{
+			boolean last;
+			synchronized(this)
+			{
+				acquiring--;
+				last = closed && (acquiring == 0);
+			}
+
+			if(last)
+			{
+				Crypto.destroy(template);
+			}
+		}
+	}
+
+
+	/** zeroes the engine and returns it to the pool, or destroys it if the pool has been destroyed */
+	public void release(XSalsa20Engine e)
+	{
+		e.zero();
+		free.add(e);
+
+		if(closed)
+		{
+			drain();
+		}
+	}
+
+
+	private void drain()
+	{
+		XSalsa20Engine e;
+		while((e = free.poll()) != null)
+		{
+			Crypto.destroy(e);
+		}
+	}
+
+
+	/** 
+	 * destroys the idle engines and the key schedule, once the acquire() calls in progress complete.
+	 * the engines in use are destroyed when released.
+	 */
+	public void destroy()
+	{
+		boolean idle;
+		synchronized(this)
+		{
+			if(closed)
+			{
+				return;
+			}
+			closed = true;
+			idle = (acquiring == 0);
+		}
+
+		drain();
+
+		if(idle)
+		{
+			Crypto.destroy(template);
+		}
+	}
+}
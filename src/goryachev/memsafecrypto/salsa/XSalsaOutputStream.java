@@ -6,13 +6,16 @@ import goryachev.memsafecrypto.CByteArray;
 import goryachev.memsafecrypto.Crypto;
 import goryachev.memsafecrypto.bc.KeyParameter;
 import goryachev.memsafecrypto.bc.ParametersWithIV;
+import goryachev.memsafecrypto.bc.Salsa20Engine;
 import goryachev.memsafecrypto.bc.XSalsa20Engine;
+import goryachev.memsafecrypto.util.WriteBehindOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
 
 /**
  * OutputStream encrypted with XSalsa20Engine cipher.
+ * In the write-behind mode, the ciphertext is written out by a background thread (see WriteBehindOutputStream).
  * This implementation is not synchronized.
  */
 public class XSalsaOutputStream
@@ -25,12 +28,20 @@ public class XSalsaOutputStream
 	private final ParametersWithIV paramIV;
 	private final byte[] buffer = new byte[BUFFER_LENGTH];
 	private final byte[] smallBuffer = new byte[8];
+	private boolean closed;
 	
 	
 	public XSalsaOutputStream(OutputStream out, CByteArray key, CByteArray iv)
 	{
-		this.out = out;
-		this.engine = new XSalsa20Engine();
+		this(out, key, iv, false);
+	}
+	
+	
+	/** creates the stream, optionally writing the output in a background thread */
+	public XSalsaOutputStream(OutputStream out, CByteArray key, CByteArray iv, boolean writeBehind)
+	{
+		this.out = writeBehind ? new WriteBehindOutputStream(out) : out;
+		this.engine = new XSalsa20Engine(Salsa20Engine.WIDE_BLOCKS, null);
 		
 		// init engine
 		keyParameter = new KeyParameter(key);
@@ -83,11 +94,32 @@ public class XSalsaOutputStream
 	}
 
 
+	public void flush() throws IOException
+	{
+		out.flush();
+	}
+
+
 	public void close() throws IOException
 	{
-		Crypto.zero(keyParameter);
-		Crypto.zero(paramIV);
-		CKit.close(out);
-		Crypto.zero(smallBuffer);
+		if(closed)
+		{
+			return;
+		}
+		closed = true;
+		
+		try
+		{
+			// reports a failure to write, which close() would not
+			out.flush();
+		}
+		finally
+		{
+			Crypto.destroy(engine);
+			Crypto.destroy(keyParameter);
+			Crypto.destroy(paramIV);
+			CKit.close(out);
+			Crypto.zero(smallBuffer);
+		}
 	}
 }
@@ -0,0 +1,197 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.bc.Salsa20Engine;
+import goryachev.memsafecrypto.bc.XSalsa20Engine;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Multi-threaded XSalsa20 processing of large ranges.
+ *
+ * Since the key stream is seekable, a range is split into chunks aligned to 64-byte blocks,
+ * each processed by a separate engine initialized from the caller's engine (see Salsa20Engine.initFrom(),
+ * which avoids repeating the HSalsa20 subkey derivation) and positioned at the start of the chunk.
+ *
+ * The work is done in a dedicated ForkJoinPool.  The parallelism defaults to the number of available
+ * processors, and can be set with the "memsafecrypto.parallelism" system property or setParallelism().
+ * Ranges shorter than two chunks are processed in the calling thread.
+ */
+public final class XSalsaParallel
+{
+	public static final String PROPERTY_PARALLELISM = "memsafecrypto.parallelism";
+	/** minimum number of bytes processed by a single task */
+	public static final int MIN_CHUNK_SIZE = 256 * 1024;
+	private static final int BLOCK_SIZE = 64;
+	private static final int TASKS_PER_THREAD = 4;
+	private static ForkJoinPool pool;
+	private static int parallelism = initParallelism();
+
+
+	private static int initParallelism()
+	{
+		int n = Integer.getInteger(PROPERTY_PARALLELISM, Runtime.getRuntime().availableProcessors());
+		return Math.max(1, n);
+	}
+
+
+	public static synchronized int getParallelism()
+	{
+		return parallelism;
+	}
+
+
+	/** sets the number of threads used for parallel processing, 1 disables parallel processing */
+	public static synchronized void setParallelism(int n)
+	{
+		if(n < 1)
+		{
+			throw new IllegalArgumentException("parallelism must be positive: " + n);
+		}
+
+		if(n != parallelism)
+		{
+			// the old pool may still be in use, its idle threads terminate on their own
+			parallelism = n;
+			pool = null;
+		}
+	}
+
+
+	/** returns the shared pool, also used by the segment pipelines */
+	static synchronized ForkJoinPool pool()
+	{
+		if(pool == null)
+		{
+			pool = new ForkJoinPool(parallelism);
+		}
+		return pool;
+	}
+
+
+	/** returns true if the range of the specified length would be processed by multiple threads */
+	public static boolean isParallel(long length)
+	{
+		return (getParallelism() > 1) && (length >= 2L * MIN_CHUNK_SIZE);
+	}
+
+
+	/**
+	 * processes length bytes, starting at the current position of the engine, which is then advanced
+	 * past the processed range.
+	 */
+	public static void processBytes(XSalsa20Engine engine, CByteArray in, int inOff, int length, CByteArray out, int outOff)
+	{
+		process(engine, length, (e, off, len) -> e.processBytes(in, inOff + off, len, out, outOff + off));
+	}
+
+
+	/**
+	 * processes length bytes, starting at the current position of the engine, which is then advanced
+	 * past the processed range.  The input and output may be the same array.
+	 */
+	public static void processBytes(XSalsa20Engine engine, byte[] in, int inOff, int length, byte[] out, int outOff)
+	{
+		process(engine, length, (e, off, len) -> e.processBytes(in, inOff + off, len, out, outOff + off));
+	}
+
+
+	/**
+	 * processes length bytes, starting at the current position of the engine, which is then advanced
+	 * past the processed range.
+	 */
+	public static void processBytes(XSalsa20Engine engine, CByteArray in, int inOff, int length, byte[] out, int outOff)
+	{
+		process(engine, length, (e, off, len) -> e.processBytes(in, inOff + off, len, out, outOff + off));
+	}
+
+
+	private static void process(XSalsa20Engine engine, int length, Chunk chunk)
+	{
+		if(!isParallel(length))
+		{
+			chunk.process(engine, 0, length);
+			return;
+		}
+
+		long start = engine.getPosition();
+		int tasks = getParallelism() * TASKS_PER_THREAD;
+		int size = Math.max(MIN_CHUNK_SIZE, length / tasks);
+		size = (size + BLOCK_SIZE - 1) & -BLOCK_SIZE;
+
+		// the first chunk ends on a block boundary
+		int head = (int)((BLOCK_SIZE - (start % BLOCK_SIZE)) % BLOCK_SIZE);
+
+		ArrayList<RecursiveAction> actions = new ArrayList<>();
+		int off = 0;
+		while(off < length)
+		{
+			int len = Math.min(length - off, (off == 0) ? size + head : size);
+			actions.add(new Task(engine, start, off, len, chunk));
+			off += len;
+		}
+
+		pool().invoke(new RecursiveAction()
+		{
+			protected void compute()
+			{
+				invokeAll(actions);
+			}
+		});
+
+		engine.skip(length);
+	}
+
+
+	//
+
+
+	@FunctionalInterface
+	private static interface Chunk
+	{
+		public void process(XSalsa20Engine engine, int offset, int length);
+	}
+
+
+	//
+
+
+	private static class Task
+		extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final XSalsa20Engine source;
+		private final long start;
+		private final int offset;
+		private final int length;
+		private final Chunk chunk;
+
+
+		public Task(XSalsa20Engine source, long start, int offset, int length, Chunk chunk)
+		{
+			this.source = source;
+			this.start = start;
+			this.offset = offset;
+			this.length = length;
+			this.chunk = chunk;
+		}
+
+
+		protected void compute()
+		{
+			XSalsa20Engine e = new XSalsa20Engine(Salsa20Engine.WIDE_BLOCKS, null);
+			try
+			{
+				e.initFrom(source);
+				e.seekTo(start + offset);
+				chunk.process(e, offset, length);
+			}
+			finally
+			{
+				e.destroy();
+			}
+		}
+	}
+}
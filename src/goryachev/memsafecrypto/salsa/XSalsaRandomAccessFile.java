@@ -6,6 +6,7 @@ import goryachev.memsafecrypto.CByteArray;
 import goryachev.memsafecrypto.Crypto;
 import goryachev.memsafecrypto.bc.KeyParameter;
 import goryachev.memsafecrypto.bc.ParametersWithIV;
+import goryachev.memsafecrypto.bc.Salsa20Engine;
 import goryachev.memsafecrypto.bc.XSalsa20Engine;
 import java.io.Closeable;
 import java.io.EOFException;
@@ -13,24 +14,42 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 
 
 /**
  * RandomAccessFile encrypted with XSalsa20Engine cipher.
- * This implementation is not synchronized.
+ * Large reads (readFully) and writes are encrypted / decrypted by multiple threads, see XSalsaParallel.
+ * <p>
+ * The positional read(long, ...), readFully(long, ...), and write(long, ...) methods are thread-safe:
+ * they use the FileChannel positional I/O, which does not change the file pointer, and an engine
+ * of their own, positioned in the key stream shared by all the calls (see XSalsaEnginePool).
+ * Multiple threads can read or write disjoint regions of the file concurrently.
+ * The other methods are not synchronized.
  */
 public class XSalsaRandomAccessFile
 	implements Closeable
 {
 	protected static final int BUFFER_LENGTH = 4096;
+	protected static final int PARALLEL_BUFFER_LENGTH = 16 * 1024 * 1024;
+	protected static final int POSITIONAL_BUFFER_LENGTH = 65536;
+	protected static final int MAX_POOLED_BUFFERS = 8;
 	private final File file;
 	private final boolean forWriting;
 	private final RandomAccessFile raf;
+	private final FileChannel channel;
 	private final XSalsa20Engine engine;
+	private final XSalsaEnginePool engines;
 	private final KeyParameter keyParameter;
 	private final ParametersWithIV paramIV;
 	private final byte[] buffer = new byte[BUFFER_LENGTH];
 	private final byte[] databuf = new byte[8];
+	private byte[] parallelBuffer;
+	/** ciphertext buffers for the positional writes, released on close() */
+	private final BufferPool positionalBuffers = new BufferPool(POSITIONAL_BUFFER_LENGTH, MAX_POOLED_BUFFERS);
+	private final BufferPool parallelBuffers = new BufferPool(PARALLEL_BUFFER_LENGTH, 1);
 	
 	
 	public XSalsaRandomAccessFile(File file, boolean forWriting, CByteArray key, CByteArray iv) throws FileNotFoundException
@@ -38,12 +57,15 @@ public class XSalsaRandomAccessFile
 		this.file = file;
 		this.forWriting = forWriting;
 		this.raf = new RandomAccessFile(file, forWriting ? "rw" : "r");
-		this.engine = new XSalsa20Engine();
+		this.channel = raf.getChannel();
+		this.engine = new XSalsa20Engine(Salsa20Engine.WIDE_BLOCKS, null);
 		
 		// init engine
 		keyParameter = new KeyParameter(key);
 		paramIV = new ParametersWithIV(keyParameter, iv);
 		engine.init(forWriting, paramIV);
+		
+		engines = new XSalsaEnginePool(key, iv);
 	}
 
 
@@ -87,6 +109,14 @@ public class XSalsaRandomAccessFile
 
 	public void readFully(byte[] buf, int off, int len) throws IOException
 	{
+		if(XSalsaParallel.isParallel(len))
+		{
+			// decrypt in place
+			raf.readFully(buf, off, len);
+			XSalsaParallel.processBytes(engine, buf, off, len, buf, off);
+			return;
+		}
+		
 		int read = 0;
 		do
 		{
@@ -101,6 +131,56 @@ public class XSalsaRandomAccessFile
 	}
 
 
+	/**
+	 * Reads up to 'len' bytes starting at the specified file position, without changing the file pointer.
+	 * Returns the number of bytes read, or -1 if the position is at or past the end of file.
+	 * This method is thread-safe.
+	 */
+	public int read(long position, byte[] buf, int off, int len) throws IOException
+	{
+		int rd = channel.read(ByteBuffer.wrap(buf, off, len), position);
+		if(rd > 0)
+		{
+			decrypt(position, buf, off, rd);
+		}
+		return rd;
+	}
+
+
+	/**
+	 * Reads exactly 'len' bytes starting at the specified file position, without changing the file pointer.
+	 * This method is thread-safe.
+	 */
+	public void readFully(long position, byte[] buf, int off, int len) throws IOException
+	{
+		ByteBuffer b = ByteBuffer.wrap(buf, off, len);
+		while(b.hasRemaining())
+		{
+			if(channel.read(b, position + b.position() - off) < 0)
+			{
+				throw new EOFException("premature EOF");
+			}
+		}
+		
+		decrypt(position, buf, off, len);
+	}
+	
+	
+	/** decrypts in place the data read from the specified file position */
+	private void decrypt(long position, byte[] buf, int off, int len) throws IOException
+	{
+		XSalsa20Engine e = engines.acquire(position);
+		try
+		{
+			XSalsaParallel.processBytes(e, buf, off, len, buf, off);
+		}
+		finally
+		{
+			engines.release(e);
+		}
+	}
+
+
 	public long readLong() throws IOException
 	{
 		readFully(databuf, 0, 8);
@@ -129,6 +209,12 @@ public class XSalsaRandomAccessFile
 			throw new Error("!forWriting");
 		}
 		
+		if(XSalsaParallel.isParallel(len))
+		{
+			writeParallel(buf, off, len);
+			return;
+		}
+		
 		int offset = 0;
 		int toWrite = len;
 		while(toWrite > 0)
@@ -142,6 +228,66 @@ public class XSalsaRandomAccessFile
 			toWrite -= sz;
 		}
 	}
+	
+	
+	/**
+	 * Writes 'len' bytes starting at the specified file position, without changing the file pointer.
+	 * This method is thread-safe.
+	 */
+	public void write(long position, byte[] buf, int off, int len) throws IOException
+	{
+		if(!forWriting)
+		{
+			throw new Error("!forWriting");
+		}
+		
+		// large writes are encrypted by multiple threads
+		BufferPool pool = XSalsaParallel.isParallel(len) ? parallelBuffers : positionalBuffers;
+		byte[] b = pool.acquire();
+		XSalsa20Engine e = engines.acquire(position);
+		try
+		{
+			int offset = 0;
+			while(offset < len)
+			{
+				int sz = Math.min(b.length, len - offset);
+				XSalsaParallel.processBytes(e, buf, off + offset, sz, b, 0);
+				
+				ByteBuffer bb = ByteBuffer.wrap(b, 0, sz);
+				while(bb.hasRemaining())
+				{
+					channel.write(bb, position + offset + bb.position());
+				}
+				
+				offset += sz;
+			}
+		}
+		finally
+		{
+			engines.release(e);
+			pool.release(b);
+		}
+	}
+	
+	
+	private void writeParallel(byte[] buf, int off, int len) throws IOException
+	{
+		if(parallelBuffer == null)
+		{
+			parallelBuffer = new byte[PARALLEL_BUFFER_LENGTH];
+		}
+		
+		int offset = 0;
+		while(offset < len)
+		{
+			int sz = Math.min(PARALLEL_BUFFER_LENGTH, len - offset);
+			
+			XSalsaParallel.processBytes(engine, buf, off + offset, sz, parallelBuffer, 0);
+			raf.write(parallelBuffer, 0, sz);
+			
+			offset += sz;
+		}
+	}
 
 
 	public void write(byte[] buf) throws IOException
@@ -204,8 +350,56 @@ public class XSalsaRandomAccessFile
 
 	public void close() throws IOException
 	{
-		Crypto.zero(keyParameter);
-		Crypto.zero(paramIV);
+		Crypto.destroy(engine);
+		Crypto.destroy(keyParameter);
+		Crypto.destroy(paramIV);
+		engines.destroy();
+		positionalBuffers.clear();
+		parallelBuffers.clear();
 		CKit.close(raf);
 	}
+	
+	
+	//
+	
+	
+	/** a pool of ciphertext buffers, which keeps up to the specified number of idle buffers until cleared */
+	private static class BufferPool
+	{
+		private final int size;
+		private final int max;
+		private final ArrayDeque<byte[]> buffers = new ArrayDeque<>();
+		private boolean closed;
+		
+		
+		public BufferPool(int size, int max)
+		{
+			this.size = size;
+			this.max = max;
+		}
+		
+		
+		public synchronized byte[] acquire()
+		{
+			byte[] b = buffers.poll();
+			return (b == null) ? new byte[size] : b;
+		}
+		
+		
+		public synchronized void release(byte[] b)
+		{
+			if(!closed && (buffers.size() < max))
+			{
+				buffers.add(b);
+			}
+		}
+		
+		
+		/** drops the idle buffers, the buffers released afterwards are not retained */
+		public synchronized void clear()
+		{
+			closed = true;
+			buffers.clear();
+		}
+	}
 }
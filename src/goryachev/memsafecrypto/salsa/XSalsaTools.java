@@ -1,15 +1,21 @@
 // Copyright © 2021-2022 Andy Goryachev <andy@goryachev.com>
 package goryachev.memsafecrypto.salsa;
 import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.SecureArena;
 import goryachev.memsafecrypto.bc.KeyParameter;
 import goryachev.memsafecrypto.bc.ParametersWithIV;
-import goryachev.memsafecrypto.bc.Poly1305;
 import goryachev.memsafecrypto.bc.XSalsa20Engine;
+import goryachev.memsafecrypto.bc.XSalsa20Poly1305Engine;
 import goryachev.memsafecrypto.util.CUtils;
+import java.nio.ByteBuffer;
 
 
 /**
  * XSalsa20 / Poly1306 Tools and Constants.
+ * 
+ * The engine state and the scratch buffers are allocated from a SecureArena
+ * which is closed (and therefore zeroed) before the method returns.  The key and the nonce
+ * are passed to the engine as read-only slices, without copying.
  */
 public class XSalsaTools
 {
@@ -18,78 +24,90 @@ public class XSalsaTools
 	public static final int MAC_LENGTH_BYTES = 128 / 8;
 	
 	
-	/** encrypts a CByteArray into a CByteArray with non-authenticated XSalsa20 cipher */
-	public static void encryptXSalsa20(CByteArray key, CByteArray nonce, CByteArray input, CByteArray out, int offset, int length)
+	private static void checkKey(CByteArray key)
 	{
 		if(key.length() != KEY_LENGTH_BYTES)
 		{
 			throw new IllegalArgumentException("key must be " + KEY_LENGTH_BYTES * 8 + " bits");
 		}
+	}
+	
+	
+	/** creates an XSalsa20 engine in the specified arena */
+	private static XSalsa20Engine createEngine(SecureArena arena, boolean forEncryption, CByteArray key, CByteArray nonce, int nonceOffset, int nonceLength)
+	{
+		checkKey(key);
 		
-		XSalsa20Engine engine = new XSalsa20Engine();
+		XSalsa20Engine engine = new XSalsa20Engine(arena);
+		ParametersWithIV p = ParametersWithIV.wrap(KeyParameter.wrap(key), nonce, nonceOffset, nonceLength);
 		try
 		{
-			KeyParameter kp = new KeyParameter(key);
-			try
-			{
-				ParametersWithIV iv = new ParametersWithIV(kp, nonce);
-				try
-				{
-					engine.init(true, iv);
-				}
-				finally
-				{
-					iv.zero();
-				}
-			}
-			finally
-			{
-				kp.zero();
-			}
-			
-			engine.processBytes(input, 0, length, out, offset);
+			engine.init(forEncryption, p);
 		}
 		finally
 		{
-			engine.zero();
+			p.destroy();
 		}
+		return engine;
 	}
 	
 	
-	/** encrypts a CByteArray into a byte[] with non-authenticated XSalsa20 cipher */
-	public static void encryptXSalsa20(CByteArray key, byte[] nonce, int nonceOffset, int nonceLength, CByteArray cleartext, byte[] out, int outOffset)
+	/** creates an XSalsa20 engine in the specified arena */
+	private static XSalsa20Engine createEngine(SecureArena arena, boolean forEncryption, CByteArray key, byte[] nonce, int nonceOffset, int nonceLength)
 	{
-		if(key.length() != KEY_LENGTH_BYTES)
+		checkKey(key);
+		
+		XSalsa20Engine engine = new XSalsa20Engine(arena);
+		ParametersWithIV p = new ParametersWithIV(KeyParameter.wrap(key), nonce, nonceOffset, nonceLength, arena);
+		try
 		{
-			throw new IllegalArgumentException("key must be " + KEY_LENGTH_BYTES * 8 + " bits");
+			engine.init(forEncryption, p);
 		}
+		finally
+		{
+			p.destroy();
+		}
+		return engine;
+	}
+	
+	
+	/** creates a fused XSalsa20Poly1305 engine in the specified arena */
+	private static XSalsa20Poly1305Engine createAeadEngine(SecureArena arena, boolean forEncryption, CByteArray key, CByteArray nonce, int nonceOffset)
+	{
+		checkKey(key);
 		
-		XSalsa20Engine engine = new XSalsa20Engine();
+		XSalsa20Poly1305Engine engine = new XSalsa20Poly1305Engine(arena);
+		ParametersWithIV p = ParametersWithIV.wrap(KeyParameter.wrap(key), nonce, nonceOffset, NONCE_LENGTH_BYTES);
 		try
 		{
-			KeyParameter kp = new KeyParameter(key);
-			try
-			{
-				ParametersWithIV param = new ParametersWithIV(kp, nonce, nonceOffset, nonceLength);
-				try
-				{
-					engine.init(true, param);
-				}
-				finally
-				{
-					param.zero();
-				}
-			}
-			finally
-			{
-				kp.zero();
-			}
-			
-			engine.processBytes(cleartext, 0, cleartext.length(), out, outOffset);
+			engine.init(forEncryption, p);
 		}
 		finally
 		{
-			engine.zero();
+			p.destroy();
+		}
+		return engine;
+	}
+	
+	
+	/** encrypts a CByteArray into a CByteArray with non-authenticated XSalsa20 cipher */
+	public static void encryptXSalsa20(CByteArray key, CByteArray nonce, CByteArray input, CByteArray out, int offset, int length)
+	{
+		try(SecureArena arena = new SecureArena())
+		{
+			XSalsa20Engine engine = createEngine(arena, true, key, nonce, 0, nonce.length());
+			engine.processBytes(input, 0, length, out, offset);
+		}
+	}
+	
+	
+	/** encrypts a CByteArray into a byte[] with non-authenticated XSalsa20 cipher */
+	public static void encryptXSalsa20(CByteArray key, byte[] nonce, int nonceOffset, int nonceLength, CByteArray cleartext, byte[] out, int outOffset)
+	{
+		try(SecureArena arena = new SecureArena())
+		{
+			XSalsa20Engine engine = createEngine(arena, true, key, nonce, nonceOffset, nonceLength);
+			engine.processBytes(cleartext, 0, cleartext.length(), out, outOffset);
 		}
 	}
 	
@@ -97,37 +115,38 @@ public class XSalsaTools
 	/** decrypts a CByteArray into a CByteArray with non-authenticated XSalsa20 cipher */
 	public static void decryptXSalsa20(CByteArray key, CByteArray nonce, int offset, int length, CByteArray input, CByteArray out)
 	{
-		if(key.length() != KEY_LENGTH_BYTES)
+		try(SecureArena arena = new SecureArena())
 		{
-			throw new IllegalArgumentException("key must be " + KEY_LENGTH_BYTES * 8 + " bits");
+			XSalsa20Engine engine = createEngine(arena, false, key, nonce, 0, nonce.length());
+			engine.processBytes(input, offset, length, out, 0);
 		}
-
-		XSalsa20Engine engine = new XSalsa20Engine();
-		try
+	}
+	
+	
+	/** 
+	 * encrypts a CByteArray into a CByteArray with non-authenticated XSalsa20 cipher,
+	 * using multiple threads for large inputs (see XSalsaParallel).
+	 */
+	public static void encryptXSalsa20Parallel(CByteArray key, CByteArray nonce, CByteArray input, CByteArray out, int offset, int length)
+	{
+		try(SecureArena arena = new SecureArena())
 		{
-			KeyParameter kp = new KeyParameter(key);
-			try
-			{
-				ParametersWithIV param = new ParametersWithIV(kp, nonce);
-				try
-				{
-					engine.init(false, param);
-				}
-				finally
-				{
-					param.zero();
-				}
-			}
-			finally
-			{
-				kp.zero();
-			}
-			
-			engine.processBytes(input, offset, length, out, 0);
+			XSalsa20Engine engine = createEngine(arena, true, key, nonce, 0, nonce.length());
+			XSalsaParallel.processBytes(engine, input, 0, length, out, offset);
 		}
-		finally
+	}
+	
+	
+	/** 
+	 * decrypts a CByteArray into a CByteArray with non-authenticated XSalsa20 cipher,
+	 * using multiple threads for large inputs (see XSalsaParallel).
+	 */
+	public static void decryptXSalsa20Parallel(CByteArray key, CByteArray nonce, int offset, int length, CByteArray input, CByteArray out)
+	{
+		try(SecureArena arena = new SecureArena())
 		{
-			engine.zero();
+			XSalsa20Engine engine = createEngine(arena, false, key, nonce, 0, nonce.length());
+			XSalsaParallel.processBytes(engine, input, offset, length, out, 0);
 		}
 	}
 	
@@ -135,190 +154,89 @@ public class XSalsaTools
 	/** decrypts a byte[] into a CByteArray with non-authenticated XSalsa20 cipher */
 	public static CByteArray decryptXSalsa20(CByteArray key, byte[] nonce, int nonceOffset, int nonceLength, byte[] ciphertext, int offset, int length)
 	{
-		if(key.length() != KEY_LENGTH_BYTES)
+		try(SecureArena arena = new SecureArena())
 		{
-			throw new IllegalArgumentException("key must be " + KEY_LENGTH_BYTES * 8 + " bits");
-		}
-		
-		XSalsa20Engine engine = new XSalsa20Engine();
-		try
-		{
-			KeyParameter kp = new KeyParameter(key);
-			try
-			{
-				ParametersWithIV param = new ParametersWithIV(kp, nonce, nonceOffset, nonceLength);
-				try
-				{
-					engine.init(false, param);
-				}
-				finally
-				{
-					param.zero();
-				}
-			}
-			finally
-			{
-				kp.zero();
-			}
-		
+			XSalsa20Engine engine = createEngine(arena, false, key, nonce, nonceOffset, nonceLength);
 			CByteArray dec = new CByteArray(length);
 			engine.processBytes(ciphertext, offset, length, dec, 0);
 			return dec;
 		}
-		finally
-		{
-			engine.zero();
-		}
 	}
 	
 	
 	/** encrypts a CByteArray into a CByteArray with authenticated XSalsa20Poly1305 cipher */
 	public static CByteArray encryptXSalsa20Poly1305(CByteArray key, CByteArray nonce, CByteArray input)
 	{
-		return encryptXSalsa20Poly1305(key, nonce, 0, input, 0, input.length());
+		return encryptXSalsa20Poly1305(null, key, nonce, 0, input, 0, input.length());
 	}
 	
 	
 	/** encrypts a CByteArray into a CByteArray with authenticated XSalsa20Poly1305 cipher */
 	public static CByteArray encryptXSalsa20Poly1305(CByteArray key, CByteArray nonce, int nonceOffset, CByteArray input, int inputOffset, int inputLength)
 	{
-		if(key.length() != KEY_LENGTH_BYTES)
-		{
-			throw new IllegalArgumentException("key must be " + KEY_LENGTH_BYTES * 8 + " bits");
-		}
-		
-		XSalsa20Engine engine = new XSalsa20Engine();
-		try
+		return encryptXSalsa20Poly1305(null, key, nonce, nonceOffset, input, inputOffset, inputLength);
+	}
+	
+	
+	/** 
+	 * encrypts a CByteArray into a CByteArray with authenticated XSalsa20Poly1305 cipher.
+	 * the output is allocated in the specified arena, or is a standalone array if the arena is null. 
+	 */
+	public static CByteArray encryptXSalsa20Poly1305(SecureArena outputArena, CByteArray key, CByteArray nonce, int nonceOffset, CByteArray input, int inputOffset, int inputLength)
+	{
+		try(SecureArena arena = new SecureArena())
 		{
-			KeyParameter kp = new KeyParameter(key);
-			try
-			{
-				ParametersWithIV param = new ParametersWithIV(kp, nonce, nonceOffset, NONCE_LENGTH_BYTES);
-				try
-				{
-					engine.init(true, param);
-				}
-				finally
-				{
-					param.zero();
-				}
-			}
-			finally
-			{
-				kp.zero();
-			}
-			
-			Poly1305 poly1305 = new Poly1305();
+			XSalsa20Poly1305Engine engine = createAeadEngine(arena, true, key, nonce, nonceOffset);
 			try
 			{
-				CByteArray subkey = new CByteArray(KEY_LENGTH_BYTES);
-				try
-				{
-					engine.processBytes(subkey, 0, KEY_LENGTH_BYTES, subkey, 0);
-					
-					KeyParameter skp = new KeyParameter(subkey);
-					try
-					{
-						poly1305.init(skp);
-					}
-					finally
-					{
-						skp.zero();
-					}
-				}
-				finally
-				{
-					subkey.zero();
-				}
-				
-				CByteArray out = new CByteArray(inputLength + MAC_LENGTH_BYTES);
+				CByteArray out = SecureArena.newByteArray(outputArena, inputLength + MAC_LENGTH_BYTES);
 				engine.processBytes(input, inputOffset, inputLength, out, 0);
-				poly1305.update(out, 0, inputLength);
-				poly1305.doFinal(out, inputLength);
+				engine.doFinal(out, inputLength);
 				return out;
 			}
 			finally
 			{
-				poly1305.zero();
+				engine.zero();
 			}
 		}
-		finally
-		{
-			engine.zero();
-		}
 	}
 	
 	
 	/** decrypts a CByteArray into a CByteArray with authenticated XSalsa20Poly1305 cipher */
 	public static CByteArray decryptXSalsa20Poly1305(CByteArray key, CByteArray nonce, CByteArray input) throws Exception
 	{
-		return decryptXSalsa20Poly1305(key, nonce, 0, input, 0, input.length());
+		return decryptXSalsa20Poly1305(null, key, nonce, 0, input, 0, input.length());
 	}
 	
 	
 	/** decrypts a CByteArray into a CByteArray with authenticated XSalsa20Poly1305 cipher */
 	public static CByteArray decryptXSalsa20Poly1305(CByteArray key, CByteArray nonce, int nonceOffset, CByteArray input, int inputOffset, int inputLength) throws Exception
 	{
-		if(key.length() != KEY_LENGTH_BYTES)
-		{
-			throw new IllegalArgumentException("key must be " + KEY_LENGTH_BYTES * 8 + " bits");
-		}
-
-		XSalsa20Engine engine = new XSalsa20Engine();
-		try
+		return decryptXSalsa20Poly1305(null, key, nonce, nonceOffset, input, inputOffset, inputLength);
+	}
+	
+	
+	/** 
+	 * decrypts a CByteArray into a CByteArray with authenticated XSalsa20Poly1305 cipher.
+	 * the output is allocated in the specified arena, or is a standalone array if the arena is null. 
+	 */
+	public static CByteArray decryptXSalsa20Poly1305(SecureArena outputArena, CByteArray key, CByteArray nonce, int nonceOffset, CByteArray input, int inputOffset, int inputLength) throws Exception
+	{
+		try(SecureArena arena = new SecureArena())
 		{
-			KeyParameter kp = new KeyParameter(key);
+			XSalsa20Poly1305Engine engine = createAeadEngine(arena, false, key, nonce, nonceOffset);
 			try
 			{
-				ParametersWithIV param = new ParametersWithIV(kp, nonce, nonceOffset, NONCE_LENGTH_BYTES);
-				try
-				{
-					engine.init(false, param);
-				}
-				finally
-				{
-					param.zero();
-				}
-			}
-			finally
-			{
-				kp.zero();
-			}
-			
-			Poly1305 poly1305 = new Poly1305();
-			try
-			{
-				CByteArray subkey = new CByteArray(KEY_LENGTH_BYTES);
-				try
-				{
-					engine.processBytes(subkey, 0, subkey.length(), subkey, 0);
-					
-					KeyParameter skp = new KeyParameter(subkey);
-					try
-					{
-						poly1305.init(skp);
-					}
-					finally
-					{
-						skp.zero();
-					}
-				}
-				finally
-				{
-					subkey.zero();
-				}
-				
 				int len = inputLength - MAC_LENGTH_BYTES;
-				CByteArray out = new CByteArray(len);
+				CByteArray out = SecureArena.newByteArray(outputArena, len);
 				
-				poly1305.update(input, inputOffset, len);
+				// decrypts and computes the mac in one pass
 				engine.processBytes(input, inputOffset, len, out, 0);
 				
-				// compute mac
-				CByteArray mac = new CByteArray(MAC_LENGTH_BYTES);
-				poly1305.doFinal(mac, 0);
+				CByteArray mac = arena.newByteArray(MAC_LENGTH_BYTES);
+				engine.doFinal(mac, 0);
 				
-				if(!CUtils.compareConstantTime(mac, 0, MAC_LENGTH_BYTES, input, len))
+				if(!CUtils.compareConstantTime(mac, 0, MAC_LENGTH_BYTES, input, inputOffset + len))
 				{
 					out.zero();
 					throw new Exception("MAC mismatch");
@@ -328,12 +246,73 @@ public class XSalsaTools
 			}
 			finally
 			{
-				poly1305.zero();
+				engine.zero();
 			}
 		}
-		finally
+	}
+	
+	
+	/** 
+	 * encrypts the data in place with authenticated XSalsa20Poly1305 cipher, writing the MAC over the associated data
+	 * (which may be null) and the ciphertext to the tag array (detached mode).
+	 * the tag may immediately follow the data in the same array, producing the same layout as encryptXSalsa20Poly1305().
+	 * see XSalsa20Poly1305Sealer.
+	 */
+	public static void encryptXSalsa20Poly1305Detached(CByteArray key, CByteArray nonce, int nonceOffset, CByteArray aad, int aadOffset, int aadLength, CByteArray data, int offset, int length, CByteArray tag, int tagOffset)
+	{
+		checkKey(key);
+		
+		try(XSalsa20Poly1305Sealer s = new XSalsa20Poly1305Sealer(key))
+		{
+			s.sealDetached(nonce, nonceOffset, aad, aadOffset, aadLength, data, offset, length, tag, tagOffset);
+		}
+	}
+	
+	
+	/** 
+	 * encrypts the remaining bytes of the data buffer in place with authenticated XSalsa20Poly1305 cipher, 
+	 * putting the MAC over the associated data (which may be null) and the ciphertext into the tag buffer (detached mode).
+	 * see XSalsa20Poly1305Sealer.
+	 */
+	public static void encryptXSalsa20Poly1305Detached(CByteArray key, CByteArray nonce, int nonceOffset, ByteBuffer aad, ByteBuffer data, ByteBuffer tag)
+	{
+		checkKey(key);
+		
+		try(XSalsa20Poly1305Sealer s = new XSalsa20Poly1305Sealer(key))
+		{
+			s.sealDetached(nonce, nonceOffset, aad, data, tag);
+		}
+	}
+	
+	
+	/** 
+	 * verifies the MAC read from the tag array, and decrypts the data in place with authenticated XSalsa20Poly1305 cipher
+	 * (detached mode).  the data is not modified when the MAC does not match.
+	 * see XSalsa20Poly1305Opener.
+	 */
+	public static void decryptXSalsa20Poly1305Detached(CByteArray key, CByteArray nonce, int nonceOffset, CByteArray aad, int aadOffset, int aadLength, CByteArray data, int offset, int length, CByteArray tag, int tagOffset) throws Exception
+	{
+		checkKey(key);
+		
+		try(XSalsa20Poly1305Opener s = new XSalsa20Poly1305Opener(key))
+		{
+			s.openDetached(nonce, nonceOffset, aad, aadOffset, aadLength, data, offset, length, tag, tagOffset);
+		}
+	}
+	
+	
+	/** 
+	 * verifies the MAC read from the tag buffer, and decrypts the remaining bytes of the data buffer in place 
+	 * with authenticated XSalsa20Poly1305 cipher (detached mode).  the data is not modified when the MAC does not match.
+	 * see XSalsa20Poly1305Opener.
+	 */
+	public static void decryptXSalsa20Poly1305Detached(CByteArray key, CByteArray nonce, int nonceOffset, ByteBuffer aad, ByteBuffer data, ByteBuffer tag) throws Exception
+	{
+		checkKey(key);
+		
+		try(XSalsa20Poly1305Opener s = new XSalsa20Poly1305Opener(key))
 		{
-			engine.zero();
+			s.openDetached(nonce, nonceOffset, aad, data, tag);
 		}
 	}
 }
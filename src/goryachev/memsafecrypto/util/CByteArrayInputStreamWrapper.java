@@ -79,10 +79,8 @@ public class CByteArrayInputStreamWrapper
 			return 0;
 		}
 		
-		for(int i=0; i<len; i++)
-		{
-			b[off + i] = buffer.get(start + position++);
-		}
+		buffer.copyTo(start + position, b, off, len);
+		position += len;
 		return len;
 	}
 
@@ -58,6 +58,7 @@ public class CByteArrayOutputStream
 		
 		CByteArray buf = new CByteArray(cap);
 		buf.copyFrom(buffer, 0, size, 0);
+		buffer.destroy();
 		buffer = buf;
 	}
 
@@ -101,9 +102,10 @@ public class CByteArrayOutputStream
 	}
 
 
+	/** zeroes and releases the internal buffer, the stream cannot be used afterwards */
 	public void close() throws IOException
 	{
-		buffer.zero();
+		buffer.destroy();
 	}
 
 
@@ -8,17 +8,29 @@ import goryachev.memsafecrypto.CLongArray;
 import goryachev.memsafecrypto.OpaqueChars;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import java.nio.charset.Charset;
 import java.security.SecureRandom;
 
 
 /**
  * Various Utility Methods.
+ * 
+ * The bulk little-endian conversions between CByteArray and CIntArray/CLongArray
+ * are performed with ByteBuffer bulk transfers (byte swapping when needed)
+ * instead of assembling each word one byte at a time.
  */
 public final class CUtils
 {
+	private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+	
+	
 	public static byte[] clone(byte[] data)
 	{
 		return null == data ? null : data.clone();
@@ -62,11 +74,7 @@ public final class CUtils
 	
 	public static int littleEndianToInt(CByteArray b, int off)
 	{
-		int n = b.get(off) & 0xff;
-		n |= (b.get(++off) & 0xff) << 8;
-		n |= (b.get(++off) & 0xff) << 16;
-		n |= b.get(++off) << 24;
-		return n;
+		return Integer.reverseBytes(b.getInt(off));
 	}
 
 	
@@ -82,10 +90,11 @@ public final class CUtils
 	
 	public static void littleEndianToInt(CByteArray bs, int bOff, CIntArray ns, int nOff, int count)
 	{
-		for(int i=0; i<count; ++i)
+		ns.checkWriteable();
+		
+		if(count > 0)
 		{
-			ns.set(nOff + i, littleEndianToInt(bs, bOff));
-			bOff += 4;
+			ns.view(nOff * 4, count * 4).asIntBuffer().put(intsLE(bs, bOff, count));
 		}
 	}
 	
@@ -104,11 +113,7 @@ public final class CUtils
 
 	public static void littleEndianToInt(CByteArray bs, int off, CIntArray ns)
 	{
-    	for(int i=0; i<ns.length(); ++i)
-		{
-			ns.set(i, littleEndianToInt(bs, off));
-			off += 4;
-		}
+		littleEndianToInt(bs, off, ns, 0, ns.length());
 	}
 
 
@@ -123,10 +128,7 @@ public final class CUtils
 	
 	public static void intToLittleEndian(int n, CByteArray bs, int off)
 	{
-		bs.set(off, (byte)(n));
-		bs.set(++off, (byte)(n >>> 8));
-		bs.set(++off, (byte)(n >>> 16));
-		bs.set(++off, (byte)(n >>> 24));
+		bs.setInt(off, Integer.reverseBytes(n));
 	}
 
 
@@ -142,14 +144,33 @@ public final class CUtils
 	
 	public static void intToLittleEndian(CIntArray ns, CByteArray b, int off)
 	{
-		for(int i=0; i<ns.length(); ++i)
+		intToLittleEndian(ns, 0, b, off, ns.length());
+	}
+	
+	
+	public static void intToLittleEndian(CIntArray ns, int nOff, CByteArray b, int off, int count)
+	{
+		b.checkWriteable();
+		
+		if(count > 0)
 		{
-			intToLittleEndian(ns.get(i), b, off);
-			off += 4;
+			intsLE(b, off, count).put(ns.view(nOff * 4, count * 4).asIntBuffer());
 		}
 	}
 
 	
+	public static long bigEndianToLong(byte[] bs, int off)
+	{
+		return (long)LONG_BE.get(bs, off);
+	}
+	
+	
+	public static void longToBigEndian(long n, byte[] bs, int off)
+	{
+		LONG_BE.set(bs, off, n);
+	}
+	
+	
 	public static long littleEndianToLong(byte[] bs, int off)
 	{
 		int lo = littleEndianToInt(bs, off);
@@ -160,9 +181,24 @@ public final class CUtils
 	
 	public static long littleEndianToLong(CByteArray bs, int off)
 	{
-		int lo = littleEndianToInt(bs, off);
-		int hi = littleEndianToInt(bs, off + 4);
-		return ((hi & 0xffffffffL) << 32) | (lo & 0xffffffffL);
+		return Long.reverseBytes(bs.getLong(off));
+	}
+	
+	
+	public static void littleEndianToLong(byte[] bs, int off, long[] ns, int nOff, int count)
+	{
+		ByteBuffer b = ByteBuffer.wrap(bs, off, count * 8);
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		b.asLongBuffer().get(ns, nOff, count);
+	}
+	
+	
+	public static void littleEndianToLong(CByteArray bs, int off, long[] ns, int nOff, int count)
+	{
+		if(count > 0)
+		{
+			longsLE(bs, off, count).get(ns, nOff, count);
+		}
 	}
 
 
@@ -237,21 +273,13 @@ public final class CUtils
 
 	public static void arraycopy(CByteArray src, int srcPos, byte[] dst, int dstPos, int len)
 	{
-		for(int i=0; i<len; i++)
-		{
-			byte b = src.get(srcPos + i);
-			dst[dstPos + i] = b;
-		}
+		src.copyTo(srcPos, dst, dstPos, len);
 	}
 	
 	
 	public static void arraycopy(CIntArray src, int srcPos, CIntArray dst, int dstPos, int len)
 	{
-		for(int i=0; i<len; i++)
-		{
-			int b = src.get(srcPos + i);
-			dst.set(dstPos + i, b);
-		}
+		dst.copy(dstPos, src, srcPos, len);
 	}
 	
 	
@@ -266,72 +294,84 @@ public final class CUtils
 	
 	public static void intToBigEndian(int n, CByteArray bs, int off)
 	{
-	    bs.set(off, (byte)(n >>> 24));
-	    bs.set(++off, (byte)(n >>> 16));
-	    bs.set(++off, (byte)(n >>> 8));
-	    bs.set(++off, (byte)(n));
+		bs.setInt(off, n);
 	}
 	
 	
-    public static int bigEndianToInt(CByteArray bs, int off)
-    {
-        int n = bs.get(off) << 24;
-        n |= (bs.get(++off) & 0xff) << 16;
-        n |= (bs.get(++off) & 0xff) << 8;
-        n |= (bs.get(++off) & 0xff);
-        return n;
-    }
-    
-    
-    public static long bigEndianToLong(CByteArray bs, int off)
-    {
-        int hi = bigEndianToInt(bs, off);
-        int lo = bigEndianToInt(bs, off + 4);
-        return ((hi & 0xffffffffL) << 32) | (lo & 0xffffffffL);
-    }
-    
-    
-    public static void longToBigEndian(long n, CByteArray bs, int off)
-    {
-        intToBigEndian((int)(n >>> 32), bs, off);
-        intToBigEndian((int)(n & 0xffffffffL), bs, off + 4);
+	public static int bigEndianToInt(CByteArray bs, int off)
+	{
+		return bs.getInt(off);
+	}
+	
+	
+	public static long bigEndianToLong(CByteArray bs, int off)
+	{
+		return bs.getLong(off);
+	}
+	
+	
+	public static void longToBigEndian(long n, CByteArray bs, int off)
+	{
+		bs.setLong(off, n);
 	}
 
 
 	public static void intToLittleEndian(int[] ns, CByteArray bs, int off)
 	{
-		for(int i=0; i<ns.length; ++i)
+		bs.checkWriteable();
+		
+		if(ns.length > 0)
 		{
-			intToLittleEndian(ns[i], bs, off);
-			off += 4;
+			intsLE(bs, off, ns.length).put(ns);
 		}
 	}
 
 
 	public static void littleEndianToLong(CByteArray bs, int off, CLongArray ns)
 	{
-		for(int i=0; i<ns.length(); ++i)
+		ns.checkWriteable();
+		
+		int count = ns.length();
+		if(count > 0)
 		{
-			ns.set(i, littleEndianToLong(bs, off));
-			off += 8;
+			ns.view(0, count * 8).asLongBuffer().put(longsLE(bs, off, count));
 		}
 	}
 
 
 	public static void longToLittleEndian(CLongArray ns, CByteArray bs, int off)
 	{
-		for(int i=0; i<ns.length(); ++i)
+		bs.checkWriteable();
+		
+		int count = ns.length();
+		if(count > 0)
 		{
-			longToLittleEndian(ns.get(i), bs, off);
-			off += 8;
+			longsLE(bs, off, count).put(ns.view(0, count * 8).asLongBuffer());
 		}
 	}
 
 
 	public static void longToLittleEndian(long n, CByteArray bs, int off)
 	{
-		intToLittleEndian((int)(n & 0xffffffffL), bs, off);
-		intToLittleEndian((int)(n >>> 32), bs, off + 4);
+		bs.setLong(off, Long.reverseBytes(n));
+	}
+	
+	
+	/** little-endian int view of the CByteArray range, does not affect the buffer position */
+	private static IntBuffer intsLE(CByteArray b, int off, int count)
+	{
+		ByteBuffer v = b.view(off, count * 4);
+		v.order(ByteOrder.LITTLE_ENDIAN);
+		return v.asIntBuffer();
+	}
+	
+	
+	/** little-endian long view of the CByteArray range, does not affect the buffer position */
+	private static LongBuffer longsLE(CByteArray b, int off, int count)
+	{
+		ByteBuffer v = b.view(off, count * 8);
+		v.order(ByteOrder.LITTLE_ENDIAN);
+		return v.asLongBuffer();
 	}
 	
 
@@ -425,8 +465,15 @@ public final class CUtils
 			return false;
 		}
 
-		int x = 0;
-		for(int i=0; i<length; i++)
+		// 8 bytes at a time, the loop never exits early
+		long x = 0;
+		int i = 0;
+		for(; i<=length-8; i+=8)
+		{
+			x |= (a.getLong(i + aOffset) ^ b.getLong(i + bOffset));
+		}
+		
+		for(; i<length; i++)
 		{
 			x |= (a.get(i + aOffset) ^ b.get(i + bOffset));
 		}
@@ -453,7 +500,7 @@ public final class CUtils
 			}
 			finally
 			{
-				b.zero();
+				b.destroy();
 			}
 		}
 		finally
@@ -470,13 +517,9 @@ public final class CUtils
 			return null;
 		}
 		
-		int sz = a.length();
-		CByteArray b = new CByteArray(sz * CCharArray.BYTES_PER_CHAR);
-		for(int i=0; i<sz; i++)
-		{
-			char c = a.get(i);
-			b.buffer.putChar(i * CCharArray.BYTES_PER_CHAR, c);
-		}
+		int sz = a.length() * CCharArray.BYTES_PER_CHAR;
+		CByteArray b = new CByteArray(sz);
+		b.copyBytes(0, a, 0, sz);
 		return b;
 	}
 	
@@ -495,11 +538,7 @@ public final class CUtils
 		}
 		
 		CCharArray a = new CCharArray(sz);
-		for(int i=0; i<sz; i++)
-		{
-			char c = b.buffer.getChar(i * 2);
-			a.set(i, c);
-		}
+		a.copyBytes(0, b, 0, b.length());
 		return a;
 	}
 
@@ -1,90 +1,393 @@
 // Copyright © 2021-2022 Andy Goryachev <andy@goryachev.com>
 package goryachev.memsafecrypto.util;
 import goryachev.memsafecrypto.ICryptoZeroable;
+import java.io.Closeable;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 
 
 /**
  * Buffer for array classes backed by a DirectByteBuffer.
+ * The memory is obtained from the MemoryBackend selected at startup.
+ *
+ * The bulk operations (copyBytes, fillBytes, sameBytes, zero) work on duplicate views
+ * or 8 bytes at a time, and never affect the buffer position.
+ * 
+ * An instance may be a view which shares memory with another instance, possibly
+ * with a different byte order (see CByteArray.asIntArrayLE()).
+ * 
+ * destroy() (or close()) zeroes the memory and releases it back to the MemoryBackend right away,
+ * unless the eager free is disabled (see MemoryBackend.EAGER_FREE_PROPERTY).  Any subsequent use
+ * of the instance, or of its views, throws an IllegalStateException (or an IndexOutOfBoundsException
+ * for single element access).  Destroying a view zeroes the shared memory but does not release it.
+ * 
+ * This class is not thread-safe: the caller must ensure that no other thread is accessing the instance,
+ * or any of its views, while it is being destroyed, or afterwards.
+ * 
+ * A slice is a view which borrows a range of memory from its parent (see CByteArray.slice()):
+ * zeroing the memory remains the responsibility of the parent, so zero() on a slice does nothing,
+ * and destroy() merely invalidates the slice.
  */
 public class DirectArrayBase
-	implements ICryptoZeroable
+	implements ICryptoZeroable, Closeable
 {
-	protected final ByteBuffer buffer;
+	private static final int BYTES_PER_LONG = 8;
+	private static final ByteBuffer DESTROYED = ByteBuffer.allocate(0);
+	protected ByteBuffer buffer;
+	private final boolean owner;
+	private final boolean slice;
 	private boolean readonly;
+	private boolean destroyed;
+	private DirectArrayBase parent;
+	private ArrayList<DirectArrayBase> views;
+
 
-	
 	public DirectArrayBase(int capacity)
 	{
-		buffer = ByteBuffer.allocateDirect(capacity);
+		buffer = MemoryBackend.get().allocate(capacity);
+		owner = true;
+		slice = false;
 	}
-	
-	
+
+
 	protected DirectArrayBase(DirectArrayBase src)
 	{
 		this(src, 0, src.sizeInBytes());
 	}
-	
-	
+
+
 	protected DirectArrayBase(DirectArrayBase src, int offset, int length)
 	{
-		buffer = ByteBuffer.allocateDirect(length);
-		
+		buffer = MemoryBackend.get().allocate(length);
+		buffer.order(src.buffer.order());
+		owner = true;
+		slice = false;
+
 		// copy without affecting the source buffer position
-		for(int i=0; i<length; i++)
-		{
-			byte v = src.buffer.get(i + offset);
-			buffer.put(i, v);
-		}
+		copyBytes(0, src, offset, length);
+	}
+
+
+	/** creates a view which shares the memory with the specified buffer */
+	protected DirectArrayBase(ByteBuffer shared)
+	{
+		buffer = shared;
+		owner = false;
+		slice = false;
 	}
 	
 	
+	/** creates a slice which borrows the memory from the parent, see addView() */
+	protected DirectArrayBase(ByteBuffer shared, boolean slice)
+	{
+		buffer = shared;
+		owner = false;
+		this.slice = slice;
+	}
+
+
 	public void setReadOnly()
 	{
 		readonly = true;
 	}
 
 
-	protected void copyBytes(int index, DirectArrayBase src, int srcOffset, int srcLength)
+	public boolean isReadOnly()
+	{
+		return readonly;
+	}
+
+
+	/**
+	 * Returns a duplicate view of the specified range of the underlying buffer,
+	 * with position set to offset and limit set to (offset + length).
+	 * Operations on the view do not affect the position of this buffer.
+	 */
+	protected final ByteBuffer view(int offset, int length)
+	{
+		checkNotDestroyed();
+		checkRange(offset, length, sizeInBytes());
+
+		ByteBuffer b = buffer.duplicate();
+		b.order(buffer.order());
+		b.limit(offset + length);
+		b.position(offset);
+		return b;
+	}
+
+
+	/**
+	 * Returns a buffer which shares the specified range of memory with this buffer,
+	 * to be used as a backing store for a view.
+	 */
+	protected final ByteBuffer sharedBuffer(int offset, int length, ByteOrder order)
 	{
-		// TODO validate input
+		ByteBuffer b = view(offset, length).slice();
+		b.order(order);
+		return b;
+	}
+
+
+	/** 
+	 * registers a view which shares memory with this instance, to be destroyed along with it.
+	 * a view destroyed before this instance is unregistered.
+	 */
+	protected final void addView(DirectArrayBase v)
+	{
+		checkNotDestroyed();
 		
-		for(int i=0; i<srcLength; i++)
+		// slices of a shared key may be created concurrently
+		synchronized(this)
 		{
-			byte v = src.buffer.get(srcOffset + i);
-			buffer.put(index + i, v);
+			if(views == null)
+			{
+				views = new ArrayList<>(2);
+			}
+			views.add(v);
+			v.parent = this;
 		}
 	}
-
 	
-	protected int sizeInBytes()
+	
+	private synchronized void removeView(DirectArrayBase v)
 	{
-		return buffer.capacity();
+		if(views != null)
+		{
+			views.remove(v);
+		}
 	}
 	
 	
+	public boolean isSlice()
+	{
+		return slice;
+	}
+
+
+	/** copies length bytes from src at srcOffset to this buffer at index, with System.arraycopy() semantics */
+	protected void copyBytes(int index, DirectArrayBase src, int srcOffset, int length)
+	{
+		if(length == 0)
+		{
+			return;
+		}
+
+		ByteBuffer s = src.view(srcOffset, length);
+		ByteBuffer d = view(index, length);
+		d.put(s);
+	}
+
+
+	/** copies length bytes from a byte[] to this buffer at index */
+	protected void copyBytes(int index, byte[] src, int srcOffset, int length)
+	{
+		if(length == 0)
+		{
+			return;
+		}
+
+		view(index, length).put(src, srcOffset, length);
+	}
+
+
+	/** copies length bytes from the current position of src to this buffer at index, advancing the src position */
+	protected void copyBytes(int index, ByteBuffer src, int length)
+	{
+		if(length == 0)
+		{
+			return;
+		}
+
+		if(length > src.remaining())
+		{
+			throw new BufferUnderflowException();
+		}
+
+		ByteBuffer d = view(index, length);
+		ByteBuffer s = src.duplicate();
+		s.limit(s.position() + length);
+		d.put(s);
+		src.position(s.position());
+	}
+
+
+	/** copies length bytes from this buffer at index to the current position of dst, advancing the dst position */
+	protected void getBytes(int index, ByteBuffer dst, int length)
+	{
+		if(length == 0)
+		{
+			return;
+		}
+
+		dst.put(view(index, length));
+	}
+
+
+	/** copies length bytes from this buffer at index to a byte[] */
+	protected void getBytes(int index, byte[] dst, int dstOffset, int length)
+	{
+		if(length == 0)
+		{
+			return;
+		}
+
+		view(index, length).get(dst, dstOffset, length);
+	}
+
+
+	/**
+	 * fills the specified range with a repeating 8-byte pattern (in the buffer byte order), 8 bytes at a time.
+	 * the trailing bytes, if any, receive the leading bytes of the pattern.
+	 */
+	protected void fillBytes(int index, int length, long pattern)
+	{
+		checkRange(index, length, sizeInBytes());
+
+		int end = index + length;
+		int ix = index;
+		int last = end - BYTES_PER_LONG;
+		while(ix <= last)
+		{
+			buffer.putLong(ix, pattern);
+			ix += BYTES_PER_LONG;
+		}
+
+		boolean le = (buffer.order() == ByteOrder.LITTLE_ENDIAN);
+		int shift = le ? 0 : 56;
+		int step = le ? 8 : -8;
+		while(ix < end)
+		{
+			buffer.put(ix++, (byte)(pattern >>> shift));
+			shift += step;
+		}
+	}
+
+
+	/** compares the specified ranges of two buffers, in non-constant time */
+	protected boolean sameBytes(int index, DirectArrayBase other, int otherIndex, int length)
+	{
+		if(length == 0)
+		{
+			return true;
+		}
+
+		ByteBuffer a = view(index, length);
+		ByteBuffer b = other.view(otherIndex, length);
+		return (a.mismatch(b) < 0);
+	}
+
+
+	protected int sizeInBytes()
+	{
+		checkNotDestroyed();
+		return buffer.capacity();
+	}
+
+
 	public int position()
 	{
 		return buffer.position();
 	}
-	
-	
+
+
 	protected void checkWriteable()
 	{
+		checkNotDestroyed();
+		
 		if(readonly)
 		{
 			throw new UnsupportedOperationException("this buffer is read-only");
 		}
 	}
+
+
+	protected static void checkRange(int offset, int length, int size)
+	{
+		if((offset < 0) || (length < 0) || (offset > size - length))
+		{
+			throw new IndexOutOfBoundsException("offset=" + offset + " length=" + length + " size=" + size);
+		}
+	}
+
+
+	protected final void checkNotDestroyed()
+	{
+		if(destroyed)
+		{
+			throw new IllegalStateException("used after destroy()");
+		}
+	}
+	
 	
+	public boolean isDestroyed()
+	{
+		return destroyed;
+	}
 
+
+	/** zeroes the memory, does nothing if already destroyed or if this is a slice */
 	public void zero()
 	{
-		int sz = sizeInBytes();
-		byte zero = (byte)0;
-		for(int i=0; i<sz; i++)
+		if(!destroyed && !slice)
+		{
+			fillBytes(0, sizeInBytes(), 0L);
+		}
+	}
+	
+	
+	/** 
+	 * zeroes the memory and invalidates this instance and its views.
+	 * the memory is released right away unless the eager free is disabled, see MemoryBackend.isEagerFree().
+	 * must not be called while other threads are accessing this instance or its views.
+	 */
+	public void destroy()
+	{
+		ArrayList<DirectArrayBase> vs;
+		ByteBuffer b;
+		synchronized(this)
+		{
+			if(destroyed)
+			{
+				return;
+			}
+			
+			zero();
+			
+			vs = views;
+			views = null;
+			b = buffer;
+			buffer = DESTROYED;
+			destroyed = true;
+		}
+		
+		if(vs != null)
+		{
+			for(DirectArrayBase v: vs)
+			{
+				v.parent = null;
+				v.destroy();
+			}
+		}
+		
+		DirectArrayBase p = parent;
+		if(p != null)
+		{
+			parent = null;
+			p.removeView(this);
+		}
+		
+		if(owner && MemoryBackend.isEagerFree())
 		{
-			buffer.put(i, zero);
+			MemoryBackend.get().free(b);
 		}
 	}
+	
+	
+	/** same as destroy() */
+	public void close()
+	{
+		destroy();
+	}
 }
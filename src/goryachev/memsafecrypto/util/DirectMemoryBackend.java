@@ -0,0 +1,68 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.util;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+
+/**
+ * The default MemoryBackend: ByteBuffer.allocateDirect(),
+ * with the native memory released by the Cleaner when the buffer is garbage collected,
+ * or right away by free() via sun.misc.Unsafe.invokeCleaner() when available
+ * (unless disabled, see MemoryBackend.EAGER_FREE_PROPERTY).
+ */
+final class DirectMemoryBackend
+	extends MemoryBackend
+{
+	private static final Object unsafe;
+	private static final Method invokeCleaner;
+	static
+	{
+		Object u = null;
+		Method m = null;
+		try
+		{
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			u = f.get(null);
+			m = c.getMethod("invokeCleaner", ByteBuffer.class);
+		}
+		catch(Throwable e)
+		{
+			log.warn("invokeCleaner is not available, the memory will be released by the garbage collector", e);
+			u = null;
+			m = null;
+		}
+		unsafe = u;
+		invokeCleaner = m;
+	}
+	
+	
+	public ByteBuffer allocate(int capacity)
+	{
+		return ByteBuffer.allocateDirect(capacity);
+	}
+	
+	
+	public void free(ByteBuffer b)
+	{
+		if(invokeCleaner != null)
+		{
+			try
+			{
+				invokeCleaner.invoke(unsafe, b);
+			}
+			catch(Throwable e)
+			{
+				log.error(e);
+			}
+		}
+	}
+	
+	
+	public String getName()
+	{
+		return DIRECT;
+	}
+}
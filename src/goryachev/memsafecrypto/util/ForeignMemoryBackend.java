@@ -0,0 +1,353 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.util;
+import java.lang.invoke.MethodHandle;
+import java.lang.ref.Cleaner;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * MemoryBackend based on the Foreign Function and Memory API (java.lang.foreign, JDK 21+).
+ * 
+ * Similarly to the OpenSSL secure heap, the memory is obtained from the C library in large chunks,
+ * which on Linux are locked with mlock() so they are never swapped out, and excluded from core dumps
+ * with madvise(MADV_DONTDUMP).  Locking the whole chunk at once avoids fragmenting the process memory
+ * map, which would otherwise quickly exhaust vm.max_map_count.
+ * 
+ * Small blocks are carved out of the chunks using power-of-two size classes.  When the buffer is freed
+ * or becomes unreachable, the block is zeroed and returned to the free list for its size class.
+ * The chunks are retained for the lifetime of the process.
+ * Large blocks get their own page-aligned allocation, which is released with free().
+ * 
+ * Since this memory is not accounted for by the garbage collector, the buffers are expected to be
+ * released with free() (see MemoryBackend.EAGER_FREE_PROPERTY).  A buffer which becomes unreachable
+ * without being freed is released by the Cleaner whenever the garbage collector gets to it.
+ * 
+ * The API is accessed via reflection in order to keep the source compatible with older JDKs.
+ * A warning about a restricted method is printed by the JVM unless --enable-native-access=ALL-UNNAMED
+ * is specified.
+ */
+final class ForeignMemoryBackend
+	extends MemoryBackend
+{
+	private static final int MADV_DONTDUMP = 16;
+	private static final int CHUNK_SIZE = 1024 * 1024;
+	private static final int MIN_CLASS = 4; // 16 bytes
+	private static final int MAX_CLASS = 16; // 64 KB
+	private static final Cleaner cleaner = Cleaner.create();
+	private final ConcurrentLinkedQueue<Object>[] freeLists;
+	private final ConcurrentHashMap<Long,Cleaner.Cleanable> live = new ConcurrentHashMap<>();
+	private final Method ofBuffer;
+	private final Method address;
+	private final Method reinterpret;
+	private final Method fill;
+	private final Method asSlice;
+	private final Method asByteBuffer;
+	private final MethodHandle alignedAlloc;
+	private final MethodHandle free;
+	private final MethodHandle mlock;
+	private final MethodHandle munlock;
+	private final MethodHandle madvise;
+	private final long pageSize;
+	private volatile boolean lockFailed;
+	private Object chunk;
+	private long chunkOffset = CHUNK_SIZE;
+	
+	
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public ForeignMemoryBackend() throws Throwable
+	{
+		Class<?> segmentClass = Class.forName("java.lang.foreign.MemorySegment");
+		ofBuffer = segmentClass.getMethod("ofBuffer", Buffer.class);
+		address = segmentClass.getMethod("address");
+		reinterpret = segmentClass.getMethod("reinterpret", long.class);
+		fill = segmentClass.getMethod("fill", byte.class);
+		asSlice = segmentClass.getMethod("asSlice", long.class, long.class);
+		asByteBuffer = segmentClass.getMethod("asByteBuffer");
+		
+		Linker linker = new Linker();
+		alignedAlloc = linker.downcall("aligned_alloc", "ADDRESS", "JAVA_LONG", "JAVA_LONG");
+		free = linker.downcall("free", null, "ADDRESS");
+		if((alignedAlloc == null) || (free == null))
+		{
+			throw new UnsupportedOperationException("aligned_alloc() is not available");
+		}
+		
+		// the addresses are passed to mlock() and madvise() as longs
+		boolean linux = System.getProperty("os.name", "").toLowerCase().startsWith("linux");
+		boolean is64 = "64".equals(System.getProperty("sun.arch.data.model"));
+		if(linux && is64)
+		{
+			MethodHandle getpagesize = linker.downcall("getpagesize", "JAVA_INT");
+			pageSize = (getpagesize == null) ? 4096 : (int)getpagesize.invoke();
+			mlock = linker.downcall("mlock", "JAVA_INT", "JAVA_LONG", "JAVA_LONG");
+			munlock = linker.downcall("munlock", "JAVA_INT", "JAVA_LONG", "JAVA_LONG");
+			madvise = linker.downcall("madvise", "JAVA_INT", "JAVA_LONG", "JAVA_LONG", "JAVA_INT");
+		}
+		else
+		{
+			pageSize = 4096;
+			mlock = null;
+			munlock = null;
+			madvise = null;
+		}
+		
+		freeLists = new ConcurrentLinkedQueue[MAX_CLASS + 1];
+		for(int i=MIN_CLASS; i<=MAX_CLASS; i++)
+		{
+			freeLists[i] = new ConcurrentLinkedQueue<>();
+		}
+		
+		// fail early rather than on the first allocation
+		free(allocate(1));
+	}
+	
+	
+	public String getName()
+	{
+		return FOREIGN;
+	}
+	
+	
+	public ByteBuffer allocate(int capacity)
+	{
+		int sizeClass = Math.max(MIN_CLASS, 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity) - 1));
+		long size = (sizeClass > MAX_CLASS) ? (capacity + pageSize - 1) / pageSize * pageSize : (1L << sizeClass);
+		
+		try
+		{
+			Object block;
+			long lockedAddress = 0;
+			if(sizeClass > MAX_CLASS)
+			{
+				block = allocateNative(size);
+				lockedAddress = lock(block, size) ? (long)address.invoke(block) : 0;
+			}
+			else
+			{
+				block = freeLists[sizeClass].poll();
+				if(block == null)
+				{
+					block = carve(size);
+				}
+			}
+			
+			ByteBuffer b = (ByteBuffer)asByteBuffer.invoke(asSlice.invoke(block, 0L, (long)capacity));
+			b.order(ByteOrder.BIG_ENDIAN);
+			
+			long addr = (long)address.invoke(block);
+			live.put(addr, cleaner.register(b, new Release(addr, block, sizeClass, lockedAddress, size)));
+			return b;
+		}
+		catch(OutOfMemoryError e)
+		{
+			throw e;
+		}
+		catch(Throwable e)
+		{
+			throw new Error(e);
+		}
+	}
+	
+	
+	public void free(ByteBuffer b)
+	{
+		try
+		{
+			long addr = (long)address.invoke(ofBuffer.invoke(null, b));
+			Cleaner.Cleanable c = live.get(addr);
+			if(c != null)
+			{
+				// runs the release action at most once
+				c.clean();
+			}
+		}
+		catch(Throwable e)
+		{
+			log.error(e);
+		}
+	}
+	
+	
+	/** carves a block from the current chunk, allocating a new chunk when needed */
+	private synchronized Object carve(long size) throws Throwable
+	{
+		if(chunkOffset + size > CHUNK_SIZE)
+		{
+			// the remainder of the old chunk is abandoned
+			chunk = allocateNative(CHUNK_SIZE);
+			chunkOffset = 0;
+			lock(chunk, CHUNK_SIZE);
+		}
+		
+		Object block = asSlice.invoke(chunk, chunkOffset, size);
+		chunkOffset += size;
+		return block;
+	}
+	
+	
+	/** returns a zeroed, page-aligned native segment */
+	private Object allocateNative(long size) throws Throwable
+	{
+		Object segment = alignedAlloc.invoke(pageSize, size);
+		if((long)address.invoke(segment) == 0)
+		{
+			throw new OutOfMemoryError("failed to allocate " + size + " bytes");
+		}
+		
+		segment = reinterpret.invoke(segment, size);
+		fill.invoke(segment, (byte)0);
+		return segment;
+	}
+	
+	
+	/** locks the page-aligned segment and excludes it from core dumps, returns true if locked */
+	private boolean lock(Object segment, long size) throws Throwable
+	{
+		if(mlock == null)
+		{
+			return false;
+		}
+		
+		long addr = (long)address.invoke(segment);
+		madvise.invoke(addr, size, MADV_DONTDUMP);
+		
+		if((int)mlock.invoke(addr, size) == 0)
+		{
+			return true;
+		}
+		
+		if(!lockFailed)
+		{
+			lockFailed = true;
+			log.warn("mlock failed, check RLIMIT_MEMLOCK (ulimit -l)");
+		}
+		return false;
+	}
+	
+	
+	//
+	
+	
+	/** Cleaner action which must not reference the buffer */
+	protected class Release
+		implements Runnable
+	{
+		private final long addr;
+		private final Object block;
+		private final int sizeClass;
+		private final long lockedAddress;
+		private final long size;
+		
+		
+		/** lockedAddress is 0 if the block should not be unlocked */
+		public Release(long addr, Object block, int sizeClass, long lockedAddress, long size)
+		{
+			this.addr = addr;
+			this.block = block;
+			this.sizeClass = sizeClass;
+			this.lockedAddress = lockedAddress;
+			this.size = size;
+		}
+		
+		
+		public void run()
+		{
+			live.remove(addr);
+			
+			try
+			{
+				if(sizeClass > MAX_CLASS)
+				{
+					if(lockedAddress != 0)
+					{
+						munlock.invoke(lockedAddress, size);
+					}
+					free.invoke(block);
+				}
+				else
+				{
+					fill.invoke(block, (byte)0);
+					freeLists[sizeClass].offer(block);
+				}
+			}
+			catch(Throwable e)
+			{
+				log.error(e);
+			}
+		}
+	}
+	
+	
+	//
+	
+	
+	/** creates downcall method handles for the functions in the C standard library */
+	protected static class Linker
+	{
+		private final Object linker;
+		private final Object lookup;
+		private final Class<?> layoutClass;
+		private final Class<?> descriptorClass;
+		private final Method find;
+		private final Method downcallHandle;
+		private final Object noOptions;
+		
+		
+		public Linker() throws Throwable
+		{
+			Class<?> linkerClass = Class.forName("java.lang.foreign.Linker");
+			Class<?> optionClass = Class.forName("java.lang.foreign.Linker$Option");
+			Class<?> lookupClass = Class.forName("java.lang.foreign.SymbolLookup");
+			Class<?> segmentClass = Class.forName("java.lang.foreign.MemorySegment");
+			layoutClass = Class.forName("java.lang.foreign.MemoryLayout");
+			descriptorClass = Class.forName("java.lang.foreign.FunctionDescriptor");
+			noOptions = Array.newInstance(optionClass, 0);
+			
+			linker = linkerClass.getMethod("nativeLinker").invoke(null);
+			lookup = linkerClass.getMethod("defaultLookup").invoke(linker);
+			find = lookupClass.getMethod("find", String.class);
+			downcallHandle = linkerClass.getMethod("downcallHandle", segmentClass, descriptorClass, noOptions.getClass());
+		}
+		
+		
+		/** returns the method handle, or null if the function is not found.  null returnType means void */
+		public MethodHandle downcall(String name, String returnType, String ... argTypes) throws Throwable
+		{
+			Optional<?> symbol = (Optional<?>)find.invoke(lookup, name);
+			if(!symbol.isPresent())
+			{
+				return null;
+			}
+			
+			Object args = Array.newInstance(layoutClass, argTypes.length);
+			for(int i=0; i<argTypes.length; i++)
+			{
+				Array.set(args, i, layout(argTypes[i]));
+			}
+			
+			Object desc;
+			if(returnType == null)
+			{
+				desc = descriptorClass.getMethod("ofVoid", args.getClass()).invoke(null, args);
+			}
+			else
+			{
+				desc = descriptorClass.getMethod("of", layoutClass, args.getClass()).invoke(null, layout(returnType), args);
+			}
+			return (MethodHandle)downcallHandle.invoke(linker, symbol.get(), desc, noOptions);
+		}
+		
+		
+		private static Object layout(String name) throws Throwable
+		{
+			return Class.forName("java.lang.foreign.ValueLayout").getField(name).get(null);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 // Copyright © 2011-2022 Andy Goryachev <andy@goryachev.com>
 package goryachev.memsafecrypto.util;
 import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.SecureArena;
 import goryachev.memsafecrypto.bc.Blake2bDigest;
 import goryachev.memsafecrypto.salsa.XSalsaTools;
 import java.security.SecureRandom;
@@ -27,42 +28,42 @@ public final class MemCrypt
 		int encryptedLength = data.length() + XSalsaTools.NONCE_LENGTH_BYTES;
 		CByteArray out = new CByteArray(encryptedLength);
 
-		CByteArray nonce = new CByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
-		CUtils.nextBytes(new SecureRandom(), nonce);
-		
-		out.write(nonce);
-		
-		CByteArray key = generateKey();
-		try
+		try(SecureArena arena = new SecureArena())
 		{
+			CByteArray nonce = arena.newByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+			CUtils.nextBytes(new SecureRandom(), nonce);
+			
+			out.write(nonce);
+			
+			CByteArray key = generateKey(arena);
 			XSalsaTools.encryptXSalsa20(key, nonce, data, out, XSalsaTools.NONCE_LENGTH_BYTES, data.length());
 		}
-		finally
-		{
-			key.zero();
-		}
 		
 		return out;
 	}
 	
 	
 	public static final CByteArray decrypt(CByteArray data) throws Exception
+	{
+		return decrypt(null, data);
+	}
+	
+	
+	/** decrypts the data into an array allocated in the specified arena, or a standalone array if the arena is null */
+	public static final CByteArray decrypt(SecureArena outputArena, CByteArray data) throws Exception
 	{
 		int decryptedLength = data.length() - XSalsaTools.NONCE_LENGTH_BYTES;
+		CByteArray out = SecureArena.newByteArray(outputArena, decryptedLength);
 		
-		CByteArray nonce = new CByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
-		nonce.copyFrom(data, 0, nonce.length(), 0);
-		
-		CByteArray out = new CByteArray(decryptedLength);
-		
-		CByteArray key = generateKey();
-		try
+		CByteArray nonce = data.readOnlySlice(0, XSalsaTools.NONCE_LENGTH_BYTES);
+		try(SecureArena arena = new SecureArena())
 		{
+			CByteArray key = generateKey(arena);
 			XSalsaTools.decryptXSalsa20(key, nonce, XSalsaTools.NONCE_LENGTH_BYTES, decryptedLength, data, out);
 		}
 		finally
 		{
-			key.zero();
+			nonce.destroy();
 		}
 		
 		return out;
@@ -70,9 +71,9 @@ public final class MemCrypt
 	
 	
 	/** it is expected this key will not change for duration of the program */
-	private static final CByteArray generateKey() throws Exception
+	private static final CByteArray generateKey(SecureArena arena) throws Exception
 	{
-		Blake2bDigest d = new Blake2bDigest(XSalsaTools.KEY_LENGTH_BYTES * 8);
+		Blake2bDigest d = new Blake2bDigest(XSalsaTools.KEY_LENGTH_BYTES * 8, arena);
 		
 		d.update((byte)staticEntropy1);
 		d.update((byte)staticEntropy2);
@@ -82,7 +83,7 @@ public final class MemCrypt
 		update(d, String.class.hashCode());
 		update(d, MemCrypt.class.hashCode());
 		
-		CByteArray b = new CByteArray(d.getDigestSize());
+		CByteArray b = arena.newByteArray(d.getDigestSize());
 		d.doFinal(b, 0);
 		b.setReadOnly();
 		return b;
@@ -0,0 +1,82 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.util;
+import goryachev.common.log.Log;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Allocates native memory for DirectArrayBase.
+ * 
+ * The backend is selected once, at startup, with the "memsafecrypto.backend" system property:
+ * <pre>
+ * direct  - ByteBuffer.allocateDirect() (default)
+ * foreign - locked (mlock) memory excluded from core dumps (MADV_DONTDUMP) on Linux,
+ *           allocated via the Foreign Function and Memory API.  Requires JDK 21+,
+ *           falls back to "direct" otherwise.
+ * </pre>
+ * 
+ * By default, a destroyed DirectArrayBase zeroes its memory and releases it right away via free(),
+ * so the application must guarantee that a destroyed array is no longer in use by other threads.
+ * Setting the "memsafecrypto.eagerFree" system property to false leaves the release to the garbage
+ * collector (Cleaner) instead.
+ */
+public abstract class MemoryBackend
+{
+	/** allocates zero-filled memory of the specified capacity, big-endian */
+	public abstract ByteBuffer allocate(int capacity);
+	
+	/** 
+	 * releases the memory obtained from allocate() without waiting for the garbage collector.
+	 * the buffer must not be accessed afterwards.
+	 */
+	public abstract void free(ByteBuffer b);
+	
+	/** returns the backend name */
+	public abstract String getName();
+	
+	//
+	
+	public static final String PROPERTY = "memsafecrypto.backend";
+	public static final String DIRECT = "direct";
+	public static final String FOREIGN = "foreign";
+	public static final String EAGER_FREE_PROPERTY = "memsafecrypto.eagerFree";
+	protected static final Log log = Log.get("MemoryBackend");
+	private static final MemoryBackend instance = init(System.getProperty(PROPERTY, DIRECT));
+	private static final boolean eagerFree = Boolean.parseBoolean(System.getProperty(EAGER_FREE_PROPERTY, "true"));
+	
+	
+	/** returns the backend selected at startup */
+	public static MemoryBackend get()
+	{
+		return instance;
+	}
+	
+	
+	/** returns true (default) if destroy() releases the memory right away, see EAGER_FREE_PROPERTY */
+	public static boolean isEagerFree()
+	{
+		return eagerFree;
+	}
+	
+	
+	protected static MemoryBackend init(String name)
+	{
+		if(FOREIGN.equals(name))
+		{
+			try
+			{
+				return new ForeignMemoryBackend();
+			}
+			catch(Throwable e)
+			{
+				log.warn("foreign memory backend is not available, using direct", e);
+			}
+		}
+		else if(!DIRECT.equals(name))
+		{
+			log.warn("unknown memory backend: " + name + ", using direct");
+		}
+		
+		return new DirectMemoryBackend();
+	}
+}
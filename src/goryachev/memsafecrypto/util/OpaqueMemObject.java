@@ -115,7 +115,7 @@ public abstract class OpaqueMemObject
 		}
 		finally
 		{
-			b.zero();
+			b.destroy();
 		}
 	}
 	
@@ -159,7 +159,7 @@ public abstract class OpaqueMemObject
 	
 	public final void clear()
 	{
-		Crypto.zero(encrypted);
+		Crypto.destroy(encrypted);
 		encrypted = null;
 	}
 	
@@ -0,0 +1,257 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.util;
+import goryachev.memsafecrypto.Crypto;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+
+/**
+ * InputStream which reads the underlying stream ahead in a background thread,
+ * filling a ring of buffers while the consumer processes the data already read,
+ * so the I/O latency overlaps with the computation.
+ * <p>
+ * The buffers hold the data read from the underlying stream, which is expected to be ciphertext.
+ * The buffers are zeroed when the stream is closed.
+ * <p>
+ * This class is not synchronized.
+ */
+public class ReadAheadInputStream
+	extends InputStream
+{
+	public static final int DEFAULT_BUFFER_SIZE = 65536;
+	public static final int DEFAULT_BUFFER_COUNT = 4;
+	/** milliseconds to wait before retrying when the underlying stream returns no data */
+	private static final int RETRY_DELAY = 10;
+	private final InputStream in;
+	private final Chunk[] chunks;
+	private final ArrayBlockingQueue<Chunk> free;
+	private final ArrayBlockingQueue<Chunk> full;
+	private final Thread thread;
+	private volatile boolean closed;
+	/** the chunk being read */
+	private Chunk current;
+	private int position;
+	/** the end of stream or the error reported by the reader thread */
+	private Chunk last;
+
+
+	public ReadAheadInputStream(InputStream in, int bufferSize, int bufferCount)
+	{
+		if(bufferSize < 1)
+		{
+			throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+		}
+		else if(bufferCount < 1)
+		{
+			throw new IllegalArgumentException("bufferCount must be positive: " + bufferCount);
+		}
+
+		this.in = in;
+		this.chunks = new Chunk[bufferCount];
+		this.free = new ArrayBlockingQueue<>(bufferCount);
+		// one extra slot for the end of stream marker
+		this.full = new ArrayBlockingQueue<>(bufferCount + 1);
+
+		for(int i=0; i<bufferCount; i++)
+		{
+			chunks[i] = new Chunk(bufferSize);
+			free.add(chunks[i]);
+		}
+
+		thread = new Thread(this::readAhead, "ReadAheadInputStream");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	public ReadAheadInputStream(InputStream in)
+	{
+		this(in, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+	}
+
+
+	/** the reader thread: fills the free buffers and passes them to the consumer */
+	private void readAhead()
+	{
+		try
+		{
+			while(!closed)
+			{
+				Chunk c = free.take();
+				int rd = in.read(c.data, 0, c.data.length);
+				while(rd == 0)
+				{
+					// never pass an empty chunk to the consumer, back off instead
+					Thread.sleep(RETRY_DELAY);
+					rd = in.read(c.data, 0, c.data.length);
+				}
+
+				if(rd < 0)
+				{
+					free.add(c);
+					full.put(new Chunk(null));
+					return;
+				}
+
+				c.length = rd;
+				full.put(c);
+			}
+		}
+		catch(InterruptedException e)
+		{
+			// closed
+		}
+		catch(Throwable e)
+		{
+			if(!closed)
+			{
+				Chunk c = new Chunk(null);
+				c.error = (e instanceof IOException) ? (IOException)e : new IOException(e);
+				full.offer(c);
+			}
+		}
+	}
+
+
+	public int read() throws IOException
+	{
+		if(!next())
+		{
+			return -1;
+		}
+
+		return current.data[position++] & 0xff;
+	}
+
+
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if(len == 0)
+		{
+			return 0;
+		}
+
+		if(!next())
+		{
+			return -1;
+		}
+
+		int sz = Math.min(len, current.length - position);
+		System.arraycopy(current.data, position, b, off, sz);
+		position += sz;
+		return sz;
+	}
+
+
+	public int available() throws IOException
+	{
+		return (current == null) ? 0 : current.length - position;
+	}
+
+
+	/** makes sure the current chunk has data, waiting for the reader thread.  returns false at the end of stream */
+	private boolean next() throws IOException
+	{
+		if(closed)
+		{
+			throw new IOException("stream closed");
+		}
+
+		while((current == null) || (position == current.length))
+		{
+			if(current != null)
+			{
+				free.add(current);
+				current = null;
+			}
+
+			if(last == null)
+			{
+				try
+				{
+					Chunk c = full.take();
+					if(c.data != null)
+					{
+						current = c;
+						position = 0;
+						continue;
+					}
+					last = c;
+				}
+				catch(InterruptedException e)
+				{
+					throw new InterruptedIOException();
+				}
+			}
+
+			if(last.error != null)
+			{
+				throw last.error;
+			}
+			return false;
+		}
+		return true;
+	}
+
+
+	/** stops the reader thread, closes the underlying stream, and zeroes the buffers */
+	public void close() throws IOException
+	{
+		if(closed)
+		{
+			return;
+		}
+
+		closed = true;
+		thread.interrupt();
+		try
+		{
+			// unblocks the reader thread
+			in.close();
+		}
+		finally
+		{
+			try
+			{
+				thread.join();
+			}
+			catch(InterruptedException e)
+			{
+				throw new InterruptedIOException();
+			}
+			finally
+			{
+				for(Chunk c: chunks)
+				{
+					Crypto.zero(c.data);
+				}
+				current = null;
+			}
+		}
+	}
+
+
+	//
+
+
+	private static class Chunk
+	{
+		public final byte[] data;
+		public int length;
+		public IOException error;
+
+
+		public Chunk(int size)
+		{
+			this(new byte[size]);
+		}
+
+
+		public Chunk(byte[] data)
+		{
+			this.data = data;
+		}
+	}
+}
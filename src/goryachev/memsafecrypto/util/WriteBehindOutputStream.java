@@ -0,0 +1,298 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.util;
+import goryachev.memsafecrypto.Crypto;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+
+/**
+ * OutputStream which writes to the underlying stream in a background thread,
+ * so the producer fills the next buffer in a ring while the previous ones are being written out.
+ * When all the buffers are in flight, the producer waits for the oldest one to be written.
+ * <p>
+ * A failure to write is reported by the next call to write(), flush(), or close().
+ * The buffers hold the data written to the underlying stream, which is expected to be ciphertext.
+ * The buffers are zeroed when the stream is closed.
+ * <p>
+ * This class is not synchronized.
+ */
+public class WriteBehindOutputStream
+	extends OutputStream
+{
+	public static final int DEFAULT_BUFFER_SIZE = 65536;
+	public static final int DEFAULT_BUFFER_COUNT = 4;
+	private static final Chunk STOP = new Chunk(0);
+	private final OutputStream os;
+	private final Chunk[] chunks;
+	private final ArrayBlockingQueue<Chunk> free;
+	private final ArrayBlockingQueue<Chunk> full;
+	private final Thread thread;
+	private volatile IOException error;
+	/** the chunk being filled */
+	private Chunk current;
+	private boolean closed;
+
+
+	public WriteBehindOutputStream(OutputStream os, int bufferSize, int bufferCount)
+	{
+		if(bufferSize < 1)
+		{
+			throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+		}
+		else if(bufferCount < 1)
+		{
+			throw new IllegalArgumentException("bufferCount must be positive: " + bufferCount);
+		}
+
+		this.os = os;
+		this.chunks = new Chunk[bufferCount];
+		this.free = new ArrayBlockingQueue<>(bufferCount);
+		// one extra slot for the stop marker
+		this.full = new ArrayBlockingQueue<>(bufferCount + 1);
+
+		for(int i=0; i<bufferCount; i++)
+		{
+			chunks[i] = new Chunk(bufferSize);
+			free.add(chunks[i]);
+		}
+
+		thread = new Thread(this::writeBehind, "WriteBehindOutputStream");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	public WriteBehindOutputStream(OutputStream os)
+	{
+		this(os, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+	}
+
+
+	/** the writer thread: writes out the filled buffers in order and returns them to the producer */
+	private void writeBehind()
+	{
+		try
+		{
+			for(;;)
+			{
+				Chunk c = full.take();
+				if(c == STOP)
+				{
+					return;
+				}
+
+				try
+				{
+					if(error == null)
+					{
+						os.write(c.data, 0, c.length);
+					}
+				}
+				catch(Throwable e)
+				{
+					// keep returning the buffers so the producer never blocks
+					error = (e instanceof IOException) ? (IOException)e : new IOException(e);
+				}
+				finally
+				{
+					free.add(c);
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			// closed
+		}
+	}
+
+
+	public void write(int b) throws IOException
+	{
+		prepare();
+		current.data[current.length++] = (byte)b;
+	}
+
+
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		while(len > 0)
+		{
+			prepare();
+
+			int sz = Math.min(len, current.data.length - current.length);
+			System.arraycopy(b, off, current.data, current.length, sz);
+			current.length += sz;
+			off += sz;
+			len -= sz;
+		}
+	}
+
+
+	/** makes sure the current buffer has space, passing it to the writer thread when it is full */
+	private void prepare() throws IOException
+	{
+		checkError();
+
+		if(current == null)
+		{
+			current = take();
+		}
+		else if(current.length == current.data.length)
+		{
+			submit();
+			current = take();
+		}
+	}
+
+
+	private void submit() throws IOException
+	{
+		try
+		{
+			full.put(current);
+		}
+		catch(InterruptedException e)
+		{
+			throw new InterruptedIOException();
+		}
+		finally
+		{
+			current = null;
+		}
+	}
+
+
+	private Chunk take() throws IOException
+	{
+		try
+		{
+			Chunk c = free.take();
+			c.length = 0;
+			return c;
+		}
+		catch(InterruptedException e)
+		{
+			throw new InterruptedIOException();
+		}
+	}
+
+
+	private void checkError() throws IOException
+	{
+		if(closed)
+		{
+			throw new IOException("stream closed");
+		}
+		else if(error != null)
+		{
+			throw error;
+		}
+	}
+
+
+	/** waits until all the buffered data is written out */
+	private void drain() throws IOException
+	{
+		if((current != null) && (current.length > 0))
+		{
+			submit();
+		}
+
+		// the writer thread returns every buffer once it is written
+		int n = chunks.length - ((current == null) ? 0 : 1);
+		Chunk[] taken = new Chunk[n];
+		try
+		{
+			for(int i=0; i<n; i++)
+			{
+				taken[i] = take();
+			}
+		}
+		finally
+		{
+			for(Chunk c: taken)
+			{
+				if(c != null)
+				{
+					free.add(c);
+				}
+			}
+		}
+	}
+
+
+	/** waits until all the buffered data is written out, and flushes the underlying stream */
+	public void flush() throws IOException
+	{
+		checkError();
+		drain();
+		checkError();
+		os.flush();
+	}
+
+
+	/** writes out the buffered data, stops the writer thread, closes the underlying stream, and zeroes the buffers */
+	public void close() throws IOException
+	{
+		if(closed)
+		{
+			return;
+		}
+
+		try
+		{
+			drain();
+			if(error != null)
+			{
+				throw error;
+			}
+			os.flush();
+		}
+		finally
+		{
+			closed = true;
+			full.add(STOP);
+			try
+			{
+				os.close();
+			}
+			finally
+			{
+				try
+				{
+					thread.join();
+				}
+				catch(InterruptedException e)
+				{
+					throw new InterruptedIOException();
+				}
+				finally
+				{
+					for(Chunk c: chunks)
+					{
+						Crypto.zero(c.data);
+					}
+					current = null;
+				}
+			}
+		}
+	}
+
+
+	//
+
+
+	private static class Chunk
+	{
+		public final byte[] data;
+		public int length;
+
+
+		public Chunk(int size)
+		{
+			data = new byte[size];
+		}
+	}
+}
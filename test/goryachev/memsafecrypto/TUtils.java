@@ -2,6 +2,8 @@
 package goryachev.memsafecrypto;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Random;
 
 
@@ -26,6 +28,26 @@ public class TUtils
 	}
 	
 	
+	/** 
+	 * returns a buffer containing the data between position and limit, with one of the four variants
+	 * of direct/heap and big/little endian, surrounded by random bytes.
+	 */
+	public static ByteBuffer toBuffer(byte[] data, int variant)
+	{
+		Random r = new Random();
+		int pad = r.nextInt(16);
+		int cap = pad + data.length + r.nextInt(16);
+		ByteBuffer b = ((variant & 1) == 0) ? ByteBuffer.allocateDirect(cap) : ByteBuffer.allocate(cap);
+		b.order(((variant & 2) == 0) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		b.put(rnd(cap));
+		b.position(pad);
+		b.put(data);
+		b.limit(pad + data.length);
+		b.position(pad);
+		return b;
+	}
+
+
 	public static OutputStream nullOutputStream()
 	{
 		return new OutputStream()
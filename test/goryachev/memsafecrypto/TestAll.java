@@ -2,11 +2,25 @@
 package goryachev.memsafecrypto;
 import goryachev.common.test.TF;
 import goryachev.memsafecrypto.bc.TestArgon2;
+import goryachev.memsafecrypto.bc.TestPoly1305;
+import goryachev.memsafecrypto.bc.TestSalsaCore;
 import goryachev.memsafecrypto.bc.TestScrypt;
+import goryachev.memsafecrypto.bc.salsa.TestSalsa20Engine;
+import goryachev.memsafecrypto.bc.salsa.TestXSalsa20Key;
+import goryachev.memsafecrypto.bc.salsa.TestXSalsa20Poly1305Engine;
 import goryachev.memsafecrypto.bc.salsa.TestXSalsa20Poly1305Streams;
 import goryachev.memsafecrypto.bc.salsa.TestXSalsaTools;
+import goryachev.memsafecrypto.salsa.TestXSalsa20Poly1305Pipeline;
+import goryachev.memsafecrypto.salsa.TestXSalsa20Poly1305Sealer;
+import goryachev.memsafecrypto.salsa.TestXSalsa20Poly1305Segments;
+import goryachev.memsafecrypto.salsa.TestXSalsaAsyncFile;
+import goryachev.memsafecrypto.salsa.TestXSalsaChannels;
+import goryachev.memsafecrypto.salsa.TestXSalsaParallel;
 import goryachev.memsafecrypto.salsa.TestXSalsaRandomAccessFile;
+import goryachev.memsafecrypto.util.TestDirectArrayBase;
 import goryachev.memsafecrypto.util.TestMemCrypt;
+import goryachev.memsafecrypto.util.TestMemoryBackend;
+import goryachev.memsafecrypto.util.TestReadAheadWriteBehind;
 
 
 /**
@@ -22,9 +36,24 @@ public class TestAll
 			TestBlake2b.class,
 			TestCByteArrayOutputStream.class,
 			TestCCharArray.class,
+			TestDirectArrayBase.class,
 			TestMemCrypt.class,
+			TestMemoryBackend.class,
+			TestPoly1305.class,
+			TestReadAheadWriteBehind.class,
+			TestSalsa20Engine.class,
+			TestSalsaCore.class,
 			TestScrypt.class,
+			TestSecureArena.class,
+			TestXSalsa20Key.class,
+			TestXSalsa20Poly1305Engine.class,
+			TestXSalsa20Poly1305Pipeline.class,
+			TestXSalsa20Poly1305Sealer.class,
+			TestXSalsa20Poly1305Segments.class,
 			TestXSalsa20Poly1305Streams.class,
+			TestXSalsaAsyncFile.class,
+			TestXSalsaChannels.class,
+			TestXSalsaParallel.class,
 			TestXSalsaRandomAccessFile.class,
 			TestXSalsaTools.class
 		);
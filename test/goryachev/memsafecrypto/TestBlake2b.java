@@ -2,6 +2,7 @@
 package goryachev.memsafecrypto;
 import goryachev.common.test.TF;
 import goryachev.common.test.Test;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -50,6 +51,18 @@ public class TestBlake2b
 				TF.eq(r1, expected);
 				TF.eq(r2.toByteArray(), expected);
 				TF.eq(r3.toByteArray(), expected);
+				
+				ByteBuffer in = TUtils.toBuffer(data, (bits / 8) % 4);
+				int end = in.limit();
+				goryachev.memsafecrypto.bc.Blake2bDigest b4 = new goryachev.memsafecrypto.bc.Blake2bDigest(bits);
+				in.limit(in.position() + len / 3);
+				b4.update(in);
+				in.limit(end);
+				b4.update(in);
+				TF.eq(in.remaining(), 0);
+				byte[] r4 = new byte[bits/8];
+				b4.doFinal(r4, 0);
+				TF.eq(r4, expected);
 			}
 		}
 	}
@@ -2,6 +2,7 @@
 package goryachev.memsafecrypto;
 import goryachev.common.test.TF;
 import goryachev.common.test.Test;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -49,6 +50,22 @@ public class TestSHA256Digest
 			TF.eq(r1, expected);
 			TF.eq(r2.toByteArray(), expected);
 			TF.eq(r3.toByteArray(), expected);
+			
+			for(int variant=0; variant<4; variant++)
+			{
+				// split into two updates to cover the partial word
+				ByteBuffer in = TUtils.toBuffer(data, variant);
+				int end = in.limit();
+				goryachev.memsafecrypto.bc.SHA256Digest b4 = new goryachev.memsafecrypto.bc.SHA256Digest();
+				in.limit(in.position() + len / 3);
+				b4.update(in);
+				in.limit(end);
+				b4.update(in);
+				TF.eq(in.remaining(), 0);
+				byte[] r4 = new byte[bits/8];
+				b4.doFinal(r4, 0);
+				TF.eq(r4, expected);
+			}
 		}
 	}
 }
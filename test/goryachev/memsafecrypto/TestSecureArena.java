@@ -0,0 +1,163 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto;
+import goryachev.common.test.TF;
+import goryachev.common.test.Test;
+import goryachev.common.util.D;
+import goryachev.memsafecrypto.salsa.XSalsaTools;
+import java.util.ArrayList;
+
+
+/**
+ * Tests SecureArena.
+ */
+public class TestSecureArena
+{
+	public static void main(String[] args)
+	{
+		TF.run();
+	}
+
+
+	@Test
+	public void testAllocate()
+	{
+		ArrayList<CByteArray> arrays = new ArrayList<>();
+		ArrayList<byte[]> expected = new ArrayList<>();
+
+		try(SecureArena arena = new SecureArena())
+		{
+			for(int size=0; size<3000; size += 7)
+			{
+				byte[] b = TUtils.rnd(size);
+				CByteArray a = arena.newByteArray(size);
+				TF.eq(a.length(), size);
+				a.copyFrom(b, 0, size, 0);
+				arrays.add(a);
+				expected.add(b);
+			}
+
+			// no overlap
+			for(int i=0; i<arrays.size(); i++)
+			{
+				TF.eq(arrays.get(i).toByteArray(), expected.get(i));
+			}
+
+			CIntArray n = arena.newIntArray(5);
+			n.set(4, 0x12345678);
+			TF.eq(n.length(), 5);
+			TF.eq(n.get(4), 0x12345678);
+
+			CLongArray g = arena.newLongArray(3);
+			g.set(2, -1L);
+			TF.eq(g.length(), 3);
+			TF.eq(g.get(2), -1L);
+
+			CCharArray c = arena.newCharArray(2);
+			c.set(1, 'x');
+			TF.eq(c.length(), 2);
+			TF.eq(c.get(1), 'x');
+
+			CByteArray large = arena.newByteArray(SecureArena.SLAB_SIZE + 1);
+			large.fill((byte)1);
+			arrays.add(large);
+		}
+
+		// the arrays have been destroyed
+		for(CByteArray a: arrays)
+		{
+			TF.isTrue(a.isDestroyed());
+			try
+			{
+				a.toByteArray();
+				TF.fail();
+			}
+			catch(IllegalStateException e)
+			{
+			}
+		}
+
+		// the slab memory has been zeroed
+		try(SecureArena arena = new SecureArena())
+		{
+			CByteArray a = arena.newByteArray(SecureArena.SLAB_SIZE);
+			TF.eq(a.toByteArray(), new byte[SecureArena.SLAB_SIZE]);
+		}
+	}
+
+
+	@Test
+	public void testClosed()
+	{
+		SecureArena arena = new SecureArena();
+		arena.close();
+
+		try
+		{
+			arena.newByteArray(1);
+			TF.fail();
+		}
+		catch(IllegalStateException expected)
+		{
+		}
+	}
+
+
+	@Test
+	public void testSealOpen() throws Exception
+	{
+		CByteArray key = TUtils.rndByteArray(XSalsaTools.KEY_LENGTH_BYTES);
+		CByteArray nonce = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+		CByteArray data = TUtils.rndByteArray(1000);
+
+		CByteArray expected = XSalsaTools.encryptXSalsa20Poly1305(key, nonce, data);
+
+		try(SecureArena arena = new SecureArena())
+		{
+			CByteArray enc = XSalsaTools.encryptXSalsa20Poly1305(arena, key, nonce, 0, data, 0, data.length());
+			TF.isTrue(enc.sameContentAs(expected));
+
+			CByteArray dec = XSalsaTools.decryptXSalsa20Poly1305(arena, key, nonce, 0, enc, 0, enc.length());
+			TF.isTrue(dec.sameContentAs(data));
+		}
+	}
+
+
+	/*
+	Allocation of 4 x 32-byte arrays, 1000000 iterations:
+	allocateDirect: 3.01
+	arena: 0.52
+	*/
+	@Test
+	public void testAllocationSpeed()
+	{
+		int count = 1_000_000;
+
+		long t = System.nanoTime();
+		for(int i=0; i<count; i++)
+		{
+			for(int j=0; j<4; j++)
+			{
+				CByteArray b = new CByteArray(32);
+				b.set(0, (byte)1);
+				b.zero();
+			}
+		}
+		double direct = (System.nanoTime() - t) / 1_000_000_000.0;
+
+		t = System.nanoTime();
+		for(int i=0; i<count; i++)
+		{
+			try(SecureArena arena = new SecureArena())
+			{
+				for(int j=0; j<4; j++)
+				{
+					CByteArray b = arena.newByteArray(32);
+					b.set(0, (byte)1);
+				}
+			}
+		}
+		double arena = (System.nanoTime() - t) / 1_000_000_000.0;
+
+		D.print(String.format("\nAllocation of 4 x 32-byte arrays, %d iterations:\nallocateDirect: %.2f\narena: %.2f", count, direct, arena));
+	}
+}
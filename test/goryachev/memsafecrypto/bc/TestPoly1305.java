@@ -0,0 +1,362 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.bc;
+import goryachev.common.test.TF;
+import goryachev.common.test.Test;
+import goryachev.common.util.D;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.TUtils;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+
+/**
+ * Tests Poly1305 against Bouncy Castle.
+ */
+public class TestPoly1305
+{
+	public static void main(String[] args)
+	{
+		TF.run();
+	}
+
+
+	@Test
+	public void testUpdate()
+	{
+		Random r = new Random();
+
+		for(int len=0; len<1_111; len++)
+		{
+			byte[] key = TUtils.rnd(32);
+			byte[] data = TUtils.rnd(len);
+
+			org.bouncycastle.crypto.macs.Poly1305 bc = new org.bouncycastle.crypto.macs.Poly1305();
+			bc.init(new org.bouncycastle.crypto.params.KeyParameter(key));
+			bc.update(data, 0, len);
+			byte[] expected = new byte[16];
+			bc.doFinal(expected, 0);
+
+			for(int mode=0; mode<6; mode++)
+			{
+				Poly1305 p = new Poly1305(mode >= 3);
+				KeyParameter kp = new KeyParameter(key);
+				p.init(kp);
+				kp.destroy();
+
+				// in two parts, to cover the partial block
+				int split = (len == 0) ? 0 : r.nextInt(len);
+				switch(mode % 3)
+				{
+				case 0:
+					p.update(data, 0, split);
+					p.update(data, split, len - split);
+					break;
+				case 1:
+					CByteArray in = CByteArray.readOnly(data);
+					p.update(in, 0, split);
+					p.update(in, split, len - split);
+					in.destroy();
+					break;
+				default:
+					ByteBuffer b = TUtils.toBuffer(data, r.nextInt(4));
+					int end = b.limit();
+					b.limit(b.position() + split);
+					p.update(b);
+					b.limit(end);
+					p.update(b);
+					TF.eq(b.remaining(), 0);
+					break;
+				}
+
+				byte[] mac = new byte[16];
+				p.doFinal(mac, 0);
+				TF.eq(mac, expected);
+				p.zero();
+			}
+		}
+	}
+
+
+	/** many updates of random sizes and kinds, crossing the block boundaries in every possible way */
+	@Test
+	public void testChunks()
+	{
+		Random r = new Random();
+
+		for(int i=0; i<500; i++)
+		{
+			int len = r.nextInt(3_000);
+			byte[] key = TUtils.rnd(32);
+			byte[] data = TUtils.rnd(len);
+
+			org.bouncycastle.crypto.macs.Poly1305 bc = new org.bouncycastle.crypto.macs.Poly1305();
+			bc.init(new org.bouncycastle.crypto.params.KeyParameter(key));
+			bc.update(data, 0, len);
+			byte[] expected = new byte[16];
+			bc.doFinal(expected, 0);
+
+			Poly1305 p = new Poly1305(r.nextBoolean());
+			KeyParameter kp = new KeyParameter(key);
+			p.init(kp);
+			kp.destroy();
+
+			int pos = 0;
+			while(pos < len)
+			{
+				int n = Math.min(len - pos, r.nextBoolean() ? r.nextInt(20) : r.nextInt(100));
+				switch(r.nextInt(4))
+				{
+				case 0:
+					p.update(data, pos, n);
+					break;
+				case 1:
+					p.update(CByteArray.readOnly(data), pos, n);
+					break;
+				case 2:
+					ByteBuffer b = TUtils.toBuffer(data, r.nextInt(4));
+					b.position(b.position() + pos);
+					b.limit(b.position() + n);
+					p.update(b);
+					TF.eq(b.remaining(), 0);
+					break;
+				default:
+					if(n > 0)
+					{
+						p.update(data[pos]);
+						n = 1;
+					}
+					break;
+				}
+				pos += n;
+			}
+
+			byte[] mac = new byte[16];
+			p.doFinal(mac, 0);
+			TF.eq(mac, expected);
+			p.zero();
+		}
+	}
+
+
+	/** values near 2^128 and 2^130 - 5, which exercise the carries and the final reduction */
+	@Test
+	public void testEdgeValues()
+	{
+		Random r = new Random();
+		byte[][] patterns = { { (byte)0xff }, { 0 }, { (byte)0xff, 0 }, { (byte)0xfb, (byte)0xff }, { 5, (byte)0xff, (byte)0xff, (byte)0xff } };
+
+		for(int i=0; i<2_000; i++)
+		{
+			byte[] key = pattern(patterns[r.nextInt(patterns.length)], 32, r);
+			byte[] data = pattern(patterns[r.nextInt(patterns.length)], r.nextInt(200), r);
+
+			org.bouncycastle.crypto.macs.Poly1305 bc = new org.bouncycastle.crypto.macs.Poly1305();
+			bc.init(new org.bouncycastle.crypto.params.KeyParameter(key));
+			bc.update(data, 0, data.length);
+			byte[] expected = new byte[16];
+			bc.doFinal(expected, 0);
+
+			TF.eq(mac(new Poly1305(false), key, data), expected);
+			TF.eq(mac(new Poly1305(true), key, data), expected);
+		}
+	}
+
+
+	@Test
+	public void testParallel()
+	{
+		Random r = new Random();
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try
+		{
+			for(int i=0; i<40; i++)
+			{
+				// up to 1.5 MB, sometimes below the parallel threshold
+				int len = r.nextBoolean() ? r.nextInt(1_500_000) : r.nextInt(200_000);
+				byte[] key = TUtils.rnd(32);
+				byte[] data = TUtils.rnd(len);
+
+				org.bouncycastle.crypto.macs.Poly1305 bc = new org.bouncycastle.crypto.macs.Poly1305();
+				bc.init(new org.bouncycastle.crypto.params.KeyParameter(key));
+				bc.update(data, 0, len);
+				byte[] expected = new byte[16];
+				bc.doFinal(expected, 0);
+
+				Poly1305 p = new Poly1305(r.nextBoolean());
+				KeyParameter kp = new KeyParameter(key);
+				p.init(kp);
+				kp.destroy();
+
+				// an unaligned sequential head, so the parallel update starts in the middle of a block
+				int split = Math.min(len, r.nextInt(40));
+				p.update(data, 0, split);
+
+				if(r.nextBoolean())
+				{
+					CByteArray in = CByteArray.readOnly(data);
+					p.update(in, split, len - split, pool);
+					in.destroy();
+				}
+				else
+				{
+					ByteBuffer b = TUtils.toBuffer(data, r.nextInt(4));
+					b.position(b.position() + split);
+					p.update(b, pool);
+					TF.eq(b.remaining(), 0);
+				}
+
+				byte[] mac = new byte[16];
+				p.doFinal(mac, 0);
+				TF.eq(mac, expected);
+				p.zero();
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+
+	/** repeats the pattern, with an occasional random byte */
+	private static byte[] pattern(byte[] pattern, int len, Random r)
+	{
+		byte[] b = new byte[len];
+		for(int i=0; i<len; i++)
+		{
+			b[i] = (r.nextInt(50) == 0) ? (byte)r.nextInt() : pattern[i % pattern.length];
+		}
+		return b;
+	}
+
+
+	private static byte[] mac(Poly1305 p, byte[] key, byte[] data)
+	{
+		KeyParameter kp = new KeyParameter(key);
+		p.init(kp);
+		kp.destroy();
+		p.update(data, 0, data.length);
+		byte[] mac = new byte[16];
+		p.doFinal(mac, 0);
+		p.zero();
+		return mac;
+	}
+
+
+	/*
+	Poly1305, 26 bit limbs vs 64 bit limbs, seconds:
+	64 bytes x 1M: 0.19 vs 0.17
+	64 MB in 1 MB blocks: 0.15 vs 0.15
+	arithmetic only, 4M blocks: 0.09 vs 0.08
+	*/
+	@Test
+	public void testSpeed()
+	{
+		byte[] key = TUtils.rnd(32);
+		byte[] small = TUtils.rnd(64);
+		byte[] bulk = TUtils.rnd(1024 * 1024);
+		byte[] mac = new byte[16];
+		Poly1305 p26 = new Poly1305(false);
+		Poly1305 p64 = new Poly1305(true);
+		TF.isFalse(p26.is64bit());
+		TF.isTrue(p64.is64bit());
+
+		// warm up
+		for(int i=0; i<3; i++)
+		{
+			speed(p26, key, small, mac, 100_000);
+			speed(p64, key, small, mac, 100_000);
+			speed(p26, key, bulk, mac, 10);
+			speed(p64, key, bulk, mac, 10);
+		}
+
+		double s26 = speed(p26, key, small, mac, 1_000_000);
+		double s64 = speed(p64, key, small, mac, 1_000_000);
+		double b26 = speed(p26, key, bulk, mac, 64);
+		double b64 = speed(p64, key, bulk, mac, 64);
+		double a26 = speed(new Poly1305Accumulator26(), 4_000_000);
+		double a64 = speed(new Poly1305Accumulator64(), 4_000_000);
+
+		D.print(String.format("\nPoly1305, 26 bit limbs vs 64 bit limbs, seconds:\n64 bytes x 1M: %.2f vs %.2f\n64 MB in 1 MB blocks: %.2f vs %.2f\narithmetic only, 4M blocks: %.2f vs %.2f", s26, s64, b26, b64, a26, a64));
+	}
+
+
+	/*
+	Poly1305, 64 MB CByteArray, 1 CPU, seconds:
+	sequential: 0.15
+	parallel: 0.16
+	*/
+	@Test
+	public void testParallelSpeed()
+	{
+		byte[] key = TUtils.rnd(32);
+		CByteArray data = TUtils.rndByteArray(64 * 1024 * 1024);
+		byte[] mac = new byte[16];
+		Poly1305 p = new Poly1305();
+		KeyParameter kp = new KeyParameter(key);
+
+		double seq = 0;
+		double par = 0;
+		for(int i=0; i<3; i++)
+		{
+			long t = System.nanoTime();
+			p.init(kp);
+			p.update(data, 0, data.length());
+			p.doFinal(mac, 0);
+			seq = (System.nanoTime() - t) / 1_000_000_000.0;
+
+			t = System.nanoTime();
+			p.init(kp);
+			p.update(data, 0, data.length(), null);
+			p.doFinal(mac, 0);
+			par = (System.nanoTime() - t) / 1_000_000_000.0;
+		}
+
+		D.print(String.format("\nPoly1305, 64 MB CByteArray, %d CPU, seconds:\nsequential: %.2f\nparallel: %.2f", Runtime.getRuntime().availableProcessors(), seq, par));
+
+		kp.destroy();
+		data.destroy();
+	}
+
+
+	/** computes count MACs of the data, returns the elapsed time in seconds */
+	private static double speed(Poly1305 p, byte[] key, byte[] data, byte[] mac, int count)
+	{
+		KeyParameter kp = new KeyParameter(key);
+		long t = System.nanoTime();
+		for(int i=0; i<count; i++)
+		{
+			p.init(kp);
+			p.update(data, 0, data.length);
+			p.doFinal(mac, 0);
+		}
+		double rv = (System.nanoTime() - t) / 1_000_000_000.0;
+		kp.destroy();
+		return rv;
+	}
+
+
+	/** processes count blocks without the input buffering, returns the elapsed time in seconds */
+	private static double speed(Poly1305Accumulator a, int count)
+	{
+		int[] tag = new int[4];
+		a.setR(0x12345678, 0x9abcdef0, 0x0fedcba9, 0x87654321);
+		// warm up
+		for(int i=0; i<count; i++)
+		{
+			a.processBlock(i, i * 3, i * 7, ~i, true);
+		}
+		a.finish(1, 2, 3, 4, tag);
+
+		long t = System.nanoTime();
+		for(int i=0; i<count; i++)
+		{
+			a.processBlock(i, i * 3, i * 7, ~i, true);
+		}
+		a.finish(1, 2, 3, 4, tag);
+		double rv = (System.nanoTime() - t) / 1_000_000_000.0;
+		a.zero();
+		return rv;
+	}
+}
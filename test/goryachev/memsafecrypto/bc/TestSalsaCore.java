@@ -0,0 +1,114 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.bc;
+import goryachev.common.test.TF;
+import goryachev.common.test.Test;
+import goryachev.common.util.D;
+import goryachev.memsafecrypto.CIntArray;
+import java.util.Random;
+
+
+/**
+ * Tests the Vector API SalsaCore against Bouncy Castle, when available.
+ */
+public class TestSalsaCore
+{
+	private static final SalsaCore core = Salsa20Engine.loadVectorCore();
+
+
+	public static void main(String[] args)
+	{
+		TF.run();
+	}
+
+
+	@Test
+	public void testGenerateBlocks()
+	{
+		if(core == null)
+		{
+			D.print("vector core is not available");
+			return;
+		}
+
+		Random r = new Random();
+		int[] in = new int[16];
+		int[] expected = new int[16];
+		CIntArray state = new CIntArray(16);
+
+		for(int count=1; count<=Salsa20Engine.MAX_BLOCKS; count++)
+		{
+			CIntArray out = new CIntArray(16 * count);
+			for(int j=0; j<16; j++)
+			{
+				in[j] = r.nextInt();
+			}
+			state.copy(0, in, 0, 16);
+
+			// crosses the 32-bit boundary of the counter
+			long counter = 0xffff_fffaL + r.nextInt(4);
+			core.generateBlocks(20, state, counter, count, out);
+
+			for(int i=0; i<count; i++)
+			{
+				in[8] = (int)(counter + i);
+				in[9] = (int)((counter + i) >>> 32);
+				org.bouncycastle.crypto.engines.Salsa20Engine.salsaCore(20, in, expected);
+				for(int j=0; j<16; j++)
+				{
+					TF.eq(out.get(i * 16 + j), expected[j]);
+				}
+			}
+
+			out.destroy();
+		}
+
+		state.destroy();
+	}
+
+
+	/*
+	Salsa20, 1,600,000 blocks (AVX-512, 16 lanes): scalar 0.29, vector 0.07
+	*/
+	@Test
+	public void testSpeed()
+	{
+		if(core == null)
+		{
+			D.print("vector core is not available");
+			return;
+		}
+
+		int blocks = 1_600_000;
+		CIntArray state = new CIntArray(16);
+		CIntArray wide = new CIntArray(16 * Salsa20Engine.MAX_BLOCKS);
+		int[] in = new int[16];
+		int[] x = new int[16];
+
+		// warm up
+		for(int i=0; i<20_000; i++)
+		{
+			core.generateBlocks(20, state, i, Salsa20Engine.MAX_BLOCKS, wide);
+			org.bouncycastle.crypto.engines.Salsa20Engine.salsaCore(20, in, x);
+		}
+
+		long t = System.nanoTime();
+		for(int i=0; i<blocks; i++)
+		{
+			in[8] = i;
+			org.bouncycastle.crypto.engines.Salsa20Engine.salsaCore(20, in, x);
+		}
+		double scalar = (System.nanoTime() - t) / 1_000_000_000.0;
+
+		t = System.nanoTime();
+		for(int i=0; i<blocks; i+=Salsa20Engine.MAX_BLOCKS)
+		{
+			core.generateBlocks(20, state, i, Salsa20Engine.MAX_BLOCKS, wide);
+		}
+		double vector = (System.nanoTime() - t) / 1_000_000_000.0;
+
+		D.print(String.format("\nSalsa20, %,d blocks: scalar %.2f, vector %.2f", blocks, scalar, vector));
+
+		state.destroy();
+		wide.destroy();
+	}
+}
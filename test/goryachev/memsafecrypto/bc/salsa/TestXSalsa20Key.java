@@ -0,0 +1,169 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.bc.salsa;
+import goryachev.common.test.TF;
+import goryachev.common.test.Test;
+import goryachev.common.util.D;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.TUtils;
+import goryachev.memsafecrypto.bc.KeyParameter;
+import goryachev.memsafecrypto.bc.ParametersWithIV;
+import goryachev.memsafecrypto.bc.Salsa20Engine;
+import goryachev.memsafecrypto.bc.XSalsa20Engine;
+import goryachev.memsafecrypto.bc.XSalsa20Key;
+import goryachev.memsafecrypto.salsa.XSalsaTools;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+
+/**
+ * Tests XSalsa20Key and the XSalsa20Engine re-init path.
+ */
+public class TestXSalsa20Key
+{
+	public static void main(String[] args)
+	{
+		TF.run();
+	}
+
+
+	@Test
+	public void testInit()
+	{
+		Random r = new Random();
+		byte[] key = TUtils.rnd(XSalsaTools.KEY_LENGTH_BYTES);
+		XSalsa20Key k1 = new XSalsa20Key(key);
+		XSalsa20Key k2 = new XSalsa20Key(CByteArray.readOnly(key));
+		XSalsa20Engine e = new XSalsa20Engine(Salsa20Engine.WIDE_BLOCKS, null);
+
+		for(int i=0; i<200; i++)
+		{
+			byte[] nonce = TUtils.rnd(XSalsaTools.NONCE_LENGTH_BYTES);
+			int size = r.nextInt(1000);
+			byte[] data = TUtils.rnd(size);
+
+			org.bouncycastle.crypto.engines.XSalsa20Engine bc = new org.bouncycastle.crypto.engines.XSalsa20Engine();
+			bc.init(true, new org.bouncycastle.crypto.params.ParametersWithIV(new org.bouncycastle.crypto.params.KeyParameter(key), nonce));
+			byte[] expected = new byte[size];
+			bc.processBytes(data, 0, size, expected, 0);
+
+			// the same engine is re-initialized each time, with the nonce at an offset
+			int off = r.nextInt(10);
+			byte[] result = new byte[size];
+			if(r.nextBoolean())
+			{
+				byte[] b = new byte[off + nonce.length];
+				System.arraycopy(nonce, 0, b, off, nonce.length);
+				e.init(k1, b, off);
+			}
+			else
+			{
+				CByteArray b = new CByteArray(off + nonce.length);
+				b.copyFrom(nonce, 0, nonce.length, off);
+				e.init(k2, b, off);
+				b.destroy();
+			}
+
+			e.processBytes(data, 0, size, result, 0);
+			TF.eq(result, expected);
+		}
+
+		try
+		{
+			e.init(k1, new byte[XSalsaTools.NONCE_LENGTH_BYTES], 1);
+			TF.fail();
+		}
+		catch(IllegalArgumentException expected)
+		{
+		}
+
+		e.destroy();
+		k1.destroy();
+		k2.destroy();
+	}
+
+
+	@Test
+	public void testNoAllocation()
+	{
+		if(!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+		{
+			D.print("allocation counter is not available");
+			return;
+		}
+
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		XSalsa20Key key = new XSalsa20Key(TUtils.rnd(XSalsaTools.KEY_LENGTH_BYTES));
+		byte[] nonce = TUtils.rnd(XSalsaTools.NONCE_LENGTH_BYTES);
+		XSalsa20Engine e = new XSalsa20Engine();
+		int count = 10_000;
+
+		for(int i=0; i<count; i++)
+		{
+			e.init(key, nonce, 0);
+		}
+
+		long start = mx.getThreadAllocatedBytes(id);
+		for(int i=0; i<count; i++)
+		{
+			e.init(key, nonce, 0);
+		}
+		long allocated = mx.getThreadAllocatedBytes(id) - start;
+
+		// allow for the measurement itself
+		TF.isTrue("allocated=" + allocated, allocated < 1000);
+
+		e.destroy();
+		key.destroy();
+	}
+
+
+	/*
+	XSalsa20 init, 200,000 times:
+	parameters: 0.21
+	prepared key: 0.05
+	*/
+	@Test
+	public void testInitSpeed()
+	{
+		int count = 200_000;
+		byte[] keyBytes = TUtils.rnd(XSalsaTools.KEY_LENGTH_BYTES);
+		CByteArray key = CByteArray.readOnly(keyBytes);
+		XSalsa20Key prepared = new XSalsa20Key(key);
+		byte[] nonce = TUtils.rnd(XSalsaTools.NONCE_LENGTH_BYTES);
+		XSalsa20Engine e = new XSalsa20Engine();
+
+		for(int i=0; i<count; i++)
+		{
+			initWithParameters(e, key, nonce);
+			e.init(prepared, nonce, 0);
+		}
+
+		long t = System.nanoTime();
+		for(int i=0; i<count; i++)
+		{
+			initWithParameters(e, key, nonce);
+		}
+		double params = (System.nanoTime() - t) / 1_000_000_000.0;
+
+		t = System.nanoTime();
+		for(int i=0; i<count; i++)
+		{
+			e.init(prepared, nonce, 0);
+		}
+		double fast = (System.nanoTime() - t) / 1_000_000_000.0;
+
+		D.print(String.format("\nXSalsa20 init, %,d times:\nparameters: %.2f\nprepared key: %.2f", count, params, fast));
+
+		e.destroy();
+		prepared.destroy();
+	}
+
+
+	private static void initWithParameters(XSalsa20Engine e, CByteArray key, byte[] nonce)
+	{
+		ParametersWithIV p = new ParametersWithIV(KeyParameter.wrap(key), nonce);
+		e.init(true, p);
+		p.destroy();
+	}
+}
@@ -6,6 +6,7 @@ import goryachev.common.util.CKit;
 import goryachev.common.util.D;
 import goryachev.memsafecrypto.CByteArray;
 import goryachev.memsafecrypto.TUtils;
+import goryachev.memsafecrypto.salsa.XSalsaOutputStream;
 import goryachev.memsafecrypto.salsa.XSalsaTools;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -121,4 +122,56 @@ public class TestXSalsa20Poly1305Streams
 			TF.eq(cb1, data);
 		}
 	}
+	
+	
+	@Test
+	public void testPipelined() throws Exception
+	{
+		int[] sizes = { 0, 1, 4095, 4096, 65537, 1_000_000 };
+		for(int size: sizes)
+		{
+			CByteArray key = TUtils.rndByteArray(XSalsaTools.KEY_LENGTH_BYTES);
+			CByteArray nonce = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+			byte[] data = TUtils.rnd(size);
+			
+			ByteArrayOutputStream os1 = new ByteArrayOutputStream(size);
+			goryachev.memsafecrypto.salsa.XSalsa20Poly1305EncryptStream out1 = new goryachev.memsafecrypto.salsa.XSalsa20Poly1305EncryptStream(key, nonce, os1);
+			out1.write(data);
+			out1.close();
+			byte[] b1 = os1.toByteArray();
+			
+			// write-behind
+			ByteArrayOutputStream os2 = new ByteArrayOutputStream(size);
+			goryachev.memsafecrypto.salsa.XSalsa20Poly1305EncryptStream out2 = new goryachev.memsafecrypto.salsa.XSalsa20Poly1305EncryptStream(key, nonce, os2, true);
+			out2.write(data);
+			out2.close();
+			TF.eq(os2.toByteArray(), b1);
+			
+			// read-ahead
+			ByteArrayInputStream is = new ByteArrayInputStream(b1);
+			goryachev.memsafecrypto.salsa.XSalsa20Poly1305DecryptStream in = new goryachev.memsafecrypto.salsa.XSalsa20Poly1305DecryptStream(key, nonce, b1.length, is, true);
+			byte[] cb = new byte[size]; 
+			CKit.readFully(in, cb);
+			TF.eq(in.read(), -1);
+			in.close();
+			TF.eq(cb, data);
+			
+			// XSalsaOutputStream
+			ByteArrayOutputStream os3 = new ByteArrayOutputStream(size);
+			XSalsaOutputStream out3 = new XSalsaOutputStream(os3, key, nonce);
+			out3.write(data);
+			out3.close();
+			
+			ByteArrayOutputStream os4 = new ByteArrayOutputStream(size);
+			XSalsaOutputStream out4 = new XSalsaOutputStream(os4, key, nonce, true);
+			out4.write(data);
+			out4.close();
+			// idempotent
+			out4.close();
+			TF.eq(os4.toByteArray(), os3.toByteArray());
+			
+			key.destroy();
+			nonce.destroy();
+		}
+	}
 }
@@ -0,0 +1,255 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.common.test.TF;
+import goryachev.common.test.Test;
+import goryachev.common.util.D;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.TUtils;
+import goryachev.memsafecrypto.bc.XSalsa20Key;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * Tests the pipelined segmented XSalsa20Poly1305 streams.
+ */
+public class TestXSalsa20Poly1305Pipeline
+{
+	private static final int SEGMENT = 100;
+	private static final int DEPTH = 3;
+
+
+	public static void main(String[] args)
+	{
+		TF.run();
+	}
+
+
+	@Test
+	public void testPipeline() throws Exception
+	{
+		Random r = new Random();
+		XSalsa20Key key = new XSalsa20Key(TUtils.rnd(XSalsaTools.KEY_LENGTH_BYTES));
+		ExecutorService ex = Executors.newFixedThreadPool(4);
+		try
+		{
+			int[] sizes = { 0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, DEPTH * SEGMENT, 50 * SEGMENT + 17 };
+			for(int size: sizes)
+			{
+				byte[] data = TUtils.rnd(size);
+				CByteArray nonce = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+
+				// the output is identical to that of the sequential stream
+				ByteArrayOutputStream expected = new ByteArrayOutputStream();
+				try(XSalsa20Poly1305SegmentedOutputStream out = new XSalsa20Poly1305SegmentedOutputStream(key, nonce, SEGMENT, expected))
+				{
+					out.write(data);
+				}
+
+				ByteArrayOutputStream ba = new ByteArrayOutputStream();
+				try(XSalsa20Poly1305PipelinedOutputStream out = new XSalsa20Poly1305PipelinedOutputStream(key, nonce, SEGMENT, ba, ex, DEPTH))
+				{
+					write(out, data, r);
+				}
+				byte[] enc = ba.toByteArray();
+				TF.eq(enc, expected.toByteArray());
+
+				TF.eq(decrypt(key, enc, ex, r), data);
+				nonce.destroy();
+			}
+		}
+		finally
+		{
+			ex.shutdown();
+			key.destroy();
+		}
+	}
+
+
+	@Test
+	public void testCloseInterrupted() throws Exception
+	{
+		XSalsa20Key key = new XSalsa20Key(TUtils.rnd(XSalsaTools.KEY_LENGTH_BYTES));
+		CByteArray nonce = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+		ExecutorService ex = Executors.newFixedThreadPool(4);
+		try
+		{
+			ByteArrayOutputStream ba = new ByteArrayOutputStream();
+			try(XSalsa20Poly1305SegmentedOutputStream out = new XSalsa20Poly1305SegmentedOutputStream(key, nonce, SEGMENT, ba))
+			{
+				out.write(TUtils.rnd(50 * SEGMENT));
+			}
+
+			// close() waits for the segments in flight and keeps the interrupt status
+			XSalsa20Poly1305PipelinedInputStream in = new XSalsa20Poly1305PipelinedInputStream(key, new ByteArrayInputStream(ba.toByteArray()), ex, DEPTH);
+			in.read();
+			Thread.currentThread().interrupt();
+			in.close();
+			TF.isTrue(Thread.interrupted());
+
+			// an interrupted read keeps the segment pending and the interrupt status
+			in = new XSalsa20Poly1305PipelinedInputStream(key, new ByteArrayInputStream(ba.toByteArray()), ex, DEPTH);
+			Thread.currentThread().interrupt();
+			try
+			{
+				in.read();
+			}
+			catch(InterruptedIOException e)
+			{
+			}
+			in.close();
+			TF.isTrue(Thread.interrupted());
+		}
+		finally
+		{
+			ex.shutdown();
+			nonce.destroy();
+			key.destroy();
+		}
+	}
+
+
+	@Test
+	public void testTampering() throws Exception
+	{
+		Random r = new Random();
+		XSalsa20Key key = new XSalsa20Key(TUtils.rnd(XSalsaTools.KEY_LENGTH_BYTES));
+		ExecutorService ex = Executors.newFixedThreadPool(4);
+		try
+		{
+			byte[] data = TUtils.rnd(20 * SEGMENT);
+			CByteArray nonce = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+			ByteArrayOutputStream ba = new ByteArrayOutputStream();
+			try(XSalsa20Poly1305PipelinedOutputStream out = new XSalsa20Poly1305PipelinedOutputStream(key, nonce, SEGMENT, ba, ex, DEPTH))
+			{
+				out.write(data);
+			}
+			nonce.destroy();
+			byte[] enc = ba.toByteArray();
+
+			for(int i=0; i<enc.length; i+=13)
+			{
+				byte[] b = enc.clone();
+				b[i] ^= 0x01;
+				try
+				{
+					decrypt(key, b, ex, r);
+				}
+				catch(IOException e)
+				{
+					continue;
+				}
+				TF.fail("expecting an IOException, i=" + i);
+			}
+		}
+		finally
+		{
+			ex.shutdown();
+			key.destroy();
+		}
+	}
+
+
+	private static void write(OutputStream out, byte[] data, Random r) throws IOException
+	{
+		int pos = 0;
+		while(pos < data.length)
+		{
+			if(r.nextInt(5) == 0)
+			{
+				out.write(data[pos++]);
+			}
+			else
+			{
+				int len = Math.min(data.length - pos, r.nextInt(5 * SEGMENT));
+				out.write(data, pos, len);
+				pos += len;
+			}
+		}
+	}
+
+
+	private static byte[] decrypt(XSalsa20Key key, byte[] enc, ExecutorService ex, Random r) throws IOException
+	{
+		ByteArrayOutputStream ba = new ByteArrayOutputStream();
+		try(InputStream in = new XSalsa20Poly1305PipelinedInputStream(key, new ByteArrayInputStream(enc), ex, DEPTH))
+		{
+			byte[] buf = new byte[1 + r.nextInt(500)];
+			for(;;)
+			{
+				int rd = in.read(buf, 0, buf.length);
+				if(rd < 0)
+				{
+					break;
+				}
+				ba.write(buf, 0, rd);
+			}
+		}
+		return ba.toByteArray();
+	}
+
+
+	/*
+	segmented XSalsa20Poly1305, 128 MB, 1 CPU:
+	sequential encryption: 0.93 decryption: 1.34
+	pipelined encryption: 1.02 decryption: 1.41
+	*/
+	@Test
+	public void testSpeed() throws Exception
+	{
+		int size = 128 * 1024 * 1024;
+		byte[] chunk = TUtils.rnd(1024 * 1024);
+		CByteArray key = TUtils.rndByteArray(XSalsaTools.KEY_LENGTH_BYTES);
+		CByteArray nonce = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+
+		// warm up
+		speed(false, key, nonce, chunk, size / 8);
+		speed(true, key, nonce, chunk, size / 8);
+
+		double[] seq = speed(false, key, nonce, chunk, size);
+		double[] par = speed(true, key, nonce, chunk, size);
+
+		D.print(String.format("\nsegmented XSalsa20Poly1305, %d MB, %d CPU:\nsequential encryption: %.2f decryption: %.2f\npipelined encryption: %.2f decryption: %.2f", size / 1024 / 1024, Runtime.getRuntime().availableProcessors(), seq[0], seq[1], par[0], par[1]));
+
+		key.destroy();
+		nonce.destroy();
+	}
+
+
+	/** returns the encryption and decryption times in seconds */
+	private static double[] speed(boolean pipelined, CByteArray key, CByteArray nonce, byte[] chunk, int size) throws Exception
+	{
+		ByteArrayOutputStream ba = new ByteArrayOutputStream(size + size / 64);
+
+		long t = System.nanoTime();
+		try(OutputStream out = pipelined ? new XSalsa20Poly1305PipelinedOutputStream(key, nonce, ba) : new XSalsa20Poly1305SegmentedOutputStream(key, nonce, ba))
+		{
+			for(int i=0; i<size; i+=chunk.length)
+			{
+				out.write(chunk);
+			}
+		}
+		double enc = (System.nanoTime() - t) / 1_000_000_000.0;
+
+		byte[] b = ba.toByteArray();
+		ba = null;
+
+		t = System.nanoTime();
+		try(InputStream in = pipelined ? new XSalsa20Poly1305PipelinedInputStream(key, new ByteArrayInputStream(b)) : new XSalsa20Poly1305SegmentedInputStream(key, new ByteArrayInputStream(b)))
+		{
+			while(in.read(chunk) >= 0)
+			{
+			}
+		}
+		double dec = (System.nanoTime() - t) / 1_000_000_000.0;
+
+		return new double[] { enc, dec };
+	}
+}
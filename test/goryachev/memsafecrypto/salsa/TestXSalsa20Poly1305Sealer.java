@@ -0,0 +1,337 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.common.test.TF;
+import goryachev.common.test.Test;
+import goryachev.common.util.D;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.TUtils;
+import goryachev.memsafecrypto.bc.XSalsa20Key;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Tests XSalsa20Poly1305Sealer and XSalsa20Poly1305Opener.
+ */
+public class TestXSalsa20Poly1305Sealer
+{
+	public static void main(String[] args)
+	{
+		TF.run();
+	}
+
+
+	@Test
+	public void testSealOpen() throws Exception
+	{
+		Random r = new Random();
+		CByteArray key = TUtils.rndByteArray(XSalsaTools.KEY_LENGTH_BYTES);
+
+		try
+		(
+			XSalsa20Poly1305Sealer sealer = new XSalsa20Poly1305Sealer(key);
+			XSalsa20Poly1305Opener opener = new XSalsa20Poly1305Opener(key)
+		)
+		{
+			for(int i=0; i<300; i++)
+			{
+				int size = r.nextInt(1000);
+				CByteArray nonce = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+				CByteArray data = TUtils.rndByteArray(size);
+				CByteArray expected = XSalsaTools.encryptXSalsa20Poly1305(key, nonce, data);
+
+				int off = r.nextInt(10);
+				CByteArray buf = new CByteArray(off + size + XSalsaTools.MAC_LENGTH_BYTES);
+				buf.copyFrom(data, 0, size, off);
+
+				// in place
+				if(r.nextBoolean())
+				{
+					TF.eq(sealer.seal(nonce, 0, buf, off, size, buf, off), size + XSalsaTools.MAC_LENGTH_BYTES);
+				}
+				else
+				{
+					TF.eq(sealer.seal(nonce.toByteArray(), 0, buf, off, size, buf, off), size + XSalsaTools.MAC_LENGTH_BYTES);
+				}
+				TF.eq(bytes(buf, off, expected.length()), expected.toByteArray());
+
+				CByteArray dec = new CByteArray(size);
+				TF.eq(opener.open(nonce, 0, buf, off, expected.length(), dec, 0), size);
+				TF.eq(dec.toByteArray(), data.toByteArray());
+
+				TF.eq(opener.open(nonce.toByteArray(), 0, buf, off, expected.length(), buf, off), size);
+				TF.eq(bytes(buf, off, size), data.toByteArray());
+
+				// tampered
+				int ix = r.nextInt(expected.length());
+				expected.set(ix, (byte)(expected.get(ix) ^ 0x01));
+				dec.zero();
+				boolean failed = false;
+				try
+				{
+					opener.open(nonce, 0, expected, 0, expected.length(), dec, 0);
+				}
+				catch(Exception ok)
+				{
+					failed = true;
+				}
+				TF.isTrue("MAC mismatch", failed);
+				TF.eq(dec.toByteArray(), new byte[size]);
+			}
+		}
+	}
+
+
+	@Test
+	public void testForThread() throws Exception
+	{
+		XSalsa20Key k1 = new XSalsa20Key(TUtils.rnd(XSalsaTools.KEY_LENGTH_BYTES));
+		XSalsa20Key k2 = new XSalsa20Key(TUtils.rnd(XSalsaTools.KEY_LENGTH_BYTES));
+		byte[] nonce = TUtils.rnd(XSalsaTools.NONCE_LENGTH_BYTES);
+		CByteArray data = TUtils.rndByteArray(100);
+		CByteArray c1 = new CByteArray(116);
+		CByteArray c2 = new CByteArray(116);
+		CByteArray dec = new CByteArray(100);
+
+		XSalsa20Poly1305Sealer s = XSalsa20Poly1305Sealer.forThread(k1);
+		s.seal(nonce, 0, data, 0, 100, c1, 0);
+		TF.isTrue("cached", XSalsa20Poly1305Sealer.forThread(k2) == s);
+		s.seal(nonce, 0, data, 0, 100, c2, 0);
+		TF.isTrue("rebound", !Arrays.equals(c1.toByteArray(), c2.toByteArray()));
+
+		XSalsa20Poly1305Opener.forThread(k1).open(nonce, 0, c1, 0, 116, dec, 0);
+		TF.eq(dec.toByteArray(), data.toByteArray());
+		XSalsa20Poly1305Opener.forThread(k2).open(nonce, 0, c2, 0, 116, dec, 0);
+		TF.eq(dec.toByteArray(), data.toByteArray());
+
+		// a closed context is replaced
+		s.close();
+		XSalsa20Poly1305Sealer s2 = XSalsa20Poly1305Sealer.forThread(k1);
+		TF.isTrue("replaced", s2 != s);
+		s2.seal(nonce, 0, data, 0, 100, c2, 0);
+		TF.eq(c2.toByteArray(), c1.toByteArray());
+
+		k1.destroy();
+		k2.destroy();
+	}
+
+
+	@Test
+	public void testNoAllocation() throws Exception
+	{
+		if(!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+		{
+			D.print("allocation counter is not available");
+			return;
+		}
+
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		XSalsa20Key key = new XSalsa20Key(TUtils.rnd(XSalsaTools.KEY_LENGTH_BYTES));
+		byte[] nonce = TUtils.rnd(XSalsaTools.NONCE_LENGTH_BYTES);
+		CByteArray data = TUtils.rndByteArray(100);
+		CByteArray buf = new CByteArray(100 + XSalsaTools.MAC_LENGTH_BYTES);
+		int count = 10_000;
+
+		for(int i=0; i<count; i++)
+		{
+			XSalsa20Poly1305Sealer.forThread(key).seal(nonce, 0, data, 0, 100, buf, 0);
+			XSalsa20Poly1305Opener.forThread(key).open(nonce, 0, buf, 0, buf.length(), buf, 0);
+		}
+
+		long start = mx.getThreadAllocatedBytes(id);
+		for(int i=0; i<count; i++)
+		{
+			XSalsa20Poly1305Sealer.forThread(key).seal(nonce, 0, data, 0, 100, buf, 0);
+			XSalsa20Poly1305Opener.forThread(key).open(nonce, 0, buf, 0, buf.length(), buf, 0);
+		}
+		long allocated = mx.getThreadAllocatedBytes(id) - start;
+
+		// allow for the measurement itself
+		TF.isTrue("allocated=" + allocated, allocated < 1000);
+
+		key.destroy();
+	}
+
+
+	@Test
+	public void testDetached() throws Exception
+	{
+		Random r = new Random();
+		byte[] key = TUtils.rnd(XSalsaTools.KEY_LENGTH_BYTES);
+		CByteArray k = CByteArray.readOnly(key);
+
+		for(int i=0; i<300; i++)
+		{
+			int size = r.nextInt(300);
+			// with and without the associated data
+			int aadSize = r.nextBoolean() ? 0 : r.nextInt(50);
+			byte[] nonce = TUtils.rnd(XSalsaTools.NONCE_LENGTH_BYTES);
+			byte[] aad = TUtils.rnd(aadSize);
+			byte[] data = TUtils.rnd(size);
+			byte[] expected = bcSeal(key, nonce, aad, data);
+			CByteArray n = CByteArray.readOnly(nonce);
+
+			// CByteArray
+			CByteArray a = CByteArray.readOnly(aad);
+			CByteArray buf = new CByteArray(size + 20);
+			buf.copyFrom(data, 0, size, 1);
+			CByteArray tag = new CByteArray(XSalsaTools.MAC_LENGTH_BYTES + 3);
+			XSalsaTools.encryptXSalsa20Poly1305Detached(k, n, 0, (aadSize == 0 ? null : a), 0, aadSize, buf, 1, size, tag, 3);
+			TF.eq(bytes(buf, 1, size), Arrays.copyOf(expected, size));
+			TF.eq(bytes(tag, 3, XSalsaTools.MAC_LENGTH_BYTES), Arrays.copyOfRange(expected, size, expected.length));
+
+			XSalsaTools.decryptXSalsa20Poly1305Detached(k, n, 0, a, 0, aadSize, buf, 1, size, tag, 3);
+			TF.eq(bytes(buf, 1, size), data);
+
+			// ByteBuffer
+			ByteBuffer ba = TUtils.toBuffer(aad, r.nextInt(4));
+			ByteBuffer bd = TUtils.toBuffer(data, r.nextInt(4));
+			ByteBuffer bt = TUtils.toBuffer(new byte[XSalsaTools.MAC_LENGTH_BYTES], r.nextInt(4));
+			int dpos = bd.position();
+			int tpos = bt.position();
+			XSalsaTools.encryptXSalsa20Poly1305Detached(k, n, 0, ba, bd, bt);
+			TF.eq(ba.remaining(), 0);
+			TF.eq(bd.remaining(), 0);
+			TF.eq(bt.remaining(), 0);
+			TF.eq(bytes(bd, dpos, size), Arrays.copyOf(expected, size));
+			TF.eq(bytes(bt, tpos, XSalsaTools.MAC_LENGTH_BYTES), Arrays.copyOfRange(expected, size, expected.length));
+
+			ba.position(ba.limit() - aadSize);
+			bd.position(dpos);
+			bt.position(tpos);
+
+			if(size > 0)
+			{
+				// tampered ciphertext
+				bd.put(dpos, (byte)(bd.get(dpos) ^ 0x01));
+				boolean failed = false;
+				try
+				{
+					XSalsaTools.decryptXSalsa20Poly1305Detached(k, n, 0, ba, bd, bt);
+				}
+				catch(Exception e)
+				{
+					failed = true;
+				}
+				TF.isTrue("MAC mismatch", failed);
+				TF.eq(ba.remaining(), aadSize);
+				TF.eq(bd.position(), dpos);
+				TF.eq(bt.position(), tpos);
+				bd.put(dpos, (byte)(bd.get(dpos) ^ 0x01));
+			}
+
+			XSalsaTools.decryptXSalsa20Poly1305Detached(k, n, 0, ba, bd, bt);
+			TF.eq(bytes(bd, dpos, size), data);
+		}
+	}
+
+
+	@Test
+	public void testAadForgery() throws Exception
+	{
+		CByteArray key = TUtils.rndByteArray(XSalsaTools.KEY_LENGTH_BYTES);
+		CByteArray nonce = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+		byte[] aad = "header: user=alice".getBytes();
+		byte[] data = TUtils.rnd(20);
+
+		CByteArray buf = new CByteArray(data.length);
+		buf.copyFrom(data, 0, data.length, 0);
+		CByteArray tag = new CByteArray(XSalsaTools.MAC_LENGTH_BYTES);
+		XSalsaTools.encryptXSalsa20Poly1305Detached(key, nonce, 0, CByteArray.readOnly(aad), 0, aad.length, buf, 0, data.length, tag, 0);
+
+		// the MAC input followed by the tag, presented as a ciphertext without the associated data
+		int aadPadded = (aad.length + 15) & ~15;
+		int dataPadded = (data.length + 15) & ~15;
+		ByteBuffer b = ByteBuffer.allocate(aadPadded + dataPadded + 16 + XSalsaTools.MAC_LENGTH_BYTES).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+		b.put(aad);
+		b.position(aadPadded);
+		b.put(buf.toByteArray());
+		b.position(aadPadded + dataPadded);
+		b.putLong(aad.length);
+		b.putLong(data.length);
+		b.put(tag.toByteArray());
+		CByteArray forged = CByteArray.readOnly(b.array());
+
+		try
+		{
+			XSalsaTools.decryptXSalsa20Poly1305(key, nonce, forged);
+			TF.fail("expecting a MAC mismatch");
+		}
+		catch(Exception expected)
+		{
+		}
+
+		try(XSalsa20Poly1305Opener op = new XSalsa20Poly1305Opener(key))
+		{
+			CByteArray out = new CByteArray(forged.length());
+			op.open(nonce, 0, forged, 0, forged.length(), out, 0);
+			TF.fail("expecting a MAC mismatch");
+		}
+		catch(Exception expected)
+		{
+		}
+
+		key.destroy();
+		nonce.destroy();
+	}
+
+
+	/**
+	 * XSalsa20Poly1305 with the associated data (RFC 8439 MAC layout, with the Poly1305 key taken
+	 * from the second 32 bytes of the key stream), computed with Bouncy Castle
+	 */
+	private static byte[] bcSeal(byte[] key, byte[] nonce, byte[] aad, byte[] data)
+	{
+		org.bouncycastle.crypto.engines.XSalsa20Engine e = new org.bouncycastle.crypto.engines.XSalsa20Engine();
+		e.init(true, new org.bouncycastle.crypto.params.ParametersWithIV(new org.bouncycastle.crypto.params.KeyParameter(key), nonce));
+		byte[] subkey = new byte[32];
+		e.processBytes(subkey, 0, 32, subkey, 0);
+		if(aad.length > 0)
+		{
+			subkey = new byte[32];
+			e.processBytes(subkey, 0, 32, subkey, 0);
+		}
+		byte[] rv = new byte[data.length + XSalsaTools.MAC_LENGTH_BYTES];
+		e.processBytes(data, 0, data.length, rv, 0);
+
+		org.bouncycastle.crypto.macs.Poly1305 p = new org.bouncycastle.crypto.macs.Poly1305();
+		p.init(new org.bouncycastle.crypto.params.KeyParameter(subkey));
+		if(aad.length > 0)
+		{
+			p.update(aad, 0, aad.length);
+			p.update(new byte[16], 0, (16 - aad.length % 16) % 16);
+		}
+		p.update(rv, 0, data.length);
+		if(aad.length > 0)
+		{
+			p.update(new byte[16], 0, (16 - data.length % 16) % 16);
+			byte[] lengths = new byte[16];
+			ByteBuffer.wrap(lengths).order(java.nio.ByteOrder.LITTLE_ENDIAN).putLong(aad.length).putLong(data.length);
+			p.update(lengths, 0, 16);
+		}
+		p.doFinal(rv, data.length);
+		return rv;
+	}
+
+
+	private static byte[] bytes(ByteBuffer b, int offset, int length)
+	{
+		byte[] rv = new byte[length];
+		for(int i=0; i<length; i++)
+		{
+			rv[i] = b.get(offset + i);
+		}
+		return rv;
+	}
+
+
+	private static byte[] bytes(CByteArray b, int offset, int length)
+	{
+		byte[] rv = new byte[length];
+		b.copyTo(offset, rv, 0, length);
+		return rv;
+	}
+}
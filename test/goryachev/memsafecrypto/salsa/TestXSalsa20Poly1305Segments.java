@@ -0,0 +1,217 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.common.test.TF;
+import goryachev.common.test.Test;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.TUtils;
+import goryachev.memsafecrypto.bc.XSalsa20Key;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Tests the segmented XSalsa20Poly1305 format.
+ */
+public class TestXSalsa20Poly1305Segments
+{
+	private static final int SEGMENT = 100;
+
+
+	public static void main(String[] args)
+	{
+		TF.run();
+	}
+
+
+	@Test
+	public void testStreams() throws Exception
+	{
+		Random r = new Random();
+		XSalsa20Key key = new XSalsa20Key(TUtils.rnd(XSalsaTools.KEY_LENGTH_BYTES));
+		try
+		{
+			int[] sizes = { 0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 2 * SEGMENT, 5 * SEGMENT + 17 };
+			for(int size: sizes)
+			{
+				byte[] data = TUtils.rnd(size);
+				byte[] enc = encrypt(key, data, r);
+				TF.eq((long)enc.length, XSalsa20Poly1305Segments.getEncryptedLength(size, SEGMENT));
+				TF.eq(XSalsa20Poly1305Segments.getPlaintextLength(enc.length, SEGMENT), (long)size);
+				TF.eq(decrypt(key, enc, r), data);
+			}
+		}
+		finally
+		{
+			key.destroy();
+		}
+	}
+
+
+	@Test
+	public void testTampering() throws Exception
+	{
+		Random r = new Random();
+		XSalsa20Key key = new XSalsa20Key(TUtils.rnd(XSalsaTools.KEY_LENGTH_BYTES));
+		try
+		{
+			byte[] data = TUtils.rnd(3 * SEGMENT);
+			byte[] enc = encrypt(key, data, r);
+			int full = SEGMENT + XSalsaTools.MAC_LENGTH_BYTES;
+
+			// any modified byte, including the header
+			for(int i=0; i<enc.length; i+=7)
+			{
+				byte[] b = enc.clone();
+				b[i] ^= 0x10;
+				checkFails(key, b, r);
+			}
+
+			// truncated at the segment boundary, which is undetectable without the last segment flag
+			checkFails(key, Arrays.copyOf(enc, XSalsa20Poly1305Segments.HEADER_LENGTH + 2 * full), r);
+
+			// reordered segments
+			byte[] b = enc.clone();
+			System.arraycopy(enc, XSalsa20Poly1305Segments.HEADER_LENGTH, b, XSalsa20Poly1305Segments.HEADER_LENGTH + full, full);
+			System.arraycopy(enc, XSalsa20Poly1305Segments.HEADER_LENGTH + full, b, XSalsa20Poly1305Segments.HEADER_LENGTH, full);
+			checkFails(key, b, r);
+
+			// a different key
+			XSalsa20Key key2 = new XSalsa20Key(TUtils.rnd(XSalsaTools.KEY_LENGTH_BYTES));
+			checkFails(key2, enc, r);
+			key2.destroy();
+		}
+		finally
+		{
+			key.destroy();
+		}
+	}
+
+
+	@Test
+	public void testRandomAccess() throws Exception
+	{
+		Random r = new Random();
+		CByteArray key = TUtils.rndByteArray(XSalsaTools.KEY_LENGTH_BYTES);
+		CByteArray nonce = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+		byte[] data = TUtils.rnd(1_000_000);
+
+		File f = File.createTempFile("TestXSalsa20Poly1305Segments", null);
+		f.deleteOnExit();
+
+		try(XSalsa20Poly1305SegmentedOutputStream out = new XSalsa20Poly1305SegmentedOutputStream(key, nonce, new FileOutputStream(f)))
+		{
+			out.write(data);
+		}
+		TF.eq(f.length(), XSalsa20Poly1305Segments.getEncryptedLength(data.length, XSalsa20Poly1305Segments.DEFAULT_SEGMENT_SIZE));
+
+		try(XSalsa20Poly1305SegmentedFile sf = new XSalsa20Poly1305SegmentedFile(f, key))
+		{
+			TF.eq(sf.length(), (long)data.length);
+
+			for(int i=0; i<1_000; i++)
+			{
+				int len = r.nextInt(200_000);
+				int off = r.nextInt(data.length - len);
+
+				byte[] b = new byte[len];
+				sf.readFully(off, b, 0, len);
+				TF.eq(b, Arrays.copyOfRange(data, off, off + len));
+
+				CByteArray c = new CByteArray(len);
+				sf.readFully(off, c, 0, len);
+				TF.eq(c.toByteArray(), b);
+				c.destroy();
+			}
+
+			TF.eq(sf.read(data.length, new byte[1], 0, 1), -1);
+		}
+	}
+
+
+	private static void checkFails(XSalsa20Key key, byte[] enc, Random r)
+	{
+		try
+		{
+			decrypt(key, enc, r);
+		}
+		catch(IOException e)
+		{
+			return;
+		}
+		TF.fail("expecting an IOException");
+	}
+
+
+	private static byte[] encrypt(XSalsa20Key key, byte[] data, Random r) throws Exception
+	{
+		ByteArrayOutputStream ba = new ByteArrayOutputStream();
+		CByteArray nonce = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+		try(XSalsa20Poly1305SegmentedOutputStream out = new XSalsa20Poly1305SegmentedOutputStream(key, nonce, SEGMENT, ba))
+		{
+			// random chunks
+			int pos = 0;
+			while(pos < data.length)
+			{
+				if(r.nextInt(5) == 0)
+				{
+					out.write(data[pos++]);
+				}
+				else
+				{
+					int len = Math.min(data.length - pos, r.nextInt(3 * SEGMENT));
+					out.write(data, pos, len);
+					pos += len;
+				}
+			}
+		}
+		nonce.destroy();
+		return ba.toByteArray();
+	}
+
+
+	private static byte[] decrypt(XSalsa20Key key, byte[] enc, Random r) throws IOException
+	{
+		// the input stream returns short reads
+		InputStream in = new ByteArrayInputStream(enc)
+		{
+			public synchronized int read(byte[] b, int off, int len)
+			{
+				return super.read(b, off, Math.min(len, 1 + r.nextInt(50)));
+			}
+		};
+
+		ByteArrayOutputStream ba = new ByteArrayOutputStream();
+		try(XSalsa20Poly1305SegmentedInputStream is = new XSalsa20Poly1305SegmentedInputStream(key, in))
+		{
+			byte[] buf = new byte[1 + r.nextInt(300)];
+			for(;;)
+			{
+				if(r.nextInt(5) == 0)
+				{
+					int c = is.read();
+					if(c < 0)
+					{
+						break;
+					}
+					ba.write(c);
+				}
+				else
+				{
+					int rd = is.read(buf, 0, buf.length);
+					if(rd < 0)
+					{
+						break;
+					}
+					ba.write(buf, 0, rd);
+				}
+			}
+		}
+		return ba.toByteArray();
+	}
+}
@@ -0,0 +1,180 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.common.test.TF;
+import goryachev.common.test.Test;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.TUtils;
+import java.io.EOFException;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Tests XSalsaAsyncFile.
+ */
+public class TestXSalsaAsyncFile
+{
+	public static void main(String[] args)
+	{
+		TF.run();
+	}
+
+
+	@Test
+	public void test() throws Exception
+	{
+		Random r = new Random();
+		CByteArray key = TUtils.rndByteArray(XSalsaTools.KEY_LENGTH_BYTES);
+		CByteArray iv = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+		byte[] data = TUtils.rnd(1_000_000);
+		ExecutorService ex = Executors.newFixedThreadPool(4);
+
+		File ref = File.createTempFile("TestXSalsaAsyncFile", null);
+		ref.deleteOnExit();
+		File f = File.createTempFile("TestXSalsaAsyncFile", null);
+		f.deleteOnExit();
+
+		try
+		{
+			try(XSalsaRandomAccessFile raf = new XSalsaRandomAccessFile(ref, true, key, iv))
+			{
+				raf.write(data);
+			}
+
+			// concurrent writes of adjacent ranges, in random order, some spanning several buffers
+			try(XSalsaAsyncFile af = new XSalsaAsyncFile(f.toPath(), true, key, iv, ex))
+			{
+				ArrayList<int[]> ranges = new ArrayList<>();
+				for(int pos=0; pos<data.length; )
+				{
+					int max = r.nextInt(10) == 0 ? 3 * XSalsaAsyncFile.BUFFER_LENGTH : 20_000;
+					int len = Math.min(data.length - pos, 1 + r.nextInt(max));
+					ranges.add(new int[] { pos, len });
+					pos += len;
+				}
+				Collections.shuffle(ranges, r);
+
+				ArrayList<CompletableFuture<Integer>> fs = new ArrayList<>();
+				for(int[] x: ranges)
+				{
+					ByteBuffer b = TUtils.toBuffer(Arrays.copyOfRange(data, x[0], x[0] + x[1]), r.nextInt(4));
+					fs.add(af.write(x[0], b));
+				}
+
+				for(int i=0; i<fs.size(); i++)
+				{
+					TF.eq(fs.get(i).get(), ranges.get(i)[1]);
+				}
+				TF.eq(af.size(), (long)data.length);
+			}
+			TF.eq(Files.readAllBytes(f.toPath()), Files.readAllBytes(ref.toPath()));
+
+			// concurrent reads at random positions
+			try(XSalsaAsyncFile af = new XSalsaAsyncFile(ref.toPath(), false, key, iv, ex))
+			{
+				ArrayList<CompletableFuture<Integer>> fs = new ArrayList<>();
+				ArrayList<ByteBuffer> bufs = new ArrayList<>();
+				int[] offsets = new int[1_000];
+				int[] starts = new int[offsets.length];
+				for(int i=0; i<offsets.length; i++)
+				{
+					int len = r.nextInt(20_000);
+					offsets[i] = r.nextInt(data.length - len);
+
+					ByteBuffer b = TUtils.toBuffer(new byte[len], r.nextInt(4));
+					starts[i] = b.position();
+					bufs.add(b);
+					fs.add(af.readFully(offsets[i], b));
+				}
+
+				for(int i=0; i<offsets.length; i++)
+				{
+					ByteBuffer b = bufs.get(i);
+					int len = fs.get(i).get();
+					TF.eq(b.position() - starts[i], len);
+
+					byte[] rv = new byte[len];
+					b.duplicate().position(starts[i]).get(rv);
+					TF.eq(rv, Arrays.copyOfRange(data, offsets[i], offsets[i] + len));
+				}
+
+				// past the end of file
+				TF.eq(af.read(data.length, ByteBuffer.allocate(10)).get(), -1);
+				try
+				{
+					af.readFully(data.length - 5, ByteBuffer.allocate(10)).get();
+					TF.fail("expecting an EOFException");
+				}
+				catch(ExecutionException e)
+				{
+					TF.isTrue(e.getCause() instanceof EOFException);
+				}
+			}
+		}
+		finally
+		{
+			ex.shutdown();
+			key.destroy();
+			iv.destroy();
+		}
+	}
+
+
+	@Test
+	public void testDestroyInFlight() throws Exception
+	{
+		CByteArray key = TUtils.rndByteArray(XSalsaTools.KEY_LENGTH_BYTES);
+		CByteArray iv = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+		ExecutorService ex = Executors.newFixedThreadPool(4);
+		try
+		{
+			for(int i=0; i<500; i++)
+			{
+				XSalsaEnginePool pool = new XSalsaEnginePool(key, iv);
+				ArrayList<Future<?>> fs = new ArrayList<>();
+				for(int j=0; j<4; j++)
+				{
+					fs.add(ex.submit(() ->
+					{
+						// the only acceptable failure is a closed pool
+						try
+						{
+							for(long pos=0; ; pos+=100)
+							{
+								pool.release(pool.acquire(pos));
+							}
+						}
+						catch(ClosedChannelException expected)
+						{
+						}
+						return null;
+					}));
+				}
+
+				pool.destroy();
+
+				for(Future<?> f: fs)
+				{
+					f.get();
+				}
+			}
+		}
+		finally
+		{
+			ex.shutdown();
+			key.destroy();
+			iv.destroy();
+		}
+	}
+}
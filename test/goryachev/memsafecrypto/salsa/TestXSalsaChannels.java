@@ -0,0 +1,411 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.common.test.TF;
+import goryachev.common.test.Test;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.TUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Tests the encrypting and decrypting channels.
+ */
+public class TestXSalsaChannels
+{
+	public static void main(String[] args)
+	{
+		TF.run();
+	}
+
+
+	@Test
+	public void testByteChannel() throws Exception
+	{
+		Random r = new Random();
+		CByteArray key = TUtils.rndByteArray(XSalsaTools.KEY_LENGTH_BYTES);
+		CByteArray iv = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+		byte[] data = TUtils.rnd(1_000_000);
+
+		File f = File.createTempFile("TestXSalsaChannels", null);
+		f.deleteOnExit();
+
+		// the reference
+		try(XSalsaRandomAccessFile raf = new XSalsaRandomAccessFile(f, true, key, iv))
+		{
+			raf.write(data);
+		}
+		byte[] expected = Files.readAllBytes(f.toPath());
+		f.delete();
+
+		// gathering writes of random chunks
+		try(XSalsaByteChannel ch = new XSalsaByteChannel(FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ), key, iv, 1000))
+		{
+			int pos = 0;
+			while(pos < data.length)
+			{
+				int len = Math.min(data.length - pos, r.nextInt(5000));
+				int len1 = r.nextInt(len + 1);
+				ByteBuffer b1 = TUtils.toBuffer(Arrays.copyOfRange(data, pos, pos + len1), r.nextInt(4));
+				ByteBuffer b2 = TUtils.toBuffer(Arrays.copyOfRange(data, pos + len1, pos + len), r.nextInt(4));
+				ch.write(new ByteBuffer[] { b1, b2 });
+				TF.eq(b1.remaining(), 0);
+				TF.eq(b2.remaining(), 0);
+				pos += len;
+			}
+
+			// overwrite a random range with the same data
+			int len = r.nextInt(10_000);
+			int off = r.nextInt(data.length - len);
+			ch.position(off);
+			ch.write(ByteBuffer.wrap(data, off, len));
+		}
+		TF.eq(Files.readAllBytes(f.toPath()), expected);
+
+		// scattering reads at random positions
+		try(XSalsaByteChannel ch = new XSalsaByteChannel(FileChannel.open(f.toPath(), StandardOpenOption.READ), key, iv))
+		{
+			TF.eq(ch.size(), (long)data.length);
+
+			for(int i=0; i<1_000; i++)
+			{
+				int len = r.nextInt(10_000);
+				int off = r.nextInt(data.length - len);
+				int len1 = r.nextInt(len + 1);
+
+				ByteBuffer b1 = TUtils.toBuffer(new byte[len1], r.nextInt(4));
+				ByteBuffer b2 = TUtils.toBuffer(new byte[len - len1], r.nextInt(4));
+				int p1 = b1.position();
+				int p2 = b2.position();
+
+				ch.position(off);
+				long total = 0;
+				while(total < len)
+				{
+					total += ch.read(new ByteBuffer[] { b1, b2 });
+				}
+
+				TF.eq(bytes(b1, p1), Arrays.copyOfRange(data, off, off + len1));
+				TF.eq(bytes(b2, p2), Arrays.copyOfRange(data, off + len1, off + len));
+			}
+		}
+
+		key.destroy();
+		iv.destroy();
+	}
+
+
+	@Test
+	public void testPartialWrites() throws Exception
+	{
+		Random r = new Random();
+		CByteArray key = TUtils.rndByteArray(XSalsaTools.KEY_LENGTH_BYTES);
+		CByteArray iv = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+		byte[] data = TUtils.rnd(100_000);
+
+		File f = File.createTempFile("TestXSalsaChannels", null);
+		f.deleteOnExit();
+
+		try(XSalsaRandomAccessFile raf = new XSalsaRandomAccessFile(f, true, key, iv))
+		{
+			raf.write(data);
+		}
+		byte[] expected = Files.readAllBytes(f.toPath());
+		f.delete();
+
+		// a channel which accepts random numbers of bytes, including none:
+		// the ciphertext not written is discarded and encrypted again by the next write
+		FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+		SeekableByteChannel sc = new SeekableByteChannel()
+		{
+			public int write(ByteBuffer src) throws IOException
+			{
+				ByteBuffer b = src.duplicate();
+				b.limit(b.position() + Math.min(b.remaining(), r.nextInt(300)));
+				int n = fc.write(b);
+				src.position(src.position() + n);
+				return n;
+			}
+
+
+			public int read(ByteBuffer dst) throws IOException
+			{
+				return fc.read(dst);
+			}
+
+
+			public long position() throws IOException
+			{
+				return fc.position();
+			}
+
+
+			public SeekableByteChannel position(long newPosition) throws IOException
+			{
+				fc.position(newPosition);
+				return this;
+			}
+
+
+			public long size() throws IOException
+			{
+				return fc.size();
+			}
+
+
+			public SeekableByteChannel truncate(long size) throws IOException
+			{
+				fc.truncate(size);
+				return this;
+			}
+
+
+			public boolean isOpen()
+			{
+				return fc.isOpen();
+			}
+
+
+			public void close() throws IOException
+			{
+				fc.close();
+			}
+		};
+
+		try(XSalsaByteChannel ch = new XSalsaByteChannel(sc, key, iv, 1000))
+		{
+			int pos = 0;
+			while(pos < data.length)
+			{
+				int len = Math.min(data.length - pos, r.nextInt(5000));
+				int len1 = r.nextInt(len + 1);
+				ByteBuffer b1 = TUtils.toBuffer(Arrays.copyOfRange(data, pos, pos + len1), r.nextInt(4));
+				ByteBuffer b2 = TUtils.toBuffer(Arrays.copyOfRange(data, pos + len1, pos + len), r.nextInt(4));
+				while(b1.hasRemaining() || b2.hasRemaining())
+				{
+					long before = b1.remaining() + b2.remaining();
+					long wr = ch.write(new ByteBuffer[] { b1, b2 });
+					TF.eq(before - b1.remaining() - b2.remaining(), wr);
+				}
+				pos += len;
+			}
+			TF.eq(ch.position(), (long)data.length);
+		}
+		TF.eq(Files.readAllBytes(f.toPath()), expected);
+
+		key.destroy();
+		iv.destroy();
+	}
+
+
+	@Test
+	public void testPoly1305Channels() throws Exception
+	{
+		Random r = new Random();
+		int[] sizes = { 0, 1, 15, 16, 17, 1000, 100_000 };
+		for(int size: sizes)
+		{
+			CByteArray key = TUtils.rndByteArray(XSalsaTools.KEY_LENGTH_BYTES);
+			CByteArray nonce = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+			byte[] data = TUtils.rnd(size);
+
+			// the reference
+			ByteArrayOutputStream ba = new ByteArrayOutputStream();
+			try(XSalsa20Poly1305EncryptStream out = new XSalsa20Poly1305EncryptStream(key, nonce, ba))
+			{
+				out.write(data);
+			}
+			byte[] expected = ba.toByteArray();
+
+			// a blocking channel which accepts random numbers of bytes
+			ByteArrayOutputStream ba2 = new ByteArrayOutputStream();
+			WritableByteChannel wc = new WritableByteChannel()
+			{
+				public int write(ByteBuffer src)
+				{
+					int n = Math.min(src.remaining(), 1 + r.nextInt(300));
+					for(int i=0; i<n; i++)
+					{
+						ba2.write(src.get());
+					}
+					return n;
+				}
+
+
+				public boolean isOpen()
+				{
+					return true;
+				}
+
+
+				public void close()
+				{
+				}
+			};
+
+			try(XSalsa20Poly1305WritableChannel ch = new XSalsa20Poly1305WritableChannel(key, nonce, wc, 100))
+			{
+				int pos = 0;
+				while(pos < data.length)
+				{
+					int len = Math.min(data.length - pos, r.nextInt(500));
+					int len1 = r.nextInt(len + 1);
+					ByteBuffer b1 = TUtils.toBuffer(Arrays.copyOfRange(data, pos, pos + len1), r.nextInt(4));
+					ByteBuffer b2 = TUtils.toBuffer(Arrays.copyOfRange(data, pos + len1, pos + len), r.nextInt(4));
+					while(b1.hasRemaining() || b2.hasRemaining())
+					{
+						ch.write(new ByteBuffer[] { b1, b2 });
+					}
+					pos += len;
+				}
+			}
+			TF.eq(ba2.toByteArray(), expected);
+
+			// a channel which returns short reads, including none
+			byte[] dec = decrypt(key, nonce, expected, r);
+			TF.eq(dec, data);
+
+			// tampering
+			byte[] bad = expected.clone();
+			bad[r.nextInt(bad.length)] ^= 0x01;
+			try
+			{
+				decrypt(key, nonce, bad, r);
+				TF.fail("expecting an IOException");
+			}
+			catch(IOException e)
+			{
+			}
+
+			key.destroy();
+			nonce.destroy();
+		}
+	}
+
+
+	@Test
+	public void testNonBlockingClose() throws Exception
+	{
+		CByteArray key = TUtils.rndByteArray(XSalsaTools.KEY_LENGTH_BYTES);
+		CByteArray nonce = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+		byte[] data = TUtils.rnd(100_000);
+
+		ByteArrayOutputStream ba = new ByteArrayOutputStream();
+		try(XSalsa20Poly1305EncryptStream out = new XSalsa20Poly1305EncryptStream(key, nonce, ba))
+		{
+			out.write(data);
+		}
+		byte[] expected = ba.toByteArray();
+
+		// a non-blocking channel which accepts no bytes when the pipe is full: the data does not fit
+		// into the pipe, and the reader starts late, so close() has to wait for the channel to become writable
+		Pipe pipe = Pipe.open();
+		pipe.sink().configureBlocking(false);
+		ByteArrayOutputStream ba2 = new ByteArrayOutputStream();
+		Thread reader = new Thread(() ->
+		{
+			try(Pipe.SourceChannel src = pipe.source())
+			{
+				Thread.sleep(100);
+
+				ByteBuffer b = ByteBuffer.allocate(8192);
+				while(src.read(b) >= 0)
+				{
+					ba2.write(b.array(), 0, b.position());
+					b.clear();
+				}
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+			}
+		});
+		reader.start();
+
+		try(XSalsa20Poly1305WritableChannel ch = new XSalsa20Poly1305WritableChannel(key, nonce, pipe.sink()))
+		{
+			TF.eq(ch.write(ByteBuffer.wrap(data)), data.length);
+		}
+		reader.join();
+		TF.eq(ba2.toByteArray(), expected);
+
+		key.destroy();
+		nonce.destroy();
+	}
+
+
+	private static byte[] decrypt(CByteArray key, CByteArray nonce, byte[] enc, Random r) throws IOException
+	{
+		ByteBuffer src = ByteBuffer.wrap(enc);
+		ReadableByteChannel rc = new ReadableByteChannel()
+		{
+			public int read(ByteBuffer dst)
+			{
+				if(!src.hasRemaining())
+				{
+					return -1;
+				}
+
+				int n = Math.min(Math.min(src.remaining(), dst.remaining()), r.nextInt(300));
+				for(int i=0; i<n; i++)
+				{
+					dst.put(src.get());
+				}
+				return n;
+			}
+
+
+			public boolean isOpen()
+			{
+				return true;
+			}
+
+
+			public void close()
+			{
+			}
+		};
+
+		ByteArrayOutputStream ba = new ByteArrayOutputStream();
+		try(XSalsa20Poly1305ReadableChannel ch = new XSalsa20Poly1305ReadableChannel(key, nonce, enc.length, rc))
+		{
+			for(;;)
+			{
+				ByteBuffer b1 = TUtils.toBuffer(new byte[r.nextInt(200)], r.nextInt(4));
+				ByteBuffer b2 = TUtils.toBuffer(new byte[r.nextInt(200)], r.nextInt(4));
+				int p1 = b1.position();
+				int p2 = b2.position();
+
+				long rd = ch.read(new ByteBuffer[] { b1, b2 });
+				if(rd < 0)
+				{
+					break;
+				}
+
+				ba.write(bytes(b1, p1));
+				ba.write(bytes(b2, p2));
+			}
+		}
+		return ba.toByteArray();
+	}
+
+
+	/** returns the bytes between the specified position and the current position */
+	private static byte[] bytes(ByteBuffer b, int start)
+	{
+		byte[] rv = new byte[b.position() - start];
+		b.duplicate().position(start).get(rv);
+		return rv;
+	}
+}
@@ -0,0 +1,199 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.salsa;
+import goryachev.common.test.TF;
+import goryachev.common.test.Test;
+import goryachev.common.util.D;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.TUtils;
+import goryachev.memsafecrypto.bc.KeyParameter;
+import goryachev.memsafecrypto.bc.ParametersWithIV;
+import goryachev.memsafecrypto.bc.XSalsa20Engine;
+import java.io.File;
+import java.util.Random;
+
+
+/**
+ * Tests XSalsaParallel.
+ */
+public class TestXSalsaParallel
+{
+	public static void main(String[] args)
+	{
+		TF.run();
+	}
+
+
+	@Test
+	public void testTools()
+	{
+		int p = XSalsaParallel.getParallelism();
+		XSalsaParallel.setParallelism(4);
+		try
+		{
+			Random r = new Random();
+			CByteArray key = TUtils.rndByteArray(XSalsaTools.KEY_LENGTH_BYTES);
+			CByteArray nonce = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+
+			for(int i=0; i<5; i++)
+			{
+				int size = XSalsaParallel.MIN_CHUNK_SIZE * (1 + i * 3) + r.nextInt(1000);
+				CByteArray data = TUtils.rndByteArray(size);
+
+				CByteArray expected = new CByteArray(size + 7);
+				XSalsaTools.encryptXSalsa20(key, nonce, data, expected, 7, size);
+
+				CByteArray enc = new CByteArray(size + 7);
+				XSalsaTools.encryptXSalsa20Parallel(key, nonce, data, enc, 7, size);
+				TF.isTrue(enc.sameContentAs(expected));
+
+				CByteArray dec = new CByteArray(size);
+				XSalsaTools.decryptXSalsa20Parallel(key, nonce, 7, size, enc, dec);
+				TF.isTrue(dec.sameContentAs(data));
+			}
+		}
+		finally
+		{
+			XSalsaParallel.setParallelism(p);
+		}
+	}
+
+
+	@Test
+	public void testEnginePosition()
+	{
+		int p = XSalsaParallel.getParallelism();
+		XSalsaParallel.setParallelism(3);
+		try
+		{
+			byte[] key = TUtils.rnd(XSalsaTools.KEY_LENGTH_BYTES);
+			byte[] nonce = TUtils.rnd(XSalsaTools.NONCE_LENGTH_BYTES);
+			int size = XSalsaParallel.MIN_CHUNK_SIZE * 5 + 33;
+			byte[] data = TUtils.rnd(size);
+
+			// starts and ends in the middle of a block
+			XSalsa20Engine e1 = createEngine(key, nonce);
+			e1.seekTo(1001);
+			byte[] expected = new byte[size + 10];
+			e1.processBytes(data, 0, size, expected, 0);
+			e1.processBytes(data, 0, 10, expected, size);
+
+			XSalsa20Engine e2 = createEngine(key, nonce);
+			e2.seekTo(1001);
+			byte[] out = data.clone();
+			XSalsaParallel.processBytes(e2, out, 0, size, out, 0);
+			TF.eq(e2.getPosition(), e1.getPosition() - 10);
+			out = java.util.Arrays.copyOf(out, size + 10);
+			e2.processBytes(data, 0, 10, out, size);
+			TF.eq(out, expected);
+
+			e1.destroy();
+			e2.destroy();
+		}
+		finally
+		{
+			XSalsaParallel.setParallelism(p);
+		}
+	}
+
+
+	@Test
+	public void testFile() throws Exception
+	{
+		int p = XSalsaParallel.getParallelism();
+		XSalsaParallel.setParallelism(4);
+		File f = File.createTempFile("TestXSalsaParallel", ".tmp");
+		try
+		{
+			CByteArray key = TUtils.rndByteArray(XSalsaTools.KEY_LENGTH_BYTES);
+			CByteArray iv = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+			byte[] data = TUtils.rnd(XSalsaParallel.MIN_CHUNK_SIZE * 7 + 5);
+
+			try(XSalsaRandomAccessFile sf = new XSalsaRandomAccessFile(f, true, key, iv))
+			{
+				sf.write(data, 0, 100);
+				sf.write(data, 100, data.length - 100);
+			}
+
+			// sequential read
+			XSalsaParallel.setParallelism(1);
+			try(XSalsaRandomAccessFile sf = new XSalsaRandomAccessFile(f, false, key, iv))
+			{
+				byte[] b = new byte[data.length];
+				sf.readFully(b);
+				TF.eq(b, data);
+			}
+
+			// parallel read
+			XSalsaParallel.setParallelism(4);
+			try(XSalsaRandomAccessFile sf = new XSalsaRandomAccessFile(f, false, key, iv))
+			{
+				sf.seek(3);
+				byte[] b = new byte[data.length - 3];
+				sf.readFully(b);
+				TF.eq(b, java.util.Arrays.copyOfRange(data, 3, data.length));
+			}
+		}
+		finally
+		{
+			XSalsaParallel.setParallelism(p);
+			f.delete();
+		}
+	}
+
+
+	/*
+	XSalsa20 64 MB x 10, threads=4 (on a single core machine, which shows the overhead only):
+	sequential: 2.30
+	parallel: 2.63
+	*/
+	@Test
+	public void testSpeed()
+	{
+		int p = XSalsaParallel.getParallelism();
+		int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		int size = 64 * 1024 * 1024;
+		int count = 10;
+		CByteArray key = TUtils.rndByteArray(XSalsaTools.KEY_LENGTH_BYTES);
+		CByteArray nonce = TUtils.rndByteArray(XSalsaTools.NONCE_LENGTH_BYTES);
+		CByteArray data = new CByteArray(size);
+		CByteArray out = new CByteArray(size);
+		try
+		{
+			XSalsaParallel.setParallelism(1);
+			XSalsaTools.encryptXSalsa20Parallel(key, nonce, data, out, 0, size);
+			long t = System.nanoTime();
+			for(int i=0; i<count; i++)
+			{
+				XSalsaTools.encryptXSalsa20Parallel(key, nonce, data, out, 0, size);
+			}
+			double seq = (System.nanoTime() - t) / 1_000_000_000.0;
+
+			XSalsaParallel.setParallelism(threads);
+			XSalsaTools.encryptXSalsa20Parallel(key, nonce, data, out, 0, size);
+			t = System.nanoTime();
+			for(int i=0; i<count; i++)
+			{
+				XSalsaTools.encryptXSalsa20Parallel(key, nonce, data, out, 0, size);
+			}
+			double par = (System.nanoTime() - t) / 1_000_000_000.0;
+
+			D.print(String.format("\nXSalsa20 64 MB x %d, threads=%d:\nsequential: %.2f\nparallel: %.2f", count, threads, seq, par));
+		}
+		finally
+		{
+			XSalsaParallel.setParallelism(p);
+			data.destroy();
+			out.destroy();
+		}
+	}
+
+
+	protected static XSalsa20Engine createEngine(byte[] key, byte[] nonce)
+	{
+		XSalsa20Engine e = new XSalsa20Engine();
+		ParametersWithIV p = new ParametersWithIV(new KeyParameter(key), nonce);
+		e.init(true, p);
+		p.destroy();
+		return e;
+	}
+}
@@ -8,7 +8,12 @@ import goryachev.memsafecrypto.CByteArray;
 import goryachev.memsafecrypto.CRandom;
 import java.io.File;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -142,6 +147,175 @@ public class TestXSalsaRandomAccessFile
 	}
 
 
+	@Test
+	public void testPositional() throws Exception
+	{
+		int threads = 4;
+		int fileSize = 2_000_000;
+		
+		File ref = tempFile("ref.dat");
+		File encFile = tempFile("enc.dat");
+		
+		CRandom r = new CRandom();
+		byte[] data = new byte[fileSize];
+		r.nextBytes(data);
+
+		CByteArray key = new CByteArray(256/8);
+		r.nextBytes(key);
+		
+		CByteArray iv = new CByteArray(192/8);
+		r.nextBytes(iv);
+		
+		XSalsaRandomAccessFile sf = new XSalsaRandomAccessFile(ref, true, key, iv);
+		try
+		{
+			sf.write(data);
+		}
+		finally
+		{
+			CKit.close(sf);
+		}
+		
+		ExecutorService ex = Executors.newFixedThreadPool(threads);
+		try
+		{
+			// concurrent writes of disjoint ranges
+			sf = new XSalsaRandomAccessFile(encFile, true, key, iv);
+			try
+			{
+				XSalsaRandomAccessFile f = sf;
+				int part = fileSize / threads;
+				ArrayList<Future<?>> fs = new ArrayList<>();
+				for(int i=0; i<threads; i++)
+				{
+					int start = i * part;
+					int end = (i == threads - 1) ? fileSize : start + part;
+					fs.add(ex.submit(() ->
+					{
+						Random rnd = new Random();
+						for(int pos=start; pos<end; )
+						{
+							// some writes span several buffers
+							int max = (rnd.nextInt(10) == 0) ? 3 * XSalsaRandomAccessFile.POSITIONAL_BUFFER_LENGTH : 10_000;
+							int len = Math.min(end - pos, 1 + rnd.nextInt(max));
+							f.write(pos, data, pos, len);
+							pos += len;
+						}
+						return null;
+					}));
+				}
+				
+				for(Future<?> x: fs)
+				{
+					x.get();
+				}
+			}
+			finally
+			{
+				CKit.close(sf);
+			}
+			TF.eq(CKit.readBytes(encFile), CKit.readBytes(ref));
+			
+			// concurrent reads at random positions
+			sf = new XSalsaRandomAccessFile(encFile, false, key, iv);
+			try
+			{
+				XSalsaRandomAccessFile f = sf;
+				ArrayList<Future<?>> fs = new ArrayList<>();
+				for(int i=0; i<threads; i++)
+				{
+					fs.add(ex.submit(() ->
+					{
+						Random rnd = new Random();
+						for(int j=0; j<500; j++)
+						{
+							int len = rnd.nextInt(20_000);
+							int off = rnd.nextInt(fileSize - len);
+							byte[] b = new byte[len + 2];
+							f.readFully(off, b, 1, len);
+							TF.eq(Arrays.copyOfRange(b, 1, len + 1), Arrays.copyOfRange(data, off, off + len));
+							
+							int rd = f.read(off, b, 0, b.length);
+							TF.isTrue(rd > 0);
+							TF.eq(Arrays.copyOf(b, rd), Arrays.copyOfRange(data, off, off + rd));
+						}
+						return null;
+					}));
+				}
+				
+				for(Future<?> x: fs)
+				{
+					x.get();
+				}
+				
+				TF.eq(f.read(fileSize, new byte[1], 0, 1), -1);
+			}
+			finally
+			{
+				CKit.close(sf);
+			}
+		}
+		finally
+		{
+			ex.shutdown();
+		}
+	}
+
+
+	@Test
+	public void testPositionalParallel() throws Exception
+	{
+		int p = XSalsaParallel.getParallelism();
+		XSalsaParallel.setParallelism(4);
+		try
+		{
+			// spans more than one parallel buffer
+			int fileSize = XSalsaRandomAccessFile.PARALLEL_BUFFER_LENGTH + 1_000_003;
+			int offset = 1001;
+			
+			File ref = tempFile("ref.dat");
+			File encFile = tempFile("enc.dat");
+			
+			CRandom r = new CRandom();
+			byte[] data = new byte[fileSize];
+			r.nextBytes(data);
+			
+			CByteArray key = new CByteArray(256/8);
+			r.nextBytes(key);
+			
+			CByteArray iv = new CByteArray(192/8);
+			r.nextBytes(iv);
+			
+			XSalsaRandomAccessFile sf = new XSalsaRandomAccessFile(ref, true, key, iv);
+			try
+			{
+				sf.write(data);
+			}
+			finally
+			{
+				CKit.close(sf);
+			}
+			
+			sf = new XSalsaRandomAccessFile(encFile, true, key, iv);
+			try
+			{
+				TF.isTrue(XSalsaParallel.isParallel(fileSize - offset));
+				sf.write(offset, data, offset, fileSize - offset);
+				sf.write(0, data, 0, offset);
+			}
+			finally
+			{
+				CKit.close(sf);
+			}
+			TF.eq(CKit.readBytes(encFile), CKit.readBytes(ref));
+		}
+		finally
+		{
+			XSalsaParallel.setParallelism(p);
+		}
+	}
+
+
 	private CByteArray genBytes(int sz)
 	{
 		byte[] b = new byte[sz];
@@ -0,0 +1,465 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.util;
+import goryachev.common.test.TF;
+import goryachev.common.test.Test;
+import goryachev.common.util.D;
+import goryachev.memsafecrypto.CByteArray;
+import goryachev.memsafecrypto.CCharArray;
+import goryachev.memsafecrypto.CIntArray;
+import goryachev.memsafecrypto.CLongArray;
+import goryachev.memsafecrypto.TUtils;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Tests bulk operations in DirectArrayBase and C*Array classes.
+ */
+public class TestDirectArrayBase
+{
+	public static void main(String[] args)
+	{
+		TF.run();
+	}
+
+
+	@Test
+	public void testCopy()
+	{
+		Random r = new Random();
+		for(int i=0; i<1000; i++)
+		{
+			int size = r.nextInt(100);
+			int len = r.nextInt(size + 1);
+			int srcPos = r.nextInt(size - len + 1);
+			int dstPos = r.nextInt(size - len + 1);
+
+			byte[] src = TUtils.rnd(size);
+			byte[] dst = TUtils.rnd(size);
+
+			CByteArray s = CByteArray.readOnly(src);
+			CByteArray d = new CByteArray(size);
+			d.copyFrom(dst, 0, size, 0);
+
+			d.copyFrom(s, srcPos, len, dstPos);
+			System.arraycopy(src, srcPos, dst, dstPos, len);
+			TF.eq(d.toByteArray(), dst);
+
+			// overlapping
+			d.copyFrom(d, srcPos, len, dstPos);
+			System.arraycopy(dst, srcPos, dst, dstPos, len);
+			TF.eq(d.toByteArray(), dst);
+
+			byte[] out = new byte[size];
+			d.copyTo(srcPos, out, dstPos, len);
+			byte[] expected = new byte[size];
+			System.arraycopy(dst, srcPos, expected, dstPos, len);
+			TF.eq(out, expected);
+
+			TF.eq(d.position(), 0);
+		}
+	}
+
+
+	@Test
+	public void testFill()
+	{
+		for(int size=0; size<40; size++)
+		{
+			for(int off=0; off<size; off++)
+			{
+				int len = size - off;
+
+				CByteArray b = new CByteArray(size);
+				b.fill(off, len, (byte)0xa5);
+				byte[] eb = new byte[size];
+				Arrays.fill(eb, off, size, (byte)0xa5);
+				TF.eq(b.toByteArray(), eb);
+
+				CIntArray n = new CIntArray(size);
+				n.fill(off, len, 0x12345678);
+				int[] en = new int[size];
+				Arrays.fill(en, off, size, 0x12345678);
+				TF.eq(n.toArray(), en);
+
+				CCharArray c = new CCharArray(size);
+				c.fill(off, len, '\u1234');
+				char[] ec = new char[size];
+				Arrays.fill(ec, off, size, '\u1234');
+				TF.eq(c.toCharArray(), ec);
+
+				CLongArray g = new CLongArray(size);
+				g.fill(off, len, 0x0123456789abcdefL);
+				long[] eg = new long[size];
+				Arrays.fill(eg, off, size, 0x0123456789abcdefL);
+				TF.eq(g.toArray(), eg);
+
+				g.zero();
+				TF.eq(g.toArray(), new long[size]);
+			}
+		}
+	}
+
+
+	@Test
+	public void testArrays()
+	{
+		Random r = new Random();
+
+		int[] ns = r.ints(37).toArray();
+		CIntArray n = new CIntArray(ns.length);
+		n.copy(0, ns, 0, ns.length);
+		TF.eq(n.toArray(), ns);
+		TF.eq(n.get(5), ns[5]);
+		TF.isTrue(n.sameContentAs(new CIntArray(n)));
+
+		long[] ls = r.longs(37).toArray();
+		CLongArray g = new CLongArray(ls.length);
+		g.copy(0, ls, 0, ls.length);
+		TF.eq(g.toArray(), ls);
+		TF.eq(g.get(7), ls[7]);
+
+		CLongArray g2 = new CLongArray(g);
+		TF.isTrue(g.sameContentAs(g2));
+		g2.set(36, ~g2.get(36));
+		TF.isFalse(g.sameContentAs(g2));
+
+		CByteArray a = TUtils.rndByteArray(33);
+		CByteArray b = new CByteArray(a);
+		TF.isTrue(a.sameContentAs(b));
+		TF.isTrue(CUtils.compareConstantTime(a, 0, 33, b, 0));
+		b.xor(32, (byte)1);
+		TF.isFalse(a.sameContentAs(b));
+		TF.isFalse(CUtils.compareConstantTime(a, 0, 33, b, 0));
+		TF.isTrue(a.sameContentAs(0, b, 0, 32));
+	}
+
+
+	@Test
+	public void testWrite()
+	{
+		byte[] bytes = TUtils.rnd(20);
+		CByteArray src = CByteArray.readOnly(bytes);
+
+		// writes 'len' bytes starting at 'off', appending at the current position
+		CByteArray b = new CByteArray(16);
+		b.write(src, 3, 5);
+		b.write(src, 10, 4);
+
+		byte[] expected = new byte[16];
+		System.arraycopy(bytes, 3, expected, 0, 5);
+		System.arraycopy(bytes, 10, expected, 5, 4);
+		TF.eq(b.toByteArray(), expected);
+
+		b.destroy();
+	}
+
+
+	@Test
+	public void testLittleEndianViews()
+	{
+		byte[] bytes = TUtils.rnd(64);
+		ByteBuffer bb = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		CByteArray b = CByteArray.readOnly(bytes);
+
+		CIntArray ints = b.asIntArrayLE(4, 15);
+		CLongArray longs = b.asLongArrayLE(8, 7);
+		for(int i=0; i<15; i++)
+		{
+			TF.eq(ints.get(i), bb.getInt(4 + i * 4));
+			TF.eq(ints.get(i), CUtils.littleEndianToInt(b, 4 + i * 4));
+		}
+		for(int i=0; i<7; i++)
+		{
+			TF.eq(longs.get(i), bb.getLong(8 + i * 8));
+			TF.eq(longs.get(i), CUtils.littleEndianToLong(b, 8 + i * 8));
+		}
+
+		// read-only parent
+		try
+		{
+			ints.set(0, 1);
+			TF.fail();
+		}
+		catch(UnsupportedOperationException expected)
+		{
+		}
+
+		// bulk conversions
+		CIntArray n = new CIntArray(16);
+		CUtils.littleEndianToInt(b, 0, n);
+		CByteArray b2 = new CByteArray(64);
+		CUtils.intToLittleEndian(n, b2, 0);
+		TF.eq(b2.toByteArray(), bytes);
+
+		CLongArray g = new CLongArray(8);
+		CUtils.littleEndianToLong(b, 0, g);
+		CByteArray b3 = new CByteArray(64);
+		CUtils.longToLittleEndian(g, b3, 0);
+		TF.eq(b3.toByteArray(), bytes);
+
+		// copy between arrays of different byte order copies values
+		CIntArray n2 = new CIntArray(b.asIntArrayLE(0, 16));
+		TF.isTrue(n2.sameContentAs(n));
+		CByteArray b4 = new CByteArray(64);
+		CIntArray view = b4.asIntArrayLE(0, 16);
+		view.copy(0, n, 0, 16);
+		TF.eq(b4.toByteArray(), bytes);
+
+		// zeroing the view zeroes the parent
+		view.zero();
+		TF.eq(b4.toByteArray(), new byte[64]);
+	}
+
+
+	@Test
+	public void testDestroy()
+	{
+		CByteArray b = TUtils.rndByteArray(64);
+		CIntArray view = b.asIntArrayLE(0, 16);
+		b.destroy();
+
+		TF.isTrue(b.isDestroyed());
+		TF.isTrue(view.isDestroyed());
+
+		// idempotent
+		b.destroy();
+		b.zero();
+		b.close();
+
+		try
+		{
+			b.get(0);
+			TF.fail();
+		}
+		catch(IndexOutOfBoundsException expected)
+		{
+		}
+
+		try
+		{
+			b.length();
+			TF.fail();
+		}
+		catch(IllegalStateException expected)
+		{
+		}
+
+		try
+		{
+			view.copy(0, new int[16], 0, 16);
+			TF.fail();
+		}
+		catch(IllegalStateException expected)
+		{
+		}
+
+		try
+		{
+			new CByteArray(b);
+			TF.fail();
+		}
+		catch(IllegalStateException expected)
+		{
+		}
+
+		// destroying a view zeroes the parent memory without releasing it
+		CByteArray b2 = TUtils.rndByteArray(64);
+		CLongArray v2 = b2.asLongArrayLE(0, 8);
+		v2.destroy();
+		TF.isFalse(b2.isDestroyed());
+		TF.eq(b2.toByteArray(), new byte[64]);
+		b2.destroy();
+	}
+	
+	
+	@Test
+	public void testDestroyConcurrentAccess()
+	{
+		if(MemoryBackend.isEagerFree())
+		{
+			return;
+		}
+		
+		// a buffer obtained before destroy() remains valid, but zeroed
+		DirectArrayBase b = new DirectArrayBase(64);
+		b.fillBytes(0, 64, -1L);
+		ByteBuffer v = b.view(0, 64);
+		b.destroy();
+		
+		byte[] rv = new byte[64];
+		v.get(rv);
+		TF.eq(rv, new byte[64]);
+	}
+
+
+	@Test
+	public void testSlice()
+	{
+		byte[] bytes = TUtils.rnd(64);
+		CByteArray b = new CByteArray(64);
+		b.copyFrom(bytes, 0, 64, 0);
+
+		// shares memory with the parent
+		CByteArray s = b.slice(8, 16);
+		TF.eq(s.length(), 16);
+		TF.isTrue(s.isSlice());
+		TF.isTrue(s.sameContentAs(0, b, 8, 16));
+		s.set(0, (byte)~bytes[8]);
+		TF.eq(b.get(8), (byte)~bytes[8]);
+		b.set(8, bytes[8]);
+
+		// zeroing is left to the parent
+		s.zero();
+		s.destroy();
+		TF.isTrue(s.isDestroyed());
+		TF.isFalse(b.isDestroyed());
+		TF.eq(b.toByteArray(), bytes);
+
+		CByteArray r = b.readOnlySlice(0, 8);
+		try
+		{
+			r.set(0, (byte)0);
+			TF.fail();
+		}
+		catch(UnsupportedOperationException expected)
+		{
+		}
+
+		// out of range
+		try
+		{
+			b.slice(60, 8);
+			TF.fail();
+		}
+		catch(IndexOutOfBoundsException expected)
+		{
+		}
+
+		// destroying the parent zeroes the memory and destroys the slices
+		b.destroy();
+		TF.isTrue(r.isDestroyed());
+	}
+
+
+	/*
+	Bulk vs per-element, 1048576 bytes x 100:
+	copy CByteArray: 0.17 -> 0.02
+	copy byte[]: 0.21 -> 0.01
+	toByteArray: 0.16 -> 0.02
+	fill: 0.08 -> 0.00
+	compare: 0.16 -> 0.02
+	*/
+	@Test
+	public void testBulkSpeed()
+	{
+		int size = 1024 * 1024;
+		int count = 100;
+
+		CByteArray src = TUtils.rndByteArray(size);
+		CByteArray dst = new CByteArray(size);
+		byte[] heap = TUtils.rnd(size);
+
+		// warm up
+		for(int i=0; i<5; i++)
+		{
+			speed(src, dst, heap, 2);
+		}
+
+		D.print(speed(src, dst, heap, count));
+	}
+
+
+	protected static String speed(CByteArray src, CByteArray dst, byte[] heap, int count)
+	{
+		int size = src.length();
+		long[] slow = new long[5];
+		long[] fast = new long[5];
+		boolean same = true;
+
+		for(int i=0; i<count; i++)
+		{
+			long t = System.nanoTime();
+			for(int j=0; j<size; j++)
+			{
+				dst.set(j, src.get(j));
+			}
+			slow[0] += (System.nanoTime() - t);
+
+			t = System.nanoTime();
+			dst.copyFrom(src, 0, size, 0);
+			fast[0] += (System.nanoTime() - t);
+
+			t = System.nanoTime();
+			for(int j=0; j<size; j++)
+			{
+				dst.set(j, heap[j]);
+			}
+			slow[1] += (System.nanoTime() - t);
+
+			t = System.nanoTime();
+			dst.copyFrom(heap, 0, size, 0);
+			fast[1] += (System.nanoTime() - t);
+
+			t = System.nanoTime();
+			for(int j=0; j<size; j++)
+			{
+				heap[j] = src.get(j);
+			}
+			slow[2] += (System.nanoTime() - t);
+
+			t = System.nanoTime();
+			src.copyTo(0, heap, 0, size);
+			fast[2] += (System.nanoTime() - t);
+
+			t = System.nanoTime();
+			for(int j=0; j<size; j++)
+			{
+				dst.set(j, (byte)0);
+			}
+			slow[3] += (System.nanoTime() - t);
+
+			t = System.nanoTime();
+			dst.zero();
+			fast[3] += (System.nanoTime() - t);
+
+			dst.copyFrom(src, 0, size, 0);
+
+			t = System.nanoTime();
+			for(int j=0; j<size; j++)
+			{
+				if(src.get(j) != dst.get(j))
+				{
+					same = false;
+					break;
+				}
+			}
+			slow[4] += (System.nanoTime() - t);
+
+			t = System.nanoTime();
+			same &= src.sameContentAs(dst);
+			fast[4] += (System.nanoTime() - t);
+		}
+
+		TF.isTrue(same);
+
+		String[] names =
+		{
+			"copy CByteArray",
+			"copy byte[]",
+			"toByteArray",
+			"fill",
+			"compare"
+		};
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("\nBulk vs per-element, %d bytes x %d:", size, count));
+		for(int i=0; i<names.length; i++)
+		{
+			sb.append(String.format("\n%s: %.2f -> %.2f", names[i], slow[i] / 1_000_000_000.0, fast[i] / 1_000_000_000.0));
+		}
+		return sb.toString();
+	}
+}
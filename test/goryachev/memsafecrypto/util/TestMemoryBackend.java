@@ -0,0 +1,61 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.util;
+import goryachev.common.test.TF;
+import goryachev.common.test.Test;
+import goryachev.common.util.D;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * Tests MemoryBackend.
+ */
+public class TestMemoryBackend
+{
+	public static void main(String[] args)
+	{
+		TF.run();
+	}
+
+
+	@Test
+	public void testDirect()
+	{
+		t(MemoryBackend.init(MemoryBackend.DIRECT));
+		TF.eq(MemoryBackend.init("unknown").getName(), MemoryBackend.DIRECT);
+	}
+
+
+	@Test
+	public void testForeign()
+	{
+		// falls back to direct on JDK 17
+		MemoryBackend b = MemoryBackend.init(MemoryBackend.FOREIGN);
+		D.print(b.getName());
+		t(b);
+	}
+
+
+	private static void t(MemoryBackend backend)
+	{
+		for(int size: new int[] { 0, 1, 7, 4096, 4097, 100_000 })
+		{
+			ByteBuffer b = backend.allocate(size);
+			TF.eq(b.capacity(), size);
+			TF.eq(b.position(), 0);
+			TF.eq(b.order(), ByteOrder.BIG_ENDIAN);
+			TF.isTrue(b.isDirect());
+
+			for(int i=0; i<size; i++)
+			{
+				TF.eq(b.get(i), (byte)0);
+			}
+
+			if(size >= 8)
+			{
+				b.putLong(size - 8, 0x0102030405060708L);
+				TF.eq(b.get(size - 1), (byte)8);
+			}
+		}
+	}
+}
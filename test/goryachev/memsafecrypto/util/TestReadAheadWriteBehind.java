@@ -0,0 +1,180 @@
+// Copyright © 2022 Andy Goryachev <andy@goryachev.com>
+package goryachev.memsafecrypto.util;
+import goryachev.common.test.TF;
+import goryachev.common.test.Test;
+import goryachev.memsafecrypto.TUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+
+/**
+ * Tests ReadAheadInputStream and WriteBehindOutputStream.
+ */
+public class TestReadAheadWriteBehind
+{
+	public static void main(String[] args)
+	{
+		TF.run();
+	}
+
+
+	@Test
+	public void testReadAhead() throws Exception
+	{
+		Random r = new Random();
+		int[] sizes = { 0, 1, 99, 100, 101, 1000, 100_000 };
+		for(int size: sizes)
+		{
+			byte[] data = TUtils.rnd(size);
+
+			// the underlying stream returns short reads, and sometimes no data at all
+			InputStream is = new ByteArrayInputStream(data)
+			{
+				public synchronized int read(byte[] b, int off, int len)
+				{
+					if(r.nextInt(10) == 0)
+					{
+						return 0;
+					}
+					return super.read(b, off, Math.min(len, 1 + r.nextInt(150)));
+				}
+			};
+
+			ByteArrayOutputStream ba = new ByteArrayOutputStream();
+			try(ReadAheadInputStream in = new ReadAheadInputStream(is, 100, 3))
+			{
+				byte[] buf = new byte[1 + r.nextInt(300)];
+				for(;;)
+				{
+					if(r.nextInt(5) == 0)
+					{
+						int c = in.read();
+						if(c < 0)
+						{
+							break;
+						}
+						ba.write(c);
+					}
+					else
+					{
+						int rd = in.read(buf, 0, buf.length);
+						if(rd < 0)
+						{
+							break;
+						}
+						TF.isTrue(rd > 0);
+						ba.write(buf, 0, rd);
+					}
+				}
+
+				// the end of stream is sticky
+				TF.eq(in.read(), -1);
+			}
+			TF.eq(ba.toByteArray(), data);
+		}
+	}
+
+
+	@Test
+	public void testReadAheadError() throws Exception
+	{
+		InputStream is = new InputStream()
+		{
+			private int count;
+
+
+			public int read() throws IOException
+			{
+				if(count++ == 500)
+				{
+					throw new IOException("expected");
+				}
+				return 1;
+			}
+		};
+
+		try(ReadAheadInputStream in = new ReadAheadInputStream(is, 100, 2))
+		{
+			for(int i=0; i<500; i++)
+			{
+				TF.eq(in.read(), 1);
+			}
+
+			try
+			{
+				in.read();
+				TF.fail("expecting an IOException");
+			}
+			catch(IOException e)
+			{
+				TF.eq(e.getMessage(), "expected");
+			}
+		}
+	}
+
+
+	@Test
+	public void testWriteBehind() throws Exception
+	{
+		Random r = new Random();
+		int[] sizes = { 0, 1, 99, 100, 101, 1000, 100_000 };
+		for(int size: sizes)
+		{
+			byte[] data = TUtils.rnd(size);
+			ByteArrayOutputStream ba = new ByteArrayOutputStream();
+			try(WriteBehindOutputStream out = new WriteBehindOutputStream(ba, 100, 3))
+			{
+				int pos = 0;
+				while(pos < data.length)
+				{
+					if(r.nextInt(5) == 0)
+					{
+						out.write(data[pos++]);
+					}
+					else
+					{
+						int len = Math.min(data.length - pos, r.nextInt(300));
+						out.write(data, pos, len);
+						pos += len;
+					}
+
+					if(r.nextInt(20) == 0)
+					{
+						out.flush();
+						TF.eq(ba.size(), pos);
+					}
+				}
+			}
+			TF.eq(ba.toByteArray(), data);
+		}
+	}
+
+
+	@Test
+	public void testWriteBehindError() throws Exception
+	{
+		OutputStream os = new OutputStream()
+		{
+			public void write(int b) throws IOException
+			{
+				throw new IOException("expected");
+			}
+		};
+
+		WriteBehindOutputStream out = new WriteBehindOutputStream(os, 100, 2);
+		out.write(new byte[150]);
+		try
+		{
+			out.close();
+			TF.fail("expecting an IOException");
+		}
+		catch(IOException e)
+		{
+			TF.eq(e.getMessage(), "expected");
+		}
+	}
+}